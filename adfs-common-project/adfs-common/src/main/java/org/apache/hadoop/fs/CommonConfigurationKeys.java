@@ -54,5 +54,20 @@ public class CommonConfigurationKeys {
   public static final int IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_DEFAULT =
       256 * 1024;
 
+  /** Internal buffer size for LZ4 compressor/decompressors */
+  public static final String IO_COMPRESSION_CODEC_LZ4_BUFFERSIZE_KEY =
+      "io.compression.codec.lz4.buffersize";
+
+  /** Default value for IO_COMPRESSION_CODEC_LZ4_BUFFERSIZE_KEY */
+  public static final int IO_COMPRESSION_CODEC_LZ4_BUFFERSIZE_DEFAULT =
+      256 * 1024;
+
+  /** Number of threads a bzip2 stream compresses or decompresses on */
+  public static final String IO_COMPRESSION_CODEC_BZIP2_THREADS_KEY =
+      "io.compression.codec.bzip2.threads";
+
+  /** Default value for IO_COMPRESSION_CODEC_BZIP2_THREADS_KEY */
+  public static final int IO_COMPRESSION_CODEC_BZIP2_THREADS_DEFAULT = 1;
+
 }
 
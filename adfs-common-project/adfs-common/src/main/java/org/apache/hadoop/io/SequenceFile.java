@@ -20,6 +20,7 @@ package org.apache.hadoop.io;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.rmi.server.UID;
 import java.security.MessageDigest;
 import org.apache.commons.logging.*;
@@ -43,6 +44,7 @@ import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.NativeCodeLoader;
 import org.apache.hadoop.util.MergeSort;
 import org.apache.hadoop.util.PriorityQueue;
+import org.apache.hadoop.thirdparty.guava.common.util.concurrent.ThreadFactoryBuilder;
 
 /** 
  * <code>SequenceFile</code>s are flat files consisting of binary key/value 
@@ -2283,14 +2285,14 @@ public class SequenceFile {
 
     private RawComparator comparator;
 
-    private MergeSort mergeSort; //the implementation of merge sort
-    
     private Path[] inFiles;                     // when merging or sorting
 
     private Path outFile;
 
     private int memory; // bytes
     private int factor; // merged per pass
+    private int threads; // sorting and merging, 1 for no extra threads
+    private ExecutorService executor = null;
 
     private FileSystem fs = null;
 
@@ -2316,6 +2318,7 @@ public class SequenceFile {
       this.valClass = valClass;
       this.memory = conf.getInt("io.sort.mb", 100) * 1024 * 1024;
       this.factor = conf.getInt("io.sort.factor", 100);
+      this.threads = conf.getInt("io.sort.threads", 1);
       this.conf = conf;
     }
 
@@ -2331,11 +2334,55 @@ public class SequenceFile {
     /** Get the total amount of buffer memory, in bytes.*/
     public int getMemory() { return memory; }
 
+    /**
+     * Set the number of threads sorting the in-memory segments and reading
+     * and writing the merged segments. The output is the same for any
+     * number of threads.
+     */
+    public void setThreads(int threads) { this.threads = threads; }
+
+    /** Get the number of threads sorting and merging.*/
+    public int getThreads() { return threads; }
+
     /** Set the progressable object in order to report progress. */
     public void setProgressable(Progressable progressable) {
       this.progressable = progressable;
     }
     
+    private synchronized ExecutorService getExecutor() {
+      if (executor == null) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+        pool.allowCoreThreadTimeOut(true);
+        pool.setThreadFactory(new ThreadFactoryBuilder()
+            .setDaemon(true)
+            .setNameFormat("SequenceFile Sorter #%d")
+            .build());
+        executor = pool;
+      }
+      return executor;
+    }
+
+    /** Wait for a task of the sorting and merging threads. */
+    private static <T> T waitFor(Future<T> future) throws IOException {
+      try {
+        return future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for " + future);
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+          throw (Error) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
     /** 
      * Perform a file sort from a set of input files into an output file.
      * @param inFiles the files to be sorted
@@ -2399,7 +2446,6 @@ public class SequenceFile {
       LOG.debug("running sort pass");
       SortPass sortPass = new SortPass();         // make the SortPass
       sortPass.setProgressable(progressable);
-      mergeSort = new MergeSort(sortPass.new SeqFileComparator());
       try {
         return sortPass.run(deleteInput);         // run it
       } finally {
@@ -2411,14 +2457,16 @@ public class SequenceFile {
       private int memoryLimit = memory/4;
       private int recordLimit = 1000000;
       
-      private DataOutputBuffer rawKeys = new DataOutputBuffer();
-      private byte[] rawBuffer;
-
-      private int[] keyOffsets = new int[1024];
-      private int[] pointers = new int[keyOffsets.length];
-      private int[] pointersCopy = new int[keyOffsets.length];
-      private int[] keyLengths = new int[keyOffsets.length];
-      private ValueBytes[] rawValues = new ValueBytes[keyOffsets.length];
+      // at most 4 runs of memoryLimit are in memory at once, 1 is serial
+      private int maxRuns = threads == 1 ? 1 : Math.min(threads + 1, 4);
+      // whether the runs sorted at once may share the comparator
+      private boolean shareComparator =
+        maxRuns == 1 || isComparatorThreadSafe();
+      private int runs = 0;
+      private SortRun freeRun = null;
+      // the runs being sorted and spilled by the sort threads, in order
+      private LinkedList<Future<SortRun>> spills =
+        new LinkedList<Future<SortRun>>();
       
       private ArrayList segmentLengths = new ArrayList();
       
@@ -2447,13 +2495,11 @@ public class SequenceFile {
         isBlockCompressed = in.isBlockCompressed();
         codec = in.getCompressionCodec();
         
-        for (int i=0; i < rawValues.length; ++i) {
-          rawValues[i] = null;
-        }
-        
         while (!atEof) {
+          SortRun run = nextRun();
           int count = 0;
           int bytesProcessed = 0;
+          DataOutputBuffer rawKeys = run.rawKeys;
           rawKeys.reset();
           while (!atEof && 
                  bytesProcessed < memoryLimit && count < recordLimit) {
@@ -2462,9 +2508,9 @@ public class SequenceFile {
             // Note: Attempt to re-use 'rawValue' as far as possible
             int keyOffset = rawKeys.getLength();       
             ValueBytes rawValue = 
-              (count == keyOffsets.length || rawValues[count] == null) ? 
+              (count == run.keyOffsets.length || run.rawValues[count] == null) ? 
               in.createValueBytes() : 
-              rawValues[count];
+              run.rawValues[count];
             int recordLength = in.nextRaw(rawKeys, rawValue);
             if (recordLength == -1) {
               in.close();
@@ -2483,13 +2529,13 @@ public class SequenceFile {
 
             int keyLength = rawKeys.getLength() - keyOffset;
 
-            if (count == keyOffsets.length)
-              grow();
+            if (count == run.keyOffsets.length)
+              run.grow();
 
-            keyOffsets[count] = keyOffset;                // update pointers
-            pointers[count] = count;
-            keyLengths[count] = keyLength;
-            rawValues[count] = rawValue;
+            run.keyOffsets[count] = keyOffset;            // update pointers
+            run.pointers[count] = count;
+            run.keyLengths[count] = keyLength;
+            run.rawValues[count] = rawValue;
 
             bytesProcessed += recordLength; 
             count++;
@@ -2497,20 +2543,110 @@ public class SequenceFile {
 
           // buffer is full -- sort & flush it
           LOG.debug("flushing segment " + segments);
-          rawBuffer = rawKeys.getData();
-          sort(count);
-          // indicate we're making progress
-          if (progressable != null) {
-            progressable.progress();
+          run.rawBuffer = rawKeys.getData();
+          run.count = count;
+          run.bytesProcessed = bytesProcessed;
+          run.done = segments==0 && atEof;
+          if (maxRuns == 1) {
+            run.sort();
+            // indicate we're making progress
+            if (progressable != null) {
+              progressable.progress();
+            }
+            flush(run, isCompressed, isBlockCompressed, codec);
+            freeRun = run;
+          } else {
+            spill(run, isCompressed, isBlockCompressed, codec);
+            if (progressable != null) {
+              progressable.progress();
+            }
           }
-          flush(count, bytesProcessed, isCompressed, isBlockCompressed, codec, 
-                segments==0 && atEof);
           segments++;
         }
+        while (!spills.isEmpty()) {
+          waitFor(spills.removeFirst());
+        }
         return segments;
       }
 
+      /**
+       * Registered comparators must be thread-safe. A comparator got from
+       * {@link WritableComparator#get(Class)} for a key class with none
+       * registered deserializes the keys into fields of its own.
+       * @return whether several sort threads may use the comparator
+       */
+      private boolean isComparatorThreadSafe() {
+        if (!(comparator instanceof WritableComparator)) {
+          return false;
+        }
+        Class keyClass = ((WritableComparator)comparator).getKeyClass();
+        return comparator == WritableComparator.get(keyClass);
+      }
+
+      /**
+       * @return the comparator of a run, a copy of a generic
+       *         WritableComparator not shared with the other runs
+       */
+      private RawComparator newRunComparator() {
+        if (!shareComparator && comparator.getClass() == WritableComparator.class) {
+          return new WritableComparator(
+              ((WritableComparator)comparator).getKeyClass(), true);
+        }
+        return comparator;
+      }
+
+      /**
+       * @return a run to fill, after the oldest spill if all the runs are
+       *         in use
+       */
+      private SortRun nextRun() throws IOException {
+        if (freeRun != null) {
+          SortRun run = freeRun;
+          freeRun = null;
+          return run;
+        }
+        if (runs < maxRuns) {
+          runs++;
+          return new SortRun();
+        }
+        return waitFor(spills.removeFirst());
+      }
+
+      /**
+       * Sort a run on a sort thread, and write it once the previous runs
+       * are written, while the next runs are read.
+       */
+      private void spill(final SortRun run, final boolean isCompressed,
+                         final boolean isBlockCompressed,
+                         final CompressionCodec codec) {
+        ExecutorService executor = getExecutor();
+        final Future<?> sorted = executor.submit(new Runnable() {
+          public void run() {
+            run.sort();
+          }
+        });
+        final Future<SortRun> previous = spills.isEmpty() ? null : spills.getLast();
+        spills.add(executor.submit(new Callable<SortRun>() {
+          public SortRun call() throws IOException {
+            // the previous tasks are running or done, so this cannot deadlock
+            waitFor(sorted);
+            if (previous != null) {
+              waitFor(previous);
+            }
+            flush(run, isCompressed, isBlockCompressed, codec);
+            return run;
+          }
+        }));
+      }
+
       public void close() throws IOException {
+        while (!spills.isEmpty()) {
+          try {
+            waitFor(spills.removeFirst());
+          } catch (IOException e) {
+            LOG.debug("spill failed", e);
+          }
+        }
         if (in != null) {
           in.close();
         }
@@ -2522,33 +2658,10 @@ public class SequenceFile {
         }
       }
 
-      private void grow() {
-        int newLength = keyOffsets.length * 3 / 2;
-        keyOffsets = grow(keyOffsets, newLength);
-        pointers = grow(pointers, newLength);
-        pointersCopy = new int[newLength];
-        keyLengths = grow(keyLengths, newLength);
-        rawValues = grow(rawValues, newLength);
-      }
-
-      private int[] grow(int[] old, int newLength) {
-        int[] result = new int[newLength];
-        System.arraycopy(old, 0, result, 0, old.length);
-        return result;
-      }
-      
-      private ValueBytes[] grow(ValueBytes[] old, int newLength) {
-        ValueBytes[] result = new ValueBytes[newLength];
-        System.arraycopy(old, 0, result, 0, old.length);
-        for (int i=old.length; i < newLength; ++i) {
-          result[i] = null;
-        }
-        return result;
-      }
-
-      private void flush(int count, int bytesProcessed, boolean isCompressed, 
-                         boolean isBlockCompressed, CompressionCodec codec, boolean done) 
+      private void flush(SortRun run, boolean isCompressed, 
+                         boolean isBlockCompressed, CompressionCodec codec) 
         throws IOException {
+        boolean done = run.done;
         if (out == null) {
           outName = done ? outFile : outFile.suffix(".0");
           out = fs.create(outName);
@@ -2566,9 +2679,10 @@ public class SequenceFile {
           writer.sync = null;                     // disable sync on temp files
         }
 
-        for (int i = 0; i < count; i++) {         // write in sorted order
-          int p = pointers[i];
-          writer.appendRaw(rawBuffer, keyOffsets[p], keyLengths[p], rawValues[p]);
+        for (int i = 0; i < run.count; i++) {     // write in sorted order
+          int p = run.pointers[i];
+          writer.appendRaw(run.rawBuffer, run.keyOffsets[p], run.keyLengths[p],
+                           run.rawValues[p]);
         }
         writer.close();
         
@@ -2580,17 +2694,68 @@ public class SequenceFile {
         }
       }
 
-      private void sort(int count) {
-        System.arraycopy(pointers, 0, pointersCopy, 0, count);
-        mergeSort.mergeSort(pointersCopy, pointers, 0, count);
-      }
-      class SeqFileComparator implements Comparator<IntWritable> {
-        public int compare(IntWritable I, IntWritable J) {
-          return comparator.compare(rawBuffer, keyOffsets[I.get()], 
-                                    keyLengths[I.get()], rawBuffer, 
-                                    keyOffsets[J.get()], keyLengths[J.get()]);
+      /** The records of a segment. */
+      private class SortRun {
+        private DataOutputBuffer rawKeys = new DataOutputBuffer();
+        private byte[] rawBuffer;
+
+        private int[] keyOffsets = new int[1024];
+        private int[] pointers = new int[keyOffsets.length];
+        private int[] pointersCopy = new int[keyOffsets.length];
+        private int[] keyLengths = new int[keyOffsets.length];
+        private ValueBytes[] rawValues = new ValueBytes[keyOffsets.length];
+
+        private int count;
+        private int bytesProcessed;
+        private boolean done;
+
+        private RawComparator runComparator = newRunComparator();
+        private MergeSort mergeSort = new MergeSort(new SeqFileComparator());
+
+        private void grow() {
+          int newLength = keyOffsets.length * 3 / 2;
+          keyOffsets = grow(keyOffsets, newLength);
+          pointers = grow(pointers, newLength);
+          pointersCopy = new int[newLength];
+          keyLengths = grow(keyLengths, newLength);
+          rawValues = grow(rawValues, newLength);
         }
-      }
+
+        private int[] grow(int[] old, int newLength) {
+          int[] result = new int[newLength];
+          System.arraycopy(old, 0, result, 0, old.length);
+          return result;
+        }
+        
+        private ValueBytes[] grow(ValueBytes[] old, int newLength) {
+          ValueBytes[] result = new ValueBytes[newLength];
+          System.arraycopy(old, 0, result, 0, old.length);
+          for (int i=old.length; i < newLength; ++i) {
+            result[i] = null;
+          }
+          return result;
+        }
+
+        private void sort() {
+          System.arraycopy(pointers, 0, pointersCopy, 0, count);
+          if (shareComparator || runComparator != comparator) {
+            mergeSort.mergeSort(pointersCopy, pointers, 0, count);
+          } else {
+            // a comparator of unknown thread safety sorts one run at a time
+            synchronized (comparator) {
+              mergeSort.mergeSort(pointersCopy, pointers, 0, count);
+            }
+          }
+        }
+
+        class SeqFileComparator implements Comparator<IntWritable> {
+          public int compare(IntWritable I, IntWritable J) {
+            return runComparator.compare(rawBuffer, keyOffsets[I.get()], 
+                                      keyLengths[I.get()], rawBuffer, 
+                                      keyOffsets[J.get()], keyLengths[J.get()]);
+          }
+        }
+      } // SequenceFile.Sorter.SortPass.SortRun
       
       /** set the progressable object in order to report progress */
       public void setProgressable(Progressable progressable)
@@ -2759,6 +2924,69 @@ public class SequenceFile {
       }
       writer.sync();
     }
+
+    /**
+     * Writes the merged records like
+     * {@link #writeFile(RawKeyValueIterator, Writer)}, on a merge thread
+     * while the next records are merged.
+     */
+    private void writeMergedFile(MergeQueue records, Writer writer) 
+      throws IOException {
+      if (threads == 1) {
+        writeFile(records, writer);
+        return;
+      }
+      RecordBatch batch = new RecordBatch();
+      Future<RecordBatch> written = null;
+      try {
+        while (records.next()) {
+          DataOutputBuffer key = records.getKey();
+          batch.keys.write(key.getData(), 0, key.getLength());
+          batch.add(records.getValue(), 0, 0);
+          if (batch.isFull()) {
+            RecordBatch full = batch;
+            batch = (written == null) ? new RecordBatch() : waitFor(written);
+            written = appendInBackground(writer, full);
+          }
+        }
+        if (written != null) {
+          waitFor(written);
+          written = null;
+        }
+      } finally {
+        if (written != null) {
+          // the writer is in use until the batch is written
+          try {
+            waitFor(written);
+          } catch (IOException e) {
+            LOG.debug("writing merged records failed", e);
+          }
+        }
+      }
+      append(writer, batch);
+      writer.sync();
+    }
+
+    private Future<RecordBatch> appendInBackground(final Writer writer,
+                                                   final RecordBatch batch) {
+      return getExecutor().submit(new Callable<RecordBatch>() {
+        public RecordBatch call() throws IOException {
+          append(writer, batch);
+          batch.reset();
+          return batch;
+        }
+      });
+    }
+
+    private static void append(Writer writer, RecordBatch batch)
+      throws IOException {
+      byte[] keys = batch.keys.getData();
+      for (int i = 0; i < batch.count; i++) {
+        int start = batch.keyStart(i);
+        writer.appendRaw(keys, start, batch.keyEnds[i] - start, 
+                         batch.values[i]);
+      }
+    }
         
     /** Merge the provided files.
      * @param inFiles the array of input path names
@@ -2769,10 +2997,11 @@ public class SequenceFile {
       if (fs.exists(outFile)) {
         throw new IOException("already exists: " + outFile);
       }
-      RawKeyValueIterator r = merge(inFiles, false, outFile.getParent());
+      MergeQueue r = 
+        (MergeQueue) merge(inFiles, false, outFile.getParent());
       Writer writer = cloneFileAttributes(inFiles[0], outFile, null);
       
-      writeFile(r, writer);
+      writeMergedFile(r, writer);
 
       writer.close();
     }
@@ -2782,9 +3011,9 @@ public class SequenceFile {
       LOG.debug("running merge pass");
       Writer writer = cloneFileAttributes(
                                           outFile.suffix(".0"), outFile, null);
-      RawKeyValueIterator r = merge(outFile.suffix(".0"), 
-                                    outFile.suffix(".0.index"), tmpDir);
-      writeFile(r, writer);
+      MergeQueue r = merge(outFile.suffix(".0"), 
+                           outFile.suffix(".0.index"), tmpDir);
+      writeMergedFile(r, writer);
 
       writer.close();
       return 0;
@@ -2797,7 +3026,7 @@ public class SequenceFile {
      * @return RawKeyValueIterator
      * @throws IOException
      */
-    private RawKeyValueIterator merge(Path inName, Path indexIn, Path tmpDir) 
+    private MergeQueue merge(Path inName, Path indexIn, Path tmpDir) 
       throws IOException {
       //get the segments from indexIn
       //we create a SegmentContainer so that we can track segments belonging to
@@ -2806,7 +3035,76 @@ public class SequenceFile {
       //them anymore
       SegmentContainer container = new SegmentContainer(inName, indexIn);
       MergeQueue mQueue = new MergeQueue(container.getSegmentList(), tmpDir, progressable);
-      return mQueue.merge();
+      return (MergeQueue) mQueue.merge();
+    }
+
+    /**
+     * Records read ahead from a segment, or given to the thread writing the
+     * merged records. The values are not reused, so a value stays valid
+     * after the batch is reset.
+     */
+    private static class RecordBatch {
+      private static final int SIZE = 64 * 1024;
+
+      private DataOutputBuffer keys = new DataOutputBuffer();
+      private int[] keyEnds = new int[64];
+      private ValueBytes[] values = new ValueBytes[keyEnds.length];
+      // the positions in the segment after each key and value
+      private long[] keyPositions = new long[keyEnds.length];
+      private long[] valuePositions = new long[keyEnds.length];
+      private int count = 0;
+      private long valueBytes = 0;
+      // whether the segment ends after these records, at endPosition
+      private boolean eof = false;
+      private long endPosition;
+
+      /** Add a record, whose key is the end of keys. */
+      private void add(ValueBytes value, long keyPosition, long valuePosition) {
+        if (count == keyEnds.length) {
+          int newLength = count * 2;
+          keyEnds = Arrays.copyOf(keyEnds, newLength);
+          values = Arrays.copyOf(values, newLength);
+          keyPositions = Arrays.copyOf(keyPositions, newLength);
+          valuePositions = Arrays.copyOf(valuePositions, newLength);
+        }
+        keyEnds[count] = keys.getLength();
+        values[count] = value;
+        keyPositions[count] = keyPosition;
+        valuePositions[count] = valuePosition;
+        valueBytes += value.getSize();
+        count++;
+      }
+
+      private int keyStart(int i) {
+        return (i == 0) ? 0 : keyEnds[i - 1];
+      }
+
+      private boolean isFull() {
+        return keys.getLength() + valueBytes >= SIZE;
+      }
+
+      private void reset() {
+        keys.reset();
+        Arrays.fill(values, 0, count, null);
+        count = 0;
+        valueBytes = 0;
+        eof = false;
+      }
+    }
+
+    /** Make a value share the bytes of another one of the same type. */
+    private static void copyValue(ValueBytes from, ValueBytes to) {
+      if (to instanceof CompressedBytes) {
+        CompressedBytes source = (CompressedBytes)from;
+        CompressedBytes target = (CompressedBytes)to;
+        target.data = source.data;
+        target.dataSize = source.dataSize;
+      } else {
+        UncompressedBytes source = (UncompressedBytes)from;
+        UncompressedBytes target = (UncompressedBytes)to;
+        target.data = source.data;
+        target.dataSize = source.dataSize;
+      }
     }
     
     /** This class implements the core of the merge logic */
@@ -2893,15 +3191,16 @@ public class SequenceFile {
           }
         }
         minSegment = (SegmentDescriptor)top();
-        long startPos = minSegment.in.getPosition(); // Current position in stream
+        long startPos = minSegment.getPosition(); // Current position in stream
         //save the raw key reference
         rawKey = minSegment.getKey();
-        //load the raw value. Re-use the existing rawValue buffer
-        if (rawValue == null) {
+        //load the raw value. Re-use the existing rawValue buffer, unless the
+        //merged records may be written by another thread
+        if (rawValue == null || threads > 1) {
           rawValue = minSegment.in.createValueBytes();
         }
         minSegment.nextRawValue(rawValue);
-        long endPos = minSegment.in.getPosition(); // End position after reading value
+        long endPos = minSegment.getPosition(); // End position after reading value
         updateProgress(endPos - startPos);
         return true;
       }
@@ -2911,9 +3210,9 @@ public class SequenceFile {
       }
 
       private void adjustPriorityQueue(SegmentDescriptor ms) throws IOException{
-        long startPos = ms.in.getPosition(); // Current position in stream
+        long startPos = ms.getPosition(); // Current position in stream
         boolean hasNext = ms.nextRawKey();
-        long endPos = ms.in.getPosition(); // End position after reading key
+        long endPos = ms.getPosition(); // End position after reading key
         updateProgress(endPos - startPos);
         if (hasNext) {
           adjustTop();
@@ -2959,7 +3258,7 @@ public class SequenceFile {
                 segmentsToMerge.add(mStream[i]);
                 segmentsConsidered++;
                 // Count the fact that we read some bytes in calling nextRawKey()
-                updateProgress(mStream[i].in.getPosition());
+                updateProgress(mStream[i].getPosition());
               }
               else {
                 mStream[i].cleanup();
@@ -3014,7 +3313,7 @@ public class SequenceFile {
                                                 fs.makeQualified(segmentsToMerge.get(0).segmentPathName), 
                                                 fs.makeQualified(outputFile), null);
             writer.sync = null; //disable sync for temp files
-            writeFile(this, writer);
+            writeMergedFile(this, writer);
             writer.close();
             
             //we finished one single level merge; now clean up the priority 
@@ -3076,6 +3375,12 @@ public class SequenceFile {
       private DataOutputBuffer rawKey = null; //this will hold the current key
       private boolean preserveInput = false; //delete input segment files?
       
+      //the records read ahead by the merge threads, if any
+      private RecordBatch batch = null;
+      private int batchIndex = 0;
+      private Future<RecordBatch> nextBatch = null;
+      private long position; //in the segment, after the last key or value
+      
       /** Constructs a segment
        * @param segmentOffset the offset of the segment in the file
        * @param segmentLength the length of the segment
@@ -3155,13 +3460,60 @@ public class SequenceFile {
                                   " is not " + valClass);
           this.in = reader;
           rawKey = new DataOutputBuffer();
+          if (threads > 1) {
+            batch = new RecordBatch();
+            nextBatch = readAhead(new RecordBatch());
+          }
         }
         rawKey.reset();
+        if (batch != null) {
+          return nextBatchedKey();
+        }
         int keyLength = 
           in.nextRawKey(rawKey);
         return (keyLength >= 0);
       }
 
+      private boolean nextBatchedKey() throws IOException {
+        while (batchIndex == batch.count) {
+          if (nextBatch == null) {
+            position = batch.endPosition;
+            return false;
+          }
+          RecordBatch consumed = batch;
+          batch = waitFor(nextBatch);
+          batchIndex = 0;
+          nextBatch = batch.eof ? null : readAhead(consumed);
+        }
+        int start = batch.keyStart(batchIndex);
+        rawKey.write(batch.keys.getData(), start, 
+                     batch.keyEnds[batchIndex] - start);
+        position = batch.keyPositions[batchIndex];
+        batchIndex++;
+        return true;
+      }
+
+      /** Read the next records into a batch on a merge thread. */
+      private Future<RecordBatch> readAhead(final RecordBatch target) {
+        return getExecutor().submit(new Callable<RecordBatch>() {
+          public RecordBatch call() throws IOException {
+            target.reset();
+            while (!target.isFull()) {
+              if (in.nextRawKey(target.keys) < 0) {
+                target.eof = true;
+                target.endPosition = in.getPosition();
+                break;
+              }
+              long keyPosition = in.getPosition();
+              ValueBytes value = in.createValueBytes();
+              in.nextRawValue(value);
+              target.add(value, keyPosition, in.getPosition());
+            }
+            return target;
+          }
+        });
+      }
+
       /** Fills up the passed rawValue with the value corresponding to the key
        * read earlier
        * @param rawValue
@@ -3169,6 +3521,11 @@ public class SequenceFile {
        * @throws IOException
        */
       public int nextRawValue(ValueBytes rawValue) throws IOException {
+        if (batch != null) {
+          copyValue(batch.values[batchIndex - 1], rawValue);
+          position = batch.valuePositions[batchIndex - 1];
+          return rawValue.getSize();
+        }
         int valLength = in.nextRawValue(rawValue);
         return valLength;
       }
@@ -3177,9 +3534,25 @@ public class SequenceFile {
       public DataOutputBuffer getKey() {
         return rawKey;
       }
+
+      /** Returns the position in the segment, after the last key or value */
+      private long getPosition() throws IOException {
+        return (batch != null) ? position : in.getPosition();
+      }
       
       /** closes the underlying reader */
       private void close() throws IOException {
+        if (nextBatch != null) {
+          // the reader is in use until the read ahead is done
+          try {
+            waitFor(nextBatch);
+          } catch (IOException e) {
+            LOG.debug("reading ahead " + segmentPathName + " failed", e);
+          }
+          nextBatch = null;
+        }
+        batch = null;
+        batchIndex = 0;
         this.in.close();
         this.in = null;
       }
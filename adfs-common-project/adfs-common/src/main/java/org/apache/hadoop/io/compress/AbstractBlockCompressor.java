@@ -0,0 +1,210 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * A {@link Compressor} for {@link BlockCompressorStream} which compresses
+ * each block in one call of {@link #compressBlock(byte[], int, int, byte[], int)}
+ * on heap arrays, for the block formats implemented in Java.
+ */
+public abstract class AbstractBlockCompressor implements Compressor {
+  private final int bufferSize;
+  private final byte[] uncompressedBuf;
+  private int uncompressedBufLen = 0;
+  private byte[] compressedBuf = null;
+  private int compressedBufOff = 0, compressedBufLen = 0;
+  private byte[] userBuf = null;
+  private int userBufOff = 0, userBufLen = 0;
+  private boolean finish, finished;
+
+  private long bytesRead = 0L;
+  private long bytesWritten = 0L;
+
+  /**
+   * @param bufferSize the size of the largest block to compress
+   */
+  protected AbstractBlockCompressor(int bufferSize) {
+    this.bufferSize = bufferSize;
+    this.uncompressedBuf = new byte[bufferSize];
+  }
+
+  /**
+   * @return the largest size of a block of the given length once compressed
+   */
+  protected abstract int maxCompressedLength(int length);
+
+  /**
+   * Compress a block.
+   *
+   * @param src the data to compress
+   * @param srcOff start offset of the data
+   * @param srcLen length of the data
+   * @param dst the buffer for the compressed data, of at least
+   *            {@link #maxCompressedLength(int)} bytes from dstOff
+   * @param dstOff start offset in the buffer
+   * @return the length of the compressed data
+   */
+  protected abstract int compressBlock(byte[] src, int srcOff, int srcLen,
+                                       byte[] dst, int dstOff);
+
+  @Override
+  public synchronized void setInput(byte[] b, int off, int len) {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+    finished = false;
+
+    if (len > bufferSize - uncompressedBufLen) {
+      // save data; now !needsInput
+      this.userBuf = b;
+      this.userBufOff = off;
+      this.userBufLen = len;
+    } else {
+      System.arraycopy(b, off, uncompressedBuf, uncompressedBufLen, len);
+      uncompressedBufLen += len;
+    }
+
+    bytesRead += len;
+  }
+
+  /**
+   * Load the input set aside by {@link #setInput(byte[], int, int)} while
+   * the compressed data are consumed.
+   */
+  private void setInputFromSavedData() {
+    if (0 >= userBufLen) {
+      return;
+    }
+    finished = false;
+
+    uncompressedBufLen = Math.min(userBufLen, bufferSize);
+    System.arraycopy(userBuf, userBufOff, uncompressedBuf, 0, uncompressedBufLen);
+    userBufOff += uncompressedBufLen;
+    userBufLen -= uncompressedBufLen;
+  }
+
+  /**
+   * Does nothing.
+   */
+  @Override
+  public synchronized void setDictionary(byte[] b, int off, int len) {
+    // do nothing
+  }
+
+  @Override
+  public synchronized boolean needsInput() {
+    return !(compressedBufLen > compressedBufOff
+        || uncompressedBufLen == bufferSize || userBufLen > 0);
+  }
+
+  @Override
+  public synchronized void finish() {
+    finish = true;
+  }
+
+  @Override
+  public synchronized boolean finished() {
+    // Check if all uncompressed data has been consumed
+    return (finish && finished && compressedBufLen == compressedBufOff);
+  }
+
+  @Override
+  public synchronized int compress(byte[] b, int off, int len)
+      throws IOException {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+
+    // Check if there is compressed data
+    int n = compressedBufLen - compressedBufOff;
+    if (n == 0) {
+      if (0 == uncompressedBufLen) {
+        setInputFromSavedData();
+        if (0 == uncompressedBufLen) {
+          // Called without data; write nothing
+          finished = true;
+          return 0;
+        }
+      }
+      if (compressedBuf == null) {
+        compressedBuf = new byte[maxCompressedLength(bufferSize)];
+      }
+      compressedBufOff = 0;
+      compressedBufLen = compressBlock(uncompressedBuf, 0, uncompressedBufLen,
+          compressedBuf, 0);
+      uncompressedBufLen = 0;
+
+      // Set 'finished' if all user data is compressed
+      if (0 == userBufLen) {
+        finished = true;
+      }
+      n = compressedBufLen;
+    }
+
+    // Get atmost 'len' bytes
+    n = Math.min(n, len);
+    System.arraycopy(compressedBuf, compressedBufOff, b, off, n);
+    compressedBufOff += n;
+    bytesWritten += n;
+    return n;
+  }
+
+  @Override
+  public synchronized void reset() {
+    finish = false;
+    finished = false;
+    uncompressedBufLen = 0;
+    compressedBufOff = compressedBufLen = 0;
+    userBuf = null;
+    userBufOff = userBufLen = 0;
+    bytesRead = bytesWritten = 0L;
+  }
+
+  @Override
+  public synchronized void reinit(Configuration conf) {
+    reset();
+  }
+
+  @Override
+  public synchronized long getBytesRead() {
+    return bytesRead;
+  }
+
+  @Override
+  public synchronized long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Does nothing, the buffers are on the heap.
+   */
+  @Override
+  public synchronized void end() {
+  }
+}
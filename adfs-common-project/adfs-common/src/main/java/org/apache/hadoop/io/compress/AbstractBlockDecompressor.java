@@ -0,0 +1,160 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress;
+
+import java.io.IOException;
+
+/**
+ * A {@link Decompressor} for {@link BlockDecompressorStream} which takes
+ * each compressed chunk set by {@link #setInput(byte[], int, int)} as a
+ * whole block, and decompresses it in one call of
+ * {@link #decompressBlock(byte[], int, int, byte[], int, int)} on heap
+ * arrays, for the block formats implemented in Java.
+ */
+public abstract class AbstractBlockDecompressor implements Decompressor {
+  private byte[] uncompressedBuf;
+  private int uncompressedBufOff = 0, uncompressedBufLen = 0;
+  private byte[] userBuf = null;
+  private int userBufOff = 0, userBufLen = 0;
+  private boolean finished;
+
+  /**
+   * @param bufferSize the initial size of the buffer for a decompressed
+   *                   block, which grows for larger blocks
+   */
+  protected AbstractBlockDecompressor(int bufferSize) {
+    this.uncompressedBuf = new byte[bufferSize];
+  }
+
+  /**
+   * Decompress a block.
+   *
+   * @param src the compressed block
+   * @param srcOff start offset of the block
+   * @param srcLen length of the block
+   * @param dst the buffer for the decompressed data
+   * @param dstOff start offset in the buffer
+   * @param dstLen space in the buffer
+   * @return the length of the decompressed data, or -1 if it does not fit
+   *         in dstLen bytes
+   * @throws IOException if the block is malformed
+   */
+  protected abstract int decompressBlock(byte[] src, int srcOff, int srcLen,
+      byte[] dst, int dstOff, int dstLen) throws IOException;
+
+  /**
+   * Sets a compressed block for decompression. The data are not copied and
+   * must remain unmodified until {@link #needsInput()} returns
+   * <code>true</code>.
+   */
+  @Override
+  public synchronized void setInput(byte[] b, int off, int len) {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+
+    this.userBuf = b;
+    this.userBufOff = off;
+    this.userBufLen = len;
+    uncompressedBufOff = uncompressedBufLen = 0;
+  }
+
+  @Override
+  public synchronized boolean needsInput() {
+    // Consume remaining decompressed data?
+    if (uncompressedBufLen > uncompressedBufOff) {
+      return false;
+    }
+    return userBufLen <= 0;
+  }
+
+  /**
+   * Does nothing.
+   */
+  @Override
+  public synchronized void setDictionary(byte[] b, int off, int len) {
+    // do nothing
+  }
+
+  @Override
+  public synchronized boolean needsDictionary() {
+    return false;
+  }
+
+  @Override
+  public synchronized boolean finished() {
+    return (finished && uncompressedBufLen == uncompressedBufOff);
+  }
+
+  @Override
+  public synchronized int decompress(byte[] b, int off, int len)
+      throws IOException {
+    if (b == null) {
+      throw new NullPointerException();
+    }
+    if (off < 0 || len < 0 || off > b.length - len) {
+      throw new ArrayIndexOutOfBoundsException();
+    }
+
+    if (uncompressedBufLen == uncompressedBufOff) {
+      if (userBufLen <= 0) {
+        return 0;
+      }
+      int n;
+      while ((n = decompressBlock(userBuf, userBufOff, userBufLen,
+          uncompressedBuf, 0, uncompressedBuf.length)) < 0) {
+        // neither LZ4 nor snappy expands data more than 255 times
+        if (uncompressedBuf.length / 256 > userBufLen
+            || uncompressedBuf.length >= Integer.MAX_VALUE / 2) {
+          throw new IOException("Decompressed block is too large");
+        }
+        uncompressedBuf = new byte[uncompressedBuf.length * 2];
+      }
+      uncompressedBufOff = 0;
+      uncompressedBufLen = n;
+      userBuf = null;
+      userBufOff = userBufLen = 0;
+      finished = true;
+    }
+
+    // Get atmost 'len' bytes
+    int n = Math.min(uncompressedBufLen - uncompressedBufOff, len);
+    System.arraycopy(uncompressedBuf, uncompressedBufOff, b, off, n);
+    uncompressedBufOff += n;
+    return n;
+  }
+
+  @Override
+  public synchronized void reset() {
+    finished = false;
+    uncompressedBufOff = uncompressedBufLen = 0;
+    userBuf = null;
+    userBufOff = userBufLen = 0;
+  }
+
+  /**
+   * Does nothing, the buffers are on the heap.
+   */
+  @Override
+  public synchronized void end() {
+  }
+}
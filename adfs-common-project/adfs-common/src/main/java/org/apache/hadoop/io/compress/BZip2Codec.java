@@ -24,12 +24,16 @@ import java.io.InputStream;
 import java.io.OutputStream;
 
 
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.compress.bzip2.BZip2Constants;
 import org.apache.hadoop.io.compress.bzip2.BZip2DummyCompressor;
 import org.apache.hadoop.io.compress.bzip2.BZip2DummyDecompressor;
 import org.apache.hadoop.io.compress.bzip2.CBZip2InputStream;
 import org.apache.hadoop.io.compress.bzip2.CBZip2OutputStream;
+import org.apache.hadoop.io.compress.bzip2.ParallelBZip2OutputStream;
 
 /**
  * This class provides CompressionOutputStream and CompressionInputStream for
@@ -37,8 +41,14 @@ import org.apache.hadoop.io.compress.bzip2.CBZip2OutputStream;
  * the Compressor and Decompressor interfaces, so those methods of
  * CompressionCodec which have a Compressor or Decompressor type argument, throw
  * UnsupportedOperationException.
+ *
+ * With io.compression.codec.bzip2.threads set to more than one, a file is
+ * compressed as a series of bzip2 streams, one per block, on that many
+ * threads, and the blocks of a file are decompressed on that many threads.
+ * The concatenated streams are read back as one by both this codec and the
+ * <tt>bzip2</tt> tool.
  */
-public class BZip2Codec implements SplittableCompressionCodec {
+public class BZip2Codec implements Configurable, SplittableCompressionCodec {
 
   private static final String HEADER = "BZ";
   private static final int HEADER_LEN = HEADER.length();
@@ -50,6 +60,39 @@ public class BZip2Codec implements SplittableCompressionCodec {
   */
   public BZip2Codec() { }
 
+  private Configuration conf;
+
+  /**
+   * Set the configuration to be used by this object.
+   *
+   * @param conf the configuration object.
+   */
+  @Override
+  public void setConf(Configuration conf) {
+    this.conf = conf;
+  }
+
+  /**
+   * Return the configuration used by this object.
+   *
+   * @return the configuration object used by this object.
+   */
+  @Override
+  public Configuration getConf() {
+    return conf;
+  }
+
+  /**
+   * @return the number of threads to compress or decompress a stream on
+   */
+  private int getThreads() {
+    if (conf == null) {
+      return CommonConfigurationKeys.IO_COMPRESSION_CODEC_BZIP2_THREADS_DEFAULT;
+    }
+    return conf.getInt(CommonConfigurationKeys.IO_COMPRESSION_CODEC_BZIP2_THREADS_KEY,
+        CommonConfigurationKeys.IO_COMPRESSION_CODEC_BZIP2_THREADS_DEFAULT);
+  }
+
   /**
   * Creates CompressionOutputStream for BZip2
   *
@@ -61,7 +104,7 @@ public class BZip2Codec implements SplittableCompressionCodec {
   */
   public CompressionOutputStream createOutputStream(OutputStream out)
       throws IOException {
-    return new BZip2CompressionOutputStream(out);
+    return new BZip2CompressionOutputStream(out, getThreads());
   }
 
   /**
@@ -104,7 +147,7 @@ public class BZip2Codec implements SplittableCompressionCodec {
   */
   public CompressionInputStream createInputStream(InputStream in)
       throws IOException {
-    return new BZip2CompressionInputStream(in);
+    return new BZip2CompressionInputStream(in, getThreads());
   }
 
   /**
@@ -149,8 +192,9 @@ public class BZip2Codec implements SplittableCompressionCodec {
     long adjStart = Math.max(0L, start - FIRST_BZIP2_BLOCK_MARKER_POSITION);
 
     ((Seekable)seekableIn).seek(adjStart);
+    int threads = getThreads();
     SplitCompressionInputStream in =
-      new BZip2CompressionInputStream(seekableIn, adjStart, end, readMode);
+      new BZip2CompressionInputStream(seekableIn, adjStart, end, readMode, threads);
 
 
     // The following if clause handles the following case:
@@ -166,7 +210,8 @@ public class BZip2Codec implements SplittableCompressionCodec {
 
     if (in.getPos() <= start) {
       ((Seekable)seekableIn).seek(start);
-      in = new BZip2CompressionInputStream(seekableIn, start, end, readMode);
+      in = new BZip2CompressionInputStream(seekableIn, start, end, readMode,
+          threads);
     }
 
     return in;
@@ -203,14 +248,16 @@ public class BZip2Codec implements SplittableCompressionCodec {
       CompressionOutputStream {
 
     // class data starts here//
-    private CBZip2OutputStream output;
+    private OutputStream output;
     private boolean needsReset; 
+    private final int threads;
     // class data ends here//
 
-    public BZip2CompressionOutputStream(OutputStream out)
+    public BZip2CompressionOutputStream(OutputStream out, int threads)
         throws IOException {
       super(out);
       needsReset = true;
+      this.threads = threads;
     }
 
     private void writeStreamHeader() throws IOException {
@@ -229,7 +276,11 @@ public class BZip2Codec implements SplittableCompressionCodec {
         // recognized by BZip2CompressionInputStream.
         internalReset();
       }
-      this.output.finish();
+      if (this.output instanceof ParallelBZip2OutputStream) {
+        ((ParallelBZip2OutputStream) this.output).finish();
+      } else {
+        ((CBZip2OutputStream) this.output).finish();
+      }
       needsReset = true;
     }
 
@@ -237,7 +288,11 @@ public class BZip2Codec implements SplittableCompressionCodec {
       if (needsReset) {
         needsReset = false;
         writeStreamHeader();
-        this.output = new CBZip2OutputStream(out);
+        if (threads > 1) {
+          this.output = new ParallelBZip2OutputStream(out, threads);
+        } else {
+          this.output = new CBZip2OutputStream(out);
+        }
       }
     }    
     
@@ -301,6 +356,7 @@ public class BZip2Codec implements SplittableCompressionCodec {
     private boolean isSubHeaderStripped = false;
     private READ_MODE readMode = READ_MODE.CONTINUOUS;
     private long startingPos = 0L;
+    private final int threads;
 
     // Following state machine handles different states of compressed stream
     // position
@@ -316,14 +372,16 @@ public class BZip2Codec implements SplittableCompressionCodec {
 
     // class data ends here//
 
-    public BZip2CompressionInputStream(InputStream in) throws IOException {
-      this(in, 0L, Long.MAX_VALUE, READ_MODE.CONTINUOUS);
+    public BZip2CompressionInputStream(InputStream in, int threads)
+        throws IOException {
+      this(in, 0L, Long.MAX_VALUE, READ_MODE.CONTINUOUS, threads);
     }
 
     public BZip2CompressionInputStream(InputStream in, long start, long end,
-        READ_MODE readMode) throws IOException {
+        READ_MODE readMode, int threads) throws IOException {
       super(in, start, end);
       needsReset = false;
+      this.threads = threads;
       bufferedIn = new BufferedInputStream(super.in);
       this.startingPos = super.getPos();
       this.readMode = readMode;
@@ -331,7 +389,7 @@ public class BZip2Codec implements SplittableCompressionCodec {
         // We only strip header if it is start of file
         bufferedIn = readStreamHeader();
       }
-      input = new CBZip2InputStream(bufferedIn, readMode);
+      input = new CBZip2InputStream(bufferedIn, readMode, threads);
       if (this.isHeaderStripped) {
         input.updateReportedByteCount(HEADER_LEN);
       }
@@ -446,7 +504,7 @@ public class BZip2Codec implements SplittableCompressionCodec {
       if (needsReset) {
         needsReset = false;
         BufferedInputStream bufferedIn = readStreamHeader();
-        input = new CBZip2InputStream(bufferedIn, this.readMode);
+        input = new CBZip2InputStream(bufferedIn, this.readMode, threads);
       }
     }    
     
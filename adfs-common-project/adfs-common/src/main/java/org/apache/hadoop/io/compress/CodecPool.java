@@ -17,74 +17,351 @@
  */
 package org.apache.hadoop.io.compress;
 
-import java.util.ArrayList;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
 import java.util.HashMap;
-import java.util.List;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  * A global compressor/decompressor pool used to save and reuse 
  * (possibly native) compression/decompression codecs.
+ * 
+ * Each thread keeps up to io.compress.codec.pool.thread.size returned
+ * codecs of a type for itself, which it takes back without any
+ * synchronization. The others go to a concurrent pool shared by all
+ * threads, which holds up to io.compress.codec.pool.max codecs of a type;
+ * a codec returned to a full pool is ended. The codecs cached by threads
+ * which have exited are moved to the shared pool when a new codec is
+ * created.
+ * 
+ * The sizes are read from the first configuration passed in, either with
+ * {@link #getCompressor(CompressionCodec, Configuration)} or as the
+ * configuration of a codec, and can be changed with
+ * {@link #setThreadCacheSize(int)} and {@link #setMaxPoolSize(int)}.
+ * 
+ * {@link Statistics} count the hits of the pools and the codecs which are
+ * garbage collected without being returned.
  */
 public class CodecPool {
   private static final Log LOG = LogFactory.getLog(CodecPool.class);
   
+  private static volatile int threadCacheSize = 2;
+  private static volatile int maxPoolSize = 256;
+  // whether the sizes have been read from a configuration or set
+  private static final AtomicBoolean configured = new AtomicBoolean(false);
+  // how often the caches of exited threads are looked for
+  private static final long SWEEP_INTERVAL = 1000;
+
   /**
-   * A global compressor pool used to save the expensive 
-   * construction/destruction of (possibly native) decompression codecs.
+   * Counters of a pool.
    */
-  private static final Map<Class<Compressor>, List<Compressor>> compressorPool = 
-    new HashMap<Class<Compressor>, List<Compressor>>();
-  
+  public static class Statistics {
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong threadHits = new AtomicLong();
+    private final AtomicLong sharedHits = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong returned = new AtomicLong();
+    private final AtomicLong ended = new AtomicLong();
+    private final AtomicLong leaked = new AtomicLong();
+
+    /** @return the number of codecs handed out */
+    public long getBorrowed() {
+      return borrowed.get();
+    }
+
+    /** @return the number of codecs taken from the cache of the thread */
+    public long getThreadHits() {
+      return threadHits.get();
+    }
+
+    /** @return the number of codecs taken from the shared pool */
+    public long getSharedHits() {
+      return sharedHits.get();
+    }
+
+    /** @return the number of codecs created because the pools were empty */
+    public long getCreated() {
+      return created.get();
+    }
+
+    /** @return the number of codecs returned */
+    public long getReturned() {
+      return returned.get();
+    }
+
+    /** @return the number of codecs ended because the shared pool was full */
+    public long getEnded() {
+      return ended.get();
+    }
+
+    /**
+     * @return the number of codecs garbage collected without being returned,
+     *         found so far
+     */
+    public long getLeaked() {
+      return leaked.get();
+    }
+
+    /** @return the share of codecs handed out which were recycled */
+    public double getHitRate() {
+      long n = borrowed.get();
+      return n == 0 ? 0 : (double) (threadHits.get() + sharedHits.get()) / n;
+    }
+
+    @Override
+    public String toString() {
+      return "borrowed=" + borrowed + ", threadHits=" + threadHits + ", sharedHits=" + sharedHits + ", created="
+          + created + ", returned=" + returned + ", ended=" + ended + ", leaked=" + leaked;
+    }
+  }
+
   /**
-   * A global decompressor pool used to save the expensive 
-   * construction/destruction of (possibly native) decompression codecs.
+   * A reference to a codec handed out, which is enqueued if the codec is
+   * garbage collected before it is returned. Compared by the identity of
+   * the codec.
    */
-  private static final Map<Class<Decompressor>, List<Decompressor>> decompressorPool = 
-    new HashMap<Class<Decompressor>, List<Decompressor>>();
-
-  private static <T> T borrow(Map<Class<T>, List<T>> pool,
-                             Class<? extends T> codecClass) {
-    T codec = null;
-    
-    // Check if an appropriate codec is available
-    synchronized (pool) {
-      if (pool.containsKey(codecClass)) {
-        List<T> codecList = pool.get(codecClass);
-        
-        if (codecList != null) {
-          synchronized (codecList) {
-            if (!codecList.isEmpty()) {
-              codec = codecList.remove(codecList.size()-1);
-            }
-          }
-        }
+  private static class Lease extends WeakReference<Object> {
+    private final int hash;
+
+    Lease(Object codec, ReferenceQueue<Object> queue) {
+      super(codec, queue);
+      hash = System.identityHashCode(codec);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) {
+        return true;
       }
+      Object codec = get();
+      return codec != null && o instanceof Lease && ((Lease) o).get() == codec;
     }
-    
-    return codec;
   }
 
-  private static <T> void payback(Map<Class<T>, List<T>> pool, T codec) {
-    if (codec != null) {
+  /** The codecs cached by a thread */
+  private static class ThreadCache<T> {
+    final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+    final Map<Class<?>, ArrayDeque<T>> codecs = new HashMap<Class<?>, ArrayDeque<T>>();
+
+    boolean isOwnerAlive() {
+      Thread thread = owner.get();
+      return thread != null && thread.isAlive();
+    }
+  }
+
+  /** The codecs of a class shared by all threads */
+  private static class SharedQueue<T> {
+    final ConcurrentLinkedQueue<T> codecs = new ConcurrentLinkedQueue<T>();
+    final AtomicInteger size = new AtomicInteger();
+  }
+
+  private abstract static class Pool<T> {
+    private final ConcurrentHashMap<Class<?>, SharedQueue<T>> shared =
+        new ConcurrentHashMap<Class<?>, SharedQueue<T>>();
+    // the caches of all threads, to recycle those of exited threads
+    private final ConcurrentLinkedQueue<ThreadCache<T>> threadCaches = new ConcurrentLinkedQueue<ThreadCache<T>>();
+    private final ThreadLocal<ThreadCache<T>> threadCache = new ThreadLocal<ThreadCache<T>>() {
+      protected ThreadCache<T> initialValue() {
+        ThreadCache<T> cache = new ThreadCache<T>();
+        threadCaches.add(cache);
+        return cache;
+      }
+    };
+    private final ConcurrentHashMap<Lease, Boolean> leases = new ConcurrentHashMap<Lease, Boolean>();
+    private final ReferenceQueue<Object> leaked = new ReferenceQueue<Object>();
+    private final AtomicLong lastSweepTime = new AtomicLong();
+    final Statistics statistics = new Statistics();
+
+    abstract void end(T codec);
+
+    /**
+     * @return a pooled codec of the class, or null if there is none or the
+     *         class is null
+     */
+    T borrow(Class<? extends T> codecClass) {
+      statistics.borrowed.incrementAndGet();
+      if (codecClass == null) {
+        // a codec without a type, like GzipCodec without native zlib
+        return null;
+      }
+      T codec = null;
+      ArrayDeque<T> cached = threadCache.get().codecs.get(codecClass);
+      if (cached != null && (codec = cached.pollLast()) != null) {
+        statistics.threadHits.incrementAndGet();
+      } else {
+        SharedQueue<T> queue = shared.get(codecClass);
+        if (queue != null && (codec = queue.codecs.poll()) != null) {
+          queue.size.decrementAndGet();
+          statistics.sharedHits.incrementAndGet();
+        }
+      }
+      if (codec != null) {
+        lease(codec);
+      }
+      return codec;
+    }
+
+    /**
+     * Count a codec created because the pools were empty.
+     */
+    void created(T codec) {
+      statistics.created.incrementAndGet();
+      lease(codec);
+      sweep();
+    }
+
+    void payback(T codec) {
+      statistics.returned.incrementAndGet();
+      leases.remove(new Lease(codec, null));
       Class<T> codecClass = ReflectionUtils.getClass(codec);
-      synchronized (pool) {
-        if (!pool.containsKey(codecClass)) {
-          pool.put(codecClass, new ArrayList<T>());
+      if (codecClass == null) {
+        return;
+      }
+      Map<Class<?>, ArrayDeque<T>> codecs = threadCache.get().codecs;
+      ArrayDeque<T> cached = codecs.get(codecClass);
+      if (cached == null) {
+        codecs.put(codecClass, cached = new ArrayDeque<T>(threadCacheSize));
+      }
+      if (cached.size() < threadCacheSize) {
+        cached.addLast(codec);
+      } else {
+        addShared(codecClass, codec);
+      }
+    }
+
+    private void addShared(Class<?> codecClass, T codec) {
+      if (codecClass == null) {
+        return;
+      }
+      SharedQueue<T> queue = shared.get(codecClass);
+      if (queue == null) {
+        shared.putIfAbsent(codecClass, new SharedQueue<T>());
+        queue = shared.get(codecClass);
+      }
+      // a soft limit, racing threads may go past it a little
+      if (queue.size.get() >= maxPoolSize) {
+        statistics.ended.incrementAndGet();
+        end(codec);
+        return;
+      }
+      queue.size.incrementAndGet();
+      queue.codecs.add(codec);
+    }
+
+    private void lease(T codec) {
+      leases.put(new Lease(codec, leaked), Boolean.TRUE);
+    }
+
+    /**
+     * Count the codecs garbage collected since the last call without being
+     * returned.
+     */
+    Statistics countLeaks() {
+      for (Lease lease; (lease = (Lease) leaked.poll()) != null;) {
+        if (leases.remove(lease) != null) {
+          statistics.leaked.incrementAndGet();
         }
+      }
+      return statistics;
+    }
 
-        List<T> codecList = pool.get(codecClass);
-        synchronized (codecList) {
-          codecList.add(codec);
+    /**
+     * Count the leaked codecs and move the caches of exited threads to the
+     * shared pool, at most once per SWEEP_INTERVAL.
+     */
+    private void sweep() {
+      long now = System.currentTimeMillis();
+      long last = lastSweepTime.get();
+      if (now - last < SWEEP_INTERVAL || !lastSweepTime.compareAndSet(last, now)) {
+        return;
+      }
+      countLeaks();
+      // the caches of an exited thread are safe to read after isAlive()
+      for (Iterator<ThreadCache<T>> it = threadCaches.iterator(); it.hasNext();) {
+        ThreadCache<T> cache = it.next();
+        if (cache.isOwnerAlive()) {
+          continue;
         }
+        it.remove();
+        for (Map.Entry<Class<?>, ArrayDeque<T>> entry : cache.codecs.entrySet()) {
+          for (T codec : entry.getValue()) {
+            addShared(entry.getKey(), codec);
+          }
+        }
+      }
+      if (statistics.leaked.get() > 0 && LOG.isDebugEnabled()) {
+        LOG.debug("Codec pool statistics: " + statistics);
       }
     }
   }
+
+  /**
+   * Read the pool sizes from the first configuration passed in.
+   */
+  private static void configure(Configuration conf) {
+    if (conf == null || configured.get() || !configured.compareAndSet(false, true)) {
+      return;
+    }
+    threadCacheSize = conf.getInt("io.compress.codec.pool.thread.size", threadCacheSize);
+    maxPoolSize = conf.getInt("io.compress.codec.pool.max", maxPoolSize);
+  }
+
+  /**
+   * @return the configuration passed in, or that of the codec if there is none
+   */
+  private static Configuration getConf(CompressionCodec codec, Configuration conf) {
+    if (conf == null && codec instanceof Configurable) {
+      conf = ((Configurable) codec).getConf();
+    }
+    return conf;
+  }
+
+  /**
+   * Set the number of codecs of a type each thread keeps for itself, which
+   * takes effect as codecs are returned.
+   */
+  public static void setThreadCacheSize(int size) {
+    configured.set(true);
+    threadCacheSize = size;
+  }
+
+  /**
+   * Set the number of codecs of a type the shared pool holds.
+   */
+  public static void setMaxPoolSize(int size) {
+    configured.set(true);
+    maxPoolSize = size;
+  }
+
+  private static final Pool<Compressor> compressorPool = new Pool<Compressor>() {
+    void end(Compressor compressor) {
+      compressor.end();
+    }
+  };
+
+  private static final Pool<Decompressor> decompressorPool = new Pool<Decompressor>() {
+    void end(Decompressor decompressor) {
+      decompressor.end();
+    }
+  };
   
   /**
    * Get a {@link Compressor} for the given {@link CompressionCodec} from the 
@@ -97,9 +374,11 @@ public class CodecPool {
    *         <code>CompressionCodec</code> from the pool or a new one
    */
   public static Compressor getCompressor(CompressionCodec codec, Configuration conf) {
-    Compressor compressor = borrow(compressorPool, codec.getCompressorType());
+    configure(getConf(codec, conf));
+    Compressor compressor = compressorPool.borrow(codec.getCompressorType());
     if (compressor == null) {
       compressor = codec.createCompressor();
+      if (compressor != null) compressorPool.created(compressor);
       LOG.info("Got brand-new compressor");
     } else {
       compressor.reinit(conf);
@@ -122,9 +401,11 @@ public class CodecPool {
    *         <code>CompressionCodec</code> the pool or a new one
    */
   public static Decompressor getDecompressor(CompressionCodec codec) {
-    Decompressor decompressor = borrow(decompressorPool, codec.getDecompressorType());
+    configure(getConf(codec, null));
+    Decompressor decompressor = decompressorPool.borrow(codec.getDecompressorType());
     if (decompressor == null) {
       decompressor = codec.createDecompressor();
+      if (decompressor != null) decompressorPool.created(decompressor);
       LOG.info("Got brand-new decompressor");
     } else {
       LOG.debug("Got recycled decompressor");
@@ -142,7 +423,7 @@ public class CodecPool {
       return;
     }
     compressor.reset();
-    payback(compressorPool, compressor);
+    compressorPool.payback(compressor);
   }
   
   /**
@@ -156,6 +437,16 @@ public class CodecPool {
       return;
     }
     decompressor.reset();
-    payback(decompressorPool, decompressor);
+    decompressorPool.payback(decompressor);
+  }
+
+  /** @return the counters of the compressor pool */
+  public static Statistics getCompressorStatistics() {
+    return compressorPool.countLeaks();
+  }
+
+  /** @return the counters of the decompressor pool */
+  public static Statistics getDecompressorStatistics() {
+    return decompressorPool.countLeaks();
   }
 }
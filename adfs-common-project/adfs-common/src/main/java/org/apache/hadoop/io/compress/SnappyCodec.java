@@ -24,13 +24,17 @@ import java.io.OutputStream;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.compress.snappy.BuiltInSnappyCompressor;
+import org.apache.hadoop.io.compress.snappy.BuiltInSnappyDecompressor;
 import org.apache.hadoop.io.compress.snappy.LoadSnappy;
 import org.apache.hadoop.io.compress.snappy.SnappyCompressor;
 import org.apache.hadoop.io.compress.snappy.SnappyDecompressor;
 import org.apache.hadoop.fs.CommonConfigurationKeys;
 
 /**
- * This class creates snappy compressors/decompressors.
+ * This class creates snappy compressors/decompressors. They are native if
+ * the snappy library is loaded, and written in Java otherwise; both read
+ * the output of the other.
  */
 public class SnappyCodec implements Configurable, CompressionCodec {
 
@@ -97,9 +101,6 @@ public class SnappyCodec implements Configurable, CompressionCodec {
   public CompressionOutputStream createOutputStream(OutputStream out,
                                                     Compressor compressor)
       throws IOException {
-    if (!isNativeSnappyLoaded(conf)) {
-      throw new RuntimeException("native snappy library not available");
-    }
     int bufferSize = conf.getInt(
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_KEY,
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_DEFAULT);
@@ -117,11 +118,8 @@ public class SnappyCodec implements Configurable, CompressionCodec {
    */
   @Override
   public Class<? extends Compressor> getCompressorType() {
-    if (!isNativeSnappyLoaded(conf)) {
-      throw new RuntimeException("native snappy library not available");
-    }
-
-    return SnappyCompressor.class;
+    return isNativeSnappyLoaded(conf) ? SnappyCompressor.class
+        : BuiltInSnappyCompressor.class;
   }
 
   /**
@@ -131,13 +129,11 @@ public class SnappyCodec implements Configurable, CompressionCodec {
    */
   @Override
   public Compressor createCompressor() {
-    if (!isNativeSnappyLoaded(conf)) {
-      throw new RuntimeException("native snappy library not available");
-    }
     int bufferSize = conf.getInt(
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_KEY,
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_DEFAULT);
-    return new SnappyCompressor(bufferSize);
+    return isNativeSnappyLoaded(conf) ? new SnappyCompressor(bufferSize)
+        : new BuiltInSnappyCompressor(bufferSize);
   }
 
   /**
@@ -167,10 +163,6 @@ public class SnappyCodec implements Configurable, CompressionCodec {
   public CompressionInputStream createInputStream(InputStream in,
                                                   Decompressor decompressor)
       throws IOException {
-    if (!isNativeSnappyLoaded(conf)) {
-      throw new RuntimeException("native snappy library not available");
-    }
-
     return new BlockDecompressorStream(in, decompressor, conf.getInt(
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_KEY,
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_DEFAULT));
@@ -183,11 +175,8 @@ public class SnappyCodec implements Configurable, CompressionCodec {
    */
   @Override
   public Class<? extends Decompressor> getDecompressorType() {
-    if (!isNativeSnappyLoaded(conf)) {
-      throw new RuntimeException("native snappy library not available");
-    }
-
-    return SnappyDecompressor.class;
+    return isNativeSnappyLoaded(conf) ? SnappyDecompressor.class
+        : BuiltInSnappyDecompressor.class;
   }
 
   /**
@@ -197,13 +186,11 @@ public class SnappyCodec implements Configurable, CompressionCodec {
    */
   @Override
   public Decompressor createDecompressor() {
-    if (!isNativeSnappyLoaded(conf)) {
-      throw new RuntimeException("native snappy library not available");
-    }
     int bufferSize = conf.getInt(
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_KEY,
         CommonConfigurationKeys.IO_COMPRESSION_CODEC_SNAPPY_BUFFERSIZE_DEFAULT);
-    return new SnappyDecompressor(bufferSize);
+    return isNativeSnappyLoaded(conf) ? new SnappyDecompressor(bufferSize)
+        : new BuiltInSnappyDecompressor(bufferSize);
   }
 
   /**
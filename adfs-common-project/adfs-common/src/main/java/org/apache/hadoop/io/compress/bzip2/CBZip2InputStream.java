@@ -147,12 +147,18 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
   */
   private CBZip2InputStream.Data data;
 
+  // decodes the blocks on other threads, if more than one thread is used
+  private ParallelBZip2Decoder parallelDecoder = null;
+
   /**
   * This method reports the processed bytes so far. Please note that this
   * statistic is only updated on block boundaries and only when the stream is
   * initiated in BYBLOCK mode.
   */
   public long getProcessedByteCount() {
+    if (parallelDecoder != null) {
+      return parallelDecoder.getReportedByteCount() + reportedBytesReadFromCompressedStream;
+    }
     return reportedBytesReadFromCompressedStream;
   }
 
@@ -280,13 +286,31 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
   */
   public CBZip2InputStream(final InputStream in, READ_MODE readMode)
       throws IOException {
+    this(in, readMode, 1);
+  }
+
+  /**
+   * Constructs a new CBZip2InputStream which decompresses the blocks on the
+   * given number of threads. With more than one thread the blocks are
+   * decoded ahead of the reader, up to one block per thread, and the
+   * combined CRCs of the streams are not checked.
+   *
+   * @see #CBZip2InputStream(InputStream, READ_MODE)
+   */
+  public CBZip2InputStream(final InputStream in, READ_MODE readMode,
+      int threads) throws IOException {
 
     super();
     int blockSize = 0X39;// i.e 9
     this.blockSize100k = blockSize - '0';
     this.in = new BufferedInputStream(in, 1024 * 9);// >1 MB buffer
     this.readMode = readMode;
-    if (readMode == READ_MODE.CONTINUOUS) {
+    if (threads > 1) {
+      // the parallel decoder starts its blocks itself, so the flag set by
+      // numberOfBytesTillNextMarker is cleared here instead of in read()
+      CBZip2InputStream.skipDecompression = false;
+      parallelDecoder = new ParallelBZip2Decoder(this.in, readMode, threads);
+    } else if (readMode == READ_MODE.CONTINUOUS) {
       currentState = STATE.START_BLOCK_STATE;
       lazyInitialization = (in.available() == 0)?true:false;
       if(!lazyInitialization){
@@ -387,6 +411,10 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
       throw new IOException("stream closed");
     }
 
+    if (parallelDecoder != null) {
+      return parallelDecoder.read(dest, offs, len);
+    }
+
     if(lazyInitialization){
       this.init();
       this.lazyInitialization = false;
@@ -571,6 +599,35 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
     if (this.storedCombinedCRC != this.computedCombinedCRC) {
       reportCRCError();
     }
+
+    // go on with the first block of a concatenated stream
+    if (this.readMode == READ_MODE.CONTINUOUS && initNextStream()) {
+      initBlock();
+    }
+  }
+
+  /**
+   * Read the header of the stream after the current one, as written by
+   * <tt>bzip2</tt> for concatenated inputs and by
+   * {@link ParallelBZip2OutputStream}.
+   *
+   * @return false at the end of the input or if something else than a
+   *         stream header follows, which is ignored as <tt>bzip2</tt> does.
+   */
+  private boolean initNextStream() throws IOException {
+    // a stream starts on a byte boundary after the padding of the last one
+    this.bsLive = 0;
+    if (this.readAByte(in) != 'B' || this.readAByte(in) != 'Z'
+        || this.readAByte(in) != 'h') {
+      return false;
+    }
+    int blockSize = this.readAByte(in);
+    if ((blockSize < '1') || (blockSize > '9')) {
+      return false;
+    }
+    this.blockSize100k = blockSize - '0';
+    this.computedCombinedCRC = 0;
+    return true;
   }
 
   public void close() throws IOException {
@@ -581,6 +638,9 @@ public class CBZip2InputStream extends InputStream implements BZip2Constants {
           inShadow.close();
         }
       } finally {
+        if (this.parallelDecoder != null) {
+          this.parallelDecoder.close();
+        }
         this.data = null;
         this.in = null;
       }
@@ -0,0 +1,378 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.io.compress.bzip2;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.hadoop.io.compress.SplittableCompressionCodec.READ_MODE;
+
+/**
+ * Decompresses the blocks of a bzip2 stream for {@link CBZip2InputStream}
+ * on several threads.
+ *
+ * <p>
+ * The compressed input is scanned for the 48-bit block delimiters ahead of
+ * the reader, bit by bit since blocks are not byte aligned. The bytes from
+ * a delimiter to the next one are handed to a {@link CBZip2InputStream} in
+ * BYBLOCK mode on the threads of {@link BZip2Workers}, which decodes that
+ * one block; up to the given number of blocks are decoded ahead. The end
+ * of stream delimiters, and the headers of concatenated streams, are
+ * skipped over by the scan.
+ * </p>
+ *
+ * <p>
+ * The decoded blocks are given out in order like {@link CBZip2InputStream}
+ * does: in BYBLOCK mode the end of each block is reported, and the
+ * processed byte count is the number of bytes read through the delimiter
+ * of the next block, or through the end of the input after the last block.
+ * The block CRCs are checked, but not the combined CRCs of the streams.
+ * </p>
+ *
+ * <p>
+ * The 48 bits of a delimiter can also appear by chance inside the
+ * compressed data of a block, which cuts the block short. As pbzip2 and
+ * lbzip2 do, a block which fails to decode is joined with the blocks after
+ * it and decoded again, until it decodes or is longer than any block can
+ * be.
+ * </p>
+ */
+class ParallelBZip2Decoder {
+  private static final long DELIMITER_MASK = (1L << 48) - 1;
+  private static final int DELIMITER_BIT_LENGTH = 48;
+  // a compressed block is not much longer than the largest uncompressed one,
+  // joining blocks stops beyond this
+  private static final int MAX_BLOCK_LENGTH =
+      2 * BZip2Constants.baseBlockSize * CBZip2OutputStream.MAX_BLOCKSIZE;
+
+  private final InputStream in;
+  private final READ_MODE readMode;
+  private final int threads;
+
+  // the compressed bytes from the delimiter of the block being scanned
+  private byte[] buffer = new byte[64 * 1024];
+  private int bufferLength = 0;
+  // the input offset of buffer[0]
+  private long bufferStart = 0;
+  private long bytesRead = 0;
+  // the last 64 bits read
+  private long window = 0;
+  // the bit offset of the delimiter of the block being scanned, or -1
+  private long delimiterStart = -1;
+  // the bytes read through that delimiter
+  private long delimiterEndBytes = 0;
+  private boolean endOfInput = false;
+
+  private static class Block {
+    final Future<byte[]> data;
+    final long reportedByteCount;
+    // the compressed bytes and the input offsets they were copied from, to
+    // join the block with the next one if it was cut short
+    final byte[] compressed;
+    final long start;
+    final long end;
+
+    Block(Future<byte[]> data, long reportedByteCount, byte[] compressed,
+        long start, long end) {
+      this.data = data;
+      this.reportedByteCount = reportedByteCount;
+      this.compressed = compressed;
+      this.start = start;
+      this.end = end;
+    }
+  }
+
+  private final ArrayDeque<Block> pending = new ArrayDeque<Block>();
+  private boolean started = false;
+  private byte[] current = null;
+  private int currentOffset = 0;
+  private long reportedByteCount = 0;
+
+  /**
+   * In BYBLOCK mode, find the first block delimiter as
+   * {@link CBZip2InputStream} does when it is created.
+   *
+   * @param in the compressed input, after the <tt>"BZ"</tt> magic bytes in
+   *           CONTINUOUS mode
+   * @param threads the number of blocks decoded ahead
+   */
+  ParallelBZip2Decoder(InputStream in, READ_MODE readMode, int threads)
+      throws IOException {
+    this.in = in;
+    this.readMode = readMode;
+    this.threads = threads;
+    if (readMode == READ_MODE.BYBLOCK) {
+      scanToDelimiter();
+      reportedByteCount = bytesRead;
+    }
+  }
+
+  /**
+   * @return the number of compressed bytes read through the delimiter of the
+   *         block after the one being read, updated at block boundaries
+   */
+  long getReportedByteCount() {
+    return reportedByteCount;
+  }
+
+  private int readByte() throws IOException {
+    int b = in.read();
+    if (b < 0) {
+      endOfInput = true;
+      return b;
+    }
+    if (bufferLength == buffer.length) {
+      if (delimiterStart < 0) {
+        // nothing to keep before the first delimiter but the last bits
+        System.arraycopy(buffer, bufferLength - 8, buffer, 0, 8);
+        bufferStart += bufferLength - 8;
+        bufferLength = 8;
+      } else {
+        buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      }
+    }
+    buffer[bufferLength++] = (byte) b;
+    bytesRead++;
+    window = (window << 8) | b;
+    return b;
+  }
+
+  /**
+   * Read up to the end of the next block delimiter, at least 48 bits after
+   * the end of the previous one.
+   * @return whether a delimiter was found before the end of the input
+   */
+  private boolean scanToDelimiter() throws IOException {
+    long minEnd = delimiterStart < 0 ? 0 : delimiterStart + 2 * DELIMITER_BIT_LENGTH;
+    while (readByte() >= 0) {
+      // the delimiters ending in the last byte, the earliest first
+      for (int shift = 7; shift >= 0; shift--) {
+        long end = bytesRead * 8 - shift;
+        if (end >= DELIMITER_BIT_LENGTH && end >= minEnd
+            && ((window >>> shift) & DELIMITER_MASK) == CBZip2InputStream.BLOCK_DELIMITER) {
+          delimiterStart = end - DELIMITER_BIT_LENGTH;
+          delimiterEndBytes = bytesRead;
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Scan the block at the current delimiter to the next delimiter or the
+   * end of the input, and queue it for decoding.
+   */
+  private void scanBlock() throws IOException {
+    long start = delimiterStart / 8;
+    long reported = delimiterEndBytes;
+    long end;
+    if (scanToDelimiter()) {
+      // up to the byte holding the first bit of the next delimiter
+      end = (delimiterStart + 7) / 8;
+    } else {
+      end = bytesRead;
+      delimiterStart = -1;
+    }
+    byte[] block = Arrays.copyOfRange(buffer, (int) (start - bufferStart),
+        (int) (end - bufferStart));
+
+    // drop the bytes before the next delimiter
+    if (delimiterStart >= 0) {
+      int keep = (int) (delimiterStart / 8 - bufferStart);
+      System.arraycopy(buffer, keep, buffer, 0, bufferLength - keep);
+      bufferLength -= keep;
+      bufferStart += keep;
+    } else {
+      bufferStart += bufferLength;
+      bufferLength = 0;
+    }
+
+    pending.addLast(new Block(submit(block), reported, block, start, end));
+  }
+
+  private static Future<byte[]> submit(final byte[] block) {
+    return BZip2Workers.get().submit(new Callable<byte[]>() {
+      public byte[] call() throws IOException {
+        return decode(block);
+      }
+    });
+  }
+
+  private static byte[] get(Future<byte[]> data) throws IOException {
+    try {
+      return data.get();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while decompressing");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to decompress a block: " + e.getCause());
+    }
+  }
+
+  /**
+   * @return the decoded block, joined with the blocks after it if it was cut
+   *         short by a chance delimiter match
+   */
+  private byte[] getData(Block block) throws IOException {
+    IOException error;
+    try {
+      return get(block.data);
+    } catch (InterruptedIOException e) {
+      throw e;
+    } catch (IOException e) {
+      error = e;
+    }
+    byte[] compressed = block.compressed;
+    long end = block.end;
+    while (compressed.length <= MAX_BLOCK_LENGTH) {
+      if (pending.isEmpty() && delimiterStart >= 0) {
+        scanBlock();
+      }
+      Block next = pending.pollFirst();
+      if (next == null) {
+        break;
+      }
+      next.data.cancel(true);
+      // the byte holding the first bit of the chance delimiter is in both
+      int overlap = (int) (end - next.start);
+      byte[] joined = Arrays.copyOf(compressed,
+          compressed.length + next.compressed.length - overlap);
+      System.arraycopy(next.compressed, overlap, joined, compressed.length,
+          next.compressed.length - overlap);
+      compressed = joined;
+      end = next.end;
+      try {
+        return get(submit(compressed));
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        // cut short by more than one chance match, join the next one too
+      }
+    }
+    throw error;
+  }
+
+  private static byte[] decode(byte[] block) throws IOException {
+    CBZip2InputStream in = new CBZip2InputStream(
+        new ByteArrayInputStream(block), READ_MODE.BYBLOCK);
+    byte[] data = new byte[BZip2Constants.baseBlockSize * CBZip2OutputStream.MAX_BLOCKSIZE];
+    int length = 0;
+    while (true) {
+      if (length == data.length) {
+        data = Arrays.copyOf(data, data.length * 2);
+      }
+      int n = in.read(data, length, data.length - length);
+      if (n < 0) {
+        break;
+      }
+      length += n;
+    }
+    return Arrays.copyOf(data, length);
+  }
+
+  /**
+   * Keep up to the given number of blocks decoding.
+   */
+  private void fill() throws IOException {
+    while (pending.size() < threads && delimiterStart >= 0) {
+      scanBlock();
+    }
+  }
+
+  /**
+   * Make the next decoded block current, or null at the end of the input.
+   */
+  private void nextBlock() throws IOException {
+    fill();
+    Block block = pending.pollFirst();
+    if (block == null) {
+      current = null;
+      reportedByteCount = bytesRead;
+      return;
+    }
+    current = getData(block);
+    currentOffset = 0;
+    reportedByteCount = block.reportedByteCount;
+    fill();
+  }
+
+  private void start() throws IOException {
+    started = true;
+    if (readMode == READ_MODE.CONTINUOUS) {
+      int magic2 = readByte();
+      if (magic2 != 'h') {
+        throw new IOException("Stream is not BZip2 formatted: expected 'h'"
+            + " as first byte but got '" + (char) magic2 + "'");
+      }
+      int blockSize = readByte();
+      if ((blockSize < '1') || (blockSize > '9')) {
+        throw new IOException("Stream is not BZip2 formatted: illegal "
+            + "blocksize " + (char) blockSize);
+      }
+      scanToDelimiter();
+    }
+    if (delimiterStart >= 0) {
+      nextBlock();
+    }
+  }
+
+  /**
+   * @return the number of bytes read, END_OF_BLOCK at the end of a block in
+   *         BYBLOCK mode, or END_OF_STREAM.
+   */
+  int read(byte[] dest, int offs, int len) throws IOException {
+    if (!started) {
+      start();
+    }
+    while (current != null) {
+      int n = Math.min(current.length - currentOffset, len);
+      if (n > 0 || len == 0) {
+        System.arraycopy(current, currentOffset, dest, offs, n);
+        currentOffset += n;
+        return n;
+      }
+      nextBlock();
+      if (readMode == READ_MODE.BYBLOCK) {
+        return BZip2Constants.END_OF_BLOCK;
+      }
+    }
+    return BZip2Constants.END_OF_STREAM;
+  }
+
+  /**
+   * Stop decoding the pending blocks.
+   */
+  void close() {
+    for (Block block : pending) {
+      block.data.cancel(true);
+    }
+    pending.clear();
+    current = null;
+  }
+}
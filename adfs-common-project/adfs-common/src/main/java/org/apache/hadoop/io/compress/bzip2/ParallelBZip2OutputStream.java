@@ -0,0 +1,197 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+
+package org.apache.hadoop.io.compress.bzip2;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * An output stream that compresses into the BZip2 format, a block of input
+ * at a time on several threads.
+ *
+ * <p>
+ * The input is cut in pieces of about 900k, each compressed into a complete
+ * bzip2 stream by a {@link CBZip2OutputStream} on the threads of
+ * {@link BZip2Workers}. The streams are written in order, one after
+ * another, which is the multi-stream format of parallel bzip2 compressors:
+ * bzip2 and {@link CBZip2InputStream} read it as one stream, and the
+ * splits of a file still start at block markers.
+ * </p>
+ *
+ * <p>
+ * <b>Attention: </b>As for {@link CBZip2OutputStream}, the caller is
+ * responsible to write the two BZip2 magic bytes <tt>"BZ"</tt> of the first
+ * stream prior to calling the constructor; this class writes those of the
+ * next streams.
+ * </p>
+ *
+ * <p>
+ * Instances of this class are not threadsafe.
+ * </p>
+ */
+public class ParallelBZip2OutputStream extends OutputStream {
+  // a little less than a block, so that one stream usually holds one block
+  private static final int CHUNK_SIZE =
+      CBZip2OutputStream.MAX_BLOCKSIZE * BZip2Constants.baseBlockSize - 100;
+
+  private OutputStream out;
+  private final int threads;
+  private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+  private byte[] chunk = new byte[CHUNK_SIZE];
+  private int chunkLength = 0;
+  private boolean firstStream = true;
+  private final byte[] oneByte = new byte[1];
+
+  /**
+   * @param out the destination stream.
+   * @param threads the number of blocks compressed at the same time.
+   */
+  public ParallelBZip2OutputStream(OutputStream out, int threads) {
+    this.out = out;
+    this.threads = Math.max(1, threads);
+  }
+
+  public void write(int b) throws IOException {
+    oneByte[0] = (byte) b;
+    write(oneByte, 0, 1);
+  }
+
+  public void write(final byte[] buf, int offs, final int len)
+      throws IOException {
+    if (offs < 0) {
+      throw new IndexOutOfBoundsException("offs(" + offs + ") < 0.");
+    }
+    if (len < 0) {
+      throw new IndexOutOfBoundsException("len(" + len + ") < 0.");
+    }
+    if (offs + len > buf.length) {
+      throw new IndexOutOfBoundsException("offs(" + offs + ") + len("
+          + len + ") > buf.length(" + buf.length + ").");
+    }
+    if (this.out == null) {
+      throw new IOException("stream closed");
+    }
+
+    for (int hi = offs + len; offs < hi;) {
+      int n = Math.min(hi - offs, CHUNK_SIZE - chunkLength);
+      System.arraycopy(buf, offs, chunk, chunkLength, n);
+      chunkLength += n;
+      offs += n;
+      if (chunkLength == CHUNK_SIZE) {
+        submitChunk();
+      }
+    }
+  }
+
+  /**
+   * Queue the chunk for compression, after writing the oldest compressed
+   * chunk if there are too many in progress.
+   */
+  private void submitChunk() throws IOException {
+    if (pending.size() >= threads) {
+      writeCompressed(pending.removeFirst());
+    }
+    final byte[] data = chunk;
+    final int length = chunkLength;
+    final boolean withMagic = !firstStream;
+    pending.addLast(BZip2Workers.get().submit(new Callable<byte[]>() {
+      public byte[] call() throws IOException {
+        return compress(data, length, withMagic);
+      }
+    }));
+    firstStream = false;
+    chunk = new byte[CHUNK_SIZE];
+    chunkLength = 0;
+  }
+
+  private static byte[] compress(byte[] data, int length, boolean withMagic)
+      throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream(length / 4 + 64);
+    if (withMagic) {
+      buffer.write('B');
+      buffer.write('Z');
+    }
+    CBZip2OutputStream bzip2 = new CBZip2OutputStream(buffer);
+    bzip2.write(data, 0, length);
+    bzip2.finish();
+    return buffer.toByteArray();
+  }
+
+  private void writeCompressed(Future<byte[]> compressed) throws IOException {
+    try {
+      out.write(compressed.get());
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Failed to compress a block: " + e.getCause());
+    }
+  }
+
+  /**
+   * Compress the remaining input and write the pending streams.
+   */
+  public void finish() throws IOException {
+    if (out != null) {
+      try {
+        // an empty input still makes a stream
+        if (chunkLength > 0 || firstStream) {
+          submitChunk();
+        }
+        while (!pending.isEmpty()) {
+          writeCompressed(pending.removeFirst());
+        }
+      } finally {
+        for (Future<byte[]> compressed : pending) {
+          compressed.cancel(true);
+        }
+        pending.clear();
+        this.out = null;
+        this.chunk = null;
+      }
+    }
+  }
+
+  public void close() throws IOException {
+    if (out != null) {
+      OutputStream outShadow = this.out;
+      finish();
+      outShadow.close();
+    }
+  }
+
+  /**
+   * Flushes the destination stream. The input not yet compressed stays
+   * buffered, as in {@link CBZip2OutputStream}.
+   */
+  public void flush() throws IOException {
+    OutputStream outShadow = this.out;
+    if (outShadow != null) {
+      outShadow.flush();
+    }
+  }
+}
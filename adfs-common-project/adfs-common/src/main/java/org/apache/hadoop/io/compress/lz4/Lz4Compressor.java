@@ -0,0 +1,168 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.lz4;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.io.compress.AbstractBlockCompressor;
+import org.apache.hadoop.io.compress.Compressor;
+
+/**
+ * A {@link Compressor} based on the LZ4 compression algorithm, written in
+ * Java. It writes LZ4 blocks, with no frame, which the native LZ4 library
+ * reads.
+ * http://code.google.com/p/lz4/
+ *
+ * Matches are found through a hash table of the last position of each
+ * 4-byte sequence, skipping faster over data which does not compress.
+ */
+public class Lz4Compressor extends AbstractBlockCompressor {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  static final int MIN_MATCH = 4;
+  static final int MAX_DISTANCE = 65535;
+  // the last match starts at least 12 bytes before the end of the block,
+  // and the last 5 bytes are literals
+  static final int MF_LIMIT = 12;
+  static final int LAST_LITERALS = 5;
+  static final int RUN_MASK = 15;
+  static final int ML_BITS = 4;
+
+  private static final int HASH_LOG = 12;
+  // step ahead faster after every 64 bytes without a match
+  private static final int SKIP_TRIGGER = 6;
+
+  private final int[] hashTable = new int[1 << HASH_LOG];
+
+  /**
+   * Creates a new compressor.
+   *
+   * @param bufferSize size of the largest block to compress.
+   */
+  public Lz4Compressor(int bufferSize) {
+    super(bufferSize);
+  }
+
+  /**
+   * Creates a new compressor with the default buffer size.
+   */
+  public Lz4Compressor() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @return the largest size of a block of the given length once compressed
+   */
+  public static int maxBlockLength(int length) {
+    return length + length / 255 + 16;
+  }
+
+  @Override
+  protected int maxCompressedLength(int length) {
+    return maxBlockLength(length);
+  }
+
+  @Override
+  protected int compressBlock(byte[] src, int srcOff, int srcLen,
+                              byte[] dst, int dstOff) {
+    final int srcEnd = srcOff + srcLen;
+    final int matchLimit = srcEnd - LAST_LITERALS;
+    final int mfLimit = srcEnd - MF_LIMIT;
+    int anchor = srcOff;
+    int sp = srcOff;
+    int dp = dstOff;
+
+    if (srcLen >= MF_LIMIT + 1) {
+      Arrays.fill(hashTable, -1);
+      int searchMatchNb = 1 << SKIP_TRIGGER;
+      while (sp < mfLimit) {
+        int sequence = readInt(src, sp);
+        int h = hash(sequence);
+        int ref = hashTable[h];
+        hashTable[h] = sp;
+        if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+          sp += searchMatchNb++ >>> SKIP_TRIGGER;
+          continue;
+        }
+        searchMatchNb = 1 << SKIP_TRIGGER;
+
+        // extend the match backwards over the pending literals
+        while (sp > anchor && ref > srcOff && src[sp - 1] == src[ref - 1]) {
+          sp--;
+          ref--;
+        }
+        int matchLen = MIN_MATCH;
+        while (sp + matchLen < matchLimit && src[sp + matchLen] == src[ref + matchLen]) {
+          matchLen++;
+        }
+
+        dp = writeLiterals(src, anchor, sp - anchor, matchLen - MIN_MATCH, dst, dp);
+        dst[dp++] = (byte) (sp - ref);
+        dst[dp++] = (byte) ((sp - ref) >>> 8);
+        dp = writeLength(matchLen - MIN_MATCH, dst, dp);
+
+        sp += matchLen;
+        anchor = sp;
+        if (sp < mfLimit) {
+          hashTable[hash(readInt(src, sp - 2))] = sp - 2;
+        }
+      }
+    }
+
+    // the last literals
+    dp = writeLiterals(src, anchor, srcEnd - anchor, 0, dst, dp);
+    return dp - dstOff;
+  }
+
+  /**
+   * Write the token of a sequence and its literals.
+   */
+  private static int writeLiterals(byte[] src, int off, int len, int matchCode,
+                                   byte[] dst, int dp) {
+    dst[dp++] = (byte) ((Math.min(len, RUN_MASK) << ML_BITS) | Math.min(matchCode, RUN_MASK));
+    dp = writeLength(len, dst, dp);
+    System.arraycopy(src, off, dst, dp, len);
+    return dp + len;
+  }
+
+  /**
+   * Write the bytes of a length beyond the 15 held by the token.
+   */
+  private static int writeLength(int len, byte[] dst, int dp) {
+    if (len < RUN_MASK) {
+      return dp;
+    }
+    len -= RUN_MASK;
+    while (len >= 255) {
+      dst[dp++] = (byte) 255;
+      len -= 255;
+    }
+    dst[dp++] = (byte) len;
+    return dp;
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+        | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+}
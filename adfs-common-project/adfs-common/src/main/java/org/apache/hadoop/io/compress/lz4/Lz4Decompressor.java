@@ -0,0 +1,127 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.lz4;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.compress.AbstractBlockDecompressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * A {@link Decompressor} based on the LZ4 compression algorithm, written in
+ * Java. It reads LZ4 blocks, with no frame, as written by
+ * {@link Lz4Compressor} or the native LZ4 library.
+ * http://code.google.com/p/lz4/
+ */
+public class Lz4Decompressor extends AbstractBlockDecompressor {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Creates a new decompressor.
+   *
+   * @param bufferSize initial size of the buffer for a decompressed block.
+   */
+  public Lz4Decompressor(int bufferSize) {
+    super(bufferSize);
+  }
+
+  /**
+   * Creates a new decompressor with the default buffer size.
+   */
+  public Lz4Decompressor() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  @Override
+  protected int decompressBlock(byte[] src, int srcOff, int srcLen,
+      byte[] dst, int dstOff, int dstLen) throws IOException {
+    final int srcEnd = srcOff + srcLen;
+    final int dstEnd = dstOff + dstLen;
+    int sp = srcOff;
+    int dp = dstOff;
+
+    while (true) {
+      if (sp >= srcEnd) {
+        throw new IOException("Malformed LZ4 block: truncated at " + (sp - srcOff));
+      }
+      int token = src[sp++] & 0xFF;
+
+      // literals
+      int len = token >>> Lz4Compressor.ML_BITS;
+      if (len == Lz4Compressor.RUN_MASK) {
+        int b;
+        do {
+          if (sp >= srcEnd) {
+            throw new IOException("Malformed LZ4 block: truncated at " + (sp - srcOff));
+          }
+          b = src[sp++] & 0xFF;
+          len += b;
+        } while (b == 255 && len < srcLen);
+      }
+      if (len > srcEnd - sp) {
+        throw new IOException("Malformed LZ4 block: literals beyond the end at " + (sp - srcOff));
+      }
+      if (len > dstEnd - dp) {
+        return -1;
+      }
+      System.arraycopy(src, sp, dst, dp, len);
+      sp += len;
+      dp += len;
+      if (sp == srcEnd) {
+        // the last sequence has no match
+        return dp - dstOff;
+      }
+
+      // match
+      if (srcEnd - sp < 2) {
+        throw new IOException("Malformed LZ4 block: truncated at " + (sp - srcOff));
+      }
+      int offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+      sp += 2;
+      if (offset == 0 || offset > dp - dstOff) {
+        throw new IOException("Malformed LZ4 block: offset " + offset + " at " + (sp - srcOff));
+      }
+      len = token & Lz4Compressor.RUN_MASK;
+      if (len == Lz4Compressor.RUN_MASK) {
+        int b;
+        do {
+          if (sp >= srcEnd) {
+            throw new IOException("Malformed LZ4 block: truncated at " + (sp - srcOff));
+          }
+          b = src[sp++] & 0xFF;
+          len += b;
+        } while (b == 255 && len <= dstLen);
+      }
+      len += Lz4Compressor.MIN_MATCH;
+      if (len > dstEnd - dp) {
+        return -1;
+      }
+      int ref = dp - offset;
+      if (offset >= len) {
+        System.arraycopy(dst, ref, dst, dp, len);
+        dp += len;
+      } else {
+        // overlapping, repeats the last offset bytes
+        for (int end = dp + len; dp < end;) {
+          dst[dp++] = dst[ref++];
+        }
+      }
+    }
+  }
+}
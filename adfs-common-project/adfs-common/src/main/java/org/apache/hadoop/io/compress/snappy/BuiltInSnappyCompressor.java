@@ -0,0 +1,182 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.snappy;
+
+import java.util.Arrays;
+
+import org.apache.hadoop.io.compress.AbstractBlockCompressor;
+import org.apache.hadoop.io.compress.Compressor;
+
+/**
+ * A {@link Compressor} based on the snappy compression algorithm, written
+ * in Java for when the native snappy library is not loaded. Its output is
+ * read by {@link SnappyDecompressor} as well.
+ * http://code.google.com/p/snappy/
+ *
+ * Matches are found through a hash table of the last position of each
+ * 4-byte sequence, skipping faster over data which does not compress.
+ */
+public class BuiltInSnappyCompressor extends AbstractBlockCompressor {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  static final int LITERAL = 0;
+  static final int COPY_1_BYTE_OFFSET = 1;
+  static final int COPY_2_BYTE_OFFSET = 2;
+  static final int COPY_4_BYTE_OFFSET = 3;
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_DISTANCE = 65535;
+  private static final int HASH_LOG = 14;
+  // step ahead faster after every 32 bytes without a match
+  private static final int SKIP_TRIGGER = 5;
+  // literals are not worth looking for matches in the last bytes
+  private static final int INPUT_MARGIN = 15;
+
+  private final int[] hashTable = new int[1 << HASH_LOG];
+
+  /**
+   * Creates a new compressor.
+   *
+   * @param bufferSize size of the largest block to compress.
+   */
+  public BuiltInSnappyCompressor(int bufferSize) {
+    super(bufferSize);
+  }
+
+  /**
+   * Creates a new compressor with the default buffer size.
+   */
+  public BuiltInSnappyCompressor() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  @Override
+  protected int maxCompressedLength(int length) {
+    return 32 + length + length / 6;
+  }
+
+  @Override
+  protected int compressBlock(byte[] src, int srcOff, int srcLen,
+                              byte[] dst, int dstOff) {
+    int dp = dstOff;
+    // the uncompressed length as a varint
+    for (int v = srcLen; ; v >>>= 7) {
+      if ((v & ~0x7F) == 0) {
+        dst[dp++] = (byte) v;
+        break;
+      }
+      dst[dp++] = (byte) ((v & 0x7F) | 0x80);
+    }
+
+    final int srcEnd = srcOff + srcLen;
+    final int inputLimit = srcEnd - INPUT_MARGIN;
+    int anchor = srcOff;
+    int sp = srcOff;
+
+    if (srcLen > INPUT_MARGIN) {
+      Arrays.fill(hashTable, -1);
+      int skip = 1 << SKIP_TRIGGER;
+      while (sp < inputLimit) {
+        int sequence = readInt(src, sp);
+        int h = hash(sequence);
+        int ref = hashTable[h];
+        hashTable[h] = sp;
+        if (ref < 0 || sp - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+          sp += skip++ >>> SKIP_TRIGGER;
+          continue;
+        }
+        skip = 1 << SKIP_TRIGGER;
+
+        int matchLen = MIN_MATCH;
+        while (sp + matchLen < srcEnd && src[sp + matchLen] == src[ref + matchLen]) {
+          matchLen++;
+        }
+        dp = writeLiteral(src, anchor, sp - anchor, dst, dp);
+        dp = writeCopy(sp - ref, matchLen, dst, dp);
+
+        sp += matchLen;
+        anchor = sp;
+        if (sp < inputLimit) {
+          hashTable[hash(readInt(src, sp - 1))] = sp - 1;
+        }
+      }
+    }
+
+    dp = writeLiteral(src, anchor, srcEnd - anchor, dst, dp);
+    return dp - dstOff;
+  }
+
+  private static int writeLiteral(byte[] src, int off, int len,
+                                  byte[] dst, int dp) {
+    if (len == 0) {
+      return dp;
+    }
+    int n = len - 1;
+    if (n < 60) {
+      dst[dp++] = (byte) (n << 2 | LITERAL);
+    } else {
+      // the length follows in 1 to 4 bytes
+      int start = dp++;
+      int count = 0;
+      do {
+        dst[dp++] = (byte) n;
+        n >>>= 8;
+        count++;
+      } while (n != 0);
+      dst[start] = (byte) ((59 + count) << 2 | LITERAL);
+    }
+    System.arraycopy(src, off, dst, dp, len);
+    return dp + len;
+  }
+
+  private static int writeCopy(int offset, int len, byte[] dst, int dp) {
+    // copies with a 2-byte offset hold 1 to 64 bytes, leave at least 4 for
+    // the last one
+    while (len >= 68) {
+      dp = writeCopyUpTo64(offset, 64, dst, dp);
+      len -= 64;
+    }
+    if (len > 64) {
+      dp = writeCopyUpTo64(offset, 60, dst, dp);
+      len -= 60;
+    }
+    return writeCopyUpTo64(offset, len, dst, dp);
+  }
+
+  private static int writeCopyUpTo64(int offset, int len, byte[] dst, int dp) {
+    if (len < 12 && offset < 2048) {
+      dst[dp++] = (byte) (COPY_1_BYTE_OFFSET | (len - 4) << 2 | (offset >>> 8) << 5);
+      dst[dp++] = (byte) offset;
+    } else {
+      dst[dp++] = (byte) (COPY_2_BYTE_OFFSET | (len - 1) << 2);
+      dst[dp++] = (byte) offset;
+      dst[dp++] = (byte) (offset >>> 8);
+    }
+    return dp;
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8
+        | (b[off + 2] & 0xFF) << 16 | (b[off + 3] & 0xFF) << 24;
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * 0x1E35A7BD) >>> (32 - HASH_LOG);
+  }
+}
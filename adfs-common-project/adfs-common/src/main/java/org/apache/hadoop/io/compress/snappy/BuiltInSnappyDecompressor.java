@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io.compress.snappy;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.compress.AbstractBlockDecompressor;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * A {@link Decompressor} based on the snappy compression algorithm, written
+ * in Java for when the native snappy library is not loaded. It reads the
+ * output of {@link SnappyCompressor} as well.
+ * http://code.google.com/p/snappy/
+ */
+public class BuiltInSnappyDecompressor extends AbstractBlockDecompressor {
+  private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Creates a new decompressor.
+   *
+   * @param bufferSize initial size of the buffer for a decompressed block.
+   */
+  public BuiltInSnappyDecompressor(int bufferSize) {
+    super(bufferSize);
+  }
+
+  /**
+   * Creates a new decompressor with the default buffer size.
+   */
+  public BuiltInSnappyDecompressor() {
+    this(DEFAULT_BUFFER_SIZE);
+  }
+
+  @Override
+  protected int decompressBlock(byte[] src, int srcOff, int srcLen,
+      byte[] dst, int dstOff, int dstLen) throws IOException {
+    final int srcEnd = srcOff + srcLen;
+    int sp = srcOff;
+
+    // the uncompressed length as a varint
+    long length = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (sp >= srcEnd || shift > 28) {
+        throw new IOException("Malformed snappy block: bad length");
+      }
+      int b = src[sp++] & 0xFF;
+      length |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        break;
+      }
+    }
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Malformed snappy block: length " + length);
+    }
+    if (length > dstLen) {
+      return -1;
+    }
+    final int dstEnd = dstOff + (int) length;
+    int dp = dstOff;
+
+    while (sp < srcEnd) {
+      int tag = src[sp++] & 0xFF;
+      int len;
+      int offset;
+      switch (tag & 3) {
+      case BuiltInSnappyCompressor.LITERAL:
+        len = tag >>> 2;
+        if (len >= 60) {
+          int count = len - 59;
+          if (srcEnd - sp < count) {
+            throw new IOException("Malformed snappy block: truncated at " + (sp - srcOff));
+          }
+          len = 0;
+          for (int i = 0; i < count; i++) {
+            len |= (src[sp++] & 0xFF) << (8 * i);
+          }
+        }
+        len++;
+        if (len <= 0 || len > srcEnd - sp || len > dstEnd - dp) {
+          throw new IOException("Malformed snappy block: literal of " + len + " at " + (sp - srcOff));
+        }
+        System.arraycopy(src, sp, dst, dp, len);
+        sp += len;
+        dp += len;
+        continue;
+      case BuiltInSnappyCompressor.COPY_1_BYTE_OFFSET:
+        if (srcEnd - sp < 1) {
+          throw new IOException("Malformed snappy block: truncated at " + (sp - srcOff));
+        }
+        len = ((tag >>> 2) & 7) + 4;
+        offset = (tag >>> 5) << 8 | (src[sp++] & 0xFF);
+        break;
+      case BuiltInSnappyCompressor.COPY_2_BYTE_OFFSET:
+        if (srcEnd - sp < 2) {
+          throw new IOException("Malformed snappy block: truncated at " + (sp - srcOff));
+        }
+        len = (tag >>> 2) + 1;
+        offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8;
+        sp += 2;
+        break;
+      default:
+        if (srcEnd - sp < 4) {
+          throw new IOException("Malformed snappy block: truncated at " + (sp - srcOff));
+        }
+        len = (tag >>> 2) + 1;
+        offset = (src[sp] & 0xFF) | (src[sp + 1] & 0xFF) << 8
+            | (src[sp + 2] & 0xFF) << 16 | (src[sp + 3] & 0xFF) << 24;
+        sp += 4;
+      }
+      if (offset <= 0 || offset > dp - dstOff || len > dstEnd - dp) {
+        throw new IOException("Malformed snappy block: copy of " + len + " from " + offset
+            + " at " + (sp - srcOff));
+      }
+      int ref = dp - offset;
+      if (offset >= len) {
+        System.arraycopy(dst, ref, dst, dp, len);
+        dp += len;
+      } else {
+        // overlapping, repeats the last offset bytes
+        for (int end = dp + len; dp < end;) {
+          dst[dp++] = dst[ref++];
+        }
+      }
+    }
+    if (dp != dstEnd) {
+      throw new IOException("Malformed snappy block: " + (dp - dstOff) + " bytes instead of " + length);
+    }
+    return dp - dstOff;
+  }
+}
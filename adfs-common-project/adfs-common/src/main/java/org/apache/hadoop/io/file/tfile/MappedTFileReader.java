@@ -0,0 +1,823 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.compress.Decompressor;
+import org.apache.hadoop.io.file.tfile.BCFile.BlockRegion;
+import org.apache.hadoop.io.file.tfile.BCFile.DataIndex;
+import org.apache.hadoop.io.file.tfile.BCFile.Magic;
+import org.apache.hadoop.io.file.tfile.BCFile.MetaIndex;
+import org.apache.hadoop.io.file.tfile.BCFile.MetaIndexEntry;
+import org.apache.hadoop.io.file.tfile.CompareUtils.BytesComparator;
+import org.apache.hadoop.io.file.tfile.Compression.Algorithm;
+import org.apache.hadoop.io.file.tfile.TFile.TFileIndex;
+import org.apache.hadoop.io.file.tfile.TFile.TFileMeta;
+import org.apache.hadoop.io.file.tfile.Utils.Version;
+
+/**
+ * A reader of TFiles on the local disk, which maps the file into memory.
+ * <p>
+ * Unlike {@link TFile.Reader}, it reads without a file stream, so any
+ * number of threads may scan the same reader at once, each with its own
+ * {@link Scanner}. Keys and values are returned as read-only
+ * {@link ByteBuffer} slices of the data block, instead of being copied out:
+ * of the mapped file itself if the TFile is not compressed, or of the
+ * decompressed block otherwise.
+ * <p>
+ * The data blocks, with the positions of their records, are kept in a
+ * {@link TFileBlockCache} shared by the scanners, so that a block is
+ * decompressed once for all the seeks into it, and a seek within a block is
+ * a binary search. The block index is held in one array of longs per block:
+ * the first 8 bytes of the last key of the block, the position of that key
+ * in the raw index, the number of records up to the block, and the region
+ * of the block in the file. With the memcmp comparator, most comparisons
+ * against the index are decided by the key prefixes.
+ * <p>
+ * Files larger than 1GB are mapped in segments of 1GB. A block crossing a
+ * segment boundary is copied.
+ */
+public class MappedTFileReader implements Closeable {
+  private static final long SEGMENT_SIZE = 1L << 30;
+
+  // the fields of a block in the index
+  private static final int PREFIX = 0;
+  private static final int KEY = 1;
+  private static final int RECORDS = 2;
+  private static final int OFFSET = 3;
+  private static final int COMPRESSED_SIZE = 4;
+  private static final int RAW_SIZE = 5;
+  private static final int STRIDE = 6;
+
+  private final File file;
+  private final long length;
+  private final MappedByteBuffer[] segments;
+  private final TFileMeta tfileMeta;
+  // null if the TFile is not sorted
+  private final BytesComparator comparator;
+  private final boolean memcmp;
+  private final Algorithm dataAlgorithm;
+  private final MetaIndex metaIndex;
+
+  private final int blockCount;
+  private final long[] index;
+  // the raw TFile index, which holds the keys of the index
+  private final byte[] indexKeys;
+  private int firstKeyOffset = -1;
+  private int firstKeyLength = 0;
+
+  private final TFileBlockCache cache;
+  private volatile boolean closed = false;
+
+  /**
+   * A data block and the positions of its records.
+   */
+  static final class Block {
+    // read-only
+    final ByteBuffer data;
+    // the array of the data, or null if the data is mapped
+    final byte[] array;
+    // the start of each record, then the end of the last one
+    final int[] records;
+
+    Block(ByteBuffer data, byte[] array, int[] records) {
+      this.data = data;
+      this.array = array;
+      this.records = records;
+    }
+
+    int getRecordCount() {
+      return records.length - 1;
+    }
+
+    /**
+     * @return the number of bytes held by the block.
+     */
+    long weight() {
+      return (array == null ? 0 : array.length) + 4L * records.length + 64;
+    }
+  }
+
+  /**
+   * Open a TFile with its own block cache, sized by
+   * <tt>tfile.io.block.cache.size</tt>.
+   * 
+   * @param file
+   *          the TFile
+   * @param conf
+   * @throws IOException
+   */
+  public MappedTFileReader(File file, Configuration conf) throws IOException {
+    this(file, new TFileBlockCache(TFile.getBlockCacheSize(conf)));
+  }
+
+  /**
+   * Open a TFile.
+   * 
+   * @param file
+   *          the TFile
+   * @param cache
+   *          the block cache, which may be shared with other readers.
+   * @throws IOException
+   */
+  public MappedTFileReader(File file, TFileBlockCache cache)
+      throws IOException {
+    this.file = file;
+    this.cache = cache;
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      length = channel.size();
+      segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+      for (int i = 0; i < segments.length; i++) {
+        long offset = i * SEGMENT_SIZE;
+        segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+            Math.min(SEGMENT_SIZE, length - offset));
+      }
+    } finally {
+      // the mapping stays valid
+      raf.close();
+    }
+
+    // the tail: offset to the meta block index, version and magic
+    long tailLength = Long.SIZE / Byte.SIZE + Version.size() + Magic.size();
+    if (length < tailLength) {
+      throw new IOException("Not a valid BCFile.");
+    }
+    DataInputStream tail =
+        new DataInputStream(new ByteBufferInputStream(slice(length
+            - tailLength, tailLength)));
+    long offsetIndexMeta = tail.readLong();
+    Version version = new Version(tail);
+    Magic.readAndVerify(tail);
+    if (!version.compatibleWith(BCFile.API_VERSION)) {
+      throw new RuntimeException("Incompatible BCFile fileBCFileVersion.");
+    }
+    if (offsetIndexMeta < 0 || offsetIndexMeta > length - tailLength) {
+      throw new IOException("Corrupted Meta region Index");
+    }
+    metaIndex =
+        new MetaIndex(new DataInputStream(new ByteBufferInputStream(slice(
+            offsetIndexMeta, length - tailLength - offsetIndexMeta))));
+
+    DataIndex dataIndex =
+        new DataIndex(new DataInputStream(new ByteBufferInputStream(
+            getMetaBlock(DataIndex.BLOCK_NAME))));
+    dataAlgorithm = dataIndex.getDefaultCompressionAlgorithm();
+    tfileMeta =
+        new TFileMeta(new DataInputStream(new ByteBufferInputStream(
+            getMetaBlock(TFileMeta.BLOCK_NAME))));
+    comparator = tfileMeta.getComparator();
+    memcmp = TFile.COMPARATOR_MEMCMP.equals(tfileMeta.getComparatorString());
+
+    ArrayList<BlockRegion> regions = dataIndex.getBlockRegionList();
+    blockCount = regions.size();
+    index = new long[blockCount * STRIDE];
+    for (int i = 0; i < blockCount; i++) {
+      BlockRegion region = regions.get(i);
+      index[i * STRIDE + OFFSET] = region.getOffset();
+      index[i * STRIDE + COMPRESSED_SIZE] = region.getCompressedSize();
+      index[i * STRIDE + RAW_SIZE] = region.getRawSize();
+    }
+    indexKeys = readMetaBlock(TFileIndex.BLOCK_NAME);
+    readIndex();
+  }
+
+  /**
+   * Fill in the keys and the record counts of the index from the TFile
+   * index, as read by {@link TFileIndex}.
+   */
+  private void readIndex() throws IOException {
+    ByteBuffer in = ByteBuffer.wrap(indexKeys);
+    int size = Utils.readVInt(in);
+    if (size == 0) {
+      if (blockCount != 0) {
+        throw new IOException("Corrupted TFile index");
+      }
+      return;
+    }
+    int next = in.position() + size;
+    firstKeyLength = Utils.readVInt(in);
+    firstKeyOffset = in.position();
+    in.position(next);
+
+    long records = 0;
+    for (int i = 0; i < blockCount; i++) {
+      size = Utils.readVInt(in);
+      next = in.position() + size;
+      int keyLength = Utils.readVInt(in);
+      int keyOffset = in.position();
+      in.position(keyOffset + keyLength);
+      records += Utils.readVLong(in);
+      in.position(next);
+
+      index[i * STRIDE + PREFIX] = prefix(indexKeys, keyOffset, keyLength);
+      index[i * STRIDE + KEY] = ((long) keyOffset << 32) | keyLength;
+      index[i * STRIDE + RECORDS] = records;
+    }
+  }
+
+  /**
+   * @return the first 8 bytes of a key as an unsigned long, padded with
+   *         zeros, which orders as memcmp unless equal.
+   */
+  private static long prefix(byte[] key, int offset, int length) {
+    long prefix = 0;
+    for (int i = 0; i < 8; i++) {
+      prefix = (prefix << 8) | (i < length ? key[offset + i] & 0xff : 0);
+    }
+    return prefix;
+  }
+
+  /**
+   * @return a slice of the file, copied if it crosses a segment boundary.
+   */
+  private ByteBuffer slice(long offset, long size) throws IOException {
+    if (offset < 0 || size < 0 || offset + size > length
+        || size > Integer.MAX_VALUE) {
+      throw new IOException("Invalid region " + offset + "/" + size + " of "
+          + file + " of length " + length);
+    }
+    int segment = (int) (offset / SEGMENT_SIZE);
+    int start = (int) (offset - segment * SEGMENT_SIZE);
+    if (size == 0 || start + size <= SEGMENT_SIZE) {
+      return slice(segments[segment], start, (int) size);
+    }
+    ByteBuffer copy = ByteBuffer.allocate((int) size);
+    while (copy.hasRemaining()) {
+      int n = (int) Math.min(copy.remaining(), SEGMENT_SIZE - start);
+      copy.put(slice(segments[segment], start, n));
+      segment++;
+      start = 0;
+    }
+    copy.flip();
+    return copy.asReadOnlyBuffer();
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int offset, int size) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.limit(offset + size);
+    duplicate.position(offset);
+    return duplicate.slice();
+  }
+
+  /**
+   * @return the raw bytes of a block.
+   */
+  private byte[] decompress(Algorithm algorithm, long offset,
+      long compressedSize, long rawSize) throws IOException {
+    if (rawSize > Integer.MAX_VALUE) {
+      throw new IOException("Block too large: " + rawSize);
+    }
+    byte[] data = new byte[(int) rawSize];
+    Decompressor decompressor = algorithm.getDecompressor();
+    try {
+      InputStream in =
+          algorithm.createDecompressionStream(new ByteBufferInputStream(slice(
+              offset, compressedSize)), decompressor, 0);
+      try {
+        IOUtils.readFully(in, data, 0, data.length);
+      } finally {
+        in.close();
+      }
+    } finally {
+      algorithm.returnDecompressor(decompressor);
+    }
+    return data;
+  }
+
+  private byte[] readMetaBlock(String name) throws IOException {
+    MetaIndexEntry entry = metaIndex.getMetaByName(name);
+    if (entry == null) {
+      throw new MetaBlockDoesNotExist("name=" + name);
+    }
+    BlockRegion region = entry.getRegion();
+    return decompress(entry.getCompressionAlgorithm(), region.getOffset(),
+        region.getCompressedSize(), region.getRawSize());
+  }
+
+  /**
+   * Get a meta block.
+   * 
+   * @param name
+   *          The name of the meta block.
+   * @return The content of the meta block.
+   * @throws IOException
+   * @throws MetaBlockDoesNotExist
+   *           If the meta block with the name does not exist.
+   */
+  public ByteBuffer getMetaBlock(String name) throws IOException,
+      MetaBlockDoesNotExist {
+    return ByteBuffer.wrap(readMetaBlock(name)).asReadOnlyBuffer();
+  }
+
+  /**
+   * @return the data block, from the cache or read and cached.
+   */
+  Block getBlock(int blockIndex) throws IOException {
+    if (closed) {
+      throw new IOException("Reader of " + file + " is closed");
+    }
+    Block block = cache.get(this, blockIndex);
+    if (block == null) {
+      block = cache.put(this, blockIndex, readBlock(blockIndex));
+    }
+    return block;
+  }
+
+  private Block readBlock(int blockIndex) throws IOException {
+    int i = blockIndex * STRIDE;
+    ByteBuffer data;
+    byte[] array = null;
+    if (dataAlgorithm == Algorithm.NONE) {
+      data = slice(index[i + OFFSET], index[i + COMPRESSED_SIZE]);
+    } else {
+      array = decompress(dataAlgorithm, index[i + OFFSET],
+          index[i + COMPRESSED_SIZE], index[i + RAW_SIZE]);
+      data = ByteBuffer.wrap(array).asReadOnlyBuffer();
+    }
+
+    long previous = blockIndex == 0 ? 0 : index[i - STRIDE + RECORDS];
+    int[] records = new int[(int) (index[i + RECORDS] - previous) + 1];
+    ByteBuffer in = data.duplicate();
+    try {
+      for (int r = 0; r < records.length - 1; r++) {
+        records[r] = in.position();
+        int keyLength = Utils.readVInt(in);
+        in.position(in.position() + keyLength);
+        // the value chunks, the last of non-negative length
+        int chunkLength;
+        do {
+          chunkLength = Utils.readVInt(in);
+          in.position(in.position() + Math.abs(chunkLength));
+        } while (chunkLength < 0);
+      }
+    } catch (RuntimeException e) {
+      // buffer underflow or illegal position
+      throw new IOException("Corrupted block " + blockIndex + " of " + file
+          + ": " + e);
+    }
+    records[records.length - 1] = in.position();
+    return new Block(data, array, records);
+  }
+
+  /**
+   * Compare a key in a block to a key.
+   */
+  private int compareKey(Block block, int offset, int length, RawComparable key) {
+    if (block.array != null) {
+      return comparator.compare(block.array, offset, length, key.buffer(),
+          key.offset(), key.size());
+    }
+    if (memcmp) {
+      byte[] other = key.buffer();
+      int otherOffset = key.offset();
+      int n = Math.min(length, key.size());
+      for (int i = 0; i < n; i++) {
+        int a = block.data.get(offset + i) & 0xff;
+        int b = other[otherOffset + i] & 0xff;
+        if (a != b) {
+          return a - b;
+        }
+      }
+      return length - key.size();
+    }
+    byte[] copy = new byte[length];
+    slice(block.data, offset, length).get(copy);
+    return comparator.compare(copy, 0, length, key.buffer(), key.offset(),
+        key.size());
+  }
+
+  /**
+   * @return the first block whose last key is greater than or equal to the
+   *         key, or strictly greater if greater is true; or -1 if none.
+   */
+  private int findBlock(RawComparable key, boolean greater) {
+    long keyPrefix = memcmp ? prefix(key.buffer(), key.offset(), key.size()) : 0;
+    int low = 0;
+    int high = blockCount;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      int i = mid * STRIDE;
+      int cmp;
+      if (memcmp && index[i + PREFIX] != keyPrefix) {
+        cmp = (index[i + PREFIX] ^ Long.MIN_VALUE) < (keyPrefix ^ Long.MIN_VALUE) ? -1 : 1;
+      } else {
+        long k = index[i + KEY];
+        cmp = comparator.compare(indexKeys, (int) (k >>> 32), (int) k,
+            key.buffer(), key.offset(), key.size());
+      }
+      if (cmp < 0 || (greater && cmp == 0)) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low == blockCount ? -1 : low;
+  }
+
+  /**
+   * Close the reader and drop its blocks from the cache. The buffers
+   * returned by the scanners stay readable.
+   */
+  public void close() {
+    closed = true;
+    cache.removeAll(this);
+  }
+
+  /**
+   * @return the block cache of the reader.
+   */
+  public TFileBlockCache getBlockCache() {
+    return cache;
+  }
+
+  /**
+   * @return the comparator name, or an empty string if the TFile is not
+   *         sorted.
+   */
+  public String getComparatorName() {
+    return tfileMeta.getComparatorString();
+  }
+
+  /**
+   * @return true if TFile is sorted.
+   */
+  public boolean isSorted() {
+    return tfileMeta.isSorted();
+  }
+
+  /**
+   * @return the number of key-value pairs in TFile
+   */
+  public long getEntryCount() {
+    return tfileMeta.getRecordCount();
+  }
+
+  /**
+   * @return the number of data blocks.
+   */
+  public int getBlockCount() {
+    return blockCount;
+  }
+
+  /**
+   * @return the first key in the TFile, or null if it is empty.
+   */
+  public ByteBuffer getFirstKey() {
+    if (firstKeyOffset < 0) {
+      return null;
+    }
+    return slice(ByteBuffer.wrap(indexKeys).asReadOnlyBuffer(),
+        firstKeyOffset, firstKeyLength);
+  }
+
+  /**
+   * @return the last key in the TFile, or null if it is empty.
+   */
+  public ByteBuffer getLastKey() {
+    if (blockCount == 0) {
+      return null;
+    }
+    long k = index[(blockCount - 1) * STRIDE + KEY];
+    return slice(ByteBuffer.wrap(indexKeys).asReadOnlyBuffer(),
+        (int) (k >>> 32), (int) k);
+  }
+
+  /**
+   * @return a scanner positioned at the first key-value pair.
+   * @throws IOException
+   */
+  public Scanner createScanner() throws IOException {
+    return new Scanner();
+  }
+
+  /**
+   * A cursor over the key-value pairs of the TFile, like
+   * {@link TFile.Reader.Scanner}. The buffers returned for a key-value pair
+   * stay valid after the cursor moves. A scanner must be used by one thread
+   * at a time.
+   */
+  public class Scanner implements Closeable {
+    // blockCount at the end
+    private int blockIndex = -1;
+    // null at the end
+    private Block block = null;
+    private int recordIndex = 0;
+    // the current key, parsed on demand, or -1
+    private int keyOffset = -1;
+    private int keyLength;
+
+    Scanner() throws IOException {
+      rewind();
+    }
+
+    private void seek(int blockIndex, int recordIndex) throws IOException {
+      keyOffset = -1;
+      while (blockIndex < blockCount) {
+        if (blockIndex != this.blockIndex || block == null) {
+          block = getBlock(blockIndex);
+        }
+        this.blockIndex = blockIndex;
+        if (recordIndex < block.getRecordCount()) {
+          this.recordIndex = recordIndex;
+          return;
+        }
+        blockIndex++;
+        recordIndex = 0;
+      }
+      parkCursorAtEnd();
+    }
+
+    private void parkCursorAtEnd() {
+      blockIndex = blockCount;
+      block = null;
+      recordIndex = 0;
+      keyOffset = -1;
+    }
+
+    /**
+     * Move the cursor to the first key-value pair.
+     * 
+     * @throws IOException
+     */
+    public void rewind() throws IOException {
+      seek(0, 0);
+    }
+
+    /**
+     * Move the cursor to the end.
+     */
+    public void seekToEnd() {
+      parkCursorAtEnd();
+    }
+
+    /**
+     * @return true if the cursor is at the end.
+     */
+    public boolean atEnd() {
+      return block == null;
+    }
+
+    /**
+     * Move the cursor to the next key-value pair.
+     * 
+     * @return false if the cursor is already at the end.
+     * @throws IOException
+     */
+    public boolean advance() throws IOException {
+      if (atEnd()) {
+        return false;
+      }
+      seek(blockIndex, recordIndex + 1);
+      return true;
+    }
+
+    /**
+     * Move the cursor to the first entry whose key is greater than or equal
+     * to the input key.
+     * 
+     * @return true if we find an equal key.
+     * @throws IOException
+     */
+    public boolean seekTo(byte[] key) throws IOException {
+      return seekTo(key, 0, key.length);
+    }
+
+    /**
+     * Move the cursor to the first entry whose key is greater than or equal
+     * to the input key.
+     * 
+     * @return true if we find an equal key.
+     * @throws IOException
+     */
+    public boolean seekTo(byte[] key, int keyOffset, int keyLen)
+        throws IOException {
+      return seekTo(new ByteArray(key, keyOffset, keyLen), false);
+    }
+
+    /**
+     * Move the cursor to the first entry whose key is greater than or equal
+     * to the input key.
+     * 
+     * @throws IOException
+     */
+    public void lowerBound(byte[] key) throws IOException {
+      seekTo(new ByteArray(key), false);
+    }
+
+    /**
+     * Move the cursor to the first entry whose key is strictly greater than
+     * the input key.
+     * 
+     * @throws IOException
+     */
+    public void upperBound(byte[] key) throws IOException {
+      seekTo(new ByteArray(key), true);
+    }
+
+    private boolean seekTo(RawComparable key, boolean greater)
+        throws IOException {
+      if (!isSorted()) {
+        throw new RuntimeException("Seeking in unsorted TFile");
+      }
+      int found = findBlock(key, greater);
+      if (found < 0) {
+        parkCursorAtEnd();
+        return false;
+      }
+      if (found != blockIndex || block == null) {
+        block = getBlock(found);
+        blockIndex = found;
+      }
+
+      // the first record with a key greater than or equal to the key, or
+      // strictly greater
+      ByteBuffer in = block.data.duplicate();
+      int low = 0;
+      int high = block.getRecordCount();
+      boolean equal = false;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        in.position(block.records[mid]);
+        int length = Utils.readVInt(in);
+        int cmp = compareKey(block, in.position(), length, key);
+        if (cmp < 0 || (greater && cmp == 0)) {
+          low = mid + 1;
+        } else {
+          high = mid;
+          equal = cmp == 0;
+        }
+      }
+      seek(blockIndex, low);
+      return equal;
+    }
+
+    private void checkKey() throws IOException {
+      if (keyOffset >= 0) {
+        return;
+      }
+      if (atEnd()) {
+        throw new EOFException("No key-value to read");
+      }
+      ByteBuffer in = block.data.duplicate();
+      in.position(block.records[recordIndex]);
+      keyLength = Utils.readVInt(in);
+      keyOffset = in.position();
+    }
+
+    /**
+     * @return the key at the cursor, a read-only buffer.
+     * @throws IOException
+     */
+    public ByteBuffer getKey() throws IOException {
+      checkKey();
+      return slice(block.data, keyOffset, keyLength);
+    }
+
+    /**
+     * @return the length of the key at the cursor.
+     * @throws IOException
+     */
+    public int getKeyLength() throws IOException {
+      checkKey();
+      return keyLength;
+    }
+
+    /**
+     * @return the value at the cursor, a read-only buffer. A value written
+     *         in several chunks, i.e. of unknown length larger than the
+     *         chunk size, is copied.
+     * @throws IOException
+     */
+    public ByteBuffer getValue() throws IOException {
+      checkKey();
+      ByteBuffer in = block.data.duplicate();
+      in.position(keyOffset + keyLength);
+      int chunkLength = Utils.readVInt(in);
+      if (chunkLength >= 0) {
+        return slice(block.data, in.position(), chunkLength);
+      }
+
+      int total = 0;
+      in.position(keyOffset + keyLength);
+      do {
+        chunkLength = Utils.readVInt(in);
+        total += Math.abs(chunkLength);
+        in.position(in.position() + Math.abs(chunkLength));
+      } while (chunkLength < 0);
+      ByteBuffer value = ByteBuffer.allocate(total);
+      in.position(keyOffset + keyLength);
+      do {
+        chunkLength = Utils.readVInt(in);
+        value.put(slice(block.data, in.position(), Math.abs(chunkLength)));
+        in.position(in.position() + Math.abs(chunkLength));
+      } while (chunkLength < 0);
+      value.flip();
+      return value.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the RecordNum of the key-value pair at the cursor, or the
+     *         number of entries at the end.
+     */
+    public long getRecordNum() {
+      if (atEnd()) {
+        return getEntryCount();
+      }
+      long previous = blockIndex == 0 ? 0 : index[(blockIndex - 1) * STRIDE + RECORDS];
+      return previous + recordIndex;
+    }
+
+    /**
+     * Compare the key at the cursor to a key.
+     * 
+     * @throws IOException
+     */
+    public int compareTo(byte[] key, int offset, int length) throws IOException {
+      if (!isSorted()) {
+        throw new RuntimeException("Cannot compare keys for unsorted TFiles.");
+      }
+      checkKey();
+      return compareKey(block, keyOffset, keyLength, new ByteArray(key, offset,
+          length));
+    }
+
+    /**
+     * Release the block at the cursor.
+     */
+    public void close() {
+      parkCursorAtEnd();
+    }
+  }
+
+  /**
+   * An input stream over a buffer.
+   */
+  private static final class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
@@ -91,6 +91,8 @@ import org.apache.hadoop.io.serializer.JavaSerializationComparator;
  * FSDataOutputStream. Integer (in bytes). Default to 256KB.
  * <li><b>tfile.fs.input.buffer.size</b>: Buffer size used for
  * FSDataInputStream. Integer (in bytes). Default to 256KB.
+ * <li><b>tfile.io.block.cache.size</b>: Size of the decompressed block cache
+ * of a {@link MappedTFileReader}. Long (in bytes). Default to 64MB.
  * </ul>
  * <p>
  * Suggestions on performance optimization.
@@ -109,7 +111,10 @@ import org.apache.hadoop.io.serializer.JavaSerializationComparator;
  * shown to be much faster than positioned-read call in single thread mode.
  * However, it also means that if multiple threads attempt to access the same
  * TFile (using multiple scanners) simultaneously, the actual I/O is carried out
- * sequentially even if they access different DFS blocks.
+ * sequentially even if they access different DFS blocks. For TFiles on
+ * the local disk, {@link MappedTFileReader} reads a memory-mapped file from
+ * any number of threads without copying, and shares decompressed blocks
+ * among its scanners.
  * <li>Compression codec. Use "none" if the data is not very compressable (by
  * compressable, I mean a compression ratio at least 2:1). Generally, use "lzo"
  * as the starting point for experimenting. "gz" overs slightly better
@@ -133,6 +138,8 @@ public class TFile {
       "tfile.fs.input.buffer.size";
   private static final String FS_OUTPUT_BUF_SIZE_ATTR =
       "tfile.fs.output.buffer.size";
+  private static final String BLOCK_CACHE_SIZE_ATTR =
+      "tfile.io.block.cache.size";
 
   static int getChunkBufferSize(Configuration conf) {
     int ret = conf.getInt(CHUNK_BUF_SIZE_ATTR, 1024 * 1024);
@@ -147,6 +154,10 @@ public class TFile {
     return conf.getInt(FS_OUTPUT_BUF_SIZE_ATTR, 256 * 1024);
   }
 
+  static long getBlockCacheSize(Configuration conf) {
+    return conf.getLong(BLOCK_CACHE_SIZE_ATTR, 64 * 1024 * 1024);
+  }
+
   private static final int MAX_KEY_SIZE = 64 * 1024; // 64KB
   static final Version API_VERSION = new Version((short) 1, (short) 0);
 
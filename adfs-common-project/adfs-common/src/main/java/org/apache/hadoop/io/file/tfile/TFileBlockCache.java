@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+
+package org.apache.hadoop.io.file.tfile;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.file.tfile.MappedTFileReader.Block;
+
+/**
+ * A cache of the data blocks read by {@link MappedTFileReader}s. It holds
+ * the decompressed blocks and the positions of their records, up to a total
+ * size in bytes, and evicts the least recently used blocks beyond that. One
+ * cache may be shared by the readers of several TFiles.
+ */
+public class TFileBlockCache {
+  private static final class Key {
+    private final Object owner;
+    private final int blockIndex;
+
+    Key(Object owner, int blockIndex) {
+      this.owner = owner;
+      this.blockIndex = blockIndex;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Key)) return false;
+      Key other = (Key) obj;
+      return owner == other.owner && blockIndex == other.blockIndex;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(owner) * 31 + blockIndex;
+    }
+  }
+
+  private final long capacity;
+  // in access order, the least recently used first
+  private final LinkedHashMap<Key, Block> blocks =
+      new LinkedHashMap<Key, Block>(16, 0.75f, true);
+  private long size = 0;
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long evictionCount = 0;
+
+  /**
+   * @param capacity
+   *          the total size in bytes of the cached blocks.
+   */
+  public TFileBlockCache(long capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return the cached block, or null.
+   */
+  synchronized Block get(Object owner, int blockIndex) {
+    Block block = blocks.get(new Key(owner, blockIndex));
+    if (block == null) {
+      missCount++;
+    } else {
+      hitCount++;
+    }
+    return block;
+  }
+
+  /**
+   * Cache a block, unless it is larger than the cache.
+   * 
+   * @return the block cached by another thread in the meantime if any, or
+   *         the given block.
+   */
+  synchronized Block put(Object owner, int blockIndex, Block block) {
+    Key key = new Key(owner, blockIndex);
+    Block cached = blocks.get(key);
+    if (cached != null) {
+      return cached;
+    }
+    if (block.weight() > capacity) {
+      return block;
+    }
+    blocks.put(key, block);
+    size += block.weight();
+    for (Iterator<Block> it = blocks.values().iterator(); size > capacity;) {
+      size -= it.next().weight();
+      it.remove();
+      evictionCount++;
+    }
+    return block;
+  }
+
+  /**
+   * Drop the blocks of a reader.
+   */
+  synchronized void removeAll(Object owner) {
+    for (Iterator<Map.Entry<Key, Block>> it = blocks.entrySet().iterator(); it
+        .hasNext();) {
+      Map.Entry<Key, Block> entry = it.next();
+      if (entry.getKey().owner == owner) {
+        size -= entry.getValue().weight();
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return the total size in bytes of the cached blocks allowed.
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return the total size in bytes of the cached blocks.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the number of cached blocks.
+   */
+  public synchronized int getBlockCount() {
+    return blocks.size();
+  }
+
+  /**
+   * @return the number of lookups which found the block cached.
+   */
+  public synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * @return the number of lookups which read the block from the file.
+   */
+  public synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * @return the number of blocks evicted to make room for others.
+   */
+  public synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TFileBlockCache(blocks=" + blocks.size() + ", size=" + size
+        + ", capacity=" + capacity + ", hits=" + hitCount + ", misses="
+        + missCount + ", evictions=" + evictionCount + ")";
+  }
+}
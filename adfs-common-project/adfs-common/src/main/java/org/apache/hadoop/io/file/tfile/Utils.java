@@ -20,6 +20,7 @@ package org.apache.hadoop.io.file.tfile;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Comparator;
 import java.util.List;
 
@@ -236,6 +237,81 @@ public final class Utils {
     }
   }
 
+  /**
+   * Decoding the variable-length integer at the position of a buffer, and
+   * advance the position past it.
+   * 
+   * @param buf
+   *          input buffer
+   * @return the decoded integer
+   * @throws IOException
+   * 
+   * @see Utils#readVInt(DataInput)
+   */
+  public static int readVInt(ByteBuffer buf) throws IOException {
+    long ret = readVLong(buf);
+    if ((ret > Integer.MAX_VALUE) || (ret < Integer.MIN_VALUE)) {
+      throw new RuntimeException(
+          "Number too large to be represented as Integer");
+    }
+    return (int) ret;
+  }
+
+  /**
+   * Decoding the variable-length long integer at the position of a buffer,
+   * and advance the position past it.
+   * 
+   * @param buf
+   *          input buffer
+   * @return the decoded long integer.
+   * @throws IOException
+   * 
+   * @see Utils#readVLong(DataInput)
+   */
+  public static long readVLong(ByteBuffer buf) throws IOException {
+    int firstByte = buf.get();
+    if (firstByte >= -32) {
+      return firstByte;
+    }
+
+    switch ((firstByte + 128) / 8) {
+      case 11:
+      case 10:
+      case 9:
+      case 8:
+      case 7:
+        return ((firstByte + 52) << 8) | (buf.get() & 0xff);
+      case 6:
+      case 5:
+      case 4:
+      case 3:
+        return ((firstByte + 88) << 16) | (buf.getShort() & 0xffff);
+      case 2:
+      case 1:
+        return ((firstByte + 112) << 24) | ((buf.getShort() & 0xffff) << 8)
+            | (buf.get() & 0xff);
+      case 0:
+        int len = firstByte + 129;
+        switch (len) {
+          case 4:
+            return buf.getInt();
+          case 5:
+            return ((long) buf.getInt()) << 8 | (buf.get() & 0xff);
+          case 6:
+            return ((long) buf.getInt()) << 16 | (buf.getShort() & 0xffff);
+          case 7:
+            return ((long) buf.getInt()) << 24 | ((buf.getShort() & 0xffff) << 8)
+                | (buf.get() & 0xff);
+          case 8:
+            return buf.getLong();
+          default:
+            throw new IOException("Corrupted VLong encoding");
+        }
+      default:
+        throw new RuntimeException("Internal error");
+    }
+  }
+
   /**
    * Write a String as a VInt n, followed by n Bytes as in Text format.
    * 
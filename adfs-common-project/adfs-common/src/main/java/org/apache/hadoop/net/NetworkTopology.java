@@ -18,9 +18,15 @@
 package org.apache.hadoop.net;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -295,14 +301,141 @@ public class NetworkTopology {
     }
   } // end of InnerNode
     
+  /**
+   * An immutable view of the leaves of the tree, read without locks.
+   *
+   * Leaves are sorted by path, so the leaves of any scope, a rack or a data
+   * center, form a range of the array and a random leaf of a scope, with or
+   * without an excluded scope, is picked by one index computation. Each leaf
+   * has the id of its rack and each rack the components of its location, so
+   * rack checks and distances need no walk up the tree.
+   */
+  private static final class Snapshot {
+    final Node[] leaves;
+    final String[] paths;
+    final int[] rackIds;
+    final String[][] racks;
+    final IdentityHashMap<Node, Integer> indexes;
+
+    Snapshot(List<Node> nodes) {
+      leaves = nodes.toArray(new Node[nodes.size()]);
+      paths = new String[leaves.length];
+      Arrays.sort(leaves, new Comparator<Node>() {
+        public int compare(Node n1, Node n2) {
+          return NodeBase.getPath(n1).compareTo(NodeBase.getPath(n2));
+        }
+      });
+      rackIds = new int[leaves.length];
+      indexes = new IdentityHashMap<Node, Integer>(leaves.length);
+      List<String[]> rackList = new ArrayList<String[]>();
+      String lastLocation = null;
+      for (int i = 0; i < leaves.length; i++) {
+        paths[i] = NodeBase.getPath(leaves[i]);
+        String location = leaves[i].getNetworkLocation();
+        if (!location.equals(lastLocation)) {
+          rackList.add(location.length() <= 1 ? new String[0] : location.substring(1).split(NodeBase.PATH_SEPARATOR_STR));
+          lastLocation = location;
+        }
+        rackIds[i] = rackList.size() - 1;
+        indexes.put(leaves[i], i);
+      }
+      racks = rackList.toArray(new String[rackList.size()][]);
+    }
+
+    /** @return the index of the node, or -1 if it is not a leaf */
+    int indexOf(Node node) {
+      if (node == null) {
+        return -1;
+      }
+      Integer index = indexes.get(node);
+      if (index != null) {
+        return index;
+      }
+      // an equal node of another instance, e.g. from a client
+      index = Arrays.binarySearch(paths, NodeBase.getPath(node));
+      return index < 0 ? -1 : index;
+    }
+
+    /**
+     * @return the range [from, to) of the leaves in the normalized scope
+     */
+    int[] range(String scope) {
+      if (scope.length() == 0) {
+        return new int[] {0, leaves.length};
+      }
+      int exact = Arrays.binarySearch(paths, scope);
+      if (exact >= 0) {
+        return new int[] {exact, exact + 1};
+      }
+      // every path below the scope starts with scope + "/", and "0" is the
+      // character right after "/"
+      return new int[] {lowerBound(scope + NodeBase.PATH_SEPARATOR_STR), lowerBound(scope + "0")};
+    }
+
+    private int lowerBound(String key) {
+      int index = Arrays.binarySearch(paths, key);
+      return index < 0 ? -index - 1 : index;
+    }
+
+    int getDistance(int i1, int i2) {
+      if (i1 == i2) {
+        return 0;
+      }
+      String[] rack1 = racks[rackIds[i1]];
+      String[] rack2 = racks[rackIds[i2]];
+      if (rack1 == rack2) {
+        return 2;
+      }
+      int common = 0;
+      while (common < rack1.length && common < rack2.length && rack1[common].equals(rack2[common])) {
+        common++;
+      }
+      return rack1.length + rack2.length + 2 - 2 * common;
+    }
+  }
+
   InnerNode clusterMap = new InnerNode(InnerNode.ROOT); // the root
   private int numOfRacks = 0;  // rack counter
   private ReadWriteLock netlock;
+  // rebuilt on the first read after a change, only set or cleared under netlock
+  private volatile Snapshot snapshot = null;
     
   public NetworkTopology() {
     netlock = new ReentrantReadWriteLock();
   }
     
+  /** Return the snapshot of the current tree, build it if the tree changed */
+  private Snapshot getSnapshot() {
+    Snapshot current = snapshot;
+    if (current != null) {
+      return current;
+    }
+    netlock.readLock().lock();
+    try {
+      // writers are excluded, concurrent readers build equal snapshots
+      current = snapshot;
+      if (current == null) {
+        List<Node> leaves = new ArrayList<Node>(clusterMap.getNumOfLeaves());
+        collectLeaves(clusterMap, leaves);
+        current = new Snapshot(leaves);
+        snapshot = current;
+      }
+      return current;
+    } finally {
+      netlock.readLock().unlock();
+    }
+  }
+
+  private static void collectLeaves(InnerNode node, List<Node> leaves) {
+    for (Node child : node.getChildren()) {
+      if (child instanceof InnerNode) {
+        collectLeaves((InnerNode) child, leaves);
+      } else {
+        leaves.add(child);
+      }
+    }
+  }
+    
   /** Add a leaf node
    * Update node counter & rack counter if neccessary
    * @param node
@@ -330,7 +463,11 @@ public class NetworkTopology {
           numOfRacks++;
         }
       }
-      LOG.debug("NetworkTopology became:\n" + this.toString());
+      // a node of the same name may have been replaced as well
+      snapshot = null;
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("NetworkTopology became:\n" + this.toString());
+      }
     } finally {
       netlock.writeLock().unlock();
     }
@@ -355,8 +492,11 @@ public class NetworkTopology {
         if (rack == null) {
           numOfRacks--;
         }
+        snapshot = null;
+      }
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("NetworkTopology became:\n" + this.toString());
       }
-      LOG.debug("NetworkTopology became:\n" + this.toString());
     } finally {
       netlock.writeLock().unlock();
     }
@@ -370,18 +510,7 @@ public class NetworkTopology {
    */
   public boolean contains(Node node) {
     if (node == null) return false;
-    netlock.readLock().lock();
-    try {
-      Node parent = node.getParent();
-      for(int level=node.getLevel(); parent!=null&&level>0;
-          parent=parent.getParent(), level--) {
-        if (parent == clusterMap)
-          return true;
-      }
-    } finally {
-      netlock.readLock().unlock();
-    }
-    return false; 
+    return getSnapshot().indexes.containsKey(node);
   }
     
   /** Given a string representation of a node, return its reference
@@ -404,22 +533,12 @@ public class NetworkTopology {
     
   /** Return the total number of racks */
   public int getNumOfRacks() {
-    netlock.readLock().lock();
-    try {
-      return numOfRacks;
-    } finally {
-      netlock.readLock().unlock();
-    }
+    return getSnapshot().racks.length;
   }
     
   /** Return the total number of nodes */
   public int getNumOfLeaves() {
-    netlock.readLock().lock();
-    try {
-      return clusterMap.getNumOfLeaves();
-    } finally {
-      netlock.readLock().unlock();
-    }
+    return getSnapshot().leaves.length;
   }
     
   /** Return the distance between two nodes
@@ -435,38 +554,18 @@ public class NetworkTopology {
     if (node1 == node2) {
       return 0;
     }
-    Node n1=node1, n2=node2;
-    int dis = 0;
-    netlock.readLock().lock();
-    try {
-      int level1=node1.getLevel(), level2=node2.getLevel();
-      while(n1!=null && level1>level2) {
-        n1 = n1.getParent();
-        level1--;
-        dis++;
-      }
-      while(n2!=null && level2>level1) {
-        n2 = n2.getParent();
-        level2--;
-        dis++;
-      }
-      while(n1!=null && n2!=null && n1.getParent()!=n2.getParent()) {
-        n1=n1.getParent();
-        n2=n2.getParent();
-        dis+=2;
-      }
-    } finally {
-      netlock.readLock().unlock();
-    }
-    if (n1==null) {
+    Snapshot current = getSnapshot();
+    Integer index1 = current.indexes.get(node1);
+    if (index1 == null) {
       LOG.warn("The cluster does not contain node: "+NodeBase.getPath(node1));
       return Integer.MAX_VALUE;
     }
-    if (n2==null) {
+    Integer index2 = current.indexes.get(node2);
+    if (index2 == null) {
       LOG.warn("The cluster does not contain node: "+NodeBase.getPath(node2));
       return Integer.MAX_VALUE;
     }
-    return dis+2;
+    return current.getDistance(index1, index2);
   } 
     
   /** Check if two nodes are on the same rack
@@ -480,62 +579,96 @@ public class NetworkTopology {
     if (node1 == null || node2 == null) {
       return false;
     }
-      
-    netlock.readLock().lock();
-    try {
-      return node1.getParent()==node2.getParent();
-    } finally {
-      netlock.readLock().unlock();
-    }
+    return isOnSameRack(getSnapshot(), node1, node2);
+  }
+
+  private static boolean isOnSameRack(Snapshot current, Node node1, Node node2) {
+    Integer index1 = current.indexes.get(node1);
+    Integer index2 = current.indexes.get(node2);
+    if (index1 != null && index2 != null) {
+      return current.rackIds[index1] == current.rackIds[index2];
+    }
+    // a node out of the cluster
+    return node1.getNetworkLocation().equals(node2.getNetworkLocation());
   }
     
   final private static Random r = new Random();
+  // random picks before scanning for a node that is not excluded
+  private static final int MAX_RANDOM_PICKS = 8;
+
   /** randomly choose one node from <i>scope</i>
    * if scope starts with ~, choose one from the all nodes except for the
    * ones in <i>scope</i>; otherwise, choose one from <i>scope</i>
    * @param scope range of nodes from which a node will be choosen
-   * @return the choosen node
+   * @return the choosen node, or null if there is no node to choose
    */
   public Node chooseRandom(String scope) {
-    netlock.readLock().lock();
-    try {
-      if (scope.startsWith("~")) {
-        return chooseRandom(NodeBase.ROOT, scope.substring(1));
-      } else {
-        return chooseRandom(scope, null);
-      }
-    } finally {
-      netlock.readLock().unlock();
-    }
+    return chooseRandom(scope, null);
   }
-    
-  private Node chooseRandom(String scope, String excludedScope){
-    if (excludedScope != null) {
-      if (scope.startsWith(excludedScope)) {
-        return null;
+
+  /** randomly choose one node from <i>scope</i> but not in <i>excludedNodes</i>
+   * The expected cost is constant while at most half of the nodes in scope
+   * are excluded.
+   * @param scope a path string that may start with ~, as of
+   *        {@link #chooseRandom(String)}
+   * @param excludedNodes nodes not to choose, may be null
+   * @return the choosen node, or null if there is no node to choose
+   */
+  public Node chooseRandom(String scope, Collection<? extends Node> excludedNodes) {
+    Snapshot current = getSnapshot();
+    int[] range;
+    int[] excludedRange;
+    if (scope.startsWith("~")) {
+      range = new int[] {0, current.leaves.length};
+      excludedRange = current.range(NodeBase.normalize(scope.substring(1)));
+    } else {
+      range = current.range(NodeBase.normalize(scope));
+      excludedRange = new int[] {range[0], range[0]};
+    }
+    // the leaves to choose from are [from, to) except [excludedFrom, excludedTo)
+    int from = range[0], to = range[1];
+    int excludedFrom = Math.max(from, excludedRange[0]);
+    int excludedTo = Math.min(to, Math.max(excludedFrom, excludedRange[1]));
+    int numOfExcludedLeaves = excludedTo - excludedFrom;
+    int numOfLeaves = to - from - numOfExcludedLeaves;
+    if (numOfLeaves <= 0) {
+      return null;
+    }
+
+    Set<Integer> excludedIndexes = Collections.emptySet();
+    if (excludedNodes != null && !excludedNodes.isEmpty()) {
+      excludedIndexes = new HashSet<Integer>();
+      for (Node node : excludedNodes) {
+        int index = current.indexOf(node);
+        if (index >= from && index < to && (index < excludedFrom || index >= excludedTo)) {
+          excludedIndexes.add(index);
+        }
       }
-      if (!excludedScope.startsWith(scope)) {
-        excludedScope = null;
+      numOfLeaves -= excludedIndexes.size();
+      if (numOfLeaves <= 0) {
+        return null;
       }
     }
-    Node node = getNode(scope);
-    if (!(node instanceof InnerNode)) {
-      return node;
+
+    for (int i = 0; i < MAX_RANDOM_PICKS; i++) {
+      int index = from + r.nextInt(to - from - numOfExcludedLeaves);
+      if (index >= excludedFrom) {
+        index += numOfExcludedLeaves;
+      }
+      if (!excludedIndexes.contains(index)) {
+        return current.leaves[index];
+      }
     }
-    InnerNode innerNode = (InnerNode)node;
-    int numOfDatanodes = innerNode.getNumOfLeaves();
-    if (excludedScope == null) {
-      node = null;
-    } else {
-      node = getNode(excludedScope);
-      if (!(node instanceof InnerNode)) {
-        numOfDatanodes -= 1;
-      } else {
-        numOfDatanodes -= ((InnerNode)node).getNumOfLeaves();
+    // most of the scope is excluded, pick among the rest
+    int remaining = r.nextInt(numOfLeaves);
+    for (int index = from; index < to; index++) {
+      if (index >= excludedFrom && index < excludedTo) {
+        index = excludedTo - 1;
+      } else if (!excludedIndexes.contains(index) && remaining-- == 0) {
+        return current.leaves[index];
       }
     }
-    int leaveIndex = r.nextInt(numOfDatanodes);
-    return innerNode.getLeaf(leaveIndex, node);
+    return null;
   }
        
   /** return the number of leaves in <i>scope</i> but not in <i>excludedNodes</i>
@@ -553,28 +686,23 @@ public class NetworkTopology {
       scope=scope.substring(1);
     }
     scope = NodeBase.normalize(scope);
+    Snapshot current = getSnapshot();
+    int[] range = current.range(scope);
     int count=0; // the number of nodes in both scope & excludedNodes
-    netlock.readLock().lock();
-    try {
-      for(Node node:excludedNodes) {
-        if ((NodeBase.getPath(node)+NodeBase.PATH_SEPARATOR_STR).
-            startsWith(scope+NodeBase.PATH_SEPARATOR_STR)) {
-          count++;
-        }
-      }
-      Node n=getNode(scope);
-      int scopeNodeCount=1;
-      if (n instanceof InnerNode) {
-        scopeNodeCount=((InnerNode)n).getNumOfLeaves();
+    for(Node node:excludedNodes) {
+      Integer index = current.indexes.get(node);
+      if (index != null ? index >= range[0] && index < range[1] :
+          (NodeBase.getPath(node)+NodeBase.PATH_SEPARATOR_STR).
+          startsWith(scope+NodeBase.PATH_SEPARATOR_STR)) {
+        count++;
       }
-      if (isExcluded) {
-        return clusterMap.getNumOfLeaves()-
-          scopeNodeCount-excludedNodes.size()+count;
-      } else {
-        return scopeNodeCount-count;
-      }
-    } finally {
-      netlock.readLock().unlock();
+    }
+    int scopeNodeCount=range[1]-range[0];
+    if (isExcluded) {
+      return current.leaves.length-
+        scopeNodeCount-excludedNodes.size()+count;
+    } else {
+      return scopeNodeCount-count;
     }
   }
     
@@ -586,7 +714,7 @@ public class NetworkTopology {
     tree.append(numOfRacks);
     tree.append("\n");
     // print the number of leaves
-    int numOfLeaves = getNumOfLeaves();
+    int numOfLeaves = clusterMap.getNumOfLeaves();
     tree.append("Expected number of leaves:");
     tree.append(numOfLeaves);
     tree.append("\n");
@@ -618,6 +746,7 @@ public class NetworkTopology {
    */
   public void pseudoSortByDistance( Node reader, Node[] nodes ) {
     int tempIndex = 0;
+    Snapshot current = getSnapshot();
     if (reader != null ) {
       int localRackNode = -1;
       //scan the array to find the local node & local rack node
@@ -634,7 +763,7 @@ public class NetworkTopology {
             }
             break;
           }
-        } else if(localRackNode == -1 && isOnSameRack(reader, nodes[i])) {
+        } else if(localRackNode == -1 && isOnSameRack(current, reader, nodes[i])) {
           //local rack
           localRackNode = i;
           if(tempIndex != 0 ) break;
@@ -30,7 +30,7 @@ import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.Table;
 @Database(name = "nn_state")
 @Table()
 public class Block extends DistributedDataRepositoryRow {
-  @Column(indexes = { @Index(name = "PRIMARY", index = 0) })
+  @Column(indexes = { @Index(name = "PRIMARY", index = 0), @Index(name = "DATANODE_ID", index = 1) })
   public long id = 0;
   @Column(indexes = { @Index(name = "PRIMARY", index = 1), @Index(name = "DATANODE_ID") })
   public long datanodeId = 0;
@@ -64,7 +64,49 @@ public class BlockRepository extends DistributedDataRepositoryBaseOnTable {
   }
 
   public List<Block> findByDatanodeId(long datanodeId) throws IOException {
-    List<Block> blocks = find("DATANODE_ID", new Object[] { datanodeId }, Comparator.EQ, Integer.MAX_VALUE);
+    return findByDatanodeId(datanodeId, Integer.MAX_VALUE);
+  }
+
+  /**
+   * find at most limit blocks on the datanode, callers which delete the returned blocks get next chunk by next call
+   */
+  public List<Block> findByDatanodeId(long datanodeId, int limit) throws IOException {
+    List<Block> blocks = find("DATANODE_ID", new Object[] { datanodeId }, Comparator.EQ, limit);
+    removeDeletedRows(blocks);
+    return blocks;
+  }
+
+  /**
+   * find at most limit blocks on the datanode whose id is not less than fromId, in order of id
+   */
+  public List<Block> findByDatanodeIdFrom(long datanodeId, long fromId, int limit) throws IOException {
+    List<Block> blocks = find("DATANODE_ID", new Object[] { datanodeId, fromId }, Comparator.GE, limit);
+    // range scan goes on to next datanode after blocks of this datanode
+    for (int i = blocks.size() - 1; i >= 0 && blocks.get(i).datanodeId != datanodeId; --i) {
+      blocks.remove(i);
+    }
+    removeDeletedRows(blocks);
+    return blocks;
+  }
+
+  /**
+   * find at most limit blocks whose file id is not less than fromFileId, in order of file id, deleted blocks are kept
+   * so that callers can page on from the file id of the last one
+   */
+  public List<Block> findByFileIdFrom(long fromFileId, int limit) throws IOException {
+    return find("FILE_ID", new Object[] { fromFileId }, Comparator.GE, limit);
+  }
+
+  /**
+   * find blocks of all the ids in one query if the database executor can, see DatabaseExecutor.findIn
+   */
+  @SuppressWarnings("unchecked")
+  public List<Block> findByIds(long[] ids) throws IOException {
+    Long[] keys = new Long[ids.length];
+    for (int i = 0; i < ids.length; ++i) {
+      keys[i] = ids[i];
+    }
+    List<Block> blocks = (List<Block>) findIn("PRIMARY", keys);
     removeDeletedRows(blocks);
     return blocks;
   }
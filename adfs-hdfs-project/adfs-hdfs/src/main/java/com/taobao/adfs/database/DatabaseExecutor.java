@@ -21,7 +21,9 @@ package com.taobao.adfs.database;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 import java.sql.ResultSet;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -91,6 +93,33 @@ abstract public class DatabaseExecutor {
     return resultSet;
   }
 
+  /**
+   * find rows whose first column of the index equals any of the values
+   */
+  public List<ResultSet> findIn(TableDescription tableDescripion, String indexName, String[] values)
+      throws IOException {
+    long startTime = System.currentTimeMillis();
+    List<ResultSet> resultSets = findInInternal(tableDescripion, indexName, values);
+    long elapsedTime = System.currentTimeMillis() - startTime;
+    updateMetrics(tableDescripion, "findIn", indexName, elapsedTime);
+    Utilities.logDebug(logger, "spend ", elapsedTime, "ms to do ", getClass().getSimpleName(), ".",
+        tableDescripion.rowClass.getSimpleName(), ".findIn.", indexName, ": values=", Utilities.deepToString(values));
+    return resultSets;
+  }
+
+  /**
+   * find values one by one, executors which could find all of them in one query override it
+   */
+  public List<ResultSet> findInInternal(TableDescription tableDescripion, String indexName, String[] values)
+      throws IOException {
+    List<ResultSet> resultSets = new ArrayList<ResultSet>(values.length);
+    for (String value : values) {
+      resultSets.add(findInternal(tableDescripion, indexName, new String[] { value }, Comparator.EQ,
+          Integer.MAX_VALUE, 0));
+    }
+    return resultSets;
+  }
+
   public void insert(TableDescription tableDescripion, String indexName, String[] values) throws IOException {
     long startTime = System.currentTimeMillis();
     AtomicLong counter = getCounter(tableDescripion);
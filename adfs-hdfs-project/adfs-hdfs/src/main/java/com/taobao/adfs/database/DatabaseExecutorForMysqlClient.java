@@ -82,41 +82,94 @@ public class DatabaseExecutorForMysqlClient extends DatabaseExecutor {
 
   public ResultSet findInternal(TableDescription tableDescripion, String indexName, String[] keys,
       Comparator comparator, int limit, int offset) throws IOException {
-    StringBuilder sql = new StringBuilder();
+    String sql = null;
     try {
-      sql.append("SELECT * FROM ").append(tableDescripion.tableName).append(" WHERE ");
-      List<Index> indexList = tableDescripion.indexMap.get(indexName);
-      List<String> indexListForColumnName = tableDescripion.indexMapForColumnName.get(indexName);
-      for (int i = 0; i < indexList.size(); ++i) {
-        int indexOfIndex = indexList.get(i).index();
-        if (indexOfIndex > keys.length - 1) continue;
-        sql.append(indexListForColumnName.get(i));
-        if (keys[indexOfIndex] == null) sql.append(" is NULL");
-        else sql.append(comparator).append('\'').append(keys[indexOfIndex]).append('\'');
-        if (i != keys.length - 1) sql.append(" AND ");
+      sql = getFindSql(tableDescripion, indexName, keys, comparator, limit, offset);
+      return executeQuery(tableDescripion, sql);
+    } catch (Throwable t) {
+      throw new IOException("indexName=" + indexName + ", keys=" + Arrays.deepToString(keys) + ", comparator="
+          + comparator + ", sql=" + sql, t);
+    }
+  }
+
+  @Override
+  public List<ResultSet> findInInternal(TableDescription tableDescripion, String indexName, String[] values)
+      throws IOException {
+    if (values.length == 0) return new ArrayList<ResultSet>(0);
+    String sql = null;
+    try {
+      sql = getFindInSql(tableDescripion, indexName, values);
+      List<ResultSet> resultSets = new ArrayList<ResultSet>(1);
+      resultSets.add(executeQuery(tableDescripion, sql));
+      return resultSets;
+    } catch (Throwable t) {
+      throw new IOException("indexName=" + indexName + ", values=" + Arrays.deepToString(values) + ", sql=" + sql, t);
+    }
+  }
+
+  static String getFindSql(TableDescription tableDescripion, String indexName, String[] keys, Comparator comparator,
+      int limit, int offset) {
+    StringBuilder sql = new StringBuilder();
+    sql.append("SELECT * FROM ").append(tableDescripion.tableName).append(" WHERE ");
+    // column names in order of index
+    List<String> columnNames = tableDescripion.getIndexColumnNames(indexName);
+    int keyNumber = Math.min(keys.length, columnNames.size());
+    if (comparator.equals(Comparator.EQ) || keyNumber == 1) {
+      for (int i = 0; i < keyNumber; ++i) {
+        sql.append(columnNames.get(i));
+        if (keys[i] == null) sql.append(" is NULL");
+        else sql.append(comparator).append('\'').append(keys[i]).append('\'');
+        if (i != keyNumber - 1) sql.append(" AND ");
+      }
+    } else {
+      // range of a multiple-column index compares keys as a row, like handler socket does
+      sql.append('(');
+      for (int i = 0; i < keyNumber; ++i) {
+        sql.append(columnNames.get(i)).append(i != keyNumber - 1 ? "," : ")");
+      }
+      sql.append(comparator).append('(');
+      for (int i = 0; i < keyNumber; ++i) {
+        sql.append('\'').append(keys[i]).append('\'').append(i != keyNumber - 1 ? "," : ")");
       }
-      sql.append(" LIMIT ").append(offset).append(',').append(limit).append(';');
+    }
+    if (!comparator.equals(Comparator.EQ)) {
+      boolean backward = comparator.equals(Comparator.LT) || comparator.equals(Comparator.LE);
+      sql.append(" ORDER BY ");
+      for (int i = 0; i < keyNumber; ++i) {
+        sql.append(columnNames.get(i)).append(backward ? " DESC" : "").append(i != keyNumber - 1 ? "," : "");
+      }
+    }
+    sql.append(" LIMIT ").append(offset).append(',').append(limit).append(';');
+    return sql.toString();
+  }
 
-      int currentHsCientIndex = getClientIndex();
-      Connection client = clients.get(currentHsCientIndex);
-      Statement statement = client.createStatement();
-      statement.execute(sql.toString());
-      ResultSet resultSet = statement.getResultSet();
-      List<List<byte[]>> rowsForResultSet = new ArrayList<List<byte[]>>();
-      while (resultSet.next()) {
-        List<byte[]> columns = new ArrayList<byte[]>(tableDescripion.tableColumns.length);
-        for (int i = 1; i <= tableDescripion.tableColumns.length; ++i) {
-          columns.add(resultSet.getBytes(i));
-        }
-        rowsForResultSet.add(columns);
+  static String getFindInSql(TableDescription tableDescripion, String indexName, String[] values) {
+    StringBuilder sql = new StringBuilder();
+    sql.append("SELECT * FROM ").append(tableDescripion.tableName).append(" WHERE ");
+    sql.append(tableDescripion.getIndexColumnNames(indexName).get(0)).append(" IN (");
+    for (int i = 0; i < values.length; ++i) {
+      sql.append('\'').append(values[i]).append('\'').append(i != values.length - 1 ? "," : ");");
+    }
+    return sql.toString();
+  }
+
+  private ResultSet executeQuery(TableDescription tableDescripion, String sql) throws Throwable {
+    int currentHsCientIndex = getClientIndex();
+    Connection client = clients.get(currentHsCientIndex);
+    Statement statement = client.createStatement();
+    statement.execute(sql);
+    ResultSet resultSet = statement.getResultSet();
+    List<List<byte[]>> rowsForResultSet = new ArrayList<List<byte[]>>();
+    while (resultSet.next()) {
+      List<byte[]> columns = new ArrayList<byte[]>(tableDescripion.tableColumns.length);
+      for (int i = 1; i <= tableDescripion.tableColumns.length; ++i) {
+        columns.add(resultSet.getBytes(i));
       }
-      resultSet.close();
-      statement.close();
-      return new ResultSetImpl(rowsForResultSet, tableDescripion.tableColumns, "utf-8");
-    } catch (Throwable t) {
-      throw new IOException("indexName=" + indexName + ", keys=" + Arrays.deepToString(keys) + ", comparator="
-          + comparator + ", sql=" + sql.toString(), t);
+      rowsForResultSet.add(columns);
     }
+    resultSet.close();
+    statement.close();
+    return new ResultSetImpl(rowsForResultSet, tableDescripion.tableColumns, "utf-8");
   }
 
   public void insertInternal(TableDescription tableDescripion, String indexName, String[] values) throws IOException {
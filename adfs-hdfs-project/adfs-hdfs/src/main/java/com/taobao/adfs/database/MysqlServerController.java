@@ -18,6 +18,8 @@
 
 package com.taobao.adfs.database;
 
+import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.Index;
+import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.TableDescription;
 import com.taobao.adfs.util.Utilities;
 
 import org.apache.hadoop.conf.Configuration;
@@ -301,6 +303,68 @@ public class MysqlServerController {
     Utilities.logInfo(logger, "mysql server has created database(s)");
   }
 
+  /**
+   * rebuild indexes of existing tables whose columns differ from the row classes, CREATE TABLE IF NOT EXISTS keeps
+   * the old indexes of a table created by an older version, e.g. DATANODE_ID of block before it got the id column
+   */
+  public void upgradeIndexes(Configuration conf, List<TableDescription> tableDescriptions) throws IOException {
+    setMysqlDefaultConf(conf);
+    for (TableDescription tableDescription : tableDescriptions) {
+      String output =
+          executeSql(conf, "SELECT index_name,GROUP_CONCAT(column_name ORDER BY seq_in_index) "
+              + "FROM information_schema.statistics WHERE table_schema='" + tableDescription.databaseName
+              + "' AND table_name='" + tableDescription.tableName + "' GROUP BY index_name;");
+      Map<String, String> currentIndexes = new HashMap<String, String>();
+      for (String line : output.split("\n")) {
+        String[] items = line.split("\t");
+        if (items.length == 2) currentIndexes.put(items[0], items[1]);
+      }
+      // table is not created yet
+      if (currentIndexes.isEmpty()) continue;
+      String sql = getIndexUpgradeSql(tableDescription, currentIndexes);
+      if (sql == null) continue;
+      Utilities.logInfo(logger, "mysql server is upgrading indexes, current indexes=", currentIndexes, ", sql=", sql);
+      executeSql(conf, sql);
+      Utilities.logInfo(logger, "mysql server has upgraded indexes of ", tableDescription.databaseName, ".",
+          tableDescription.tableName);
+    }
+  }
+
+  /**
+   * @param currentIndexes column names of each index in database, separated by comma in order of index
+   * @return sql to rebuild the secondary indexes which differ from the table description, or null if none differs
+   */
+  static String getIndexUpgradeSql(TableDescription tableDescription, Map<String, String> currentIndexes) {
+    StringBuilder sql = new StringBuilder();
+    for (String indexName : new TreeSet<String>(tableDescription.indexMap.keySet())) {
+      // primary key is never changed
+      if (indexName.equals("PRIMARY")) continue;
+      StringBuilder columnNames = new StringBuilder();
+      for (String columnName : tableDescription.getIndexColumnNames(indexName)) {
+        if (columnNames.length() > 0) columnNames.append(',');
+        columnNames.append(columnName);
+      }
+      String currentColumnNames = currentIndexes.get(indexName);
+      if (columnNames.toString().equalsIgnoreCase(currentColumnNames)) continue;
+      sql.append(sql.length() == 0 ? "ALTER TABLE " + tableDescription.databaseName + "." + tableDescription.tableName
+          + " " : ",");
+      if (currentColumnNames != null) sql.append("DROP INDEX ").append(indexName).append(',');
+      Index index = tableDescription.indexMap.get(indexName).get(0);
+      sql.append(index.unique() ? "ADD UNIQUE INDEX " : "ADD INDEX ").append(indexName);
+      sql.append(" (").append(columnNames).append(')');
+    }
+    return sql.length() == 0 ? null : sql.append(';').toString();
+  }
+
+  String executeSql(Configuration conf, String sql) throws IOException {
+    String command = "mysql -uroot -p" + conf.get("mysql.server.password", "root");
+    command += " --socket=" + getMysqlConf(conf, "mysqld.socket");
+    command += " --batch --skip-column-names";
+    command += " --execute=\"" + sql + "\"";
+    return Utilities.runCommand(command, 0, conf.get("mysql.server.bin.path"), getMysqlLibPath(conf
+        .get("mysql.server.bin.path")));
+  }
+
   /**
    * @return mysql server pid
    */
@@ -22,6 +22,8 @@ import java.io.IOException;
 import java.sql.ResultSet;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -164,57 +166,55 @@ public class HSClientSimulator implements HSClient {
   public List<String[]> findInternal(OpenedIndex openedIndex, String[] keys, FindOperator operator, int limit,
       int offset) throws InterruptedException, TimeoutException, HandlerSocketException {
     if (limit == 0) limit = 1;
-    int[] keyIndexes = openedIndex.getIndex();
+    final int[] keyIndexes = openedIndex.getIndex();
+    final Table table = openedIndex.table;
+    if (keys.length > keyIndexes.length)
+      throw new HandlerSocketException("too many keys for index=" + openedIndex.indexName);
     Map<String, String[]> rows = openedIndex.getRows();
     List<String[]> matchedRows = new ArrayList<String[]>();
     for (String[] row : rows.values()) {
       // is this row matched?
       boolean matched = true;
-      for (int i = 0; i < keys.length; ++i) {
-        if (operator.equals(FindOperator.EQ)) {
+      if (operator.equals(FindOperator.EQ)) {
+        for (int i = 0; i < keys.length; ++i) {
           if ((row[keyIndexes[i]] == null && keys[i] != null)
-              || (row[keyIndexes[i]] != null && openedIndex.table.compareValue(keyIndexes[i], row[keyIndexes[i]],
-                  keys[i]) != 0)) {
+              || (row[keyIndexes[i]] != null && table.compareValue(keyIndexes[i], row[keyIndexes[i]], keys[i]) != 0)) {
             matched = false;
             break;
           }
+        }
+      } else {
+        // keys are compared as a tuple in order of index columns, as a range scan of index does
+        if (keys.length == 0 || row[keyIndexes[0]] == null) {
+          matched = false;
         } else {
-          if (keys.length != 1) throw new HandlerSocketException("only support 1 key for operator=" + operator);
-          if (operator.equals(FindOperator.GT)) {
-            if (row[keyIndexes[i]] == null
-                || openedIndex.table.compareValue(keyIndexes[i], row[keyIndexes[i]], keys[0]) <= 0) {
-              matched = false;
-              break;
-            }
-          } else if (operator.equals(FindOperator.GE)) {
-            if (row[keyIndexes[i]] == null
-                || openedIndex.table.compareValue(keyIndexes[i], row[keyIndexes[i]], keys[0]) < 0) {
-              matched = false;
-              break;
-            }
-          } else if (operator.equals(FindOperator.LT)) {
-            if (row[keyIndexes[i]] == null
-                || openedIndex.table.compareValue(keyIndexes[i], row[keyIndexes[i]], keys[0]) >= 0) {
-              matched = false;
-              break;
-            }
-          } else if (operator.equals(FindOperator.LE)) {
-            if (row[keyIndexes[i]] == null
-                || openedIndex.table.compareValue(keyIndexes[i], row[keyIndexes[i]], keys[0]) > 0) {
-              matched = false;
-              break;
-            }
-          }
+          int result = table.compareKey(keyIndexes, row, keys);
+          if (operator.equals(FindOperator.GT)) matched = result > 0;
+          else if (operator.equals(FindOperator.GE)) matched = result >= 0;
+          else if (operator.equals(FindOperator.LT)) matched = result < 0;
+          else if (operator.equals(FindOperator.LE)) matched = result <= 0;
         }
       }
-      // add into result if row is matched
-      if (matched) {
-        if (--limit < 0) break;
-        matchedRows.add(row.clone());
-      }
+      if (matched) matchedRows.add(row);
     }
 
-    return matchedRows;
+    // range scan returns rows in order of index, forward for GT/GE and backward for LT/LE
+    if (!operator.equals(FindOperator.EQ)) {
+      final boolean backward = operator.equals(FindOperator.LT) || operator.equals(FindOperator.LE);
+      Collections.sort(matchedRows, new Comparator<String[]>() {
+        @Override
+        public int compare(String[] row1, String[] row2) {
+          int result = table.compareKey(keyIndexes, row1, row2, keyIndexes);
+          return backward ? -result : result;
+        }
+      });
+    }
+
+    List<String[]> resultRows = new ArrayList<String[]>(Math.min(limit, matchedRows.size()));
+    for (int i = 0; i < matchedRows.size() && resultRows.size() < limit; ++i) {
+      resultRows.add(matchedRows.get(i).clone());
+    }
+    return resultRows;
   }
 
   void throwException(String keyName) throws InterruptedException, TimeoutException, HandlerSocketException {
@@ -372,6 +372,31 @@ public class HSClientSimulator implements HSClient {
           Long.valueOf(anotherValue));
       else return columnValue.compareTo(anotherValue);
     }
+
+    /**
+     * compare key columns of row with keys, null is less than any value
+     */
+    int compareKey(int[] keyIndexes, String[] row, String[] keys) {
+      for (int i = 0; i < keys.length; ++i) {
+        int result = compareNullableValue(keyIndexes[i], row[keyIndexes[i]], keys[i]);
+        if (result != 0) return result;
+      }
+      return 0;
+    }
+
+    int compareKey(int[] keyIndexes, String[] row, String[] anotherRow, int[] anotherKeyIndexes) {
+      for (int i = 0; i < keyIndexes.length; ++i) {
+        int result = compareNullableValue(keyIndexes[i], row[keyIndexes[i]], anotherRow[anotherKeyIndexes[i]]);
+        if (result != 0) return result;
+      }
+      return 0;
+    }
+
+    int compareNullableValue(int columnIndex, String columnValue, String anotherValue) {
+      if (columnValue == null) return anotherValue == null ? 0 : -1;
+      if (anotherValue == null) return 1;
+      return compareValue(columnIndex, columnValue, anotherValue);
+    }
   }
 
   static class OpenedIndex {
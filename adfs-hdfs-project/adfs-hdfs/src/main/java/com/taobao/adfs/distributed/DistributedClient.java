@@ -208,6 +208,8 @@ public class DistributedClient implements Closeable, InvocationHandler {
     int retryNumber = conf.getInt("distributed.client.retry.number", 60);
     int retrySleepTime = conf.getInt("distributed.client.retry.sleep", 10000);
     for (int i = 0; i < retryNumber; ++i) {
+      String calledMasterName = masterServer == null ? null : masterServer.name;
+      long serversVersion = getServerManager().getServersVersion();
       try {
         if (distributedLeaseThread.shouldClose.get()) break;
         long startTime = System.currentTimeMillis();
@@ -230,8 +232,14 @@ public class DistributedClient implements Closeable, InvocationHandler {
         Utilities.logWarn(logger, "fail to request ", masterServer == null ? null : masterServer.name, " to do ",
             invocation, ", retryIndex=", i, ", maxRetryIndex=", retryNumber - 1, " exception=", t);
         if (i < retryNumber - 1) {
-          Utilities.sleepAndProcessInterruptedException(retrySleepTime, logger);
-          updateServers();
+          // retry at once if another master is known, otherwise wait for zookeeper to notify a change of servers.
+          // servers are copies of the cached ones, so compare them by name
+          ServerStatus newMasterServer = updateServers();
+          if (newMasterServer == null || newMasterServer.name == null
+              || newMasterServer.name.equals(calledMasterName)) {
+            getServerManager().waitServersChanged(serversVersion, retrySleepTime);
+            updateServers();
+          }
         } else throw t;
       }
     }
@@ -365,11 +373,14 @@ public class DistributedClient implements Closeable, InvocationHandler {
         } catch (Throwable t) {
           Utilities.logWarn(logger, "fail to update distributed lease ", t);
         } finally {
+          // wake up early when zookeeper notifies a change of servers, e.g. a new master
+          long serversVersion = distributedManager == null ? 0 : distributedManager.getServersVersion();
           for (int i = 0; i < conf.getInt("distributed.client.lease.time", 1000); i += 10) {
             if (shouldClose.get()) {
               isClosed.set(true);
               break;
             }
+            if (distributedManager != null && distributedManager.getServersVersion() != serversVersion) break;
             Utilities.sleepAndProcessInterruptedException(10, logger);
           }
           if (shouldClose.get()) {
@@ -26,6 +26,7 @@ import java.util.List;
 import com.taobao.adfs.database.DatabaseExecutor;
 import com.taobao.adfs.database.MysqlServerController;
 import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.DistributedDataRepositoryRow;
+import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.TableDescription;
 import com.taobao.adfs.distributed.rpc.RPC.Invocation;
 import com.taobao.adfs.util.ReentrantReadWriteLockExtension;
 import com.taobao.adfs.util.Utilities;
@@ -87,6 +88,11 @@ abstract public class DistributedDataBaseOnDatabase extends DistributedData {
       if (DatabaseExecutor.needMysqlServer(conf) && !isValid()) {
         mysql.startServer(conf);
         Utilities.logWarn(logger, "restart mysql server again");
+        List<TableDescription> tableDescriptions = new ArrayList<TableDescription>();
+        for (DistributedDataRepositoryBaseOnTable repository : repositories) {
+          tableDescriptions.add(repository.getTableDescripion());
+        }
+        mysql.upgradeIndexes(conf, tableDescriptions);
       }
       // create handler socket client and repositories
       if (databaseExecutor == null) {
@@ -26,6 +26,7 @@ import java.lang.reflect.Field;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -85,7 +86,7 @@ abstract public class DistributedDataRepositoryBaseOnTable {
       distributedData.databaseExecutor.open(getTableDescripion());
       cache = getCache();
       locker = new DistributedLocker();
-      readWriteLocker = new DistributedLockerForWriteRead();
+      readWriteLocker = new DistributedLockerForWriteRead(getClass().getSimpleName());
       checkThread = new CheckThread(getClass().getSimpleName());
     } catch (IOException e) {
       close();
@@ -248,21 +249,49 @@ abstract public class DistributedDataRepositoryBaseOnTable {
     return resultRow;
   }
 
+  /**
+   * find rows whose first column of the index equals any of the keys, in one query if the database executor can.
+   * cache is not used, rows are read from database
+   */
+  public List<?> findIn(String indexName, Object[] keys) throws IOException {
+    long startTime = System.currentTimeMillis();
+    List<ResultSet> resultSets = null;
+    try {
+      resultSets = distributedData.databaseExecutor.findIn(getTableDescripion(), indexName, toStrings(keys));
+    } catch (Throwable t) {
+      throw new DistributedException(true, "", t);
+    }
+    List<DistributedDataRepositoryRow> rows = new ArrayList<DistributedDataRepositoryRow>();
+    for (ResultSet resultSet : resultSets) {
+      rows.addAll(readRows(resultSet));
+    }
+    updateMetrics("dataRepository.findIn" + getRowClass().getSimpleName() + "By" + indexName, startTime);
+    return rows;
+  }
+
   final protected List<?> findInternal(String indexName, Object[] keys, Comparator comparator, int limit)
       throws IOException {
     // get from database
-    String[] stringKeys = new String[keys.length];
-    for (int i = 0; i < keys.length; ++i) {
-      stringKeys[i] = (keys[i] == null) ? null : keys[i].toString();
-    }
     ResultSet resultSet = null;
     try {
       resultSet =
-          distributedData.databaseExecutor.find(getTableDescripion(), indexName, stringKeys, comparator, limit, 0);
+          distributedData.databaseExecutor.find(getTableDescripion(), indexName, toStrings(keys), comparator, limit,
+              0);
     } catch (Throwable t) {
       throw new DistributedException(true, "", t);
     }
+    return readRows(resultSet);
+  }
+
+  private static String[] toStrings(Object[] keys) {
+    String[] stringKeys = new String[keys.length];
+    for (int i = 0; i < keys.length; ++i) {
+      stringKeys[i] = (keys[i] == null) ? null : keys[i].toString();
+    }
+    return stringKeys;
+  }
 
+  private List<DistributedDataRepositoryRow> readRows(ResultSet resultSet) throws IOException {
     // parse rows from result set
     try {
       List<DistributedDataRepositoryRow> rows = new ArrayList<DistributedDataRepositoryRow>();
@@ -742,9 +771,9 @@ abstract public class DistributedDataRepositoryBaseOnTable {
         if (!indexList.get(0).name().equals("PRIMARY")) tableSqlBuilder.append(" ").append(indexList.get(0).name());
         tableSqlBuilder.append(" (");
         for (int i = 0; i < indexList.size(); ++i) {
-          for (Index index : indexList) {
-            if (index.index() != i) continue;
-            tableSqlBuilder.append(indexListForColumnName.get(i));
+          for (int j = 0; j < indexList.size(); ++j) {
+            if (indexList.get(j).index() != i) continue;
+            tableSqlBuilder.append(indexListForColumnName.get(j));
             if (i < indexList.size() - 1) tableSqlBuilder.append(",");
           }
         }
@@ -782,6 +811,19 @@ abstract public class DistributedDataRepositoryBaseOnTable {
     public Map<String, List<Index>> indexMap = new HashMap<String, List<Index>>();
     public Map<String, List<String>> indexMapForColumnName = new HashMap<String, List<String>>();
     public String[] tableColumns = null;
+
+    /**
+     * @return column names of the index in order of index
+     */
+    public List<String> getIndexColumnNames(String indexName) {
+      List<Index> indexList = indexMap.get(indexName);
+      List<String> indexListForColumnName = indexMapForColumnName.get(indexName);
+      String[] columnNames = new String[indexList.size()];
+      for (int i = 0; i < indexList.size(); ++i) {
+        columnNames[indexList.get(i).index()] = indexListForColumnName.get(i);
+      }
+      return Arrays.asList(columnNames);
+    }
   }
 
   @Retention(RUNTIME)
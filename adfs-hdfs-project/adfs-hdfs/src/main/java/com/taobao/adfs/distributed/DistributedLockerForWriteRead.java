@@ -18,59 +18,135 @@
 
 package com.taobao.adfs.distributed;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.taobao.adfs.distributed.metrics.DistributedMetrics;
 import com.taobao.adfs.util.DeepArray;
 
 /**
+ * Row read/write locks of a repository. Lock records live in a concurrent map and are reference counted, a record is
+ * removed when its last holder or waiter leaves. Waiting for a lock never holds any monitor of the locker, so a
+ * writer waiting on a hot row does not block other rows. A single row key is used as lock key directly, composite
+ * keys are wrapped in {@link DeepArray}.
+ *
  * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
  */
 public class DistributedLockerForWriteRead {
   public static final Logger logger = LoggerFactory.getLogger(DistributedLockerForWriteRead.class);
-  Map<DeepArray, ReentrantReadWriteLock> locks = new HashMap<DeepArray, ReentrantReadWriteLock>();
+  final ConcurrentMap<Object, LockRecord> locks = new ConcurrentHashMap<Object, LockRecord>();
+  final String name;
+
+  // metrics
+  final AtomicLong lockNumber = new AtomicLong(0);
+  final AtomicLong contendedNumber = new AtomicLong(0);
+  final AtomicLong waitTime = new AtomicLong(0);
+
+  public DistributedLockerForWriteRead() {
+    this(DistributedLockerForWriteRead.class.getSimpleName());
+  }
 
-  synchronized public void read(Object... objects) {
-    DeepArray lockKey = new DeepArray(objects);
-    ReentrantReadWriteLock lock = locks.get(lockKey);
-    if (lock == null) locks.put(lockKey, lock = new ReentrantReadWriteLock());
-    lock.readLock().lock();
+  /**
+   * @param name prefix of metrics, usually name of the repository
+   */
+  public DistributedLockerForWriteRead(String name) {
+    this.name = name;
   }
 
-  synchronized public void unread(Object... objects) {
-    DeepArray lockKey = new DeepArray(objects);
-    ReentrantReadWriteLock lock = locks.get(new DeepArray(objects));
-    if (lock != null) {
-      lock.readLock().unlock();
-      if (lock.getQueueLength() <= 0 && !lock.isWriteLocked() && lock.getReadLockCount() <= 0) locks.remove(lockKey);
+  public void read(Object... objects) {
+    lock(getLockKey(objects), false);
+  }
+
+  public void unread(Object... objects) {
+    unlock(getLockKey(objects), false);
+  }
+
+  public void write(Object... objects) {
+    lock(getLockKey(objects), true);
+  }
+
+  public void unwrite(Object... objects) {
+    unlock(getLockKey(objects), true);
+  }
+
+  void lock(Object lockKey, boolean write) {
+    LockRecord record = ref(lockKey);
+    Lock lock = write ? record.lock.writeLock() : record.lock.readLock();
+    lockNumber.incrementAndGet();
+    if (lock.tryLock()) return;
+    contendedNumber.incrementAndGet();
+    long startTime = System.currentTimeMillis();
+    try {
+      lock.lock();
+    } catch (RuntimeException e) {
+      unref(lockKey, record);
+      throw e;
     }
+    long elapsedTime = System.currentTimeMillis() - startTime;
+    waitTime.addAndGet(elapsedTime);
+    DistributedMetrics.timeVaryingRateInc(name + (write ? ".writeLockWait" : ".readLockWait"), elapsedTime);
   }
 
-  synchronized public void write(Object... objects) {
-    DeepArray lockKey = new DeepArray(objects);
-    ReentrantReadWriteLock lock = locks.get(lockKey);
-    if (lock == null) locks.put(lockKey, lock = new ReentrantReadWriteLock());
-    lock.writeLock().lock();
+  void unlock(Object lockKey, boolean write) {
+    LockRecord record = locks.get(lockKey);
+    if (record == null) return;
+    if (write) record.lock.writeLock().unlock();
+    else record.lock.readLock().unlock();
+    unref(lockKey, record);
   }
 
-  synchronized public void unwrite(Object... objects) {
-    DeepArray lockKey = new DeepArray(objects);
-    ReentrantReadWriteLock lock = locks.get(new DeepArray(objects));
-    if (lock != null) {
-      lock.writeLock().unlock();
-      if (lock.getQueueLength() <= 0 && !lock.isWriteLocked() && lock.getReadLockCount() <= 0) locks.remove(lockKey);
+  /**
+   * get the record of the key with one more reference, a record whose count has dropped to zero is being removed
+   */
+  LockRecord ref(Object lockKey) {
+    while (true) {
+      LockRecord record = locks.get(lockKey);
+      if (record == null) {
+        LockRecord newRecord = new LockRecord();
+        record = locks.putIfAbsent(lockKey, newRecord);
+        if (record == null) return newRecord;
+      }
+      if (record.ref()) return record;
+      // removed concurrently, help removing it and retry
+      locks.remove(lockKey, record);
     }
   }
 
+  void unref(Object lockKey, LockRecord record) {
+    if (record.references.decrementAndGet() <= 0) locks.remove(lockKey, record);
+  }
+
+  static Object getLockKey(Object... objects) {
+    if (objects != null && objects.length == 1 && objects[0] != null && !objects[0].getClass().isArray())
+      return objects[0];
+    return new DeepArray(objects);
+  }
+
   public int getSize() {
     return locks.size();
   }
 
-  synchronized public void close() {
+  public long getLockNumber() {
+    return lockNumber.get();
+  }
+
+  public long getContendedNumber() {
+    return contendedNumber.get();
+  }
+
+  public long getWaitTime() {
+    return waitTime.get();
+  }
+
+  public void close() {
     locks.clear();
   }
 
@@ -78,13 +154,28 @@ public class DistributedLockerForWriteRead {
   public String toString() {
     StringBuilder stringBuilder = new StringBuilder();
     stringBuilder.append(DistributedLockerForWriteRead.class.getSimpleName()).append("[").append(locks.size())
-        .append("]={");
-    for (DeepArray lock : locks.keySet()) {
-      stringBuilder.append(lock).insert(stringBuilder.length() - 1, ", " + locks.get(lock)).append(",");
+        .append(", name=").append(name).append(", lock=").append(lockNumber).append(", contended=").append(
+            contendedNumber).append(", waitTime=").append(waitTime).append("ms]={");
+    for (Map.Entry<Object, LockRecord> entry : locks.entrySet()) {
+      stringBuilder.append(entry.getKey()).append("=").append(entry.getValue().lock).append(",");
     }
     int indexOfLastChar = stringBuilder.length() - 1;
     if (stringBuilder.charAt(indexOfLastChar) == ',') stringBuilder.deleteCharAt(indexOfLastChar);
     stringBuilder.append("}");
     return stringBuilder.toString();
   }
+
+  static class LockRecord {
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // holders and waiters of the lock, starts with the creator
+    final AtomicInteger references = new AtomicInteger(1);
+
+    boolean ref() {
+      while (true) {
+        int current = references.get();
+        if (current <= 0) return false;
+        if (references.compareAndSet(current, current + 1)) return true;
+      }
+    }
+  }
 }
@@ -25,11 +25,15 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.log4j.Level;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException.NoNodeException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
@@ -51,6 +55,15 @@ public class DistributedManager {
   String name = null;
   Configuration conf = null;
   ZookeeperClientRetry zookeeperClientRetry;
+  // increased on every change of servers notified by zookeeper, waiters are notified on it
+  final AtomicLong serversVersion = new AtomicLong(0);
+  final AtomicReference<CachedServerStatuses> cachedServerStatuses = new AtomicReference<CachedServerStatuses>();
+  final Watcher serversWatcher = new Watcher() {
+    public void process(WatchedEvent event) {
+      log(Level.DEBUG, " servers changed, event=", event);
+      serversChanged();
+    }
+  };
 
   public DistributedManager(Configuration conf) throws IOException {
     this.conf = (conf == null) ? new Configuration(false) : conf;
@@ -134,6 +147,17 @@ public class DistributedManager {
     return conf.getInt("distributed.manager.retry.delay.time", 1000);
   }
 
+  public boolean isCacheEnabled() {
+    return conf.getBoolean("distributed.manager.cache.enable", true);
+  }
+
+  /**
+   * watches are lost when the zookeeper client is re-created, cached servers are read again after this time
+   */
+  public long getCacheExpireTime() {
+    return conf.getLong("distributed.manager.cache.expire.time", 10000);
+  }
+
   synchronized void createNodeIfNotExist(String path) throws IOException {
     // create parent node
     String parentPath = new File(path).getParent();
@@ -187,29 +211,74 @@ public class DistributedManager {
     }
   }
 
+  /**
+   * @return a copy of the cached server statuses, which are read from zookeeper again only after zookeeper notifies a
+   *         change or the cache is expired
+   */
   ServerStatuses getServerStatuses() {
+    if (!isCacheEnabled()) return readServerStatuses(null);
+    CachedServerStatuses cached = cachedServerStatuses.get();
+    if (cached != null && cached.version == serversVersion.get()
+        && System.currentTimeMillis() - cached.time < getCacheExpireTime()) return cached.serverStatuses.copy();
+
+    // read version before reading servers, a change during the reading makes the new cache invalid at once
+    long version = serversVersion.get();
+    long time = System.currentTimeMillis();
+    ServerStatuses serverStatuses = readServerStatuses(serversWatcher);
+    if (serverStatuses.complete) {
+      CachedServerStatuses newCached = new CachedServerStatuses(version, time, serverStatuses);
+      // keep the other one if another thread has swapped in a cache of a newer version
+      while (true) {
+        CachedServerStatuses oldCached = cachedServerStatuses.get();
+        if (oldCached != null && oldCached.version > version) break;
+        if (cachedServerStatuses.compareAndSet(oldCached, newCached)) break;
+      }
+    }
+    return serverStatuses.copy();
+  }
+
+  /**
+   * @param watcher
+   *          watcher to set on the servers path and all server paths, or null for no watch
+   * @return servers, which is not complete if fail to get some servers
+   */
+  ServerStatuses readServerStatuses(Watcher watcher) {
     ServerStatuses serverStatuses = new ServerStatuses();
     try {
       createNodeIfNotExist(getPath());
       // get all server statues
-      for (String serverNameTemp : zookeeperClientRetry.getChildren(getPath())) {
-        ServerStatus serverStatus = getServerStatus(serverNameTemp);
-        if (serverStatus == null) continue;
+      List<String> serverNames =
+          watcher == null ? zookeeperClientRetry.getChildren(getPath()) : zookeeperClientRetry.getChildren(getPath(),
+              watcher);
+      for (String serverNameTemp : serverNames) {
+        ServerStatus serverStatus = getServerStatus(serverNameTemp, watcher);
+        if (serverStatus == null) {
+          serverStatuses.complete = false;
+          continue;
+        }
         serverStatuses.add(serverStatus);
         log(Level.DEBUG, " find a server : ", serverStatus);
       }
     } catch (Throwable t) {
       log(Level.ERROR, " fail to get servers", t);
+      serverStatuses.complete = false;
     }
     return serverStatuses;
   }
 
   ServerStatus getServerStatus(String serverName) {
+    return getServerStatus(serverName, null);
+  }
+
+  ServerStatus getServerStatus(String serverName, Watcher watcher) {
     // get stat and data string
     Stat stat = new Stat();
     String dataString = null;
     try {
-      dataString = new String(zookeeperClientRetry.getData(getPath() + "/" + serverName, stat));
+      String serverPath = getPath() + "/" + serverName;
+      dataString =
+          new String(watcher == null ? zookeeperClientRetry.getData(serverPath, stat) : zookeeperClientRetry.getData(
+              serverPath, watcher, stat));
     } catch (Throwable t) {
       log(Level.WARN, " fail to get data string for server name=", serverName, t);
       return null;
@@ -238,6 +307,8 @@ public class DistributedManager {
         } else {
           zookeeperClientRetry.setData(serverPath, serverData.getBytes());
         }
+        // do not wait for the watch, the caller may read servers at once
+        serversChanged();
         return;
       } catch (Throwable t) {
         // this node is deleted by other client
@@ -256,13 +327,52 @@ public class DistributedManager {
       if (serverStat != null) {
         zookeeperClientRetry.delete(serverPath);
       }
+      serversChanged();
     } catch (Throwable t) {
       throw new IOException(t);
     }
   }
 
+  void serversChanged() {
+    synchronized (serversVersion) {
+      serversVersion.incrementAndGet();
+      serversVersion.notifyAll();
+    }
+  }
+
+  /**
+   * @return the version of servers, which is changed when zookeeper notifies a change of servers
+   */
+  public long getServersVersion() {
+    return serversVersion.get();
+  }
+
+  /**
+   * wait until the version of servers is not the specified one or timeout
+   * 
+   * @return true if servers are changed
+   */
+  public boolean waitServersChanged(long version, long timeout) {
+    long deadline = System.currentTimeMillis() + timeout;
+    synchronized (serversVersion) {
+      while (serversVersion.get() == version) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) return false;
+        try {
+          serversVersion.wait(remaining);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return serversVersion.get() != version;
+        }
+      }
+      return true;
+    }
+  }
+
   synchronized public void close() {
     zookeeperClientRetry.closeZookeeperClient();
+    cachedServerStatuses.set(null);
+    serversChanged();
   }
 
   Invocation invocationToGetStatusForLog = null;
@@ -282,13 +392,40 @@ public class DistributedManager {
     Utilities.log(logger, level, invocationToGetStatusForLog, objects);
   }
 
+  static class CachedServerStatuses {
+    final long version;
+    final long time;
+    final ServerStatuses serverStatuses;
+
+    CachedServerStatuses(long version, long time, ServerStatuses serverStatuses) {
+      this.version = version;
+      this.time = time;
+      this.serverStatuses = serverStatuses;
+    }
+  }
+
   static public class ServerStatuses {
     private Map<String, ServerStatus> serverStatuses = new ConcurrentHashMap<String, ServerStatus>();
+    // false if some servers fail to be read
+    boolean complete = true;
 
     public void add(ServerStatus serverStatus) {
       serverStatuses.put(serverStatus.name, serverStatus);
     }
 
+    /**
+     * @return a copy whose server statuses can be changed without affecting this one
+     */
+    public ServerStatuses copy() {
+      ServerStatuses copy = new ServerStatuses();
+      for (ServerStatus serverStatus : serverStatuses.values()) {
+        copy.add(new ServerStatus(serverStatus.name, serverStatus.version, serverStatus.type, serverStatus.setterName,
+            serverStatus.createTime, serverStatus.createSerialNumber, serverStatus.modifyTime));
+      }
+      copy.complete = complete;
+      return copy;
+    }
+
     public ServerStatus electMaster(DistributedManager manager) {
       // try to elect a new master
       List<ServerStatus> serverStatusListForMasterElection =
@@ -0,0 +1,177 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.distributed.rpc;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Call queue with several priority levels, level 0 is the highest. A call gets the level configured for its method by
+ * ipc.server.callqueue.method.levels, e.g. "sendHeartbeat=0,renewLease=0,getListing=2". Otherwise the level depends
+ * on the share of its client in calls of current decay period, a client with a share not less than 1/2^n gets level
+ * (number-n) at least, so a flooding client sinks to the lowest level. Takers serve levels by weighted round robin with
+ * weight 2^(number-1-level), every level makes progress. With one level it is a plain bounded FIFO queue.
+ *
+ * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
+ */
+class CallQueue<E> {
+  final ArrayDeque<E>[] queues;
+  final int capacityPerQueue;
+  final int[] weights;
+  final Map<String, Integer> methodLevels = new HashMap<String, Integer>();
+  final long decayPeriod;
+  final ReentrantLock lock = new ReentrantLock();
+  final Condition notEmpty = lock.newCondition();
+  final Condition[] notFull;
+  int size = 0;
+  int currentLevel = 0;
+  int currentWeight = 0;
+
+  // calls of every client in current decay period
+  final ConcurrentMap<String, AtomicInteger> clientCallNumbers = new ConcurrentHashMap<String, AtomicInteger>();
+  final AtomicInteger totalCallNumber = new AtomicInteger(0);
+  final AtomicLong decayTime = new AtomicLong(System.currentTimeMillis());
+
+  @SuppressWarnings("unchecked")
+  CallQueue(Configuration conf, int capacity) {
+    int number = Math.max(1, conf.getInt("ipc.server.callqueue.number", 1));
+    this.queues = new ArrayDeque[number];
+    this.notFull = new Condition[number];
+    this.weights = new int[number];
+    this.capacityPerQueue = Math.max(1, capacity / number);
+    for (int level = 0; level < number; ++level) {
+      queues[level] = new ArrayDeque<E>();
+      notFull[level] = lock.newCondition();
+      weights[level] = 1 << Math.min(number - 1 - level, 16);
+    }
+    this.decayPeriod = conf.getLong("ipc.server.callqueue.decay.period", 5000);
+    for (String methodLevel : conf.getStrings("ipc.server.callqueue.method.levels", new String[0])) {
+      String[] items = methodLevel.trim().split("=");
+      if (items.length != 2) continue;
+      int level = Integer.parseInt(items[1].trim());
+      methodLevels.put(items[0].trim(), Math.min(Math.max(level, 0), number - 1));
+    }
+  }
+
+  int getQueueNumber() {
+    return queues.length;
+  }
+
+  /**
+   * @return priority level for a call of the method from the client
+   */
+  int getLevel(String methodName, String client) {
+    if (queues.length == 1) return 0;
+    Integer methodLevel = methodName == null ? null : methodLevels.get(methodName);
+    if (methodLevel != null) return methodLevel;
+    if (client == null) return queues.length - 1;
+
+    long now = System.currentTimeMillis();
+    long lastDecayTime = decayTime.get();
+    if (now - lastDecayTime >= decayPeriod && decayTime.compareAndSet(lastDecayTime, now)) {
+      // halve history so that a client which stops flooding recovers in a few periods
+      for (Map.Entry<String, AtomicInteger> entry : clientCallNumbers.entrySet()) {
+        int callNumber = entry.getValue().get() / 2;
+        if (callNumber == 0) clientCallNumbers.remove(entry.getKey(), entry.getValue());
+        else entry.getValue().set(callNumber);
+      }
+      totalCallNumber.set(totalCallNumber.get() / 2);
+    }
+    AtomicInteger callNumber = clientCallNumbers.get(client);
+    if (callNumber == null) {
+      AtomicInteger newCallNumber = new AtomicInteger(0);
+      callNumber = clientCallNumbers.putIfAbsent(client, newCallNumber);
+      if (callNumber == null) callNumber = newCallNumber;
+    }
+    int clientTotal = callNumber.incrementAndGet();
+    int total = Math.max(totalCallNumber.incrementAndGet(), clientTotal);
+    // share >= 1/2 gets the lowest level, share >= 1/4 gets the one above, and so on
+    for (int level = queues.length - 1; level > 0; --level) {
+      if ((long) clientTotal << (queues.length - level) >= total) return level;
+    }
+    return 0;
+  }
+
+  void put(E e, int level) throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (queues[level].size() >= capacityPerQueue) {
+        notFull[level].await();
+      }
+      queues[level].addLast(e);
+      ++size;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * take a call by weighted round robin over levels, waiting if all levels are empty
+   */
+  E take() throws InterruptedException {
+    lock.lockInterruptibly();
+    try {
+      while (size == 0) {
+        notEmpty.await();
+      }
+      while (true) {
+        if (currentWeight >= weights[currentLevel] || queues[currentLevel].isEmpty()) {
+          currentLevel = (currentLevel + 1) % queues.length;
+          currentWeight = 0;
+          continue;
+        }
+        ++currentWeight;
+        E e = queues[currentLevel].pollFirst();
+        --size;
+        notFull[currentLevel].signal();
+        return e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size() {
+    lock.lock();
+    try {
+      return size;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  int size(int level) {
+    lock.lock();
+    try {
+      return queues[level].size();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
@@ -793,6 +793,11 @@ public class RPC {
       this.verbose = verbose;
     }
 
+    @Override
+    protected String getMethodName(Writable param) {
+      return param instanceof Invocation ? ((Invocation) param).getMethodName() : null;
+    }
+
     @Override
     public Writable call(Writable param, long receivedTime) throws IOException {
       try {
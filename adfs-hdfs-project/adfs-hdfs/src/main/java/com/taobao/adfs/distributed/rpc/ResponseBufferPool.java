@@ -0,0 +1,123 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.distributed.rpc;
+
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers which responses are serialized into. A response is written to socket from the same buffer
+ * without copying, and the buffer goes back to pool after the response is sent. A response larger than one buffer
+ * moves to a heap buffer which is not pooled. At most capacity direct buffers are allocated, so a burst of responses
+ * to slow clients gets heap buffers instead of growing the direct memory which is only freed by a full gc.
+ *
+ * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
+ */
+class ResponseBufferPool {
+  final int bufferSize;
+  final int capacity;
+  final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+  final AtomicInteger pooledNumber = new AtomicInteger(0);
+  final AtomicInteger allocatedNumber = new AtomicInteger(0);
+
+  ResponseBufferPool(int bufferSize, int capacity) {
+    this.bufferSize = bufferSize;
+    this.capacity = capacity;
+  }
+
+  ByteBuffer get() {
+    ByteBuffer buffer = buffers.poll();
+    if (buffer == null) {
+      if (allocatedNumber.incrementAndGet() <= capacity) return ByteBuffer.allocateDirect(bufferSize);
+      allocatedNumber.decrementAndGet();
+      return ByteBuffer.allocate(bufferSize);
+    }
+    pooledNumber.decrementAndGet();
+    buffer.clear();
+    return buffer;
+  }
+
+  void release(ByteBuffer buffer) {
+    if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferSize) return;
+    // every direct buffer is allocated by this pool, so the pool never holds more than capacity buffers
+    pooledNumber.incrementAndGet();
+    buffers.offer(buffer);
+  }
+
+  int size() {
+    return pooledNumber.get();
+  }
+
+  /**
+   * @return number of direct buffers allocated, in pool or in use
+   */
+  int getAllocatedNumber() {
+    return allocatedNumber.get();
+  }
+
+  /**
+   * Output stream writing into a buffer of the pool, {@link #getBuffer()} returns the written data ready to be sent.
+   */
+  static class BufferOutputStream extends OutputStream {
+    final ResponseBufferPool pool;
+    ByteBuffer buffer;
+
+    BufferOutputStream(ResponseBufferPool pool) {
+      this.pool = pool;
+      this.buffer = pool.get();
+    }
+
+    @Override
+    public void write(int b) {
+      ensureRemaining(1);
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      ensureRemaining(len);
+      buffer.put(b, off, len);
+    }
+
+    int size() {
+      return buffer.position();
+    }
+
+    void putInt(int index, int value) {
+      buffer.putInt(index, value);
+    }
+
+    ByteBuffer getBuffer() {
+      buffer.flip();
+      return buffer;
+    }
+
+    private void ensureRemaining(int length) {
+      if (buffer.remaining() >= length) return;
+      int newCapacity = Math.max(buffer.capacity() * 2, buffer.position() + length);
+      ByteBuffer newBuffer = ByteBuffer.allocate(newCapacity);
+      buffer.flip();
+      newBuffer.put(buffer);
+      pool.release(buffer);
+      buffer = newBuffer;
+    }
+  }
+}
@@ -22,7 +22,6 @@ import java.io.IOException;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
@@ -48,10 +47,8 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Iterator;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -61,6 +58,8 @@ import org.apache.hadoop.io.WritableUtils;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.util.StringUtils;
 
+import com.taobao.adfs.distributed.metrics.DistributedMetrics;
+
 /**
  * An abstract IPC service. IPC calls take a single {@link Writable} as a parameter, and return a {@link Writable} as
  * their value. A service runs on a port and is defined by a parameter class and a value class.
@@ -139,7 +138,10 @@ public abstract class Server {
   private final boolean tcpNoDelay; // if T then disable Nagle's Algorithm
 
   volatile private boolean running = true; // true while server runs
-  private BlockingQueue<Call> callQueue; // queued calls
+  private CallQueue<Call> callQueue; // queued calls
+  private String[] queueTimeMetricsNames; // queue time metrics of every call queue
+  private String[] processingTimeMetricsNames; // processing time metrics of every call queue
+  private ResponseBufferPool responseBufferPool; // direct buffers for responses
   private int numConnections = 0;
   protected long rpcQueueTime = 0;
   protected long rpcProcessingTime = 0;
@@ -196,6 +198,7 @@ public abstract class Server {
     private long timestamp; // the time received when response is null
     // the time served when response is not null
     private ByteBuffer response; // the response for this call
+    private int level; // level of call queue
 
     public Call(Configuration conf, Class<? extends Writable> paramClass, ByteBuffer byteBuffer, Connection connection) {
       this.conf = conf;
@@ -654,6 +657,9 @@ public abstract class Server {
         while (iter.hasNext()) {
           call = iter.next();
           if (now > call.timestamp + PURGE_INTERVAL) {
+            // the stale call and the ones queued behind it are never sent
+            responseBufferPool.release(call.response);
+            call.response = null;
             closeConnection(call.connection);
             break;
           }
@@ -691,8 +697,15 @@ public abstract class Server {
           // Send as much data as we can in the non-blocking fashion
           //
           int numBytes = channelWrite(channel, call.response);
-          if (numBytes < 0) { return true; }
+          if (numBytes < 0) {
+            // the call is out of the queue, so closeConnection will not see it
+            responseBufferPool.release(call.response);
+            call.response = null;
+            return true;
+          }
           if (!call.response.hasRemaining()) {
+            responseBufferPool.release(call.response);
+            call.response = null;
             call.connection.decRpcCount();
             if (numElements == 1) { // last call fully processes.
               done = true; // no more data for this channel.
@@ -739,6 +752,8 @@ public abstract class Server {
           LOG.warn(getName() + ", call " + call + ": output error");
           done = true; // error. no more data for this channel.
           closeConnection(call.connection);
+          responseBufferPool.release(call.response);
+          call.response = null;
         }
       }
       return done;
@@ -927,7 +942,9 @@ public abstract class Server {
      */
     private void processData() throws IOException, InterruptedException {
       Call call = new Call(conf, paramClass, data, this);
-      callQueue.put(call); // queue the call; maybe blocked here
+      call.processData(); // deserialize here, so handlers only run calls
+      call.level = callQueue.getLevel(getMethodName(call.param), hostAddress);
+      callQueue.put(call, call.level); // queue the call; maybe blocked here
     }
 
     private synchronized void close() throws IOException {
@@ -962,11 +979,11 @@ public abstract class Server {
     public void run() {
       LOG.info(getName() + ": starting");
       SERVER.set(Server.this);
-      ByteArrayOutputStream buf = new ByteArrayOutputStream(10240);
       while (running) {
         try {
           Call call = callQueue.take(); // pop the queue; maybe blocked here
-          call.processData();
+          long startTime = System.currentTimeMillis();
+          DistributedMetrics.timeVaryingRateInc(queueTimeMetricsNames[call.level], startTime - call.timestamp);
 
           if (LOG.isDebugEnabled()) LOG.debug(getName() + ": has #" + call.id + " from " + call.connection);
 
@@ -985,8 +1002,10 @@ public abstract class Server {
             error = StringUtils.stringifyException(e);
           }
           CurCall.set(null);
+          DistributedMetrics.timeVaryingRateInc(processingTimeMetricsNames[call.level], System.currentTimeMillis()
+              - startTime);
 
-          buf.reset();
+          ResponseBufferPool.BufferOutputStream buf = new ResponseBufferPool.BufferOutputStream(responseBufferPool);
           DataOutputStream out = new DataOutputStream(buf);
           out.writeInt(call.id); // write call id
 
@@ -1004,13 +1023,9 @@ public abstract class Server {
           }
 
           // write result length with real length
-          int resultLength = buf.size() - resultOffset;
-          byte[] responseBytes = buf.toByteArray();
-          responseBytes[resultOffset - 4] = (byte) ((resultLength) >>> 24 & 0xFF);
-          responseBytes[resultOffset - 3] = (byte) ((resultLength) >>> 16 & 0xFF);
-          responseBytes[resultOffset - 2] = (byte) ((resultLength) >>> 8 & 0xFF);
-          responseBytes[resultOffset - 1] = (byte) ((resultLength) >>> 0 & 0xFF);
-          call.setResponse(ByteBuffer.wrap(responseBytes));
+          out.flush();
+          buf.putInt(resultOffset - 4, buf.size() - resultOffset);
+          call.setResponse(buf.getBuffer());
           responder.doRespond(call);
         } catch (InterruptedException e) {
           if (running) { // unexpected -- log it
@@ -1044,7 +1059,16 @@ public abstract class Server {
     this.handlerCount = handlerCount;
     this.socketSendBufferSize = 0;
     this.maxQueueSize = handlerCount * MAX_QUEUE_SIZE_PER_HANDLER;
-    this.callQueue = new LinkedBlockingQueue<Call>(maxQueueSize);
+    this.callQueue = new CallQueue<Call>(conf, maxQueueSize);
+    this.queueTimeMetricsNames = new String[callQueue.getQueueNumber()];
+    this.processingTimeMetricsNames = new String[callQueue.getQueueNumber()];
+    for (int i = 0; i < callQueue.getQueueNumber(); ++i) {
+      queueTimeMetricsNames[i] = "rpc.callQueue" + i + ".queueTime";
+      processingTimeMetricsNames[i] = "rpc.callQueue" + i + ".processingTime";
+    }
+    this.responseBufferPool =
+        new ResponseBufferPool(conf.getInt("ipc.server.response.buffer.size", 10240), conf.getInt(
+            "ipc.server.response.buffer.pool.size", handlerCount * 2));
     this.readThreads = conf.getInt("ipc.server.read.threadpool.size", 40);
     this.maxIdleTime = 2 * conf.getInt("ipc.client.connection.maxidletime", 1000);
     this.maxConnectionsToNuke = conf.getInt("ipc.client.kill.max", 10);
@@ -1063,6 +1087,14 @@ public abstract class Server {
     synchronized (connectionList) {
       if (connectionList.remove(connection)) numConnections--;
     }
+    // the responses left will never be sent, give their buffers back
+    synchronized (connection.responseQueue) {
+      for (Call call : connection.responseQueue) {
+        responseBufferPool.release(call.response);
+        call.response = null;
+      }
+      connection.responseQueue.clear();
+    }
     try {
       connection.close();
     } catch (IOException e) {
@@ -1124,6 +1156,13 @@ public abstract class Server {
   /** Called for each call. */
   public abstract Writable call(Writable param, long receiveTime) throws IOException;
 
+  /**
+   * Name of the method called by param, used to choose level of call queue, null if unknown.
+   */
+  protected String getMethodName(Writable param) {
+    return null;
+  }
+
   /**
    * The number of open RPC conections
    * 
@@ -1142,6 +1181,13 @@ public abstract class Server {
     return callQueue.size();
   }
 
+  /**
+   * The number of rpc calls in the queue of the level.
+   */
+  public int getCallQueueLen(int level) {
+    return callQueue.size(level);
+  }
+
   public long getCallQueueTime() {
     return rpcQueueTime;
   }
@@ -1175,7 +1221,9 @@ public abstract class Server {
    */
   private static int channelWrite(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
 
-    return (buffer.remaining() <= NIO_BUFFER_LIMIT) ? channel.write(buffer) : channelIO(null, channel, buffer);
+    // a direct buffer is written as a whole since jdk does not copy it into a temporary direct buffer
+    return (buffer.isDirect() || buffer.remaining() <= NIO_BUFFER_LIMIT) ? channel.write(buffer) : channelIO(null,
+        channel, buffer);
   }
 
   /**
@@ -77,6 +77,14 @@ public class FileRepository extends DistributedDataRepositoryBaseOnTable {
     return files;
   }
 
+  /**
+   * find at most limit files whose id is not less than fromId, in order of id, deleted files are kept so that callers
+   * can page on from the id of the last one
+   */
+  public List<File> findByIdFrom(long fromId, int limit) throws IOException {
+    return find("PRIMARY", new Object[] { fromId }, Comparator.GE, limit);
+  }
+
   public List<File> findByLeaseHolder(String leaseHolder) throws IOException {
     List<File> files = find("LEASE_HOLDER", new Object[] { leaseHolder }, Comparator.EQ, Integer.MAX_VALUE);
     removeDeletedRows(files);
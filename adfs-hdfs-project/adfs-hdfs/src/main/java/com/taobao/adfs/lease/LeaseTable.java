@@ -0,0 +1,270 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.lease;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.conf.Configuration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.taobao.adfs.util.TimerWheel;
+import com.taobao.adfs.util.Utilities;
+
+/**
+ * In-memory lease table of master namenode. Renewals only touch memory and are written to {@link LeaseRepository}
+ * by {@link #flush()} in batches, the first lease of a holder is written at once by {@link #insert(String)}.
+ * Expiration is driven by a {@link TimerWheel} on hard limit. A lease loaded after failover may be older than its
+ * last renewal, so it gets a grace period before it can expire.
+ *
+ * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
+ */
+public class LeaseTable {
+  public static final Logger logger = LoggerFactory.getLogger(LeaseTable.class);
+
+  final LeaseRepository leaseRepository;
+  final Map<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+  final ConcurrentMap<String, Lease> dirtyLeases = new ConcurrentHashMap<String, Lease>();
+  final TimerWheel<String> timerWheel;
+  final long flushInterval;
+  final int flushBatchSize;
+  final int expireBatchSize;
+  final long expireRetryInterval;
+  final long gracePeriod;
+  volatile long softLimit;
+  volatile long hardLimit;
+  volatile long lastFlushTime = System.currentTimeMillis();
+  volatile boolean loaded = false;
+
+  // metrics
+  final AtomicLong renewNumber = new AtomicLong(0);
+  final AtomicLong persistNumber = new AtomicLong(0);
+  final AtomicLong expireNumber = new AtomicLong(0);
+
+  public LeaseTable(Configuration conf, LeaseRepository leaseRepository, long softLimit, long hardLimit) {
+    this.leaseRepository = leaseRepository;
+    this.softLimit = softLimit;
+    this.hardLimit = hardLimit;
+    this.flushInterval = conf.getLong("lease.table.flush.interval", 10000L);
+    this.flushBatchSize = conf.getInt("lease.table.flush.batch.size", 1000);
+    this.expireBatchSize = conf.getInt("lease.table.expire.batch.size", 1000);
+    this.expireRetryInterval = conf.getLong("lease.table.expire.retry.interval", 2000L);
+    this.gracePeriod = conf.getLong("lease.table.failover.grace.period", softLimit);
+    this.timerWheel =
+        new TimerWheel<String>(conf.getLong("lease.table.timer.wheel.tick", 100L), 6, 3, System.currentTimeMillis());
+  }
+
+  /**
+   * load persisted leases after becoming master, renewals received before loading are kept
+   */
+  synchronized public void load() throws IOException {
+    if (loaded) return;
+    long now = System.currentTimeMillis();
+    long minTime = now + gracePeriod - softLimit;
+    int loadedNumber = 0;
+    for (Lease persistedLease : leaseRepository.findByTimeLessThan(Long.MAX_VALUE)) {
+      if (persistedLease == null || persistedLease.holder == null) continue;
+      Lease lease = leases.get(persistedLease.holder);
+      if (lease != null && lease.time >= persistedLease.time) continue;
+      long time = Math.max(persistedLease.time, minTime);
+      putInMemory(new Lease(persistedLease.holder, time, persistedLease.version));
+      ++loadedNumber;
+    }
+    loaded = true;
+    Utilities.logInfo(logger, "load ", loadedNumber, " leases with grace period ", gracePeriod, "ms");
+  }
+
+  synchronized public void clear() {
+    leases.clear();
+    dirtyLeases.clear();
+    timerWheel.clear();
+    loaded = false;
+  }
+
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  synchronized public void setLeasePeriod(long softLimit, long hardLimit) {
+    this.softLimit = softLimit;
+    this.hardLimit = hardLimit;
+    for (Lease lease : leases.values()) {
+      timerWheel.schedule(lease.holder, lease.time + hardLimit);
+    }
+  }
+
+  public Lease renew(String holder) {
+    if (holder == null) return null;
+    Lease lease = new Lease(holder, System.currentTimeMillis());
+    putInMemory(lease);
+    dirtyLeases.put(holder, lease);
+    renewNumber.incrementAndGet();
+    return lease;
+  }
+
+  /**
+   * renew lease of holder, the first lease of a holder is written to repository at once, so a master taking over
+   * before next flush still finds it
+   */
+  public Lease insert(String holder) throws IOException {
+    if (holder == null) return null;
+    if (!loaded) load();
+    if (leases.containsKey(holder)) return renew(holder);
+    Lease lease = renew(holder);
+    leaseRepository.insert(new Lease(holder, lease.time), true);
+    dirtyLeases.remove(holder, lease);
+    persistNumber.incrementAndGet();
+    // same as flush(), a lease deleted while writing has its written row removed again
+    if (!leases.containsKey(holder)) leaseRepository.delete(new Lease(holder, 0));
+    return lease;
+  }
+
+  /**
+   * loads persisted leases first if not loaded yet, so a lease is not missed before lease monitor loads them
+   */
+  public Lease find(String holder) throws IOException {
+    if (holder == null) return null;
+    if (!loaded) load();
+    return leases.get(holder);
+  }
+
+  public List<Lease> findByTimeLessThan(long time) throws IOException {
+    if (!loaded) load();
+    List<Lease> leaseList = new ArrayList<Lease>();
+    for (Lease lease : leases.values()) {
+      if (lease.time < time) leaseList.add(lease);
+    }
+    return leaseList;
+  }
+
+  /**
+   * remove lease from memory and repository
+   */
+  public Lease delete(String holder) throws IOException {
+    if (holder == null) return null;
+    Lease lease;
+    synchronized (this) {
+      lease = leases.remove(holder);
+      dirtyLeases.remove(holder);
+      timerWheel.cancel(holder);
+    }
+    leaseRepository.delete(new Lease(holder, 0));
+    return lease;
+  }
+
+  /**
+   * @return at most expire.batch.size leases which exceed the hard limit
+   */
+  public List<Lease> pollExpired() {
+    long now = System.currentTimeMillis();
+    List<Lease> expiredLeases = new ArrayList<Lease>();
+    synchronized (this) {
+      for (String holder : timerWheel.advance(now, expireBatchSize)) {
+        Lease lease = leases.get(holder);
+        if (lease == null) continue;
+        if (now - lease.time <= hardLimit) timerWheel.schedule(holder, lease.time + hardLimit);
+        else expiredLeases.add(lease);
+      }
+    }
+    expireNumber.addAndGet(expiredLeases.size());
+    return expiredLeases;
+  }
+
+  /**
+   * schedule expired leases whose release failed, they are polled again after expire.retry.interval. A lease
+   * renewed or deleted since it was polled is left alone.
+   */
+  synchronized public void retryExpired(List<Lease> expiredLeases) {
+    long deadline = System.currentTimeMillis() + expireRetryInterval;
+    for (Lease lease : expiredLeases) {
+      if (leases.get(lease.holder) == lease) timerWheel.schedule(lease.holder, deadline);
+    }
+  }
+
+  public boolean needFlush() {
+    return !dirtyLeases.isEmpty() && System.currentTimeMillis() - lastFlushTime >= flushInterval;
+  }
+
+  /**
+   * write renewed leases to repository, at most flush.batch.size leases each round
+   */
+  public int flush() throws IOException {
+    int flushedNumber = 0;
+    while (!dirtyLeases.isEmpty()) {
+      List<Lease> batch = new ArrayList<Lease>(Math.min(dirtyLeases.size(), flushBatchSize));
+      for (Lease lease : dirtyLeases.values()) {
+        if (batch.size() >= flushBatchSize) break;
+        batch.add(lease);
+      }
+      for (Lease lease : batch) {
+        // a renewal during writing keeps the lease dirty for next flush
+        if (!dirtyLeases.remove(lease.holder, lease)) continue;
+        if (!leases.containsKey(lease.holder)) continue;
+        try {
+          leaseRepository.insert(new Lease(lease.holder, lease.time), true);
+          ++flushedNumber;
+        } catch (IOException e) {
+          dirtyLeases.putIfAbsent(lease.holder, lease);
+          throw e;
+        }
+        // delete() removes the lease from memory before its row, so a lease deleted while writing is
+        // seen here and its written row is removed again
+        if (!leases.containsKey(lease.holder)) leaseRepository.delete(new Lease(lease.holder, 0));
+      }
+    }
+    lastFlushTime = System.currentTimeMillis();
+    persistNumber.addAndGet(flushedNumber);
+    return flushedNumber;
+  }
+
+  public int size() {
+    return leases.size();
+  }
+
+  public long getRenewNumber() {
+    return renewNumber.get();
+  }
+
+  public long getPersistNumber() {
+    return persistNumber.get();
+  }
+
+  public long getExpireNumber() {
+    return expireNumber.get();
+  }
+
+  private void putInMemory(Lease lease) {
+    synchronized (this) {
+      leases.put(lease.holder, lease);
+      timerWheel.schedule(lease.holder, lease.time + hardLimit);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LeaseTable[size=" + leases.size() + ", dirty=" + dirtyLeases.size() + ", renew=" + renewNumber
+        + ", persist=" + persistNumber + ", expire=" + expireNumber + "]";
+  }
+}
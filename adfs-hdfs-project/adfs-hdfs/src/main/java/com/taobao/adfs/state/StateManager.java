@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo.AdminStates;
@@ -49,6 +50,7 @@ import com.taobao.adfs.file.File;
 import com.taobao.adfs.file.FileRepository;
 import com.taobao.adfs.lease.Lease;
 import com.taobao.adfs.lease.LeaseRepository;
+import com.taobao.adfs.lease.LeaseTable;
 import com.taobao.adfs.util.IpAddress;
 import com.taobao.adfs.util.Utilities;
 
@@ -62,12 +64,14 @@ public class StateManager {
   BlockRepository blockRepository = null;
   DatanodeRepository datanodeRepository = null;
   LeaseRepository leaseRepository = null;
+  LeaseTable leaseTable = null;
   private static long softLimit = FSConstants.LEASE_SOFTLIMIT_PERIOD;
   private static long hardLimit = FSConstants.LEASE_HARDLIMIT_PERIOD;
 
   public void setLeasePeriod(long softLimit, long hardLimit) {
     StateManager.softLimit = softLimit;
     StateManager.hardLimit = hardLimit;
+    leaseTable.setLeasePeriod(softLimit, hardLimit);
   }
 
   /**
@@ -75,10 +79,16 @@ public class StateManager {
    */
   public StateManager(FileRepository fileRepository, BlockRepository blockRepository,
       DatanodeRepository datanodeRepository, LeaseRepository leaseRepository) {
+    this(new Configuration(false), fileRepository, blockRepository, datanodeRepository, leaseRepository);
+  }
+
+  public StateManager(Configuration conf, FileRepository fileRepository, BlockRepository blockRepository,
+      DatanodeRepository datanodeRepository, LeaseRepository leaseRepository) {
     this.fileRepository = fileRepository;
     this.blockRepository = blockRepository;
     this.datanodeRepository = datanodeRepository;
     this.leaseRepository = leaseRepository;
+    this.leaseTable = new LeaseTable(conf, leaseRepository, softLimit, hardLimit);
   }
 
   // ///////////////////////////////////////////////////
@@ -101,13 +111,20 @@ public class StateManager {
    * @throws IOException
    */
   public HdfsFileStatus getFileInfo(String path) throws IOException {
+    return adfsFileToHdfsFileStatus(findFileInfoByPath(path));
+  }
+
+  /**
+   * find a file by path, the length of a file without a stored length is summed up from its blocks
+   */
+  public File findFileInfoByPath(String path) throws IOException {
     File file = findFileByPath(path);
     if(file == null ) return null;
     if (file.length <= 0) {
       List<BlockEntry> blockEntryList = this.getBlockEntryListByFileId(file.id);
       file.length = BlockEntry.getTotalLength(blockEntryList);
     }
-    return adfsFileToHdfsFileStatus(file);
+    return file;
   }
 
   /**
@@ -234,8 +251,8 @@ public class StateManager {
     return BlockEntry.getLastBlockEntry(blockEntryList);
   }
 
-  // for DatanodeProtocol
-  public NetworkTopology clusterMap = null;
+  // for DatanodeProtocol, replaced as a whole on reload
+  public volatile NetworkTopology clusterMap = null;
 
   Map<Integer, Map<Integer, DatanodeDescriptor>> addressToDatanodeDescriptor =
       new ConcurrentHashMap<Integer, Map<Integer, DatanodeDescriptor>>();
@@ -344,7 +361,8 @@ public class StateManager {
           long clusterLiveDatanode = 0L;
           addressToDatanodeDescriptor.clear();
           storageIdToDatanodeDescriptor.clear();
-          clusterMap = new NetworkTopology();
+          // build aside so that block placement keeps the old topology until the new one is complete
+          NetworkTopology clusterMap = new NetworkTopology();
           for (Datanode datanode : datanodeRepository.findByIdGreateOrEqual(Long.MIN_VALUE)) {
             Map<Integer, DatanodeDescriptor> portToDatanodeDescriptorMap =
                 addressToDatanodeDescriptor.get(datanode.getIp());
@@ -362,6 +380,7 @@ public class StateManager {
             clusterDfsUsed += datanodeDescriptor.getDfsUsed();
             clusterLiveDatanode += datanodeDescriptor.isAlive ? 1 : 0;
           }
+          this.clusterMap = clusterMap;
           this.clusterLoad = clusterLoad;
           this.clusterCapacity = clusterCapacity;
           this.clusterRemaining = clusterRemaining;
@@ -597,6 +616,30 @@ public class StateManager {
     return newFile;
   }
 
+  /**
+   * update access time only, path of the file is not needed
+   */
+  public File updateFileAtime(File file) throws IOException {
+    if (file == null) throw new IOException("file is null");
+    return fileRepository.update(file, File.ATIME);
+  }
+
+  /**
+   * update access times of the files in one call, a file which fails is skipped and returned
+   */
+  public List<File> updateFileAtimes(List<File> files) throws IOException {
+    List<File> failedFiles = new ArrayList<File>(0);
+    for (File file : files) {
+      try {
+        updateFileAtime(file);
+      } catch (Throwable t) {
+        Utilities.logWarn(logger, "fail to update access time for file id=", file.id, t);
+        failedFiles.add(file);
+      }
+    }
+    return failedFiles;
+  }
+
   public List<File> deleteFileByPath(String path, boolean recursive) throws IOException {
     return deleteFileByFile(findFileByPath(path), recursive);
   }
@@ -640,8 +683,11 @@ public class StateManager {
     return deleteFiles;
   }
 
+  /**
+   * renew lease in memory only, {@link LeaseMonitor} writes it to lease repository later
+   */
   public Lease renewLease(String holder) throws IOException {
-    return holder == null ? null : leaseRepository.insert(new Lease(holder, System.currentTimeMillis()), true);
+    return leaseTable.renew(holder);
   }
 
   public File findFileById(long id) throws IOException {
@@ -658,6 +704,13 @@ public class StateManager {
     }
   }
 
+  /**
+   * find files by range of id without their paths, for scans over the whole file table
+   */
+  public List<File> findFileByIdFrom(long fromId, int limit) throws IOException {
+    return fileRepository.findByIdFrom(fromId, limit);
+  }
+
   public List<File> findFileByLeaseHolder(String leaseHolder) throws IOException {
     return fileRepository.findByLeaseHolder(leaseHolder);
   }
@@ -784,6 +837,29 @@ public class StateManager {
     return blockListOnThisDatandoe;
   }
 
+  public List<Block> findBlockByDatanodeId(long datanodeId, int limit) throws IOException {
+    return blockRepository.findByDatanodeId(datanodeId, limit);
+  }
+
+  public List<Block> findBlockByDatanodeIdFrom(long datanodeId, long fromId, int limit) throws IOException {
+    return blockRepository.findByDatanodeIdFrom(datanodeId, fromId, limit);
+  }
+
+  public Map<Long, BlockEntry> getBlockEntryMapByBlockIds(long[] blockIds) throws IOException {
+    List<BlockEntry> blockEntryList = BlockEntry.getBlockEntryList(blockRepository.findByIds(blockIds));
+    Map<Long, BlockEntry> blockEntryMap = new HashMap<Long, BlockEntry>(blockEntryList.size());
+    for (BlockEntry blockEntry : blockEntryList) {
+      blockEntryMap.put(blockEntry.getBlockId(), blockEntry);
+    }
+    return blockEntryMap;
+  }
+
+  public void removeBlockCacheOfDatanode(long datanodeId) {
+    synchronized (cacheForblockListOnDatandoe) {
+      cacheForblockListOnDatandoe.remove(datanodeId);
+    }
+  }
+
   public List<Block> findBlockAll() throws IOException {
     return blockRepository.findAll();
   }
@@ -807,6 +883,10 @@ public class StateManager {
     return blockRepository.findByFileId(fileId);
   }
 
+  public List<Block> findBlockByFileIdFrom(long fromFileId, int limit) throws IOException {
+    return blockRepository.findByFileIdFrom(fromFileId, limit);
+  }
+
   public List<Block> findBlockByFiles(List<File> fileList) throws IOException {
     if (fileList == null) return null;
     List<Block> blockList = new ArrayList<Block>();
@@ -836,6 +916,10 @@ public class StateManager {
     return deletedBlocks.toArray(new Block[deletedBlocks.size()]);
   }
 
+  public Block deleteBlockByBlock(Block block) throws IOException {
+    return block == null ? null : blockRepository.delete(block);
+  }
+
   public Block deleteBlockByIdAndDatanodeId(long id, long datanodeId) throws IOException {
     Block block = blockRepository.findByIdAndDatanodeId(id, datanodeId);
     return block == null ? null : blockRepository.delete(block);
@@ -843,7 +927,11 @@ public class StateManager {
 
   public static HdfsFileStatus adfsFileToHdfsFileStatus(File file) {
     if (file == null) return null;
-    return new HdfsFileStatus(file.length, file.isDir(), file.replication, file.blockSize, file.mtime, file.atime,
+    return adfsFileToHdfsFileStatus(file, file.atime);
+  }
+
+  public static HdfsFileStatus adfsFileToHdfsFileStatus(File file, long atime) {
+    return new HdfsFileStatus(file.length, file.isDir(), file.replication, file.blockSize, file.mtime, atime,
         null, null, null, file.path.getBytes());
   }
 
@@ -862,27 +950,31 @@ public class StateManager {
         block.generationStamp);
   }
 
+  public LeaseTable getLeaseTable() {
+    return leaseTable;
+  }
+
   public Lease findLeaseByHolder(String holder) throws IOException {
-    return leaseRepository.findByHolder(holder);
+    return leaseTable.find(holder);
   }
 
   public List<Lease> findLeaseByTimeLessThan(long time) throws IOException {
-    return leaseRepository.findByTimeLessThan(time);
+    return leaseTable.findByTimeLessThan(time);
   }
 
   /**
-   * insert or update old lease if exited
+   * insert or update old lease if exited, a new lease is written to lease repository at once
    */
   public Lease insertLeaseByHolder(String holder) throws IOException {
-    return leaseRepository.insert(new Lease(holder, System.currentTimeMillis()), true);
+    return leaseTable.insert(holder);
   }
 
   public Lease deleteLeaseByHolder(String holder) throws IOException {
-    return holder == null ? null : leaseRepository.delete(new Lease(holder, 0));
+    return holder == null ? null : leaseTable.delete(holder);
   }
 
   public Lease deleteLeaseByLease(Lease lease) throws IOException {
-    return lease == null ? null : leaseRepository.delete(lease);
+    return lease == null ? null : leaseTable.delete(lease.holder);
   }
 
   /** @return true if the Soft Limit Timer has expired */
@@ -890,26 +982,48 @@ public class StateManager {
     return System.currentTimeMillis() - leaseTime > softLimit;
   }
 
+  /**
+   * expire leases in batches from lease table and write renewed leases to lease repository periodically
+   */
   static public class LeaseMonitor implements Runnable {
     final String name = getClass().getSimpleName();
 
     public void run() {
+      LeaseTable leaseTable = FSNamesystem.getFSStateManager().getLeaseTable();
       while (FSNamesystem.getFSNamesystem().isRunning()) {
         try {
-          long expiredHardLimitTime = System.currentTimeMillis() - hardLimit;
-          List<Lease> leaseList = FSNamesystem.getFSStateManager().findLeaseByTimeLessThan(expiredHardLimitTime);
+          if (!leaseTable.isLoaded()) leaseTable.load();
+          List<Lease> leaseList = leaseTable.pollExpired();
+          List<Lease> failedLeaseList = new ArrayList<Lease>();
           for (Lease lease : leaseList) {
-            List<File> fileList = FSNamesystem.getFSStateManager().findFileByLeaseHolder(lease.holder);
-            for (File file : fileList) {
-              FSNamesystem.getFSNamesystem().internalReleaseLeaseOne(file, lease.holder);
+            try {
+              List<File> fileList = FSNamesystem.getFSStateManager().findFileByLeaseHolder(lease.holder);
+              for (File file : fileList) {
+                FSNamesystem.getFSNamesystem().internalReleaseLeaseOne(file, lease.holder);
+              }
+              FSNamesystem.getFSStateManager().deleteLeaseByLease(lease);
+            } catch (Throwable t) {
+              // polled leases are out of the timer wheel, put it back to retry
+              FSNamesystem.LOG.warn("fail to release expired lease " + lease, t);
+              failedLeaseList.add(lease);
             }
-            FSNamesystem.getFSStateManager().deleteLeaseByLease(lease);
           }
-          Thread.sleep(2000);
+          if (!failedLeaseList.isEmpty()) leaseTable.retryExpired(failedLeaseList);
+          if (leaseTable.needFlush()) leaseTable.flush();
+          if (leaseList.isEmpty()) Thread.sleep(2000);
+        } catch (InterruptedException e) {
+          break;
         } catch (Throwable t) {
           FSNamesystem.LOG.error(t);
         }
       }
+      try {
+        leaseTable.flush();
+      } catch (Throwable t) {
+        FSNamesystem.LOG.warn("fail to flush " + leaseTable, t);
+      } finally {
+        leaseTable.clear();
+      }
     }
   }
 }
@@ -0,0 +1,171 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hierarchical timer wheel: schedule, reschedule and cancel are O(1), expired elements are collected by
+ * {@link #advance(long, int)} in bounded batches. Each level has 2^bits slots, a slot of level n spans 2^(bits*n)
+ * ticks, deadlines beyond the highest level wait in an overflow set.
+ *
+ * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
+ */
+public class TimerWheel<E> {
+  final long tick;
+  final int bits;
+  final int mask;
+  final List<List<Set<Entry<E>>>> wheels;
+  final Set<Entry<E>> overflow = new LinkedHashSet<Entry<E>>();
+  final Map<E, Entry<E>> entries = new HashMap<E, Entry<E>>();
+  long currentTick = 0;
+
+  public TimerWheel(long tick, int bits, int levels, long startTime) {
+    if (tick <= 0) throw new IllegalArgumentException("tick=" + tick + " must be greater than 0");
+    if (bits <= 0 || levels <= 0 || bits * levels >= 62)
+      throw new IllegalArgumentException("invalid bits=" + bits + " or levels=" + levels);
+    this.tick = tick;
+    this.bits = bits;
+    this.mask = (1 << bits) - 1;
+    this.wheels = new ArrayList<List<Set<Entry<E>>>>(levels);
+    for (int level = 0; level < levels; ++level) {
+      List<Set<Entry<E>>> wheel = new ArrayList<Set<Entry<E>>>(1 << bits);
+      for (int slot = 0; slot <= mask; ++slot) {
+        wheel.add(new LinkedHashSet<Entry<E>>());
+      }
+      wheels.add(wheel);
+    }
+    this.currentTick = startTime / tick;
+  }
+
+  /**
+   * schedule element to expire at deadline, an old deadline of the same element is replaced
+   */
+  synchronized public void schedule(E element, long deadline) {
+    if (element == null) throw new NullPointerException();
+    Entry<E> entry = entries.remove(element);
+    if (entry != null) unlink(entry);
+    entry = new Entry<E>(element, deadline / tick);
+    entries.put(element, entry);
+    link(entry);
+  }
+
+  synchronized public boolean cancel(E element) {
+    Entry<E> entry = entries.remove(element);
+    if (entry == null) return false;
+    unlink(entry);
+    return true;
+  }
+
+  synchronized public boolean contains(E element) {
+    return entries.containsKey(element);
+  }
+
+  synchronized public int size() {
+    return entries.size();
+  }
+
+  synchronized public void clear() {
+    for (Entry<E> entry : entries.values()) {
+      unlink(entry);
+    }
+    entries.clear();
+  }
+
+  /**
+   * move the wheel forward to the given time and return at most limit expired elements, elements not returned
+   * because of the limit are returned by next call
+   */
+  synchronized public List<E> advance(long now, int limit) {
+    List<E> expiredElements = new ArrayList<E>();
+    long targetTick = now / tick;
+    while (currentTick <= targetTick) {
+      Set<Entry<E>> slot = wheels.get(0).get((int) (currentTick & mask));
+      for (Iterator<Entry<E>> it = slot.iterator(); it.hasNext();) {
+        if (expiredElements.size() >= limit) return expiredElements;
+        Entry<E> entry = it.next();
+        if (entry.expireTick > currentTick) continue;
+        it.remove();
+        entries.remove(entry.element);
+        expiredElements.add(entry.element);
+      }
+      ++currentTick;
+      cascade();
+    }
+    return expiredElements;
+  }
+
+  /**
+   * re-distribute entries of higher levels when lower level wraps around
+   */
+  private void cascade() {
+    for (int level = 1; level < wheels.size(); ++level) {
+      if ((currentTick & ((1L << (bits * level)) - 1)) != 0) return;
+      Set<Entry<E>> slot = wheels.get(level).get((int) ((currentTick >>> (bits * level)) & mask));
+      List<Entry<E>> entriesToRelink = new ArrayList<Entry<E>>(slot);
+      slot.clear();
+      for (Entry<E> entry : entriesToRelink) {
+        link(entry);
+      }
+    }
+    if ((currentTick & ((1L << (bits * wheels.size())) - 1)) != 0) return;
+    List<Entry<E>> entriesToRelink = new ArrayList<Entry<E>>(overflow);
+    overflow.clear();
+    for (Entry<E> entry : entriesToRelink) {
+      link(entry);
+    }
+  }
+
+  private void link(Entry<E> entry) {
+    long delta = entry.expireTick - currentTick;
+    if (delta < 0) delta = 0;
+    for (int level = 0; level < wheels.size(); ++level) {
+      if (delta < (1L << (bits * (level + 1)))) {
+        long expireTick = entry.expireTick < currentTick ? currentTick : entry.expireTick;
+        entry.slot = wheels.get(level).get((int) ((expireTick >>> (bits * level)) & mask));
+        entry.slot.add(entry);
+        return;
+      }
+    }
+    entry.slot = overflow;
+    overflow.add(entry);
+  }
+
+  private void unlink(Entry<E> entry) {
+    if (entry.slot != null) entry.slot.remove(entry);
+    entry.slot = null;
+  }
+
+  static class Entry<E> {
+    final E element;
+    final long expireTick;
+    Set<Entry<E>> slot = null;
+
+    Entry(E element, long expireTick) {
+      this.element = element;
+      this.expireTick = expireTick;
+    }
+  }
+}
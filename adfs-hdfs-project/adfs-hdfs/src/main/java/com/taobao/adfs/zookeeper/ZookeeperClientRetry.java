@@ -27,6 +27,7 @@ import org.apache.zookeeper.KeeperException.NodeExistsException;
 import org.apache.zookeeper.KeeperException.OperationTimeoutException;
 import org.apache.zookeeper.KeeperException.SessionExpiredException;
 import org.apache.zookeeper.KeeperException.SessionMovedException;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooKeeper;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
@@ -95,11 +96,28 @@ public class ZookeeperClientRetry {
     return (List<String>) retryInvoke(parameterClasses, path, false);
   }
 
+  /**
+   * watcher is triggered once when children of the path are changed
+   */
+  @SuppressWarnings("unchecked")
+  public List<String> getChildren(String path, Watcher watcher) throws IOException {
+    Class<?>[] parameterClasses = new Class<?>[] { String.class, Watcher.class };
+    return (List<String>) retryInvoke(parameterClasses, path, watcher);
+  }
+
   public byte[] getData(String path, Stat stat) throws IOException {
     Class<?>[] parameterClasses = new Class<?>[] { String.class, boolean.class, Stat.class };
     return (byte[]) retryInvoke(parameterClasses, path, false, stat);
   }
 
+  /**
+   * watcher is triggered once when data of the path is changed or the path is deleted
+   */
+  public byte[] getData(String path, Watcher watcher, Stat stat) throws IOException {
+    Class<?>[] parameterClasses = new Class<?>[] { String.class, Watcher.class, Stat.class };
+    return (byte[]) retryInvoke(parameterClasses, path, watcher, stat);
+  }
+
   public Stat setData(String path, byte[] data) throws IOException {
     Class<?>[] parameterClasses = new Class<?>[] { String.class, byte[].class, int.class };
     return (Stat) retryInvoke(parameterClasses, path, data, -1);
@@ -21,6 +21,7 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -29,6 +30,7 @@ import java.util.Map;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
 import org.apache.hadoop.fs.FSInputChecker;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.hdfs.protocol.Block;
@@ -56,6 +58,10 @@ import org.apache.hadoop.util.DataChecksum;
  * {@link ClientDatanodeProtocol#getBlockLocalPathInfo(Block, Token)} RPC call</li>
  * <li>Client uses kerberos authentication to connect to the datanode over RPC,
  * if security is enabled.</li>
+ * <li>If {@link DFSConfigKeys#DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY} is set,
+ * finalized blocks are read from a shared {@link MappedBlockCache} instead of
+ * file streams, and {@link #readZeroCopy(int)} returns the mapped data
+ * without copying.</li>
  * </ul>
  */
 class BlockReaderLocal extends FSInputChecker implements BlockReader {
@@ -128,6 +134,10 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
   private long startOffset;
   private boolean eos = false;
   private byte[] skipBuf = null;
+  private MappedBlockCache mappedBlockCache = null;
+  private MappedBlockCache.MappedBlock mappedBlock = null; // set in mmap mode
+  private long mappedPos;  // next offset to read in mmap mode
+  private long mappedEnd;  // end offset of the requested range in mmap mode
 
   /**
    * The only way this object can be instantiated.
@@ -143,6 +153,30 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
       pathinfo = getBlockPathInfo(blk, node, conf, socketTimeout, token);
     }
 
+    if (shouldMmap(conf)) {
+      MappedBlockCache mappedBlockCache = MappedBlockCache.getInstance(conf);
+      MappedBlockCache.MappedBlock mapped = null;
+      try {
+        mapped = mappedBlockCache.ref(blk, pathinfo, !shouldSkipChecksum(conf));
+      } catch (IOException e) {
+        localDatanodeInfo.removeBlockLocalPathInfo(blk);
+        DFSClient.LOG.warn("BlockReaderLocal: Removing " + blk +
+            " from cache because local file " + pathinfo.getBlockPath() +
+            " could not be mapped.");
+        throw e;
+      }
+      if (mapped != null) {
+        try {
+          return new BlockReaderLocal(file, blk, startOffset, length,
+              mappedBlockCache, mapped);
+        } catch (IOException e) {
+          mappedBlockCache.unref(mapped);
+          throw e;
+        }
+      }
+      // block is not finalized yet, fall back to streams
+    }
+
     // check to see if the file exists. It may so happen that the
     // HDFS file has been deleted and this block-lookup is occurring
     // on behalf of a new HDFS file. This time, the block file could
@@ -236,6 +270,11 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
     return pathinfo;
   }
   
+  private static boolean shouldMmap(Configuration conf) {
+    return conf.getBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY,
+        DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_DEFAULT);
+  }
+
   private static boolean shouldSkipChecksum(Configuration conf) {
     return conf.getBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
         DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_DEFAULT);
@@ -259,6 +298,26 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
     }
   }
 
+  private BlockReaderLocal(String hdfsfile, Block block, long startOffset,
+      long length, MappedBlockCache mappedBlockCache,
+      MappedBlockCache.MappedBlock mappedBlock) throws IOException {
+    super(
+        new Path("/blk_" + block.getBlockId() + ":of:" + hdfsfile) /*too non path-like?*/,
+        1);
+    if (startOffset < 0 || length < 0
+        || startOffset + length > mappedBlock.length) {
+      String msg = " Offset " + startOffset + " and length " + length
+      + " don't match block " + block + " ( blockLen " + mappedBlock.length + " )";
+      LOG.warn("BlockReaderLocal requested with incorrect offset: " + msg);
+      throw new IOException(msg);
+    }
+    this.mappedBlockCache = mappedBlockCache;
+    this.mappedBlock = mappedBlock;
+    this.startOffset = startOffset;
+    this.mappedPos = startOffset;
+    this.mappedEnd = startOffset + length;
+  }
+
   private BlockReaderLocal(Configuration conf, String hdfsfile, Block block,
       Token<BlockTokenIdentifier> token, long startOffset, long length,
       BlockLocalPathInfo pathinfo, DataChecksum checksum, boolean verifyChecksum,
@@ -318,6 +377,15 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
     if (LOG.isDebugEnabled()) {
       LOG.debug("read off " + off + " len " + len);
     }
+    if (mappedBlock != null) {
+      ByteBuffer mapped = readZeroCopy(len);
+      if (mapped == null) {
+        return -1;
+      }
+      int n = mapped.remaining();
+      mapped.get(buf, off, n);
+      return n;
+    }
     if (checksum == null) {
       return dataIn.read(buf, off, len);
     }
@@ -346,6 +414,11 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
     if (LOG.isDebugEnabled()) {
       LOG.debug("skip " + n);
     }
+    if (mappedBlock != null) {
+      long skipped = Math.max(0, Math.min(n, mappedEnd - mappedPos));
+      mappedPos += skipped;
+      return skipped;
+    }
     if (checksum == null) {
       return dataIn.skip(n);
     }
@@ -368,6 +441,39 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
     return nSkipped;
   }
 
+  /**
+   * @return true if this reader serves a memory-mapped block
+   */
+  boolean isMapped() {
+    return mappedBlock != null;
+  }
+
+  /**
+   * Read up to maxLength bytes without copying. The checksums of the
+   * returned range have been verified.
+   * @return a read-only buffer, or null at the end of the requested range
+   * @throws IOException if this reader is not memory-mapped
+   */
+  synchronized ByteBuffer readZeroCopy(int maxLength) throws IOException {
+    if (mappedBlock == null) {
+      throw new IOException("Zero copy read needs a memory-mapped block");
+    }
+    if (mappedPos >= mappedEnd) {
+      return null;
+    }
+    int len = (int) Math.min(maxLength, mappedEnd - mappedPos);
+    ByteBuffer buf;
+    try {
+      buf = mappedBlock.slice(mappedPos, len);
+    } catch (ChecksumException ce) {
+      // do not hand out a corrupt mapping to other readers
+      mappedBlockCache.invalidate(mappedBlock.blockId);
+      throw ce;
+    }
+    mappedPos += len;
+    return buf;
+  }
+
   @Override
   public int read() throws IOException {
     throw new IOException("read() is not expected to be invoked. " +
@@ -439,5 +545,9 @@ class BlockReaderLocal extends FSInputChecker implements BlockReader {
   public synchronized void close() throws IOException {
     IOUtils.closeStream(dataIn);
     IOUtils.closeStream(checksumIn);
+    if (mappedBlock != null) {
+      mappedBlockCache.unref(mappedBlock);
+      mappedBlock = null;
+    }
   }
 }
\ No newline at end of file
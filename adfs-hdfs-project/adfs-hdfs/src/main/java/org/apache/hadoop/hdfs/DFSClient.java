@@ -39,6 +39,7 @@ import org.apache.hadoop.hdfs.server.datanode.DataNode;
 import org.apache.hadoop.hdfs.server.namenode.LeaseExpiredException;
 import org.apache.hadoop.hdfs.server.namenode.NameNode;
 import org.apache.hadoop.hdfs.server.namenode.NotReplicatedYetException;
+import org.apache.hadoop.hdfs.util.SpscQueue;
 import org.apache.hadoop.security.AccessControlException;
 import org.apache.hadoop.security.UserGroupInformation;
 import org.apache.hadoop.security.token.Token;
@@ -52,8 +53,19 @@ import com.taobao.adfs.distributed.DistributedClient;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 
@@ -88,9 +100,18 @@ public class DFSClient implements FSConstants, java.io.Closeable {
   private int socketTimeout;
   private int datanodeWriteTimeout;
   final int writePacketSize;
+  final int writeMaxPackets;
+  final int writePipelineReplicas;
+  final PacketBufferPool packetBufferPool;
   private final FileSystem.Statistics stats;
   private int maxBlockAcquireFailures;
   private boolean shortCircuitLocalReads;
+  private final long hedgedReadThresholdMillis;
+  private final boolean parallelPread;
+  private static ThreadPoolExecutor hedgedReadThreadPool;
+  private static ThreadPoolExecutor parallelReadThreadPool;
+  private static final DFSHedgedReadMetrics HEDGED_READ_METRICS =
+      new DFSHedgedReadMetrics();
 
   final SocketCache socketCache;
 
@@ -229,7 +250,17 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                             HdfsConstants.WRITE_TIMEOUT);
     this.socketFactory = NetUtils.getSocketFactory(conf, ClientProtocol.class);
     // dfs.write.packet.size is an internal config variable
-    this.writePacketSize = conf.getInt("dfs.write.packet.size", 64*1024);
+    this.writePacketSize = conf.getInt("dfs.client.write.packet.size",
+        conf.getInt("dfs.write.packet.size", 64*1024));
+    // number of packets a stream may have queued or waiting for acks
+    this.writeMaxPackets = Math.max(1, conf.getInt("dfs.client.write.max.packets", 80));
+    // if positive, a packet is acked once this many datanodes at the head of
+    // the pipeline have written it; the rest of the pipeline still gets it
+    int pipelineReplicas = conf.getInt("dfs.client.write.pipeline.replicas", 0);
+    this.writePipelineReplicas = pipelineReplicas <= 0 ? 0 :
+        Math.max(pipelineReplicas, conf.getInt("dfs.replication.min", 1));
+    this.packetBufferPool = new PacketBufferPool(
+        conf.getInt("dfs.client.write.packet.pool.size", writeMaxPackets));
     this.maxBlockAcquireFailures = getMaxBlockAcquireFailures(conf);
 
     ugi = UserGroupInformation.getCurrentUser();
@@ -267,6 +298,79 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     if (LOG.isDebugEnabled()) {
       LOG.debug("Short circuit read is " + shortCircuitLocalReads);
     }
+    // hedged and parallel positional reads have one pool each per process
+    this.hedgedReadThresholdMillis = conf.getLong(
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY,
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_DEFAULT);
+    this.parallelPread = conf.getBoolean(
+        DFSConfigKeys.DFS_CLIENT_PARALLEL_PREAD_KEY,
+        DFSConfigKeys.DFS_CLIENT_PARALLEL_PREAD_DEFAULT);
+    int numThreads = conf.getInt(
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY,
+        DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_DEFAULT);
+    if (numThreads > 0) {
+      initThreadsNumForHedgedReads(numThreads);
+    }
+  }
+
+  /**
+   * Create the pools of hedged and parallel reads, or grow them to the
+   * given number of threads. The block fetches of a parallel read may be
+   * hedged, so hedged requests have their own pool: a fetch running on a
+   * full pool could otherwise not hand its hedge to another thread.
+   */
+  private static synchronized void initThreadsNumForHedgedReads(int num) {
+    if (hedgedReadThreadPool != null) {
+      if (hedgedReadThreadPool.getMaximumPoolSize() < num) {
+        hedgedReadThreadPool.setMaximumPoolSize(num);
+        parallelReadThreadPool.setMaximumPoolSize(num);
+      }
+      return;
+    }
+    hedgedReadThreadPool = newReadThreadPool("hedgedRead-", num);
+    parallelReadThreadPool = newReadThreadPool("parallelRead-", num);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Using hedged reads; pool threads=" + num);
+    }
+  }
+
+  /**
+   * A pool of daemon threads without a queue. A request which finds the
+   * pool busy is run by the reading thread itself.
+   */
+  private static ThreadPoolExecutor newReadThreadPool(final String prefix,
+      int num) {
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(1, num, 60,
+        TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory() {
+          private final AtomicInteger threadIndex = new AtomicInteger(0);
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r);
+            t.setName(prefix + threadIndex.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        },
+        new ThreadPoolExecutor.CallerRunsPolicy() {
+          public void rejectedExecution(Runnable runnable,
+              ThreadPoolExecutor e) {
+            HEDGED_READ_METRICS.incHedgedReadOpsInCurThread();
+            super.rejectedExecution(runnable, e);
+          }
+        });
+    pool.allowCoreThreadTimeOut(true);
+    return pool;
+  }
+
+  /** @return true if positional reads may be hedged and parallelized */
+  boolean isHedgedReadsEnabled() {
+    return hedgedReadThreadPool != null
+        && hedgedReadThreadPool.getMaximumPoolSize() > 0;
+  }
+
+  /** @return counters of hedged and parallel positional reads */
+  public DFSHedgedReadMetrics getHedgedReadMetrics() {
+    return HEDGED_READ_METRICS;
   }
 
   static int getMaxBlockAcquireFailures(Configuration conf) {
@@ -2208,6 +2312,57 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       return -1;
     }
 
+    /**
+     * Read up to maxLength bytes at the current position without copying.
+     * This is only possible when the current block is served by a
+     * memory-mapped short circuit reader, see
+     * {@link DFSConfigKeys#DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY}.
+     * The returned buffer is read-only, its checksums have been verified and
+     * it never crosses a block boundary.
+     *
+     * @param maxLength maximum number of bytes to return
+     * @return the data, or null if zero copy is not possible at the current
+     *         position, in which case the caller should use
+     *         {@link #read(byte[], int, int)}
+     */
+    public synchronized ByteBuffer readMapped(int maxLength) throws IOException {
+      checkOpen();
+      if (closed) {
+        throw new IOException("Stream closed");
+      }
+      failures = 0;
+      if (pos >= getFileLength() || maxLength <= 0) {
+        return null;
+      }
+      if (pos > blockEnd) {
+        currentNode = blockSeekTo(pos);
+      }
+      if (!(blockReader instanceof BlockReaderLocal)
+          || !((BlockReaderLocal) blockReader).isMapped()) {
+        return null;
+      }
+      int realLen = (int) Math.min(maxLength, blockEnd - pos + 1);
+      ByteBuffer buf;
+      try {
+        buf = ((BlockReaderLocal) blockReader).readZeroCopy(realLen);
+      } catch (ChecksumException ce) {
+        LOG.warn("Found Checksum error for " + currentBlock + " from " +
+                 currentNode.getName() + " at " + ce.getPos());
+        reportChecksumFailure(src, currentBlock, currentNode);
+        addToDeadNodes(currentNode);
+        blockEnd = -1;
+        throw ce;
+      }
+      if (buf == null) {
+        return null;
+      }
+      pos += buf.remaining();
+      if (stats != null) {
+        stats.incrementBytesRead(buf.remaining());
+      }
+      return buf;
+    }
+
         
     private DNAddrPair chooseDataNode(LocatedBlock block)
       throws IOException {
@@ -2248,16 +2403,32 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       //
       // Connect to best DataNode for desired Block, with potential offset
       //
-      int refetchToken = 1; // only need to get a new access token once
-
       while (true) {
         // cached block locations may have been updated by chooseDataNode()
         // or fetchBlockAt(). Always get the latest list of locations at the 
         // start of the loop.
         block = getBlockAt(block.getStartOffset(), false);
         DNAddrPair retval = chooseDataNode(block);
-        DatanodeInfo chosenNode = retval.info;
-        InetSocketAddress targetAddr = retval.addr;
+        if (fetchFromDataNode(retval, block, start, end, buf, offset)) {
+          return;
+        }
+        // Put chosen node into dead list, continue
+        addToDeadNodes(retval.info);
+      }
+    }
+
+    /**
+     * Read [start, end] of a block from the given datanode into buf.
+     * @return false if the datanode failed to serve the range
+     */
+    private boolean fetchFromDataNode(DNAddrPair datanode, LocatedBlock block,
+        long start, long end, byte[] buf, int offset) throws IOException {
+      DatanodeInfo chosenNode = datanode.info;
+      InetSocketAddress targetAddr = datanode.addr;
+      int refetchToken = 1; // only need to get a new access token once
+
+      while (true) {
+        block = getBlockAt(block.getStartOffset(), false);
         BlockReader reader = null;
             
         try {
@@ -2286,7 +2457,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                                                 verifyChecksum, clientName);
             IOUtils.readFully((RemoteBlockReader)reader, buf, offset, len);
           }
-          return;
+          return true;
         } catch (ChecksumException e) {
           LOG.warn("fetchBlockByteRange(). Got a checksum exception for " +
                    src + " at " + block.getBlock() + ":" + 
@@ -2308,8 +2479,143 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             closeBlockReader(reader);
           }
         }
-        // Put chosen node into dead list, continue
-        addToDeadNodes(chosenNode);
+        return false;
+      }
+    }
+
+    /**
+     * Like {@link #fetchBlockByteRange(LocatedBlock, long, long, byte[], int)}
+     * but if the chosen datanode has not answered within the hedged read
+     * threshold, the same range is also requested from another replica and
+     * the first complete answer is taken. Each request reads into its own
+     * buffer, so a late answer can not overwrite the result.
+     */
+    private void hedgedFetchBlockByteRange(LocatedBlock block, long start,
+        long end, byte[] buf, int offset) throws IOException {
+      final int len = (int) (end - start + 1);
+      CompletionService<byte[]> hedgedService =
+          new ExecutorCompletionService<byte[]>(hedgedReadThreadPool);
+      List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>();
+      Set<Future<byte[]>> hedges = new HashSet<Future<byte[]>>();
+      Set<DatanodeInfo> ignored = new HashSet<DatanodeInfo>();
+      try {
+        while (true) {
+          block = getBlockAt(block.getStartOffset(), false);
+          DNAddrPair chosenNode;
+          boolean hedge = !futures.isEmpty();
+          if (!hedge) {
+            // all previous requests failed, their nodes are dead now
+            ignored.clear();
+            chosenNode = chooseDataNode(block);
+          } else {
+            chosenNode = chooseHedgedDataNode(block, ignored);
+          }
+          if (chosenNode != null) {
+            ignored.add(chosenNode.info);
+            Future<byte[]> future = hedgedService.submit(
+                new HedgedReadCallable(chosenNode, block, start, end, len));
+            futures.add(future);
+            if (hedge) {
+              hedges.add(future);
+              HEDGED_READ_METRICS.incHedgedReadOps();
+            }
+          }
+          Future<byte[]> done;
+          try {
+            // no more replica to hedge to, wait for the outstanding ones
+            done = chosenNode != null
+                ? hedgedService.poll(hedgedReadThresholdMillis, TimeUnit.MILLISECONDS)
+                : hedgedService.take();
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while reading "
+                + block.getBlock() + " of " + src);
+          }
+          if (done == null) {
+            continue;
+          }
+          futures.remove(done);
+          try {
+            byte[] result = done.get();
+            System.arraycopy(result, 0, buf, offset, len);
+            if (hedges.contains(done)) {
+              HEDGED_READ_METRICS.incHedgedReadWins();
+            }
+            return;
+          } catch (ExecutionException e) {
+            // the node is already in the dead list, try another one
+          } catch (CancellationException e) {
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while reading "
+                + block.getBlock() + " of " + src);
+          }
+        }
+      } finally {
+        for (Future<byte[]> future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+
+    /**
+     * @return the best replica of the block which is neither dead nor
+     *         already being read, or null if there is none
+     */
+    private DNAddrPair chooseHedgedDataNode(LocatedBlock block,
+        Set<DatanodeInfo> ignored) {
+      DatanodeInfo[] nodes = block.getLocations();
+      if (nodes != null) {
+        for (DatanodeInfo node : nodes) {
+          if (!deadNodes.containsKey(node) && !ignored.contains(node)) {
+            return new DNAddrPair(node,
+                NetUtils.createSocketAddr(node.getName()));
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * One request of a hedged read, reading a block range from one datanode.
+     */
+    private class HedgedReadCallable implements Callable<byte[]> {
+      private final DNAddrPair datanode;
+      private final LocatedBlock block;
+      private final long start;
+      private final long end;
+      private final int len;
+
+      HedgedReadCallable(DNAddrPair datanode, LocatedBlock block,
+          long start, long end, int len) {
+        this.datanode = datanode;
+        this.block = block;
+        this.start = start;
+        this.end = end;
+        this.len = len;
+      }
+
+      public byte[] call() throws IOException {
+        byte[] result = new byte[len];
+        if (fetchFromDataNode(datanode, block, start, end, result, 0)) {
+          return result;
+        }
+        // a cancelled request does not make the node dead
+        if (!Thread.currentThread().isInterrupted()) {
+          addToDeadNodes(datanode.info);
+        }
+        throw new IOException("Failed to read " + block.getBlock() +
+            " from " + datanode.info.getName());
+      }
+    }
+
+    /**
+     * Read a block range, hedged if hedged reads are enabled.
+     */
+    private void readBlockByteRange(LocatedBlock block, long start,
+        long end, byte[] buf, int offset) throws IOException {
+      if (isHedgedReadsEnabled() && hedgedReadThresholdMillis > 0) {
+        hedgedFetchBlockByteRange(block, start, end, buf, offset);
+      } else {
+        fetchBlockByteRange(block, start, end, buf, offset);
       }
     }
 
@@ -2440,23 +2746,83 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       // determine the block and byte range within the block
       // corresponding to position and realLen
       List<LocatedBlock> blockRange = getBlockRange(position, realLen);
-      int remaining = realLen;
-      for (LocatedBlock blk : blockRange) {
-        long targetStart = position - blk.getStartOffset();
-        long bytesToRead = Math.min(remaining, blk.getBlockSize() - targetStart);
-        fetchBlockByteRange(blk, targetStart, 
-                            targetStart + bytesToRead - 1, buffer, offset);
-        remaining -= bytesToRead;
-        position += bytesToRead;
-        offset += bytesToRead;
-      }
-      assert remaining == 0 : "Wrong number of bytes read.";
+      if (blockRange.size() > 1 && parallelPread && isHedgedReadsEnabled()) {
+        parallelReadBlockRanges(blockRange, position, realLen, buffer, offset);
+      } else {
+        int remaining = realLen;
+        for (LocatedBlock blk : blockRange) {
+          long targetStart = position - blk.getStartOffset();
+          long bytesToRead = Math.min(remaining, blk.getBlockSize() - targetStart);
+          readBlockByteRange(blk, targetStart, 
+                             targetStart + bytesToRead - 1, buffer, offset);
+          remaining -= bytesToRead;
+          position += bytesToRead;
+          offset += bytesToRead;
+        }
+        assert remaining == 0 : "Wrong number of bytes read.";
+      }
       if (stats != null) {
         stats.incrementBytesRead(realLen);
       }
       return realLen;
     }
      
+    /**
+     * Fetch the ranges of several blocks at once, all but the last block on
+     * the parallel read pool and the last one by the calling thread. The
+     * ranges do not overlap, so each fetch writes its own part of buffer.
+     */
+    private void parallelReadBlockRanges(List<LocatedBlock> blockRange,
+        long position, int length, final byte[] buffer, int offset)
+        throws IOException {
+      HEDGED_READ_METRICS.incParallelReadOps();
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      try {
+        int remaining = length;
+        for (int i = 0; i < blockRange.size(); i++) {
+          final LocatedBlock blk = blockRange.get(i);
+          final long targetStart = position - blk.getStartOffset();
+          final long bytesToRead =
+              Math.min(remaining, blk.getBlockSize() - targetStart);
+          final int targetOffset = offset;
+          if (i == blockRange.size() - 1) {
+            readBlockByteRange(blk, targetStart,
+                targetStart + bytesToRead - 1, buffer, targetOffset);
+          } else {
+            futures.add(parallelReadThreadPool.submit(new Callable<Void>() {
+              public Void call() throws IOException {
+                readBlockByteRange(blk, targetStart,
+                    targetStart + bytesToRead - 1, buffer, targetOffset);
+                return null;
+              }
+            }));
+          }
+          remaining -= bytesToRead;
+          position += bytesToRead;
+          offset += bytesToRead;
+        }
+        assert remaining == 0 : "Wrong number of bytes read.";
+        for (Future<Void> future : futures) {
+          try {
+            future.get();
+          } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+              throw (IOException) cause;
+            }
+            throw new IOException("Failed to read " + src, cause);
+          } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Interrupted while reading "
+                + src);
+          }
+        }
+      } finally {
+        for (Future<Void> future : futures) {
+          future.cancel(true);
+        }
+      }
+    }
+
     @Override
     public long skip(long n) throws IOException {
       if ( n > 0 ) {
@@ -2609,6 +2975,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     public long getVisibleLength() throws IOException {
       return ((DFSInputStream)in).getFileLength();
     }
+
+    /**
+     * Read up to maxLength bytes at the current position without copying.
+     * @see DFSInputStream#readMapped(int)
+     */
+    public ByteBuffer readMapped(int maxLength) throws IOException {
+      return ((DFSInputStream)in).readMapped(maxLength);
+    }
   }
 
   /****************************************************************
@@ -2626,16 +3000,26 @@ public class DFSClient implements FSConstants, java.io.Closeable {
    * The ResponseProcessor receives acks from the datanodes. When an
    * successful ack for a packet is received from all datanodes, the
    * ResponseProcessor removes the corresponding packet from the
-   * ackQueue.
+   * ackQueue and gives its buffer back to the pool.
+   *
+   * Both queues have a single producer and a single consumer, so
+   * packets are handed off without locks; a waiting thread is parked
+   * and unparked by the thread that makes progress for it. At most
+   * dfs.client.write.max.packets packets are queued or waiting for acks.
    *
    * In case of error, all outstanding packets and moved from
-   * ackQueue. A new pipeline is setup by eliminating the bad
-   * datanode from the original pipeline. The DataStreamer now
-   * starts sending packets from the dataQueue.
+   * ackQueue to the resendQueue. A new pipeline is setup by eliminating
+   * the bad datanode from the original pipeline. The DataStreamer now
+   * starts sending packets from the resendQueue, then from the dataQueue.
+   *
+   * If dfs.client.write.pipeline.replicas is N, the Nth datanode acks a
+   * packet once it has written it, without waiting for the rest of the
+   * pipeline. A new pipeline after an error keeps only the first N good
+   * datanodes then, as the others may miss acked packets.
   ****************************************************************/
   class DFSOutputStream extends FSOutputSummer implements Syncable {
     private Socket s;
-    boolean closed = false;
+    volatile boolean closed = false;
   
     private String src;
     DataOutputStream blockStream;
@@ -2644,20 +3028,30 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private Token<BlockTokenIdentifier> accessToken;
     final private long blockSize;
     private DataChecksum checksum;
-    private LinkedList<Packet> dataQueue = new LinkedList<Packet>();
-    private LinkedList<Packet> ackQueue = new LinkedList<Packet>();
+    // produced by the writer, consumed by the DataStreamer
+    private final SpscQueue<Packet> dataQueue = new SpscQueue<Packet>();
+    // produced by the DataStreamer, consumed by the ResponseProcessor
+    private final SpscQueue<Packet> ackQueue = new SpscQueue<Packet>();
+    // unacked packets to be sent again after error recovery, only used by
+    // the DataStreamer or before it starts
+    private final LinkedList<Packet> resendQueue = new LinkedList<Packet>();
+    // packets queued, being sent or waiting for acks
+    private final AtomicInteger packetsInFlight = new AtomicInteger(0);
+    private final int maxPackets = writeMaxPackets; // each packet 64K, 5MB by default
+    private volatile Thread waitingWriter = null;
+    // for threads waiting in waitForAckedSeqno
+    private final Object ackLock = new Object();
+    private final AtomicInteger ackWaiters = new AtomicInteger(0);
     private Packet currentPacket = null;
-    private int maxPackets = 80; // each packet 64K, total 5MB
-    // private int maxPackets = 1000; // each packet 64K, total 64MB
-    private DataStreamer streamer = new DataStreamer();;
+    private volatile DataStreamer streamer = new DataStreamer();;
     private ResponseProcessor response = null;
     private long currentSeqno = 0;
     private long lastQueuedSeqno = -1;
-    private long lastAckedSeqno = -1;
+    private volatile long lastAckedSeqno = -1;
     private long bytesCurBlock = 0; // bytes writen in current block
     private int packetSize = 0; // write packet size, including the header.
     private int chunksPerPacket = 0;
-    private DatanodeInfo[] nodes = null; // list of targets for current block
+    private volatile DatanodeInfo[] nodes = null; // list of targets for current block
     private ArrayList<DatanodeInfo> excludedNodes = new ArrayList<DatanodeInfo>();
     private volatile boolean hasError = false;
     private volatile int errorIndex = 0;
@@ -2684,6 +3078,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     private class Packet {
       ByteBuffer buffer;           // only one of buf and buffer is non-null
       byte[]  buf;
+      byte[]  pooledBuf;           // given back to the pool once acked
       long    seqno;               // sequencenumber of buffer in block
       long    offsetInBlock;       // offset in block
       boolean lastPacketInBlock;   // is this the last packet in block?
@@ -2703,7 +3098,8 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         currentSeqno++;
         
         buffer = null;
-        buf = new byte[pktSize];
+        buf = packetBufferPool.get(pktSize);
+        pooledBuf = buf;
         
         checksumStart = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER;
         checksumPos = checksumStart;
@@ -2774,6 +3170,36 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         buffer.reset();
         return buffer;
       }
+
+      /**
+       * Give the buffer back to the pool, the packet is not used any more.
+       */
+      void releaseBuffer() {
+        byte[] b = pooledBuf;
+        pooledBuf = null;
+        buf = null;
+        buffer = null;
+        packetBufferPool.release(b);
+      }
+    }
+
+    /**
+     * Wake up the threads that wait for a packet to be sent or acked.
+     */
+    private void wakeUpWaiters() {
+      Thread writer = waitingWriter;
+      if (writer != null) {
+        LockSupport.unpark(writer);
+      }
+      Thread t = streamer;
+      if (t != null) {
+        LockSupport.unpark(t);
+      }
+      if (ackWaiters.get() > 0) {
+        synchronized (ackLock) {
+          ackLock.notifyAll();
+        }
+      }
     }
   
     //
@@ -2802,79 +3228,78 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           }
 
           Packet one = null;
-          synchronized (dataQueue) {
 
-            // process IO errors if any
-            boolean doSleep = processDatanodeError(hasError, false);
+          // process IO errors if any
+          boolean doSleep = processDatanodeError(hasError, false);
 
-            // wait for a packet to be sent.
-            while ((!closed && !hasError && clientRunning 
-                   && dataQueue.size() == 0) || doSleep) {
-              try {
-                dataQueue.wait(1000);
-              } catch (InterruptedException  e) {
-              }
-              doSleep = false;
+          // wait for a packet to be sent.
+          while ((!closed && !hasError && clientRunning 
+                 && resendQueue.isEmpty() && dataQueue.isEmpty()) || doSleep) {
+            LockSupport.parkNanos(this, 1000L * 1000 * 1000);
+            Thread.interrupted();
+            doSleep = false;
+          }
+          if (closed || hasError || !clientRunning
+              || (resendQueue.isEmpty() && dataQueue.isEmpty())) {
+            continue;
+          }
+
+          try {
+            // get packet to be sent.
+            boolean resend = !resendQueue.isEmpty();
+            one = resend ? resendQueue.getFirst() : dataQueue.peek();
+            long offsetInBlock = one.offsetInBlock;
+
+            // get new block from namenode.
+            if (blockStream == null) {
+              LOG.debug("Allocating new block");
+              nodes = nextBlockOutputStream();
+              this.setName("DataStreamer for file " + src +
+                           " block " + block);
+              response = new ResponseProcessor(nodes);
+              response.start();
             }
-            if (closed || hasError || dataQueue.size() == 0 || !clientRunning) {
-              continue;
+
+            if (offsetInBlock >= blockSize) {
+              throw new IOException("BlockSize " + blockSize +
+                                    " is smaller than data size. " +
+                                    " Offset of packet in block " + 
+                                    offsetInBlock +
+                                    " Aborting file " + src);
             }
 
-            try {
-              // get packet to be sent.
-              one = dataQueue.getFirst();
-              long offsetInBlock = one.offsetInBlock;
-  
-              // get new block from namenode.
-              if (blockStream == null) {
-                LOG.debug("Allocating new block");
-                nodes = nextBlockOutputStream();
-                this.setName("DataStreamer for file " + src +
-                             " block " + block);
-                response = new ResponseProcessor(nodes);
-                response.start();
-              }
+            ByteBuffer buf = one.getBuffer();
 
-              if (offsetInBlock >= blockSize) {
-                throw new IOException("BlockSize " + blockSize +
-                                      " is smaller than data size. " +
-                                      " Offset of packet in block " + 
-                                      offsetInBlock +
-                                      " Aborting file " + src);
-              }
+            // move packet to ackQueue before sending it, its ack may
+            // arrive before the write returns
+            if (resend) {
+              resendQueue.removeFirst();
+            } else {
+              dataQueue.poll();
+            }
+            ackQueue.offer(one);
 
-              ByteBuffer buf = one.getBuffer();
-              
-              // move packet from dataQueue to ackQueue
-              dataQueue.removeFirst();
-              dataQueue.notifyAll();
-              synchronized (ackQueue) {
-                ackQueue.addLast(one);
-                ackQueue.notifyAll();
-              } 
-              
-              // write out data to remote datanode
-              blockStream.write(buf.array(), buf.position(), buf.remaining());
-              
-              if (one.lastPacketInBlock) {
-                blockStream.writeInt(0); // indicate end-of-block 
-              }
-              blockStream.flush();
-              if (LOG.isDebugEnabled()) {
-                LOG.debug("DataStreamer block " + block +
-                          " wrote packet seqno:" + one.seqno +
-                          " size:" + buf.remaining() +
-                          " offsetInBlock:" + one.offsetInBlock + 
-                          " lastPacketInBlock:" + one.lastPacketInBlock);
-              }
-            } catch (Throwable e) {
-              LOG.warn("DataStreamer Exception: " + 
-                       StringUtils.stringifyException(e));
-              if (e instanceof IOException) {
-                setLastException((IOException)e);
-              }
-              hasError = true;
+            // write out data to remote datanode
+            blockStream.write(buf.array(), buf.position(), buf.remaining());
+
+            if (one.lastPacketInBlock) {
+              blockStream.writeInt(0); // indicate end-of-block 
+            }
+            blockStream.flush();
+            if (LOG.isDebugEnabled()) {
+              LOG.debug("DataStreamer block " + block +
+                        " wrote packet seqno:" + one.seqno +
+                        " size:" + buf.remaining() +
+                        " offsetInBlock:" + one.offsetInBlock + 
+                        " lastPacketInBlock:" + one.lastPacketInBlock);
+            }
+          } catch (Throwable e) {
+            LOG.warn("DataStreamer Exception: " + 
+                     StringUtils.stringifyException(e));
+            if (e instanceof IOException) {
+              setLastException((IOException)e);
             }
+            hasError = true;
           }
 
           if (closed || hasError || !clientRunning) {
@@ -2883,13 +3308,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
           // Is this block full?
           if (one.lastPacketInBlock) {
-            synchronized (ackQueue) {
-              while (!hasError && ackQueue.size() != 0 && clientRunning) {
-                try {
-                  ackQueue.wait();   // wait for acks to arrive from datanodes
-                } catch (InterruptedException  e) {
-                }
-              }
+            // wait for acks to arrive from datanodes
+            while (!hasError && lastAckedSeqno < one.seqno && clientRunning) {
+              LockSupport.parkNanos(this, 1000L * 1000 * 1000);
+              Thread.interrupted();
             }
             LOG.debug("Closing old block " + block);
             this.setName("DataStreamer for file " + src);
@@ -2905,13 +3327,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               continue;
             }
 
-            synchronized (dataQueue) {
-              IOUtils.cleanup(LOG, blockStream, blockReplyStream);
-              nodes = null;
-              response = null;
-              blockStream = null;
-              blockReplyStream = null;
-            }
+            IOUtils.cleanup(LOG, blockStream, blockReplyStream);
+            nodes = null;
+            response = null;
+            blockStream = null;
+            blockReplyStream = null;
           }
           if (progress != null) { progress.progress(); }
 
@@ -2929,12 +3349,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       // shutdown thread
       void close() {
         closed = true;
-        synchronized (dataQueue) {
-          dataQueue.notifyAll();
-        }
-        synchronized (ackQueue) {
-          ackQueue.notifyAll();
-        }
+        wakeUpWaiters();
         this.interrupt();
       }
     }
@@ -2975,14 +3390,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               // to. So, we don't try to match it up with an ack.
               assert ! ack.isSuccess();
             } else {
-              Packet one = null;
-              synchronized (ackQueue) {
-                one = ackQueue.getFirst();
-              }
-              if (one.seqno != seqno) {
+              Packet one = ackQueue.peek();
+              if (one == null || one.seqno != seqno) {
                 throw new IOException("Responseprocessor: Expecting seqno " + 
                                       " for block " + block +
-                                      one.seqno + " but received " + seqno);
+                                      (one == null ? "none" : one.seqno) +
+                                      " but received " + seqno);
               }
               lastPacketInBlock = one.lastPacketInBlock;
             }
@@ -2999,12 +3412,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               }
             }
 
-            synchronized (ackQueue) {
-              assert ack.getSeqno() == lastAckedSeqno + 1;
-              lastAckedSeqno = ack.getSeqno();
-              ackQueue.removeFirst();
-              ackQueue.notifyAll();
-            }
+            assert ack.getSeqno() == lastAckedSeqno + 1;
+            lastAckedSeqno = ack.getSeqno();
+            Packet acked = ackQueue.poll();
+            packetsInFlight.decrementAndGet();
+            acked.releaseBuffer();
           } catch (Exception e) {
             if (!closed) {
               hasError = true;
@@ -3019,12 +3431,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
             }
           }
 
-          synchronized (dataQueue) {
-            dataQueue.notifyAll();
-          }
-          synchronized (ackQueue) {
-            ackQueue.notifyAll();
-          }
+          wakeUpWaiters();
         }
       }
 
@@ -3059,12 +3466,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       blockStream = null;
       blockReplyStream = null;
 
-      // move packets from ack queue to front of the data queue
+      // move packets from ack queue to front of the resend queue, the
+      // responder has exited so this thread is the only consumer now
       // TOOD think if we need to change around lastQueuedSeqno
-      synchronized (ackQueue) {
-        dataQueue.addAll(0, ackQueue);
-        ackQueue.clear();
+      LinkedList<Packet> unacked = new LinkedList<Packet>();
+      for (Packet one = ackQueue.poll(); one != null; one = ackQueue.poll()) {
+        unacked.add(one);
       }
+      resendQueue.addAll(0, unacked);
 
       boolean success = false;
       while (!success && clientRunning) {
@@ -3107,6 +3516,25 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           System.arraycopy(nodes, 0, newnodes, 0, errorIndex);
           System.arraycopy(nodes, errorIndex+1, newnodes, errorIndex,
               newnodes.length-errorIndex);
+          int ackReplicas = getAckReplicas(nodes);
+          if (ackReplicas > 0) {
+            // only the datanodes which acked the packets are sure to have
+            // them, and recovery truncates the block to the shortest replica
+            int keep = errorIndex < ackReplicas ? ackReplicas - 1 : ackReplicas;
+            if (keep == 0) {
+              lastException = new IOException("Datanode " +
+                  nodes[errorIndex].getName() + " which acked the packets" +
+                  " in pipeline " + pipelineMsg + " is bad. Aborting...");
+              closed = true;
+              if (streamer != null) streamer.close();
+              return false;
+            }
+            LOG.warn("Error Recovery for block " + block +
+                     " keeps the first " + keep + " good datanodes of " +
+                     newnodes.length + " because the others may not have" +
+                     " the acked packets");
+            newnodes = Arrays.copyOf(newnodes, keep);
+          }
         }
 
         // Tell the primary datanode to do error recovery 
@@ -3209,16 +3637,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     // returns the list of targets, if any, that is being currently used.
     //
     DatanodeInfo[] getPipeline() {
-      synchronized (dataQueue) {
-        if (nodes == null) {
-          return null;
-        }
-        DatanodeInfo[] value = new DatanodeInfo[nodes.length];
-        for (int i = 0; i < nodes.length; i++) {
-          value[i] = nodes[i];
-        }
-        return value;
+      DatanodeInfo[] nodes = this.nodes;
+      if (nodes == null) {
+        return null;
+      }
+      DatanodeInfo[] value = new DatanodeInfo[nodes.length];
+      for (int i = 0; i < nodes.length; i++) {
+        value[i] = nodes[i];
       }
+      return value;
     }
 
     private DFSOutputStream(String src, long blockSize, Progressable progress,
@@ -3460,6 +3887,14 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     // connects to the first datanode in the pipeline
     // Returns true if success, otherwise return failure.
     //
+    /**
+     * The number of datanodes at the head of the pipeline which ack a
+     * packet before the rest of the pipeline has written it, 0 for all.
+     */
+    private int getAckReplicas(DatanodeInfo[] nodes) {
+      return writePipelineReplicas < nodes.length ? writePipelineReplicas : 0;
+    }
+
     private boolean createBlockOutputStream(DatanodeInfo[] nodes, String client,
                     boolean recoveryFlag) {
       short pipelineStatus = (short)DataTransferProtocol.OP_STATUS_SUCCESS;
@@ -3499,6 +3934,7 @@ public class DFSClient implements FSConstants, java.io.Closeable {
         out.writeLong( block.getBlockId() );
         out.writeLong( block.getGenerationStamp() );
         out.writeInt( nodes.length );
+        out.writeInt( getAckReplicas(nodes) );  // datanodes to ack, 0 for all
         out.writeBoolean( recoveryFlag );       // recovery flag
         Text.writeString( out, client );
         out.writeBoolean(false); // Not sending src node information
@@ -3633,80 +4069,94 @@ public class DFSClient implements FSConstants, java.io.Closeable {
                               " but found to be " + checksum.length);
       }
 
-      synchronized (dataQueue) {
-  
-        // If queue is full, then wait till we can create  enough space
-        while (!closed && dataQueue.size() + ackQueue.size()  > maxPackets) {
-          try {
-            dataQueue.wait();
-          } catch (InterruptedException  e) {
-          }
-        }
-        isClosed();
-  
-        if (currentPacket == null) {
-          currentPacket = new Packet(packetSize, chunksPerPacket, 
-                                     bytesCurBlock);
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("DFSClient writeChunk allocating new packet seqno=" + 
-                      currentPacket.seqno +
-                      ", src=" + src +
-                      ", packetSize=" + packetSize +
-                      ", chunksPerPacket=" + chunksPerPacket +
-                      ", bytesCurBlock=" + bytesCurBlock);
-          }
+      // If queue is full, then wait till we can create  enough space
+      waitForWindow();
+      isClosed();
+
+      if (currentPacket == null) {
+        currentPacket = new Packet(packetSize, chunksPerPacket, 
+                                   bytesCurBlock);
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("DFSClient writeChunk allocating new packet seqno=" + 
+                    currentPacket.seqno +
+                    ", src=" + src +
+                    ", packetSize=" + packetSize +
+                    ", chunksPerPacket=" + chunksPerPacket +
+                    ", bytesCurBlock=" + bytesCurBlock);
         }
+      }
 
-        currentPacket.writeChecksum(checksum, 0, cklen);
-        currentPacket.writeData(b, offset, len);
-        currentPacket.numChunks++;
-        bytesCurBlock += len;
+      currentPacket.writeChecksum(checksum, 0, cklen);
+      currentPacket.writeData(b, offset, len);
+      currentPacket.numChunks++;
+      bytesCurBlock += len;
 
-        // If packet is full, enqueue it for transmission
+      // If packet is full, enqueue it for transmission
+      //
+      if (currentPacket.numChunks == currentPacket.maxChunks ||
+          bytesCurBlock == blockSize) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("DFSClient writeChunk packet full seqno=" +
+                    currentPacket.seqno +
+                    ", src=" + src +
+                    ", bytesCurBlock=" + bytesCurBlock +
+                    ", blockSize=" + blockSize +
+                    ", appendChunk=" + appendChunk);
+        }
         //
-        if (currentPacket.numChunks == currentPacket.maxChunks ||
-            bytesCurBlock == blockSize) {
-          if (LOG.isDebugEnabled()) {
-            LOG.debug("DFSClient writeChunk packet full seqno=" +
-                      currentPacket.seqno +
-                      ", src=" + src +
-                      ", bytesCurBlock=" + bytesCurBlock +
-                      ", blockSize=" + blockSize +
-                      ", appendChunk=" + appendChunk);
-          }
-          //
-          // if we allocated a new packet because we encountered a block
-          // boundary, reset bytesCurBlock.
-          //
-          if (bytesCurBlock == blockSize) {
-            currentPacket.lastPacketInBlock = true;
-            bytesCurBlock = 0;
-            lastFlushOffset = 0;
-          }
-          enqueueCurrentPacket();
+        // if we allocated a new packet because we encountered a block
+        // boundary, reset bytesCurBlock.
+        //
+        if (bytesCurBlock == blockSize) {
+          currentPacket.lastPacketInBlock = true;
+          bytesCurBlock = 0;
+          lastFlushOffset = 0;
+        }
+        enqueueCurrentPacket();
  
-          // If this was the first write after reopening a file, then the above
-          // write filled up any partial chunk. Tell the summer to generate full 
-          // crc chunks from now on.
-          if (appendChunk) {
-            appendChunk = false;
-            resetChecksumChunk(bytesPerChecksum);
-          }
-          int psize = Math.min((int)(blockSize-bytesCurBlock), writePacketSize);
-          computePacketChunkSize(psize, bytesPerChecksum);
+        // If this was the first write after reopening a file, then the above
+        // write filled up any partial chunk. Tell the summer to generate full 
+        // crc chunks from now on.
+        if (appendChunk) {
+          appendChunk = false;
+          resetChecksumChunk(bytesPerChecksum);
         }
+        int psize = Math.min((int)(blockSize-bytesCurBlock), writePacketSize);
+        computePacketChunkSize(psize, bytesPerChecksum);
       }
       //LOG.debug("DFSClient writeChunk done length " + len +
       //          " checksum length " + cklen);
     }
 
+    /**
+     * Wait while too many packets are in flight. Only called by the writer
+     * holding the lock of this stream.
+     */
+    private void waitForWindow() {
+      boolean interrupted = false;
+      while (!closed && packetsInFlight.get() > maxPackets) {
+        waitingWriter = Thread.currentThread();
+        // check again, an ack may have come before waitingWriter was set
+        if (!closed && packetsInFlight.get() > maxPackets) {
+          LockSupport.parkNanos(this, 1000L * 1000 * 1000);
+          interrupted |= Thread.interrupted();
+        }
+        waitingWriter = null;
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
     private synchronized void enqueueCurrentPacket() {
-      synchronized (dataQueue) {
-        if (currentPacket == null) return;
-        dataQueue.addLast(currentPacket);
-        dataQueue.notifyAll();
-        lastQueuedSeqno = currentPacket.seqno;
-        currentPacket = null;
+      if (currentPacket == null) return;
+      packetsInFlight.incrementAndGet();
+      dataQueue.offer(currentPacket);
+      lastQueuedSeqno = currentPacket.seqno;
+      currentPacket = null;
+      Thread t = streamer;
+      if (t != null) {
+        LockSupport.unpark(t);
       }
     }
 
@@ -3751,6 +4201,9 @@ public class DFSClient implements FSConstants, java.io.Closeable {
               // skip a sequence number for it!
               currentSeqno--;
             }
+            if (currentPacket != null) {
+              currentPacket.releaseBuffer();
+            }
             currentPacket = null;
           }
           // Restore state of stream. Record the last flush offset 
@@ -3809,12 +4262,11 @@ public class DFSClient implements FSConstants, java.io.Closeable {
      * no replicas in the pipeline.
      */
     public int getNumCurrentReplicas() throws IOException {
-      synchronized(dataQueue) {
-        if (nodes == null) {
-          return blockReplication;
-        }
-        return nodes.length;
+      DatanodeInfo[] nodes = this.nodes;
+      if (nodes == null) {
+        return blockReplication;
       }
+      return nodes.length;
     }
 
     /**
@@ -3835,16 +4287,21 @@ public class DFSClient implements FSConstants, java.io.Closeable {
     }
 
     private void waitForAckedSeqno(long seqnumToWaitFor) throws IOException {
-      synchronized (ackQueue) {
-        while (!closed) {
-          isClosed();
-          if (lastAckedSeqno >= seqnumToWaitFor) {
-            break;
+      ackWaiters.incrementAndGet();
+      try {
+        synchronized (ackLock) {
+          while (!closed) {
+            isClosed();
+            if (lastAckedSeqno >= seqnumToWaitFor) {
+              break;
+            }
+            try {
+              ackLock.wait(1000);
+            } catch (InterruptedException ie) {}
           }
-          try {
-            ackQueue.wait();
-          } catch (InterruptedException ie) {}
         }
+      } finally {
+        ackWaiters.decrementAndGet();
       }
       isClosed();
     }
@@ -3913,14 +4370,12 @@ public class DFSClient implements FSConstants, java.io.Closeable {
           // If there are no outstanding packets and the last packet
           // was not the last one in the current block, then create a
           // packet with empty payload.
-          synchronized (dataQueue) {
-            if (currentPacket == null && bytesCurBlock != 0) {
-              currentPacket = new Packet(packetSize, chunksPerPacket,
-                                         bytesCurBlock);
-            }
-            if (currentPacket != null) { 
-              currentPacket.lastPacketInBlock = true;
-            }
+          if (currentPacket == null && bytesCurBlock != 0) {
+            currentPacket = new Packet(packetSize, chunksPerPacket,
+                                       bytesCurBlock);
+          }
+          if (currentPacket != null) { 
+            currentPacket.lastPacketInBlock = true;
           }
 
         flushInternal();             // flush all data to Datanodes
@@ -3929,15 +4384,15 @@ public class DFSClient implements FSConstants, java.io.Closeable {
 
         closeThreads();
         
-        synchronized (dataQueue) {
-          if (blockStream != null) {
-            blockStream.writeInt(0); // indicate end-of-block to datanode
-            IOUtils.cleanup(LOG, blockStream, blockReplyStream);
-          }
-          if (s != null) {
-            s.close();
-            s = null;
-          }
+        // the streamer and responder have exited, nothing else uses the
+        // streams now
+        if (blockStream != null) {
+          blockStream.writeInt(0); // indicate end-of-block to datanode
+          IOUtils.cleanup(LOG, blockStream, blockReplyStream);
+        }
+        if (s != null) {
+          s.close();
+          s = null;
         }
 
         streamer = null;
@@ -3967,6 +4422,10 @@ public class DFSClient implements FSConstants, java.io.Closeable {
       artificialSlowdown = period;
     }
 
+    int getPacketsInFlight() {
+      return packetsInFlight.get();
+    }
+
     synchronized void setChunksPerPacket(int value) {
       chunksPerPacket = Math.min(chunksPerPacket, value);
       packetSize = DataNode.PKT_HEADER_LEN + SIZE_OF_INTEGER +
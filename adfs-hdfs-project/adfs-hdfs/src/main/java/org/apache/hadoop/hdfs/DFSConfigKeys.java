@@ -207,6 +207,16 @@ public class DFSConfigKeys extends CommonConfigurationKeys {
   public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_DEFAULT = false;
   public static final String  DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY = "dfs.client.read.shortcircuit.skip.checksum";
   public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_DEFAULT = false;
+  public static final String  DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY = "dfs.client.read.shortcircuit.mmap";
+  public static final boolean DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_DEFAULT = false;
+  public static final String  DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_KEY = "dfs.client.read.shortcircuit.mmap.cache.size";
+  public static final int     DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_DEFAULT = 256;
+  public static final String  DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY = "dfs.client.hedged.read.threadpool.size";
+  public static final int     DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_DEFAULT = 0;
+  public static final String  DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY = "dfs.client.hedged.read.threshold.millis";
+  public static final long    DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_DEFAULT = 500;
+  public static final String  DFS_CLIENT_PARALLEL_PREAD_KEY = "dfs.client.parallel.pread";
+  public static final boolean DFS_CLIENT_PARALLEL_PREAD_DEFAULT = true;
 
   //Keys with no defaults
   public static final String  DFS_DATANODE_PLUGINS_KEY = "dfs.datanode.plugins";
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of hedged and parallel positional reads, shared by all
+ * {@link DFSClient} instances of the process because they share the
+ * read thread pools.
+ */
+public class DFSHedgedReadMetrics {
+  final AtomicLong hedgedReadOps = new AtomicLong();
+  final AtomicLong hedgedReadOpsWin = new AtomicLong();
+  final AtomicLong hedgedReadOpsInCurThread = new AtomicLong();
+  final AtomicLong parallelReadOps = new AtomicLong();
+
+  void incHedgedReadOps() {
+    hedgedReadOps.incrementAndGet();
+  }
+
+  void incHedgedReadWins() {
+    hedgedReadOpsWin.incrementAndGet();
+  }
+
+  void incHedgedReadOpsInCurThread() {
+    hedgedReadOpsInCurThread.incrementAndGet();
+  }
+
+  void incParallelReadOps() {
+    parallelReadOps.incrementAndGet();
+  }
+
+  /** @return number of hedged requests sent to a second replica */
+  public long getHedgedReadOps() {
+    return hedgedReadOps.get();
+  }
+
+  /** @return number of hedged requests which returned before the first one */
+  public long getHedgedReadWins() {
+    return hedgedReadOpsWin.get();
+  }
+
+  /** @return number of requests run by the reader because the pool was full */
+  public long getHedgedReadOpsInCurThread() {
+    return hedgedReadOpsInCurThread.get();
+  }
+
+  /** @return number of positional reads whose blocks were fetched in parallel */
+  public long getParallelReadOps() {
+    return parallelReadOps.get();
+  }
+}
@@ -0,0 +1,285 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.ChecksumException;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockLocalPathInfo;
+import org.apache.hadoop.hdfs.server.datanode.BlockMetadataHeader;
+import org.apache.hadoop.hdfs.server.datanode.FSDataset;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.DataChecksum;
+
+/**
+ * Process-wide cache of memory-mapped local block files and their metadata
+ * files, shared by all {@link BlockReaderLocal} instances.
+ * <ul>
+ * <li>Only blocks whose data and metadata files are complete for the
+ * requested length are mapped, which rules out blocks still being written.</li>
+ * <li>Mappings are reference counted; only unreferenced mappings are evicted,
+ * least recently used first, once the cache exceeds its capacity.</li>
+ * <li>Checksums of a chunk are verified once per mapping and remembered,
+ * so repeated random reads of hot data skip verification.</li>
+ * </ul>
+ */
+class MappedBlockCache {
+  public static final Log LOG = LogFactory.getLog(MappedBlockCache.class);
+
+  private static MappedBlockCache instance = null;
+
+  private final int capacity;
+  private final Map<Long, MappedBlock> cache =
+      new LinkedHashMap<Long, MappedBlock>(16, 0.75f, true);
+
+  // metrics
+  private long hits = 0;
+  private long misses = 0;
+
+  MappedBlockCache(int capacity) {
+    this.capacity = capacity;
+  }
+
+  static synchronized MappedBlockCache getInstance(Configuration conf) {
+    if (instance == null) {
+      instance = new MappedBlockCache(conf.getInt(
+          DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_KEY,
+          DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_CACHE_SIZE_DEFAULT));
+    }
+    return instance;
+  }
+
+  /**
+   * Get a referenced mapping of the given block, mapping it if necessary.
+   * @return the mapping, or null if the block files are not complete
+   */
+  synchronized MappedBlock ref(Block blk, BlockLocalPathInfo pathinfo,
+      boolean verifyChecksum) throws IOException {
+    MappedBlock mapped = cache.get(blk.getBlockId());
+    if (mapped != null && (mapped.generationStamp != blk.getGenerationStamp()
+        || mapped.length < blk.getNumBytes()
+        || (verifyChecksum && mapped.checksums == null))) {
+      // stale mapping, it is dropped as soon as its readers are done
+      cache.remove(blk.getBlockId());
+      mapped.evicted = true;
+      mapped = null;
+    }
+    if (mapped == null) {
+      misses++;
+      mapped = MappedBlock.map(blk, pathinfo, verifyChecksum);
+      if (mapped == null) {
+        return null;
+      }
+      cache.put(blk.getBlockId(), mapped);
+      evict();
+    } else {
+      hits++;
+    }
+    mapped.refCount++;
+    return mapped;
+  }
+
+  synchronized void unref(MappedBlock mapped) {
+    mapped.refCount--;
+    evict();
+  }
+
+  /**
+   * Drop the mapping of a block, e.g. after a checksum error.
+   */
+  synchronized void invalidate(long blockId) {
+    MappedBlock mapped = cache.remove(blockId);
+    if (mapped != null) {
+      mapped.evicted = true;
+    }
+  }
+
+  synchronized int size() {
+    return cache.size();
+  }
+
+  synchronized long getHits() {
+    return hits;
+  }
+
+  synchronized long getMisses() {
+    return misses;
+  }
+
+  private void evict() {
+    for (Iterator<MappedBlock> it = cache.values().iterator();
+         it.hasNext() && cache.size() > capacity;) {
+      MappedBlock mapped = it.next();
+      if (mapped.refCount <= 0) {
+        // the mapping is released by the garbage collector, so slices
+        // already handed out to readers stay valid
+        mapped.evicted = true;
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * Read-only mapping of one finalized block and its checksums.
+   */
+  static class MappedBlock {
+    final long blockId;
+    final long generationStamp;
+    final long length;
+    final MappedByteBuffer data;
+    final MappedByteBuffer checksums;
+    final DataChecksum checksum;
+    final int bytesPerChecksum;
+    final int checksumSize;
+    private final BitSet verifiedChunks = new BitSet();
+    int refCount = 0;
+    volatile boolean evicted = false;
+
+    private MappedBlock(Block blk, long length, MappedByteBuffer data,
+        MappedByteBuffer checksums, DataChecksum checksum) {
+      this.blockId = blk.getBlockId();
+      this.generationStamp = blk.getGenerationStamp();
+      this.length = length;
+      this.data = data;
+      this.checksums = checksums;
+      this.checksum = checksum;
+      this.bytesPerChecksum = checksum == null ? 0 : checksum.getBytesPerChecksum();
+      this.checksumSize = checksum == null ? 0 : checksum.getChecksumSize();
+    }
+
+    static MappedBlock map(Block blk, BlockLocalPathInfo pathinfo,
+        boolean verifyChecksum) throws IOException {
+      File blkfile = new File(pathinfo.getBlockPath());
+      long length = blkfile.length();
+      if (length != blk.getNumBytes() || length > Integer.MAX_VALUE) {
+        return null;
+      }
+      DataChecksum checksum = null;
+      MappedByteBuffer checksums = null;
+      if (verifyChecksum) {
+        File metafile = new File(pathinfo.getMetaPath());
+        DataInputStream in = new DataInputStream(new FileInputStream(metafile));
+        try {
+          BlockMetadataHeader header = BlockMetadataHeader.readHeader(in);
+          if (header.getVersion() != FSDataset.METADATA_VERSION) {
+            LOG.warn("Wrong version (" + header.getVersion() +
+                ") for metadata file for " + blk + " ignoring ...");
+          }
+          checksum = header.getChecksum();
+        } finally {
+          IOUtils.closeStream(in);
+        }
+        if (checksum.getChecksumSize() > 0) {
+          int bpc = checksum.getBytesPerChecksum();
+          long chunks = (length + bpc - 1) / bpc;
+          long checksumsLength = chunks * checksum.getChecksumSize();
+          long headerSize = BlockMetadataHeader.getHeaderSize();
+          if (metafile.length() < headerSize + checksumsLength) {
+            return null;
+          }
+          checksums = mapFile(metafile, headerSize, checksumsLength);
+        } else {
+          checksum = null;
+        }
+      }
+      MappedByteBuffer data = mapFile(blkfile, 0, length);
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Mapped " + blk + " from " + blkfile + " of length " + length);
+      }
+      return new MappedBlock(blk, length, data, checksums, checksum);
+    }
+
+    private static MappedByteBuffer mapFile(File file, long offset, long length)
+        throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, offset, length);
+      } finally {
+        IOUtils.closeStream(raf);
+      }
+    }
+
+    /**
+     * Verify all checksum chunks overlapping [start, end).
+     */
+    void verify(long start, long end) throws ChecksumException {
+      if (checksum == null || start >= end) {
+        return;
+      }
+      int firstChunk = (int) (start / bytesPerChecksum);
+      int lastChunk = (int) ((end - 1) / bytesPerChecksum);
+      byte[] chunkBuf = null;
+      byte[] sumBuf = new byte[checksumSize];
+      for (int chunk = firstChunk; chunk <= lastChunk; chunk++) {
+        synchronized (verifiedChunks) {
+          if (verifiedChunks.get(chunk)) {
+            continue;
+          }
+        }
+        long chunkStart = (long) chunk * bytesPerChecksum;
+        int chunkLen = (int) Math.min(bytesPerChecksum, length - chunkStart);
+        if (chunkBuf == null) {
+          chunkBuf = new byte[bytesPerChecksum];
+        }
+        ByteBuffer dataChunk = data.duplicate();
+        dataChunk.position((int) chunkStart);
+        dataChunk.get(chunkBuf, 0, chunkLen);
+        ByteBuffer sum = checksums.duplicate();
+        sum.position(chunk * checksumSize);
+        sum.get(sumBuf);
+        DataChecksum summer = DataChecksum.newDataChecksum(
+            checksum.getChecksumType(), bytesPerChecksum);
+        summer.update(chunkBuf, 0, chunkLen);
+        if (!summer.compare(sumBuf, 0)) {
+          throw new ChecksumException("Checksum error: blk_" + blockId +
+              " at " + chunkStart, chunkStart);
+        }
+        synchronized (verifiedChunks) {
+          verifiedChunks.set(chunk);
+        }
+      }
+    }
+
+    /**
+     * @return a read-only view of [offset, offset+len) of the block data,
+     *         verified against the block checksums
+     */
+    ByteBuffer slice(long offset, int len) throws ChecksumException {
+      verify(offset, offset + len);
+      ByteBuffer buf = data.asReadOnlyBuffer();
+      buf.position((int) offset);
+      buf.limit((int) (offset + len));
+      return buf.slice();
+    }
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of packet buffers shared by the output streams of a
+ * {@link DFSClient}. A buffer is taken when a packet is created and given
+ * back once the packet is acknowledged by the whole pipeline, so a stream
+ * writing at full speed reuses the buffers of its window instead of
+ * allocating one per packet.
+ */
+class PacketBufferPool {
+  private final int capacity;
+  private final ConcurrentLinkedQueue<byte[]> buffers =
+      new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicInteger pooledNumber = new AtomicInteger(0);
+
+  PacketBufferPool(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * @return a buffer of at least the given size
+   */
+  byte[] get(int size) {
+    byte[] buffer = buffers.poll();
+    if (buffer != null) {
+      pooledNumber.decrementAndGet();
+      if (buffer.length >= size) {
+        return buffer;
+      }
+    }
+    return new byte[size];
+  }
+
+  void release(byte[] buffer) {
+    if (buffer == null) {
+      return;
+    }
+    if (pooledNumber.incrementAndGet() > capacity) {
+      pooledNumber.decrementAndGet();
+      return;
+    }
+    buffers.offer(buffer);
+  }
+
+  int size() {
+    return pooledNumber.get();
+  }
+}
@@ -38,8 +38,12 @@ public interface DataTransferProtocol {
    *    Datanode now needs to send back a status code together 
    *    with firstBadLink during pipeline setup for dfs write
    *    (only for DFSClients, not for other datanodes).
+   * Version 17:
+   *    The write block header carries the number of datanodes which ack
+   *    a packet before the rest of the pipeline has written it, after the
+   *    pipeline size.
    */
-  public static final int DATA_TRANSFER_VERSION = 16;
+  public static final int DATA_TRANSFER_VERSION = 17;
 
   // Processed at datanode stream-handler
   public static final byte OP_WRITE_BLOCK = (byte) 80;
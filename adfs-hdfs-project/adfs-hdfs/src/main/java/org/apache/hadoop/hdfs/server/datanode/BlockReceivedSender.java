@@ -0,0 +1,245 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.UnregisteredDatanodeException;
+import org.apache.hadoop.hdfs.server.common.IncorrectVersionException;
+import org.apache.hadoop.hdfs.server.protocol.DisallowedDatanodeException;
+import org.apache.hadoop.ipc.RemoteException;
+import org.apache.hadoop.util.StringUtils;
+
+/**
+ * Sends blockReceived notifications to the namenode from a thread of its
+ * own, so a slow namenode delays neither heartbeats nor the writers.
+ *
+ * Received blocks are queued by block id, a block received again before it
+ * is sent replaces the queued one. A batch is sent when it has
+ * dfs.datanode.blockreceived.batch.size blocks or its first block has waited
+ * dfs.datanode.blockreceived.batch.delay.msec. A failed batch stays queued
+ * and is retried with exponential backoff up to
+ * dfs.datanode.blockreceived.retry.max.msec. When the queue holds
+ * dfs.datanode.blockreceived.queue.size blocks, writers wait for it to drain.
+ * A namenode refusing the datanode stops the datanode, as in offerService.
+ */
+class BlockReceivedSender implements Runnable {
+  private final DataNode datanode;
+  private final int maxBatchSize;
+  private final long maxBatchDelay;
+  private final int maxQueueSize;
+  private final long maxRetryInterval;
+  private final int artificialDelay;
+  private final Random random = new Random();
+
+  // queued notifications in order of arrival, guarded by this
+  private final LinkedHashMap<Long, Received> queue = new LinkedHashMap<Long, Received>();
+  private volatile boolean running = true;
+
+  /**
+   * A queued notification, compared by identity so that a block received
+   * again while its batch is in flight stays queued.
+   */
+  static class Received {
+    final Block block;
+    final String delHint;
+
+    Received(Block block, String delHint) {
+      this.block = block;
+      this.delHint = delHint;
+    }
+  }
+
+  BlockReceivedSender(DataNode datanode, Configuration conf) {
+    this.datanode = datanode;
+    this.maxBatchSize = Math.max(1, conf.getInt("dfs.datanode.blockreceived.batch.size", 1000));
+    this.maxBatchDelay = conf.getLong("dfs.datanode.blockreceived.batch.delay.msec", 0);
+    this.maxQueueSize = Math.max(maxBatchSize,
+        conf.getInt("dfs.datanode.blockreceived.queue.size", 100000));
+    this.maxRetryInterval = conf.getLong("dfs.datanode.blockreceived.retry.max.msec", 10000);
+    // Allow configuration to delay block reports to find bugs
+    this.artificialDelay = conf.getInt("dfs.datanode.artificialBlockReceivedDelay", 0);
+  }
+
+  /**
+   * Queue a notification, waiting while the queue is full.
+   */
+  synchronized void add(Block block, String delHint) {
+    boolean interrupted = false;
+    while (running && queue.size() >= maxQueueSize && !queue.containsKey(block.getBlockId())) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // the block is on disk already, queue it anyway
+        interrupted = true;
+        break;
+      }
+    }
+    // remove first so that the block moves to the end of the queue
+    queue.remove(block.getBlockId());
+    queue.put(block.getBlockId(), new Received(block, delHint));
+    notifyAll();
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  synchronized int size() {
+    return queue.size();
+  }
+
+  void stop() {
+    running = false;
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  public void run() {
+    long retryInterval = 0;
+    while (running && isDatanodeRunning()) {
+      try {
+        List<Received> batch = takeBatch();
+        if (batch == null) {
+          continue;
+        }
+        delayBeforeBlockReceived();
+        int size = batch.size();
+        Block[] blocks = new Block[size];
+        String[] delHints = new String[size];
+        for (int i = 0; i < size; i++) {
+          blocks[i] = batch.get(i).block;
+          delHints[i] = batch.get(i).delHint;
+        }
+        try {
+          send(blocks, delHints);
+        } catch (IOException e) {
+          if (isRefused(e)) {
+            DataNode.LOG.warn("DataNode is shutting down: " +
+                StringUtils.stringifyException(e));
+            shutdownDatanode();
+            break;
+          }
+          retryInterval = retryInterval == 0 ? 100 : Math.min(retryInterval * 2, maxRetryInterval);
+          DataNode.LOG.warn("Failed to send blockReceived of " + size + " blocks, retry in "
+              + retryInterval + " msecs: " + e);
+          Thread.sleep(retryInterval);
+          continue;
+        }
+        retryInterval = 0;
+        acknowledge(batch);
+      } catch (InterruptedException e) {
+        if (!running) {
+          break;
+        }
+      }
+    }
+    DataNode.LOG.info("Exiting BlockReceivedSender with " + size() + " blocks unsent");
+  }
+
+  /**
+   * Send a batch to the namenode.
+   */
+  void send(Block[] blocks, String[] delHints) throws IOException {
+    long startTime = DataNode.now();
+    datanode.namenode.blockReceived(datanode.dnRegistration, blocks, delHints);
+    datanode.myMetrics.blockReceivedBatches.inc(DataNode.now() - startTime);
+  }
+
+  boolean isDatanodeRunning() {
+    return datanode.shouldRun;
+  }
+
+  /**
+   * Stop the datanode. Only the thread running offerService may call
+   * {@link DataNode#shutdown()}, so this lets DataNode.run do it.
+   */
+  void shutdownDatanode() {
+    stop();
+    datanode.shouldRun = false;
+  }
+
+  /**
+   * @return whether the namenode refused the datanode, retrying cannot help then
+   */
+  static boolean isRefused(IOException e) {
+    String eClass = e instanceof RemoteException ? ((RemoteException) e).getClassName() : e.getClass().getName();
+    return UnregisteredDatanodeException.class.getName().equals(eClass) ||
+        DisallowedDatanodeException.class.getName().equals(eClass) ||
+        IncorrectVersionException.class.getName().equals(eClass);
+  }
+
+  /**
+   * Wait for a batch to fill up or for its time to come.
+   * @return the batch, or null if stopped
+   */
+  private synchronized List<Received> takeBatch() throws InterruptedException {
+    while (running && queue.isEmpty()) {
+      wait(1000);
+    }
+    if (!running || queue.isEmpty()) {
+      return null;
+    }
+    long deadline = DataNode.now() + maxBatchDelay;
+    long remaining;
+    while (running && queue.size() < maxBatchSize && (remaining = deadline - DataNode.now()) > 0) {
+      wait(remaining);
+    }
+    List<Received> batch = new ArrayList<Received>(Math.min(queue.size(), maxBatchSize));
+    Iterator<Received> it = queue.values().iterator();
+    while (it.hasNext() && batch.size() < maxBatchSize) {
+      batch.add(it.next());
+    }
+    return batch;
+  }
+
+  /**
+   * Remove the notifications sent, unless the block was received again.
+   */
+  private synchronized void acknowledge(List<Received> batch) {
+    for (Received received : batch) {
+      Long blockId = received.block.getBlockId();
+      if (queue.get(blockId) == received) {
+        queue.remove(blockId);
+      }
+    }
+    notifyAll();
+  }
+
+  /**
+   * When a block has been received, we can delay some period of time before
+   * reporting it to the DN, for the purpose of testing. This simulates
+   * the actual latency of blockReceived on a real network (where the client
+   * may be closer to the NN than the DNs).
+   */
+  private void delayBeforeBlockReceived() throws InterruptedException {
+    if (artificialDelay > 0) {
+      long sleepFor = (long) random.nextInt(artificialDelay);
+      DataNode.LOG.debug("DataNode " + datanode.dnRegistration + " sleeping for "
+          + "artificial delay: " + sleepFor + " ms");
+      Thread.sleep(sleepFor);
+    }
+  }
+}
@@ -81,6 +81,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
   DatanodeInfo srcDataNode = null;
   private Checksum partialCrc = null;
   private DataNode datanode = null;
+  private FSDataset.FSVolume volume = null; // to count foreground I/O
   volatile private boolean mirrorError;
 
   // Cache management state
@@ -112,6 +113,9 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       //
       streams = datanode.data.writeToBlock(block, isRecovery,
                               clientName == null || clientName.length() == 0);
+      if (datanode.blockScanner != null) {
+        this.volume = datanode.blockScanner.getVolume(block);
+      }
       this.finalized = false;
       if (streams != null) {
         this.out = streams.dataOut;
@@ -493,6 +497,9 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
             checksumOut.write(pktBuf, checksumOff, checksumLen);
           }
           datanode.myMetrics.bytesWritten.inc(len);
+          if (datanode.blockScanner != null) {
+            datanode.blockScanner.addForegroundBytes(volume, len);
+          }
         }
       } catch (IOException iex) {
         datanode.checkDiskError(iex);
@@ -553,6 +560,21 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
       DataOutputStream replyOut,  // output to previous datanode
       String mirrAddr, BlockTransferThrottler throttlerArg,
       int numTargets) throws IOException {
+    receiveBlock(mirrOut, mirrIn, replyOut, mirrAddr, throttlerArg,
+                 numTargets, 0);
+  }
+
+  /**
+   * Receive a block and mirror it to the next target.
+   * @param ackReplicas number of datanodes from this one on which ack a
+   *        packet before the rest of the pipeline has written it, 0 for all
+   */
+  void receiveBlock(
+      DataOutputStream mirrOut, // output to next datanode
+      DataInputStream mirrIn,   // input from next datanode
+      DataOutputStream replyOut,  // output to previous datanode
+      String mirrAddr, BlockTransferThrottler throttlerArg,
+      int numTargets, int ackReplicas) throws IOException {
 
       mirrorOut = mirrOut;
       mirrorAddr = mirrAddr;
@@ -567,6 +589,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
         responder = new Daemon(datanode.threadGroup, 
                                new PacketResponder(this, block, mirrIn, 
                                                    replyOut, numTargets,
+                                                   ackReplicas == 1,
                                                    Thread.currentThread()));
         responder.start(); // start thread to processes reponses
       }
@@ -753,6 +776,11 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     DataInputStream mirrorIn;   // input from downstream datanode
     DataOutputStream replyOut;  // output to upstream datanode
     private int numTargets;     // number of downstream datanodes including myself
+    // ack a packet once it is written here, the downstream acks are read
+    // by another thread and only reported when they fail
+    private boolean ackEarly;
+    private long lastMirrorAckedSeqno = -1;
+    private short[] mirrorReplies; // replies of the first failed downstream ack
     private BlockReceiver receiver; // The owner of this responder.
     private Thread receiverThread; // the thread that spawns this responder
 
@@ -763,11 +791,18 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
     PacketResponder(BlockReceiver receiver, Block b, DataInputStream in, 
                     DataOutputStream out, int numTargets,
                     Thread receiverThread) {
+      this(receiver, b, in, out, numTargets, false, receiverThread);
+    }
+
+    PacketResponder(BlockReceiver receiver, Block b, DataInputStream in, 
+                    DataOutputStream out, int numTargets, boolean ackEarly,
+                    Thread receiverThread) {
       this.receiver = receiver;
       this.block = b;
       mirrorIn = in;
       replyOut = out;
       this.numTargets = numTargets;
+      this.ackEarly = ackEarly && numTargets > 0;
       this.receiverThread = receiverThread;
     }
 
@@ -846,7 +881,23 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
             if (!running || !datanode.shouldRun) {
               break;
             }
-            Packet pkt = ackQueue.removeFirst();
+            Packet pkt = ackQueue.getFirst();
+            if (pkt.lastPacketInBlock && numTargets > 0) {
+              // the block is not complete until the downstream datanodes
+              // have it too
+              while (running && datanode.shouldRun && !mirrorError &&
+                     lastMirrorAckedSeqno < pkt.seqno) {
+                try {
+                  wait(1000);
+                } catch (InterruptedException e) {
+                  running = false;
+                }
+              }
+              if (!running || !datanode.shouldRun) {
+                break;
+              }
+            }
+            ackQueue.removeFirst();
             long expected = pkt.seqno;
             notifyAll();
             LOG.debug("PacketResponder " + numTargets +
@@ -880,8 +931,7 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
               lastPacket = true;
             }
 
-            new PipelineAck(expected, new short[]{
-                DataTransferProtocol.OP_STATUS_SUCCESS}).write(replyOut);
+            new PipelineAck(expected, getEarlyReplies()).write(replyOut);
             replyOut.flush();
         } catch (Exception e) {
           LOG.warn("IOException in BlockReceiver.lastNodeRun: ", e);
@@ -902,6 +952,66 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
                " for block " + block + " terminating");
     }
 
+    /**
+     * The replies of an ack sent before the downstream datanodes ack the
+     * packet. They are all success unless a downstream ack failed.
+     */
+    private synchronized short[] getEarlyReplies() {
+      short[] replies = new short[1 + numTargets];
+      replies[0] = DataTransferProtocol.OP_STATUS_SUCCESS;
+      for (int i = 0; i < numTargets; i++) {
+        if (mirrorReplies != null) {
+          replies[i+1] = mirrorReplies[i];
+        } else if (mirrorError) {
+          // the client will eject the first node with ERROR status
+          replies[i+1] = DataTransferProtocol.OP_STATUS_ERROR;
+        } else {
+          replies[i+1] = DataTransferProtocol.OP_STATUS_SUCCESS;
+        }
+      }
+      return replies;
+    }
+
+    /**
+     * Read the acks from downstream datanodes when this datanode does not
+     * wait for them, and keep the replies of the first failed one.
+     */
+    private void readMirrorAcks() {
+      PipelineAck ack = new PipelineAck();
+      while (running && datanode.shouldRun && !mirrorError) {
+        try {
+          ack.readFields(mirrorIn, numTargets);
+          if (LOG.isDebugEnabled()) {
+            LOG.debug("PacketResponder " + numTargets + " got " + ack);
+          }
+          if (ack.getSeqno() == PipelineAck.HEART_BEAT.getSeqno()) {
+            continue;
+          }
+          synchronized (this) {
+            if (ack.isSuccess()) {
+              lastMirrorAckedSeqno = ack.getSeqno();
+            } else {
+              mirrorReplies = new short[numTargets];
+              for (int i = 0; i < numTargets; i++) {
+                mirrorReplies[i] = ack.getReply(i);
+              }
+              mirrorError = true;
+            }
+            notifyAll();
+          }
+        } catch (IOException ioe) {
+          synchronized (this) {
+            if (running) {
+              mirrorError = true;
+              LOG.info("PacketResponder " + block + " " + numTargets +
+                  " Exception " + StringUtils.stringifyException(ioe));
+            }
+            notifyAll();
+          }
+        }
+      }
+    }
+
     /**
      * Thread to process incoming acks.
      * @see java.lang.Runnable#run()
@@ -914,6 +1024,24 @@ class BlockReceiver implements java.io.Closeable, FSConstants {
         return;
       }
 
+      // If this is the last datanode which acks before the rest of the
+      // pipeline, then ack like the last one and read downstream acks aside
+      if (ackEarly) {
+        Daemon mirrorAckReader = new Daemon(datanode.threadGroup,
+            new Runnable() {
+              public void run() {
+                readMirrorAcks();
+              }
+            });
+        mirrorAckReader.start();
+        try {
+          lastDataNodeRun();
+        } finally {
+          mirrorAckReader.interrupt();
+        }
+        return;
+      }
+
       boolean lastPacketInBlock = false;
       boolean isInterrupted = false;
       final long startTime = ClientTraceLog.isInfoEnabled() ? System.nanoTime() : 0;
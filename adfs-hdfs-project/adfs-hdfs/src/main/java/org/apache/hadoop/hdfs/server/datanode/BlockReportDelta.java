@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+
+/**
+ * Replica changes of a dataset which have not been acknowledged by the
+ * namenode yet, sent by the datanode as an incremental block report.
+ *
+ * Only the latest change of a block id is kept: a replica deleted after it
+ * was added is reported as deleted only, and the other way around. A change
+ * is acknowledged only if it has not been superseded while the report was in
+ * flight, so nothing recorded concurrently with a report is lost.
+ */
+public class BlockReportDelta {
+  private final ConcurrentMap<Long, Change> changes =
+      new ConcurrentHashMap<Long, Change>();
+
+  /**
+   * A replica change, compared by identity so that a newer change of the
+   * same block is never acknowledged by mistake.
+   */
+  static class Change {
+    final Block block;
+    final boolean deleted;
+
+    Change(Block block, boolean deleted) {
+      this.block = new Block(block);
+      this.deleted = deleted;
+    }
+  }
+
+  /**
+   * Record a replica that is added, or whose length or generation stamp
+   * has been updated.
+   */
+  public void added(Block block) {
+    changes.put(block.getBlockId(), new Change(block, false));
+  }
+
+  /**
+   * Record a replica that is deleted.
+   */
+  public void deleted(Block block) {
+    changes.put(block.getBlockId(), new Change(block, true));
+  }
+
+  public boolean isEmpty() {
+    return changes.isEmpty();
+  }
+
+  public int size() {
+    return changes.size();
+  }
+
+  /**
+   * @return the pending changes, to be passed to {@link #acknowledge(List)}
+   *         after the namenode has processed them
+   */
+  List<Change> getChanges() {
+    return new ArrayList<Change>(changes.values());
+  }
+
+  /**
+   * Remove the changes processed by the namenode unless superseded since.
+   */
+  void acknowledge(List<Change> processed) {
+    for (Change change : processed) {
+      changes.remove(change.block.getBlockId(), change);
+    }
+  }
+
+  /**
+   * Convert the added or the deleted replicas of the changes to a block
+   * list of longs.
+   */
+  static long[] toArrayLongs(List<Change> changeList, boolean deleted) {
+    List<Block> blocks = new ArrayList<Block>(changeList.size());
+    for (Change change : changeList) {
+      if (change.deleted == deleted) {
+        blocks.add(change.block);
+      }
+    }
+    return BlockListAsLongs.convertToArrayLongs(blocks.toArray(new Block[blocks.size()]));
+  }
+
+  /**
+   * Drop all pending changes, e.g. after the namenode asks the datanode to
+   * register again and a full report follows.
+   */
+  public void clear() {
+    changes.clear();
+  }
+}
@@ -71,6 +71,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
   private boolean blockReadFully; // set if the entire block was read
   private boolean verifyChecksum; //if true, check is verified while reading
   private BlockTransferThrottler throttler;
+  private int packetSize = BUFFER_SIZE; // data bytes per packet without transferTo
   private final String clientTraceFmt; // format of client trace log message
   private final MemoizedBlock memoizedBlock;
   private FileDescriptor blockInFd;
@@ -414,6 +415,15 @@ class BlockSender implements java.io.Closeable, FSConstants {
     return len;
   }
 
+  /**
+   * Set the number of data bytes read, verified and sent per packet when
+   * transferTo() is not used. A block scanner verifies checksums of many
+   * chunks per read with a large packet.
+   */
+  void setPacketSize(int packetSize) {
+    this.packetSize = Math.max(packetSize, 1);
+  }
+
   /**
    * sendBlock() is used to read block and its metadata and stream the data to
    * either a client or to another datanode. 
@@ -482,7 +492,7 @@ class BlockSender implements java.io.Closeable, FSConstants {
         pktSize += (bytesPerChecksum + checksumSize) * maxChunksPerPacket;
       } else {
         maxChunksPerPacket = Math.max(1,
-                 (BUFFER_SIZE + bytesPerChecksum - 1)/bytesPerChecksum);
+                 (packetSize + bytesPerChecksum - 1)/bytesPerChecksum);
         pktSize += (bytesPerChecksum + checksumSize) * maxChunksPerPacket;
       }
 
@@ -18,24 +18,35 @@
 
 package org.apache.hadoop.hdfs.server.datanode;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.io.RandomAccessFile;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Random;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -50,19 +61,31 @@ import org.apache.hadoop.hdfs.protocol.Block;
 import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
 import org.apache.hadoop.hdfs.protocol.LocatedBlock;
 import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Daemon;
 import org.apache.hadoop.util.StringUtils;
 
 /*
  * This keeps track of blocks and their last verification times.
  * Currently it does not modify the metadata for block.
+ *
+ * Every volume is scanned by its own thread, so all disks are verified in
+ * parallel. The scan rate of a volume is at least the rate needed to finish
+ * the scan period, and rises up to dfs.datanode.scan.rate.max while the
+ * foreground I/O of clients is low, e.g. at night. Verification times are
+ * kept in a binary log on each volume.
  */
 
 class DataBlockScanner implements Runnable {
   
   public static final Log LOG = LogFactory.getLog(DataBlockScanner.class);
   
-  private static final int MAX_SCAN_RATE = 8 * 1024 * 1024; // 8MB per sec
+  // scan rates of one volume
+  private static final int MAX_SCAN_RATE = 32 * 1024 * 1024; // 32MB per sec
   private static final int MIN_SCAN_RATE = 1 * 1024 * 1024; // 1MB per sec
+  // foreground I/O of one volume at which scanning falls back to the rate
+  // needed to finish the scan period
+  private static final int FOREGROUND_RATE_THRESHOLD = 16 * 1024 * 1024;
+  private static final int SCAN_BUFFER_SIZE = 1024 * 1024;
   
   static final long DEFAULT_SCAN_PERIOD_HOURS = 21*24L; // three weeks
   private static final long ONE_DAY = 24*3600*1000L;
@@ -70,16 +93,22 @@ class DataBlockScanner implements Runnable {
   static final DateFormat dateFormat = 
                     new SimpleDateFormat("yyyy-MM-dd HH:mm:ss,SSS");
   
-  static final String verificationLogFile = "dncp_block_verification.log";
+  static final String verificationLogFile = "dncp_block_verification.bin";
+  // text log of older versions, read once and converted to the binary log
+  static final String legacyVerificationLogFile = "dncp_block_verification.log";
   static final int verficationLogLimit = 5; // * numBlocks.
 
   private long scanPeriod = DEFAULT_SCAN_PERIOD_HOURS * 3600 * 1000;
+  private final long minScanRate;
+  private final long maxScanRate;
+  private final long foregroundRateThreshold;
+  private final int scanBufferSize;
   DataNode datanode;
   FSDataset dataset;
   
-  // sorted set
-  TreeSet<BlockScanInfo> blockInfoSet;
+  // all blocks, the blocks of a volume are sorted in its VolumeScanner
   HashMap<Block, BlockScanInfo> blockMap;
+  Map<FSDataset.FSVolume, VolumeScanner> volumeScanners;
   
   long totalScans = 0;
   long totalVerifications = 0; // includes remote verification by clients.
@@ -87,15 +116,13 @@ class DataBlockScanner implements Runnable {
   long totalTransientErrors = 0;
   
   long currentPeriodStart = System.currentTimeMillis();
-  long bytesLeft = 0; // Bytes to scan in this period
-  long totalBytesToScan = 0;
   
-  private LogFileHandler verificationLog;
+  // bytes read and written by clients and other datanodes on each volume
+  private final ConcurrentMap<FSDataset.FSVolume, AtomicLong> foregroundBytes =
+      new ConcurrentHashMap<FSDataset.FSVolume, AtomicLong>();
   
   Random random = new Random();
   
-  BlockTransferThrottler throttler = null;
-  
   private static enum ScanType {
     REMOTE_READ,           // Verified when a block read by a client etc
     VERIFICATION_SCAN,     // scanned as part of periodic verfication
@@ -104,13 +131,15 @@ class DataBlockScanner implements Runnable {
   
   static class BlockScanInfo implements Comparable<BlockScanInfo> {
     Block block;
+    VolumeScanner volumeScanner;
     long lastScanTime = 0;
     long lastLogTime = 0;
     ScanType lastScanType = ScanType.NONE; 
     boolean lastScanOk = true;
     
-    BlockScanInfo(Block block) {
+    BlockScanInfo(Block block, VolumeScanner volumeScanner) {
       this.block = block;
+      this.volumeScanner = volumeScanner;
     }
     
     public int hashCode() {
@@ -134,6 +163,49 @@ class DataBlockScanner implements Runnable {
     }
   }
   
+  /**
+   * Scan state of the blocks on one volume. It is guarded by the lock of
+   * the DataBlockScanner, except the throttler which is throttled by the
+   * thread of the volume while the DataBlockScanner thread changes its
+   * bandwidth; BlockTransferThrottler is synchronized for that.
+   */
+  class VolumeScanner implements Runnable {
+    final FSDataset.FSVolume volume;
+    final TreeSet<BlockScanInfo> blockInfoSet = new TreeSet<BlockScanInfo>();
+    long bytesLeft = 0; // Bytes to scan in this period
+    long totalBytesToScan = 0;
+    LogFileHandler verificationLog;
+    final BlockTransferThrottler throttler =
+        new BlockTransferThrottler(1000, maxScanRate);
+    volatile boolean running = true;
+    // smoothed foreground I/O rate of the volume in bytes per second
+    long foregroundRate = 0;
+    long lastForegroundBytes = 0;
+    long lastForegroundSampleTime = System.currentTimeMillis();
+    
+    VolumeScanner(FSDataset.FSVolume volume) {
+      this.volume = volume;
+    }
+    
+    public void run() {
+      try {
+        while (running && datanode.shouldRun) {
+          Block block = getBlockToScan(this);
+          if (block != null) {
+            verifyBlock(this, block);
+          } else {
+            Thread.sleep(1000);
+          }
+        }
+      } catch (InterruptedException ie) {
+        LOG.info("DataBlockScanner of " + volume + " interrupted");
+      } catch (RuntimeException e) {
+        LOG.warn("RuntimeException during DataBlockScanner of " + volume +
+            " : " + StringUtils.stringifyException(e));
+      }
+    }
+  }
+  
   DataBlockScanner(DataNode datanode, FSDataset dataset, Configuration conf) {
     this.datanode = datanode;
     this.dataset = dataset;
@@ -142,50 +214,65 @@ class DataBlockScanner implements Runnable {
       scanPeriod = DEFAULT_SCAN_PERIOD_HOURS;
     }
     scanPeriod *= 3600 * 1000;
+    minScanRate = Math.max(1,
+        conf.getLong("dfs.datanode.scan.rate.min", MIN_SCAN_RATE));
+    maxScanRate = Math.max(minScanRate,
+        conf.getLong("dfs.datanode.scan.rate.max", MAX_SCAN_RATE));
+    foregroundRateThreshold = Math.max(1,
+        conf.getLong("dfs.datanode.scan.foreground.rate.threshold",
+                     FOREGROUND_RATE_THRESHOLD));
+    scanBufferSize = conf.getInt("dfs.datanode.scan.buffer.size",
+                                 SCAN_BUFFER_SIZE);
     // initialized when the scanner thread is started.
   }
   
   private synchronized boolean isInitialized() {
-    return throttler != null;
+    return volumeScanners != null;
   }
   
-  private void updateBytesToScan(long len, long lastScanTime) {
+  private void updateBytesToScan(VolumeScanner vs, long len,
+                                 long lastScanTime) {
     // len could be negative when a block is deleted.
-    totalBytesToScan += len;
+    vs.totalBytesToScan += len;
     if ( lastScanTime < currentPeriodStart ) {
-      bytesLeft += len;
+      vs.bytesLeft += len;
     }
     // Should we change throttler bandwidth every time bytesLeft changes?
     // not really required.
   }
   
   private synchronized void addBlockInfo(BlockScanInfo info) {
-    boolean added = blockInfoSet.add(info);
+    VolumeScanner vs = info.volumeScanner;
+    boolean added = vs.blockInfoSet.add(info);
     blockMap.put(info.block, info);
     
     if ( added ) {
-      LogFileHandler log = verificationLog;
+      LogFileHandler log = vs.verificationLog;
       if (log != null) {
-        log.setMaxNumLines(blockMap.size() * verficationLogLimit);
+        log.setMaxNumEntries(vs.blockInfoSet.size() * verficationLogLimit);
       }
-      updateBytesToScan(info.block.getNumBytes(), info.lastScanTime);
+      updateBytesToScan(vs, info.block.getNumBytes(), info.lastScanTime);
     }
   }
   
   private synchronized void delBlockInfo(BlockScanInfo info) {
-    boolean exists = blockInfoSet.remove(info);
+    VolumeScanner vs = info.volumeScanner;
+    boolean exists = vs.blockInfoSet.remove(info);
     blockMap.remove(info.block);
     if ( exists ) {
-      LogFileHandler log = verificationLog;
+      LogFileHandler log = vs.verificationLog;
       if (log != null) {
-        log.setMaxNumLines(blockMap.size() * verficationLogLimit);
+        log.setMaxNumEntries(vs.blockInfoSet.size() * verficationLogLimit);
       }
-      updateBytesToScan(-info.block.getNumBytes(), info.lastScanTime);
+      updateBytesToScan(vs, -info.block.getNumBytes(), info.lastScanTime);
     }
   }
   
-  /** Update blockMap by the given LogEntry */
-  private synchronized void updateBlockInfo(LogEntry e) {
+  /**
+   * Update blockMap by the given LogEntry
+   * @return the updated block info, null if not updated
+   */
+  private synchronized BlockScanInfo updateBlockInfo(LogEntry e) {
     BlockScanInfo info = blockMap.get(new Block(e.blockId, 0, e.genStamp));
     
     if(info != null && e.verificationTime > 0 && 
@@ -194,7 +281,19 @@ class DataBlockScanner implements Runnable {
       info.lastScanTime = e.verificationTime;
       info.lastScanType = ScanType.VERIFICATION_SCAN;
       addBlockInfo(info);
+      return info;
     }
+    return null;
+  }
+  
+  /**
+   * @return the scanner of the volume holding the block, null if the block
+   *         is not in the dataset
+   */
+  private synchronized VolumeScanner getVolumeScanner(Block block) {
+    DatanodeBlockInfo dinfo = dataset.volumeMap.get(block);
+    FSDataset.FSVolume volume = dinfo == null ? null : dinfo.getVolume();
+    return volume == null ? null : volumeScanners.get(volume);
   }
 
   private void init() throws InterruptedException {
@@ -203,42 +302,35 @@ class DataBlockScanner implements Runnable {
     Block arr[] = dataset.getBlockReport();
     Collections.shuffle(Arrays.asList(arr));
     
-    blockInfoSet = new TreeSet<BlockScanInfo>();
-    blockMap = new HashMap<Block, BlockScanInfo>();
-    
-    long scanTime = -1;
-    for (Block block : arr) {
-      BlockScanInfo info = new BlockScanInfo( block );
-      info.lastScanTime = scanTime--; 
-      //still keep 'info.lastScanType' to NONE.
-      addBlockInfo(info);
-    }
-
-    /* Pick the first directory that has any existing scanner log.
-     * otherwise, pick the first directory.
-     */
-    File dir = null;
-    FSDataset.FSVolume[] volumes = dataset.volumes.volumes;
-    for(FSDataset.FSVolume vol : volumes) {
-      if (LogFileHandler.isFilePresent(vol.getDir(), verificationLogFile)) {
-        dir = vol.getDir();
-        break;
+    Map<FSDataset.FSVolume, VolumeScanner> scanners =
+        new HashMap<FSDataset.FSVolume, VolumeScanner>();
+    for (FSDataset.FSVolume vol : dataset.volumes.volumes) {
+      VolumeScanner vs = new VolumeScanner(vol);
+      try {
+        // max entries will be updated later during initialization.
+        vs.verificationLog =
+            new LogFileHandler(vol.getDir(), verificationLogFile, 100);
+      } catch (IOException e) {
+        LOG.warn("Could not open verfication log on " + vol +
+                 ". Verification times are not stored.");
       }
-    }
-    if (dir == null) {
-      dir = volumes[0].getDir();
-    }
-    
-    try {
-      // max lines will be updated later during initialization.
-      verificationLog = new LogFileHandler(dir, verificationLogFile, 100);
-    } catch (IOException e) {
-      LOG.warn("Could not open verfication log. " +
-               "Verification times are not stored.");
+      scanners.put(vol, vs);
     }
     
     synchronized (this) {
-      throttler = new BlockTransferThrottler(200, MAX_SCAN_RATE);
+      blockMap = new HashMap<Block, BlockScanInfo>();
+      volumeScanners = scanners;
+      long scanTime = -1;
+      for (Block block : arr) {
+        VolumeScanner vs = getVolumeScanner(block);
+        if (vs == null) {
+          continue;
+        }
+        BlockScanInfo info = new BlockScanInfo(block, vs);
+        info.lastScanTime = scanTime--; 
+        //still keep 'info.lastScanType' to NONE.
+        addBlockInfo(info);
+      }
     }
   }
 
@@ -265,11 +357,16 @@ class DataBlockScanner implements Runnable {
       delBlockInfo(info);
     }
     
-    info = new BlockScanInfo(block);    
+    VolumeScanner vs = getVolumeScanner(block);
+    if (vs == null) {
+      LOG.warn("Adding a block " + block + " not in the dataset");
+      return;
+    }
+    info = new BlockScanInfo(block, vs);    
     info.lastScanTime = getNewBlockScanTime();
     
     addBlockInfo(info);
-    adjustThrottler();
+    adjustThrottler(vs);
   }
   
   /** Deletes the block from internal structures */
@@ -299,6 +396,58 @@ class DataBlockScanner implements Runnable {
     }
   }
   
+  /**
+   * @return the volume of a block, or null if the block is not found
+   */
+  FSDataset.FSVolume getVolume(Block block) {
+    DatanodeBlockInfo dinfo = dataset.volumeMap.get(block);
+    return dinfo == null ? null : dinfo.getVolume();
+  }
+  
+  /**
+   * Count bytes read or written by clients and other datanodes on a volume,
+   * the scan rate of the volume is lowered while there is much foreground
+   * I/O on it.
+   */
+  void addForegroundBytes(FSDataset.FSVolume volume, long bytes) {
+    if (volume == null) {
+      return;
+    }
+    AtomicLong counter = foregroundBytes.get(volume);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong(0);
+      counter = foregroundBytes.putIfAbsent(volume, newCounter);
+      if (counter == null) {
+        counter = newCounter;
+      }
+    }
+    counter.addAndGet(bytes);
+  }
+  
+  /** Count foreground bytes on the volume of a block. */
+  void addForegroundBytes(Block block, long bytes) {
+    addForegroundBytes(getVolume(block), bytes);
+  }
+  
+  /**
+   * @return the smoothed foreground I/O rate of a volume in bytes per second
+   */
+  private synchronized long getForegroundRate(VolumeScanner vs) {
+    long now = System.currentTimeMillis();
+    long elapsed = now - vs.lastForegroundSampleTime;
+    if (elapsed >= 1000) {
+      AtomicLong counter = foregroundBytes.get(vs.volume);
+      long bytes = counter == null ? 0 : counter.get();
+      long rate = (bytes - vs.lastForegroundBytes) * 1000 / elapsed;
+      // average with the previous rate so a short burst does not swing the
+      // scan rate back and forth
+      vs.foregroundRate = (vs.foregroundRate + rate) / 2;
+      vs.lastForegroundBytes = bytes;
+      vs.lastForegroundSampleTime = now;
+    }
+    return vs.foregroundRate;
+  }
+  
   /*
     A reader will try to indicate a block is verified and will add blocks 
     to the DataBlockScanner before they are finished (due to concurrent 
@@ -344,7 +493,11 @@ class DataBlockScanner implements Runnable {
         return;
       }
       // It might already be removed. Thats ok, it will be caught next time.
-      info = new BlockScanInfo(block);
+      VolumeScanner vs = getVolumeScanner(block);
+      if (vs == null) {
+        return;
+      }
+      info = new BlockScanInfo(block, vs);
     }
     
     long now = System.currentTimeMillis();
@@ -366,9 +519,9 @@ class DataBlockScanner implements Runnable {
     }
     
     info.lastLogTime = now;
-    LogFileHandler log = verificationLog;
+    LogFileHandler log = info.volumeScanner.verificationLog;
     if (log != null) {
-      log.appendLine(LogEntry.newEnry(block, now));
+      log.append(block, now);
     }
   }
   
@@ -389,27 +542,18 @@ class DataBlockScanner implements Runnable {
     }
   }
   
-  static private class LogEntry {
+  static class LogEntry {
     long blockId = -1;
     long verificationTime = -1;
     long genStamp = Block.GRANDFATHER_GENERATION_STAMP;
     
     /**
-     * The format consists of single line with multiple entries. each 
-     * entry is in the form : name="value".
-     * This simple text and easily extendable and easily parseable with a
-     * regex.
+     * The format of the legacy text log consists of single line with
+     * multiple entries. each entry is in the form : name="value".
      */
     private static Pattern entryPattern = 
       Pattern.compile("\\G\\s*([^=\\p{Space}]+)=\"(.*?)\"\\s*");
     
-    static String newEnry(Block block, long time) {
-      return "date=\"" + dateFormat.format(new Date(time)) + "\"\t " +
-             "time=\"" + time + "\"\t " +
-             "genstamp=\"" + block.getGenerationStamp() + "\"\t " +
-             "id=\"" + block.getBlockId() +"\"";
-    }
-    
     static LogEntry parseEntry(String line) {
       LogEntry entry = new LogEntry();
       
@@ -436,13 +580,28 @@ class DataBlockScanner implements Runnable {
     }
   }
   
-  private synchronized void adjustThrottler() {
+  private synchronized void adjustThrottler(VolumeScanner vs) {
     long timeLeft = currentPeriodStart+scanPeriod - System.currentTimeMillis();
-    long bw = Math.max(bytesLeft*1000/timeLeft, MIN_SCAN_RATE);
-    throttler.setBandwidth(Math.min(bw, MAX_SCAN_RATE));
+    vs.throttler.setBandwidth(getScanRate(vs.bytesLeft, timeLeft,
+        getForegroundRate(vs), minScanRate, maxScanRate,
+        foregroundRateThreshold));
+  }
+  
+  /**
+   * The rate of a volume is at least the rate needed to scan the bytes left
+   * in the period, and goes up to the max rate as the foreground I/O of the
+   * volume goes down.
+   */
+  static long getScanRate(long bytesLeft, long timeLeft, long foregroundRate,
+                          long minRate, long maxRate, long threshold) {
+    long bw = Math.max(bytesLeft*1000/Math.max(timeLeft, 1), minRate);
+    double idleRatio = 1.0 - Math.min(1.0,
+        (double) foregroundRate / threshold);
+    bw = Math.max(bw, (long) (maxRate * idleRatio));
+    return Math.min(bw, maxRate);
   }
   
-  private void verifyBlock(Block block) {
+  private void verifyBlock(VolumeScanner vs, Block block) {
     
     BlockSender blockSender = null;
 
@@ -454,21 +613,25 @@ class DataBlockScanner implements Runnable {
       boolean second = (i > 0);
       
       try {
-        adjustThrottler();
+        adjustThrottler(vs);
         
         blockSender = new BlockSender(block, 0, -1, false, 
                                                false, true, datanode);
+        // verify checksums of many chunks per read
+        blockSender.setPacketSize(scanBufferSize);
 
         DataOutputStream out = 
                 new DataOutputStream(new IOUtils.NullOutputStream());
         
-        blockSender.sendBlock(out, null, throttler);
+        blockSender.sendBlock(out, null, vs.throttler);
 
         LOG.info((second ? "Second " : "") +
                  "Verification succeeded for " + block);
         
         if ( second ) {
-          totalTransientErrors++;
+          synchronized (this) {
+            totalTransientErrors++;
+          }
         }
         
         updateScanStatus(block, ScanType.VERIFICATION_SCAN, true);
@@ -476,7 +639,9 @@ class DataBlockScanner implements Runnable {
         return;
       } catch (IOException e) {
 
-        totalScanErrors++;
+        synchronized (this) {
+          totalScanErrors++;
+        }
         updateScanStatus(block, ScanType.VERIFICATION_SCAN, false);
 
         // If the block does not exists anymore, then its not an error
@@ -499,88 +664,64 @@ class DataBlockScanner implements Runnable {
       } finally {
         IOUtils.closeStream(blockSender);
         datanode.getMetrics().blocksVerified.inc();
-        totalScans++;
-        totalVerifications++;
+        synchronized (this) {
+          totalScans++;
+          totalVerifications++;
+        }
       }
     }
   }
   
-  private synchronized long getEarliestScanTime() {
-    if ( blockInfoSet.size() > 0 ) {
-      return blockInfoSet.first().lastScanTime;
-    }
-    return Long.MAX_VALUE; 
-  }
-  
-  // Picks one block and verifies it
-  private void verifyFirstBlock() {
-    Block block = null;
-    synchronized (this) {
-      if ( blockInfoSet.size() > 0 ) {
-        block = blockInfoSet.first().block;
-      }
+  /**
+   * @return the block of the volume verified longest ago if it is due,
+   *         otherwise null
+   */
+  private synchronized Block getBlockToScan(VolumeScanner vs) {
+    if (vs.blockInfoSet.isEmpty()) {
+      return null;
     }
-    
-    if ( block != null ) {
-      verifyBlock(block);
+    BlockScanInfo info = vs.blockInfoSet.first();
+    if (System.currentTimeMillis() - info.lastScanTime < scanPeriod) {
+      return null;
     }
+    return info.block;
   }
   
   /** returns false if the process was interrupted
    * because the thread is marked to exit.
    */
   private boolean assignInitialVerificationTimes() {
-    int numBlocks = 1;
+    List<VolumeScanner> scanners;
     synchronized (this) {
-      numBlocks = Math.max(blockMap.size(), 1);
-    }
-    
-    //First udpates the last verification times from the log file.
-    LogFileHandler.Reader logReader = null;
-    try {
-      if (verificationLog != null) {
-        logReader = verificationLog.new Reader(false);
-      }
-    } catch (IOException e) {
-      LOG.warn("Could not read previous verification times : " +
-               StringUtils.stringifyException(e));
-    }
-    
-    if (verificationLog != null) {
-      verificationLog.updateCurNumLines();
+      scanners = new ArrayList<VolumeScanner>(volumeScanners.values());
     }
     
-    try {
-    // update verification times from the verificationLog.
-    while (logReader != null && logReader.hasNext()) {
-      if (!datanode.shouldRun || Thread.interrupted()) {
+    //First udpates the last verification times from the logs.
+    for (VolumeScanner vs : scanners) {
+      if (!readVerificationLog(vs) || !readLegacyVerificationLog(vs)) {
         return false;
       }
-      LogEntry entry = LogEntry.parseEntry(logReader.next());
-      if (entry != null) {
-        updateBlockInfo(entry);
-      }
-    }
-    } finally {
-      IOUtils.closeStream(logReader);
     }
     
     /* Initially spread the block reads over half of 
      * MIN_SCAN_PERIOD so that we don't keep scanning the 
      * blocks too quickly when restarted.
      */
-    long verifyInterval = (long) (Math.min( scanPeriod/2.0/numBlocks,
-                                            10*60*1000 ));
-    long lastScanTime = System.currentTimeMillis() - scanPeriod;
-    
-    /* Before this loop, entries in blockInfoSet that are not
-     * updated above have lastScanTime of <= 0 . Loop until first entry has
-     * lastModificationTime > 0.
-     */    
+    long now = System.currentTimeMillis();
     synchronized (this) {
-      if (blockInfoSet.size() > 0 ) {
+      for (VolumeScanner vs : scanners) {
+        int numBlocks = Math.max(vs.blockInfoSet.size(), 1);
+        long verifyInterval = (long) (Math.min( scanPeriod/2.0/numBlocks,
+                                                10*60*1000 ));
+        long lastScanTime = now - scanPeriod;
+        
+        /* Before this loop, entries in blockInfoSet that are not
+         * updated above have lastScanTime of <= 0 . Loop until first entry
+         * has lastModificationTime > 0.
+         */    
         BlockScanInfo info;
-        while ((info =  blockInfoSet.first()).lastScanTime < 0) {
+        while (vs.blockInfoSet.size() > 0 &&
+               (info = vs.blockInfoSet.first()).lastScanTime < 0) {
           delBlockInfo(info);        
           info.lastScanTime = lastScanTime;
           lastScanTime += verifyInterval;
@@ -592,15 +733,89 @@ class DataBlockScanner implements Runnable {
     return true;
   }
   
+  /** returns false if interrupted */
+  private boolean readVerificationLog(VolumeScanner vs) {
+    LogFileHandler log = vs.verificationLog;
+    if (log == null) {
+      return true;
+    }
+    LogFileHandler.Reader logReader = null;
+    try {
+      logReader = log.new Reader(false);
+      while (logReader.hasNext()) {
+        if (!datanode.shouldRun || Thread.interrupted()) {
+          return false;
+        }
+        updateBlockInfo(logReader.next());
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not read previous verification times on " + 
+               vs.volume + " : " + StringUtils.stringifyException(e));
+    } finally {
+      IOUtils.closeStream(logReader);
+    }
+    log.updateCurNumEntries();
+    return true;
+  }
+  
+  /**
+   * Read the text log written by older versions in the volume, if any. The
+   * entries of all volumes are added to the binary logs of their volumes and
+   * the text log is removed.
+   * returns false if interrupted
+   */
+  private boolean readLegacyVerificationLog(VolumeScanner vs) {
+    File[] files = {
+        new File(vs.volume.getDir(), legacyVerificationLogFile + ".prev"),
+        new File(vs.volume.getDir(), legacyVerificationLogFile + ".curr") };
+    for (File file : files) {
+      if (!file.exists()) {
+        continue;
+      }
+      BufferedReader reader = null;
+      try {
+        reader = new BufferedReader(new FileReader(file));
+        for (String line; (line = reader.readLine()) != null;) {
+          if (!datanode.shouldRun || Thread.interrupted()) {
+            return false;
+          }
+          LogEntry entry = LogEntry.parseEntry(line);
+          BlockScanInfo info = entry == null ? null : updateBlockInfo(entry);
+          LogFileHandler log = info == null ? null :
+                               info.volumeScanner.verificationLog;
+          if (log != null) {
+            log.append(info.block, info.lastScanTime);
+          }
+        }
+      } catch (IOException e) {
+        LOG.warn("Could not read legacy verification log " + file + " : " +
+                 StringUtils.stringifyException(e));
+      } finally {
+        IOUtils.closeStream(reader);
+      }
+      if (!file.delete()) {
+        LOG.warn("Could not delete legacy verification log " + file);
+      }
+    }
+    return true;
+  }
+  
   private synchronized void startNewPeriod() {
+    long bytesLeft = 0;
+    long totalBytesToScan = 0;
+    for (VolumeScanner vs : volumeScanners.values()) {
+      bytesLeft += vs.bytesLeft;
+      totalBytesToScan += vs.totalBytesToScan;
+      // reset the byte counts :
+      vs.bytesLeft = vs.totalBytesToScan;
+    }
     LOG.info("Starting a new period : work left in prev period : " +
              String.format("%.2f%%", (bytesLeft * 100.0)/totalBytesToScan));
-    // reset the byte counts :
-    bytesLeft = totalBytesToScan;
     currentPeriodStart = System.currentTimeMillis();
   }
   
   public void run() {
+    List<Daemon> volumeThreads = new ArrayList<Daemon>();
     try {
       
       init();
@@ -610,7 +825,17 @@ class DataBlockScanner implements Runnable {
         return;
       }
       
-      adjustThrottler();
+      synchronized (this) {
+        for (VolumeScanner vs : volumeScanners.values()) {
+          adjustThrottler(vs);
+          Daemon volumeThread = new Daemon(vs);
+          volumeThread.setName("DataBlockScanner for " + vs.volume);
+          volumeThreads.add(volumeThread);
+        }
+      }
+      for (Daemon volumeThread : volumeThreads) {
+        volumeThread.start();
+      }
       
       while (datanode.shouldRun && !Thread.interrupted()) {
         long now = System.currentTimeMillis();
@@ -618,14 +843,12 @@ class DataBlockScanner implements Runnable {
           if ( now >= (currentPeriodStart + scanPeriod)) {
             startNewPeriod();
           }
+          // follow the changes of foreground I/O between blocks too
+          for (VolumeScanner vs : volumeScanners.values()) {
+            adjustThrottler(vs);
+          }
         }
-        if ( (now - getEarliestScanTime()) >= scanPeriod ) {
-          verifyFirstBlock();
-        } else {
-          try {
-            Thread.sleep(1000);
-          } catch (InterruptedException ignored) {}
-        }
+        Thread.sleep(1000);
       }
     } catch (InterruptedException ie) {
       LOG.info("DataBlockScanner interrupted");
@@ -634,16 +857,30 @@ class DataBlockScanner implements Runnable {
           e.getMessage() + "  " + StringUtils.stringifyException(e));
       throw e;
     } finally {
+      for (Daemon volumeThread : volumeThreads) {
+        ((VolumeScanner) volumeThread.getRunnable()).running = false;
+        volumeThread.interrupt();
+      }
+      for (Daemon volumeThread : volumeThreads) {
+        try {
+          volumeThread.join();
+        } catch (InterruptedException ignored) {}
+      }
       shutdown();
       LOG.info("Exiting DataBlockScanner thread.");
     }
   }
   
   synchronized void shutdown() {
-    LogFileHandler log = verificationLog;
-    verificationLog = null;
-    if (log != null) {
-      log.close();
+    if (volumeScanners == null) {
+      return;
+    }
+    for (VolumeScanner vs : volumeScanners.values()) {
+      LogFileHandler log = vs.verificationLog;
+      vs.verificationLog = null;
+      if (log != null) {
+        log.close();
+      }
     }
   }
 
@@ -661,38 +898,50 @@ class DataBlockScanner implements Runnable {
     int inScanPeriod = 0;
     int neverScanned = 0;
     
-    int total = blockInfoSet.size();
+    int total = blockMap.size();
+    long bytesLeft = 0;
+    long totalBytesToScan = 0;
+    long bandwidth = 0;
+    long foregroundRate = 0;
     
     long now = System.currentTimeMillis();
     
     Date date = new Date();
     
-    for(Iterator<BlockScanInfo> it = blockInfoSet.iterator(); it.hasNext();) {
-      BlockScanInfo info = it.next();
-      
-      long scanTime = info.getLastScanTime();
-      long diff = now - scanTime;
-      
-      if (diff <= oneHour) inOneHour++;
-      if (diff <= oneDay) inOneDay++;
-      if (diff <= oneWeek) inOneWeek++;
-      if (diff <= fourWeeks) inFourWeeks++;
-      if (diff <= scanPeriod) inScanPeriod++;      
-      if (scanTime <= 0) neverScanned++;
+    for (VolumeScanner vs : volumeScanners.values()) {
+      bytesLeft += vs.bytesLeft;
+      totalBytesToScan += vs.totalBytesToScan;
+      bandwidth += vs.throttler.getBandwidth();
+      foregroundRate += vs.foregroundRate;
       
-      if (!summaryOnly) {
-        date.setTime(scanTime);
-        String scanType = 
-          (info.lastScanType == ScanType.REMOTE_READ) ? "remote" : 
-            ((info.lastScanType == ScanType.VERIFICATION_SCAN) ? "local" :
-              "none");
-        buffer.append(String.format("%-26s : status : %-6s type : %-6s" +
-        		                        " scan time : " +
-                                    "%-15d %s\n", info.block, 
-                                    (info.lastScanOk ? "ok" : "failed"),
-                                    scanType, scanTime,
-                                    (scanTime <= 0) ? "not yet verified" : 
-                                      dateFormat.format(date)));
+      for(Iterator<BlockScanInfo> it = vs.blockInfoSet.iterator();
+          it.hasNext();) {
+        BlockScanInfo info = it.next();
+        
+        long scanTime = info.getLastScanTime();
+        long diff = now - scanTime;
+        
+        if (diff <= oneHour) inOneHour++;
+        if (diff <= oneDay) inOneDay++;
+        if (diff <= oneWeek) inOneWeek++;
+        if (diff <= fourWeeks) inFourWeeks++;
+        if (diff <= scanPeriod) inScanPeriod++;      
+        if (scanTime <= 0) neverScanned++;
+        
+        if (!summaryOnly) {
+          date.setTime(scanTime);
+          String scanType = 
+            (info.lastScanType == ScanType.REMOTE_READ) ? "remote" : 
+              ((info.lastScanType == ScanType.VERIFICATION_SCAN) ? "local" :
+                "none");
+          buffer.append(String.format("%-26s : status : %-6s type : %-6s" +
+          		                        " scan time : " +
+                                      "%-15d %s\n", info.block, 
+                                      (info.lastScanOk ? "ok" : "failed"),
+                                      scanType, scanTime,
+                                      (scanTime <= 0) ? "not yet verified" : 
+                                        dateFormat.format(date)));
+        }
       }
     }
     
@@ -713,7 +962,9 @@ class DataBlockScanner implements Runnable {
                                 "\nScans since restart          : %6d" +
                                 "\nScan errors since restart    : %6d" +
                                 "\nTransient scan errors        : %6d" +
+                                "\nScanned volumes              : %6d" +
                                 "\nCurrent scan rate limit KBps : %6d" +
+                                "\nForeground I/O rate KBps     : %6d" +
                                 "\nProgress this period         : %6.0f%%" +
                                 "\nTime left in cur period      : %6.2f%%" +
                                 "\n", 
@@ -721,81 +972,90 @@ class DataBlockScanner implements Runnable {
                                 inFourWeeks, inScanPeriod, neverScanned,
                                 totalVerifications, totalScans, 
                                 totalScanErrors, totalTransientErrors, 
-                                Math.round(throttler.getBandwidth()/1024.0),
+                                volumeScanners.size(),
+                                Math.round(bandwidth/1024.0),
+                                Math.round(foregroundRate/1024.0),
                                 pctProgress, pctPeriodLeft));
   }
   
   /**
    * This class takes care of log file used to store the last verification
-   * times of the blocks. It rolls the current file when it is too big etc.
+   * times of the blocks on a volume. The log is a sequence of fixed size
+   * binary entries of block id, generation stamp and verification time.
+   * It rolls the current file when it is too big etc.
    * If there is an error while writing, it stops updating with an error
    * message.
    */
-  private static class LogFileHandler {
+  static class LogFileHandler {
     
     private static final String curFileSuffix = ".curr";
     private static final String prevFileSuffix = ".prev";
+    static final int ENTRY_SIZE = 3 * 8;
     
     // Don't roll files more often than this
     private static final long minRollingPeriod = 6 * 3600 * 1000L; // 6 hours
     private static final long minWarnPeriod = minRollingPeriod;
-    private static final int minLineLimit = 1000;
-    
+    private static final int minEntryLimit = 1000;
     
-    static boolean isFilePresent(File dir, String filePrefix) {
-      return new File(dir, filePrefix + curFileSuffix).exists() ||
-             new File(dir, filePrefix + prevFileSuffix).exists();
-    }
     private File curFile;
     private File prevFile;
     
-    private int maxNumLines = -1; // not very hard limit on number of lines.
-    private int curNumLines = -1;
+    private int maxNumEntries = -1; // not very hard limit on number of entries.
+    private int curNumEntries = -1;
     
     long lastWarningTime = 0;
     
-    private PrintStream out;
+    private DataOutputStream out;
     
     int numReaders = 0;
         
     /**
      * Opens the log file for appending.
-     * Note that rolling will happen only after "updateLineCount()" is 
-     * called. This is so that line count could be updated in a separate
+     * Note that rolling will happen only after "updateCurNumEntries()" is 
+     * called. This is so that entry count could be updated in a separate
      * thread without delaying start up.
      * 
      * @param dir where the logs files are located.
      * @param filePrefix prefix of the file.
-     * @param maxNumLines max lines in a file (its a soft limit).
+     * @param maxNumEntries max entries in a file (its a soft limit).
      * @throws IOException
      */
-    LogFileHandler(File dir, String filePrefix, int maxNumLines) 
+    LogFileHandler(File dir, String filePrefix, int maxNumEntries) 
                                                 throws IOException {
       curFile = new File(dir, filePrefix + curFileSuffix);
       prevFile = new File(dir, filePrefix + prevFileSuffix);
       openCurFile();
-      curNumLines = -1;
-      setMaxNumLines(maxNumLines);
+      curNumEntries = -1;
+      setMaxNumEntries(maxNumEntries);
     }
     
     // setting takes affect when next entry is added.
-    synchronized void setMaxNumLines(int maxNumLines) {
-      this.maxNumLines = Math.max(maxNumLines, minLineLimit);
+    synchronized void setMaxNumEntries(int maxNumEntries) {
+      this.maxNumEntries = Math.max(maxNumEntries, minEntryLimit);
     }
     
     /**
-     * Append "\n" + line.
+     * Append an entry.
      * If the log file need to be rolled, it will done after 
-     * appending the text.
+     * appending the entry.
      * This does not throw IOException when there is an error while 
-     * appending. Currently does not throw an error even if rolling 
-     * fails (may be it should?).
+     * appending.
      * return true if append was successful.
      */
-    synchronized boolean appendLine(String line) {
-      out.println();
-      out.print(line);
-      curNumLines += (curNumLines < 0) ? -1 : 1;
+    synchronized boolean append(Block block, long time) {
+      if (out == null) {
+        return false;
+      }
+      try {
+        out.writeLong(block.getBlockId());
+        out.writeLong(block.getGenerationStamp());
+        out.writeLong(time);
+        out.flush();
+      } catch (IOException e) {
+        warn("Appending failed for " + curFile + " : " + e.getMessage());
+        return false;
+      }
+      curNumEntries += (curNumEntries < 0) ? -1 : 1;
       try {
         rollIfRequired();
       } catch (IOException e) {
@@ -814,31 +1074,28 @@ class DataBlockScanner implements Runnable {
       }
     }
     
-    private synchronized void openCurFile() throws FileNotFoundException {
+    private synchronized void openCurFile() throws IOException {
       close();
-      out = new PrintStream(new FileOutputStream(curFile, true));
-    }
-    
-    //This reads the current file and updates the count.
-    void updateCurNumLines() {
-      int count = 0;
-      Reader it = null;
-      try {
-        for(it = new Reader(true); it.hasNext(); count++) {
-          it.next();
-        }
-      } catch (IOException e) {
-        
-      } finally {
-        synchronized (this) {
-          curNumLines = count;
+      // drop a partial entry left by a crash while appending
+      if (curFile.length() % ENTRY_SIZE != 0) {
+        RandomAccessFile raf = new RandomAccessFile(curFile, "rw");
+        try {
+          raf.setLength(curFile.length() / ENTRY_SIZE * ENTRY_SIZE);
+        } finally {
+          raf.close();
         }
-        IOUtils.closeStream(it);
       }
+      out = new DataOutputStream(new BufferedOutputStream(
+          new FileOutputStream(curFile, true), ENTRY_SIZE));
+    }
+    
+    // entries are of fixed size, so the count comes from the file length.
+    synchronized void updateCurNumEntries() {
+      curNumEntries = (int) (curFile.length() / ENTRY_SIZE);
     }
     
     private void rollIfRequired() throws IOException {
-      if (curNumLines < maxNumLines || numReaders > 0) {
+      if (curNumEntries < maxNumEntries || numReaders > 0) {
         return;
       }
       
@@ -860,33 +1117,33 @@ class DataBlockScanner implements Runnable {
       }
       
       openCurFile();
-      updateCurNumLines();
+      updateCurNumEntries();
     }
     
     synchronized void close() {
       if (out != null) {
-        out.close();
+        IOUtils.closeStream(out);
         out = null;
       }
     }
     
     /**
-     * This is used to read the lines in order.
+     * This is used to read the entries in order.
      * If the data is not read completely (i.e, untill hasNext() returns
-     * false), it needs to be explicitly 
+     * false), it needs to be explicitly closed.
      */
-    private class Reader implements Iterator<String>, Closeable {
+    class Reader implements Iterator<LogEntry>, Closeable {
       
-      BufferedReader reader;
+      DataInputStream in;
       File file;
-      String line;
+      LogEntry entry;
       boolean closed = false;
       
-      private Reader(boolean skipPrevFile) throws IOException {
+      Reader(boolean skipPrevFile) throws IOException {
         synchronized (LogFileHandler.this) {
           numReaders++; 
         }
-        reader = null;
+        in = null;
         file = (skipPrevFile) ? curFile : prevFile;
         readNext();        
       }
@@ -894,7 +1151,7 @@ class DataBlockScanner implements Runnable {
       private boolean openFile() throws IOException {
 
         for(int i=0; i<2; i++) {
-          if (reader != null || i > 0) {
+          if (in != null || i > 0) {
             // move to next file
             file = (file == prevFile) ? curFile : null;
           }
@@ -906,28 +1163,36 @@ class DataBlockScanner implements Runnable {
           }
         }
         
-        if (reader != null ) {
-          reader.close();
-          reader = null;
+        if (in != null ) {
+          in.close();
+          in = null;
         }
         
-        reader = new BufferedReader(new FileReader(file));
+        in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
         return true;
       }
       
-      // read next line if possible.
+      // read next entry if possible.
       private void readNext() throws IOException {
-        line = null;
+        entry = null;
         try {
-          if (reader != null && (line = reader.readLine()) != null) {
-            return;
-          }
-          if (line == null) {
-            // move to the next file.
-            if (openFile()) {
-              readNext();
+          if (in != null) {
+            try {
+              LogEntry e = new LogEntry();
+              e.blockId = in.readLong();
+              e.genStamp = in.readLong();
+              e.verificationTime = in.readLong();
+              entry = e;
+              return;
+            } catch (EOFException eof) {
+              // a partial entry at the end is ignored
             }
           }
+          // move to the next file.
+          if (openFile()) {
+            readNext();
+          }
         } finally {
           if (!hasNext()) {
             close();
@@ -936,18 +1201,21 @@ class DataBlockScanner implements Runnable {
       }
       
       public boolean hasNext() {
-        return line != null;
+        return entry != null;
       }
 
-      public String next() {
-        String curLine = line;
+      public LogEntry next() {
+        if (entry == null) {
+          throw new NoSuchElementException();
+        }
+        LogEntry curEntry = entry;
         try {
           readNext();
         } catch (IOException e) {
-          LOG.info("Could not reade next line in LogHandler : " +
+          LOG.info("Could not read next entry in LogHandler : " +
                    StringUtils.stringifyException(e));
         }
-        return curLine;
+        return curEntry;
       }
 
       public void remove() {
@@ -957,12 +1225,12 @@ class DataBlockScanner implements Runnable {
       public void close() throws IOException {
         if (!closed) {
           try {
-            if (reader != null) {
-              reader.close();
+            if (in != null) {
+              in.close();
             }
           } finally {
             file = null;
-            reader = null;
+            in = null;
             closed = true;
             synchronized (LogFileHandler.this) {
               numReaders--;
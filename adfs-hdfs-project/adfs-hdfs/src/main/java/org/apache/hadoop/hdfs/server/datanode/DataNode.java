@@ -40,7 +40,6 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -194,10 +193,10 @@ public class DataNode extends Configured
   public DatanodeRegistration dnRegistration = null;
 
   volatile boolean shouldRun = true;
-  private LinkedList<Block> receivedBlockList = new LinkedList<Block>();
   /** list of blocks being recovered */
   private final Map<Block, Block> ongoingRecovery = new HashMap<Block, Block>();
-  private LinkedList<String> delHints = new LinkedList<String>();
+  private BlockReceivedSender blockReceivedSender = null;
+  private Daemon blockReceivedSenderThread = null;
   public final static String EMPTY_DEL_HINT = "";
   AtomicInteger xmitsInProgress = new AtomicInteger();
   Daemon dataXceiverServer = null;
@@ -205,8 +204,12 @@ public class DataNode extends Configured
   long blockReportInterval;
   //disallow the sending of BR before instructed to do so
   long lastBlockReport = 0;
+  boolean incrementalBlockReportEnabled;
+  long incrementalBlockReportInterval;
+  long lastIncrementalBlockReport = 0;
   boolean resetBlockReportTime = true;
   long initialBlockReportDelay = BLOCKREPORT_INITIAL_DELAY * 1000L;
+  volatile long readBlockDelay = 0; // only set by tests
   long lastHeartbeat = 0;
   long heartBeatInterval;
   private DataStorage storage = null;
@@ -228,12 +231,6 @@ public class DataNode extends Configured
   int writePacketSize = 0;
   private boolean supportAppends;
 
-  /**
-   * Testing hook that allows tests to delay the sending of blockReceived
-   * RPCs to the namenode. This can help find bugs in append.
-   */
-  int artificialBlockReceivedDelay = 0;
-
   boolean isBlockTokenEnabled;
   BlockTokenSecretManager blockTokenSecretManager;
   boolean isBlockTokenInitialized = false;
@@ -407,9 +404,7 @@ public class DataNode extends Configured
       this.data = new FSDataset(storage, conf);
     }
 
-    // Allow configuration to delay block reports to find bugs
-    artificialBlockReceivedDelay = conf.getInt(
-      "dfs.datanode.artificialBlockReceivedDelay", 0);
+    this.blockReceivedSender = new BlockReceivedSender(this, conf);
 
     // register datanode MXBean
     this.registerMXBean(conf); // register the MXBean for DataNode
@@ -438,6 +433,16 @@ public class DataNode extends Configured
 
     this.blockReportInterval =
       conf.getLong("dfs.blockreport.intervalMsec", BLOCKREPORT_INTERVAL);
+    this.incrementalBlockReportEnabled =
+      conf.getBoolean("dfs.blockreport.incremental.enabled", true);
+    if (this.incrementalBlockReportEnabled) {
+      // deltas keep the namenode up to date, so full reports may be sent
+      // more rarely, but only if an operator asks for it
+      this.incrementalBlockReportInterval =
+        conf.getLong("dfs.blockreport.incremental.intervalMsec", 60 * 1000L);
+      this.blockReportInterval =
+        conf.getLong("dfs.blockreport.full.intervalMsec", blockReportInterval);
+    }
     this.initialBlockReportDelay = conf.getLong("dfs.blockreport.initialDelay",
                                             BLOCKREPORT_INITIAL_DELAY)* 1000L; 
     if (this.initialBlockReportDelay >= blockReportInterval) {
@@ -813,6 +818,15 @@ public class DataNode extends Configured
       }
     }
 
+    if (blockReceivedSenderThread != null) {
+      blockReceivedSender.stop();
+      blockReceivedSenderThread.interrupt();
+      try {
+        blockReceivedSenderThread.join();
+      } catch (InterruptedException ie) {
+      }
+    }
+
     DistributedClient.close(namenode); // stop the RPC threads
 
     if(upgradeManager != null)
@@ -906,6 +920,10 @@ public class DataNode extends Configured
      
     LOG.info("using BLOCKREPORT_INTERVAL of " + blockReportInterval + "msec" + 
        " Initial delay: " + initialBlockReportDelay + "msec");
+    if (incrementalBlockReportEnabled) {
+      LOG.info("using incremental BLOCKREPORT_INTERVAL of " +
+          incrementalBlockReportInterval + "msec");
+    }
 
     //
     // Now loop for a long time....
@@ -941,37 +959,13 @@ public class DataNode extends Configured
             continue;
         }
             
-        // check if there are newly received blocks
-        Block [] blockArray=null;
-        String [] delHintArray=null;
-        synchronized(receivedBlockList) {
-          synchronized(delHints) {
-            int numBlocks = receivedBlockList.size();
-            if (numBlocks > 0) {
-              if(numBlocks!=delHints.size()) {
-                LOG.warn("Panic: receiveBlockList and delHints are not of the same length" );
-              }
-              //
-              // Send newly-received blockids to namenode
-              //
-              blockArray = receivedBlockList.toArray(new Block[numBlocks]);
-              delHintArray = delHints.toArray(new String[numBlocks]);
-            }
-          }
-        }
-        if (blockArray != null) {
-          if(delHintArray == null || delHintArray.length != blockArray.length ) {
-            LOG.warn("Panic: block array & delHintArray are not the same" );
-          }
-          namenode.blockReceived(dnRegistration, blockArray, delHintArray);
-          synchronized (receivedBlockList) {
-            synchronized (delHints) {
-              for(int i=0; i<blockArray.length; i++) {
-                receivedBlockList.remove(blockArray[i]);
-                delHints.remove(delHintArray[i]);
-              }
-            }
-          }
+        // send replicas updated or deleted since the last delta, only after
+        // the first full report since the namenode knows nothing before it
+        if (incrementalBlockReportEnabled && lastBlockReport > 0 &&
+            !resetBlockReportTime &&
+            startTime - lastIncrementalBlockReport > incrementalBlockReportInterval) {
+          sendBlockReportDelta();
+          lastIncrementalBlockReport = startTime;
         }
 
         // send block report
@@ -1037,18 +1031,16 @@ public class DataNode extends Configured
             
         //
         // There is no work to do;  sleep until hearbeat timer elapses, 
-        // or work arrives, and then iterate again.
+        // and then iterate again. Received blocks are sent by
+        // blockReceivedSender meanwhile.
         //
         long waitTime = heartBeatInterval - (System.currentTimeMillis() - lastHeartbeat);
-        synchronized(receivedBlockList) {
-          if (waitTime > 0 && receivedBlockList.size() == 0) {
-            try {
-              receivedBlockList.wait(waitTime);
-            } catch (InterruptedException ie) {
-            }
-            delayBeforeBlockReceived();
+        if (waitTime > 0) {
+          try {
+            Thread.sleep(waitTime);
+          } catch (InterruptedException ie) {
           }
-        } // synchronized
+        }
       } catch(RemoteException re) {
         String reClass = re.getClassName();
         if (UnregisteredDatanodeException.class.getName().equals(reClass) ||
@@ -1069,25 +1061,6 @@ public class DataNode extends Configured
     } // while (shouldRun)
   } // offerService
 
-  /**
-   * When a block has been received, we can delay some period of time before
-   * reporting it to the DN, for the purpose of testing. This simulates
-   * the actual latency of blockReceived on a real network (where the client
-   * may be closer to the NN than the DNs).
-   */
-  private void delayBeforeBlockReceived() {
-    if (artificialBlockReceivedDelay > 0 && !receivedBlockList.isEmpty()) {
-      try {
-        long sleepFor = (long)R.nextInt(artificialBlockReceivedDelay);
-        LOG.debug("DataNode " + dnRegistration + " sleeping for " +
-                  "artificial delay: " + sleepFor + " ms");
-        Thread.sleep(sleepFor);
-      } catch (InterruptedException ie) {
-        Thread.currentThread().interrupt();
-      }
-    }
-  }
-
   /**
    * Process an array of datanode commands
    * 
@@ -1273,13 +1246,29 @@ public class DataNode extends Configured
     if(block==null || delHint==null) {
       throw new IllegalArgumentException(block==null?"Block is null":"delHint is null");
     }
-    synchronized (receivedBlockList) {
-      synchronized (delHints) {
-        receivedBlockList.add(block);
-        delHints.add(delHint);
-        receivedBlockList.notifyAll();
-      }
+    blockReceivedSender.add(block, delHint);
+  }
+
+  /**
+   * Send the replicas updated or deleted since the last acknowledged delta.
+   * Changes recorded while the report is in flight are kept for the next one.
+   */
+  private void sendBlockReportDelta() throws IOException {
+    BlockReportDelta delta = data.getBlockReportDelta();
+    if (delta == null || delta.isEmpty()) {
+      return;
     }
+    long brStartTime = now();
+    List<BlockReportDelta.Change> changes = delta.getChanges();
+    DatanodeCommand cmd = namenode.blockReportDelta(dnRegistration,
+        BlockReportDelta.toArrayLongs(changes, false),
+        BlockReportDelta.toArrayLongs(changes, true));
+    delta.acknowledge(changes);
+    long brTime = now() - brStartTime;
+    myMetrics.blockReportDeltas.inc(brTime);
+    LOG.info("BlockReportDelta of " + changes.size() +
+        " blocks got processed in " + brTime + " msecs");
+    processCommand(cmd);
   }
 
   
@@ -1433,6 +1422,7 @@ public class DataNode extends Configured
         out.writeLong(b.getBlockId());
         out.writeLong(b.getGenerationStamp());
         out.writeInt(0);           // no pipelining
+        out.writeInt(0);           // all datanodes ack
         out.writeBoolean(false);   // not part of recovery
         Text.writeString(out, ""); // client
         out.writeBoolean(true); // sending src node information
@@ -1482,6 +1472,9 @@ public class DataNode extends Configured
     // start dataXceiveServer
     dataXceiverServer.start();
     ipcServer.start();
+    blockReceivedSenderThread = new Daemon(blockReceivedSender);
+    blockReceivedSenderThread.setName("BlockReceivedSender for " + dnRegistration.getName());
+    blockReceivedSenderThread.start();
         
     while (shouldRun) {
       try {
@@ -1687,6 +1680,14 @@ public class DataNode extends Configured
   }
   
   
+  /**
+   * This method is used for testing.
+   * Delay each block read by the given time to make the datanode slow.
+   */
+  public void setReadBlockDelay(long delayMillis) {
+    this.readBlockDelay = delayMillis;
+  }
+
   /**
    * This method is used for testing. 
    * Examples are adding and deleting blocks directly.
@@ -243,6 +243,13 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
         }
       }
     }
+    if (datanode.readBlockDelay > 0) {
+      try {
+        Thread.sleep(datanode.readBlockDelay);
+      } catch (InterruptedException ie) {
+        throw new InterruptedIOException("Interrupted while delaying read of " + block);
+      }
+    }
     // send the block
     BlockSender blockSender = null;
     final String clientTraceFmt =
@@ -289,6 +296,9 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
       
       datanode.myMetrics.bytesRead.inc((int) read);
       datanode.myMetrics.blocksRead.inc();
+      if (datanode.blockScanner != null) {
+        datanode.blockScanner.addForegroundBytes(block, read);
+      }
     } catch ( SocketException ignored ) {
       // Its ok for remote side to close the connection anytime.
       datanode.myMetrics.blocksRead.inc();
@@ -326,6 +336,9 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
              " src: " + remoteAddress +
              " dest: " + localAddress);
     int pipelineSize = in.readInt(); // num of datanodes in entire pipeline
+    // num of datanodes from this one on which ack a packet before the rest
+    // of the pipeline has written it, 0 for all
+    int ackReplicas = in.readInt();
     boolean isRecovery = in.readBoolean(); // is this part of recovery?
     String client = Text.readString(in); // working on behalf of this client
     boolean hasSrcDataNode = in.readBoolean(); // is src node info present
@@ -413,6 +426,7 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
           mirrorOut.writeLong( block.getBlockId() );
           mirrorOut.writeLong( block.getGenerationStamp() );
           mirrorOut.writeInt( pipelineSize );
+          mirrorOut.writeInt( Math.max(ackReplicas - 1, 0) );
           mirrorOut.writeBoolean( isRecovery );
           Text.writeString( mirrorOut, client );
           mirrorOut.writeBoolean(hasSrcDataNode);
@@ -478,7 +492,8 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
       // receive the block and mirror to the next target
       String mirrorAddr = (mirrorSock == null) ? null : mirrorNode;
       blockReceiver.receiveBlock(mirrorOut, mirrorIn, replyOut,
-                                 mirrorAddr, null, targets.length);
+                                 mirrorAddr, null, targets.length,
+                                 ackReplicas);
 
       // if this write is for a replication request (and not
       // from a client), then confirm block. For client-writes,
@@ -626,6 +641,9 @@ class DataXceiver extends Thread implements Runnable, FSConstants {
 
       datanode.myMetrics.bytesRead.inc((int) read);
       datanode.myMetrics.blocksRead.inc();
+      if (datanode.blockScanner != null) {
+        datanode.blockScanner.addForegroundBytes(block, read);
+      }
       
       LOG.info("Copied block " + block + " to " + s.getRemoteSocketAddress());
     } catch (IOException ioe) {
@@ -29,11 +29,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Callable;
@@ -126,12 +126,22 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   class FSDir {
     File dir;
     int numBlocks = 0;
+    // the replicas listed when the tree was built, see ReplicaIndex.fingerprint
+    long replicaFingerprint = 0;
     FSDir children[];
     int lastChildIdx = 0;
     /**
      */
     public FSDir(File dir) 
       throws IOException {
+      this(dir, "");
+    }
+
+    /**
+     * @param relativeDir the path of dir relative to the current directory
+     *        of the volume, ending with a separator unless empty
+     */
+    FSDir(File dir, String relativeDir) throws IOException {
       this.dir = dir;
       this.children = null;
       if (!dir.exists()) {
@@ -142,19 +152,46 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       } else {
         File[] files = FileUtil.listFiles(dir);
         int numChildren = 0;
+        boolean[] isChild = new boolean[files.length];
+        HashSet<String> blockNames = new HashSet<String>();
         for (int idx = 0; idx < files.length; idx++) {
-          if (files[idx].isDirectory()) {
-            numChildren++;
-          } else if (Block.isBlockFilename(files[idx])) {
+          if (Block.isBlockFilename(files[idx])) {
             numBlocks++;
+            blockNames.add(files[idx].getName());
+          }
+        }
+        for (int idx = 0; idx < files.length; idx++) {
+          String name = files[idx].getName();
+          if (name.startsWith("blk_") && name.endsWith(METADATA_EXTENSION)) {
+            // blk_<id>_<genstamp>.meta of a block file in this directory
+            int genStampStart = name.lastIndexOf('_') + 1;
+            String blockName = name.substring(0, genStampStart - 1);
+            if (blockNames.contains(blockName)) {
+              try {
+                long blockId = Long.parseLong(blockName.substring("blk_".length()));
+                long genStamp = Long.parseLong(name.substring(genStampStart,
+                    name.length() - METADATA_EXTENSION_LENGTH));
+                replicaFingerprint +=
+                    ReplicaIndex.fingerprint(relativeDir, blockId, genStamp);
+              } catch (NumberFormatException e) {
+                DataNode.LOG.warn("Unexpected meta file name " + files[idx]);
+              }
+            }
+          } else if (files[idx].getName().startsWith(DataStorage.BLOCK_SUBDIR_PREFIX)
+              && files[idx].isDirectory()) {
+            // the name check saves the stat() of isDirectory() for
+            // block and meta files
+            isChild[idx] = true;
+            numChildren++;
           }
         }
         if (numChildren > 0) {
           children = new FSDir[numChildren];
           int curdir = 0;
           for (int idx = 0; idx < files.length; idx++) {
-            if (files[idx].isDirectory()) {
-              children[curdir] = new FSDir(files[idx]);
+            if (isChild[idx]) {
+              children[curdir] = new FSDir(files[idx],
+                  relativeDir + files[idx].getName() + File.separator);
               curdir++;
             }
           }
@@ -245,7 +282,34 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }    
     
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap, FSVolume volume) {
+    /**
+     * @return the number of block files in this directory tree
+     */
+    long getNumBlocksInTree() {
+      long total = numBlocks;
+      if (children != null) {
+        for (FSDir child : children) {
+          total += child.getNumBlocksInTree();
+        }
+      }
+      return total;
+    }
+
+    /**
+     * @return the fingerprint of the replicas listed when the tree was built,
+     *         replicas added or removed later are not included
+     */
+    long getReplicaFingerprintInTree() {
+      long total = replicaFingerprint;
+      if (children != null) {
+        for (FSDir child : children) {
+          total += child.getReplicaFingerprintInTree();
+        }
+      }
+      return total;
+    }
+
+    void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap, FSVolume volume) {
       if (children != null) {
         for (int i = 0; i < children.length; i++) {
           children[i].getVolumeMap(volumeMap, volume);
@@ -350,12 +414,20 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     private DF usage;
     private DU dfsUsage;
     private long reserved;
+    private ReplicaIndex replicaIndex;   // null if disabled
+    private int replicaIndexVerifySamples;
 
     
     FSVolume(File currentDir, Configuration conf) throws IOException {
       this.reserved = conf.getLong("dfs.datanode.du.reserved", 0);
       this.dataDir = new FSDir(currentDir);
       this.currentDir = currentDir;
+      if (conf.getBoolean("dfs.datanode.replica.index.enabled", true)) {
+        this.replicaIndex = new ReplicaIndex(currentDir,
+            conf.getLong("dfs.datanode.replica.index.compact.records", 1000000));
+        this.replicaIndexVerifySamples =
+            conf.getInt("dfs.datanode.replica.index.verify.samples", 1000);
+      }
       boolean supportAppends = conf.getBoolean("dfs.support.append", false);
       File parent = currentDir.getParentFile();
 
@@ -504,8 +576,30 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       File blockFile = dataDir.addBlock(b, f);
       File metaFile = getMetaFile( blockFile , b);
       dfsUsage.incDfsUsed(b.getNumBytes()+metaFile.length());
+      replicaAdded(b, blockFile);
       return blockFile;
     }
+
+    /**
+     * Record in the replica index a finalized replica which is added or
+     * whose generation stamp or length is updated.
+     */
+    void replicaAdded(Block b, File blockFile) {
+      if (replicaIndex != null) {
+        replicaIndex.added(b.getBlockId(), b.getGenerationStamp(),
+            b.getNumBytes(), blockFile);
+      }
+    }
+
+    /**
+     * Record in the replica index a finalized replica which is deleted or
+     * reopened for append.
+     */
+    void replicaRemoved(Block b) {
+      if (replicaIndex != null) {
+        replicaIndex.removed(b.getBlockId());
+      }
+    }
       
     void checkDirs() throws DiskErrorException {
       dataDir.checkDirTree();
@@ -513,7 +607,23 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       DiskChecker.checkDir(blocksBeingWritten);
     }
 
-    void scanBlockFilesInconsistent(Map<Block, File> results) {
+    /**
+     * Generate a rough block report of the volume, from the replica index
+     * if it is usable, otherwise by scanning the directories.
+     */
+    void scanBlockFilesInconsistent(Map<Block, File> results, boolean useIndex) {
+      if (useIndex && replicaIndex != null && !replicaIndex.isFailed()) {
+        try {
+          for (ReplicaIndex.Entry entry : replicaIndex.load().values()) {
+            results.put(new Block(entry.blockId, entry.numBytes, entry.generationStamp),
+                new File(currentDir, entry.path));
+          }
+          return;
+        } catch (IOException e) {
+          DataNode.LOG.warn("Failed to load replica index of " + this
+              + ", scan the directories instead", e);
+        }
+      }
       scanBlockFilesInconsistent(dataDir.dir, results);
     }
 
@@ -580,8 +690,101 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
 
-    void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
-      dataDir.getVolumeMap(volumeMap, this);
+    void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap) {
+      if (replicaIndex == null) {
+        dataDir.getVolumeMap(volumeMap, this);
+        return;
+      }
+      long start = System.currentTimeMillis();
+      if (replicaIndex.exists()) {
+        try {
+          Map<Long, ReplicaIndex.Entry> entries = replicaIndex.open();
+          if (isReplicaIndexConsistent(entries)) {
+            for (ReplicaIndex.Entry entry : entries.values()) {
+              volumeMap.put(new Block(entry.blockId, entry.numBytes, entry.generationStamp),
+                  new DatanodeBlockInfo(this, new File(currentDir, entry.path)));
+            }
+            DataNode.LOG.info("Loaded " + entries.size() + " replicas of " + this
+                + " from replica index in " + (System.currentTimeMillis() - start) + " ms");
+            return;
+          }
+        } catch (IOException e) {
+          DataNode.LOG.warn("Failed to load replica index of " + this, e);
+        }
+        replicaIndex.close();
+      }
+
+      // no usable index, scan the directories and build it again
+      Map<Block, DatanodeBlockInfo> scanned = new HashMap<Block, DatanodeBlockInfo>();
+      dataDir.getVolumeMap(scanned, this);
+      volumeMap.putAll(scanned);
+      List<ReplicaIndex.Entry> entries = new ArrayList<ReplicaIndex.Entry>(scanned.size());
+      String prefix = currentDir.getAbsolutePath() + File.separator;
+      for (Map.Entry<Block, DatanodeBlockInfo> entry : scanned.entrySet()) {
+        Block b = entry.getKey();
+        String path = entry.getValue().getFile().getAbsolutePath();
+        entries.add(new ReplicaIndex.Entry(b.getBlockId(), b.getGenerationStamp(),
+            b.getNumBytes(), path.substring(prefix.length())));
+      }
+      try {
+        replicaIndex.rewrite(entries);
+      } catch (IOException e) {
+        DataNode.LOG.warn("Failed to write replica index of " + this
+            + ", the volume is scanned at next startup", e);
+        replicaIndex.close();
+        replicaIndex = null;
+      }
+      DataNode.LOG.info("Scanned " + scanned.size() + " replicas of " + this
+          + " and rebuilt replica index in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Check the index against the block and meta files listed when the
+     * directory tree was built: the number of block files, and the block id,
+     * generation stamp and directory of every replica. The lengths are not
+     * in the listing, so they are checked for some random replicas.
+     */
+    private boolean isReplicaIndexConsistent(Map<Long, ReplicaIndex.Entry> entries) {
+      long numBlocksOnDisk = dataDir.getNumBlocksInTree();
+      if (numBlocksOnDisk != entries.size()) {
+        DataNode.LOG.warn("Replica index of " + this + " has " + entries.size()
+            + " replicas but " + numBlocksOnDisk + " block files are on disk");
+        return false;
+      }
+      if (entries.isEmpty()) {
+        return true;
+      }
+      long fingerprint = 0;
+      for (ReplicaIndex.Entry entry : entries.values()) {
+        String relativeDir =
+            entry.path.substring(0, entry.path.lastIndexOf(File.separatorChar) + 1);
+        fingerprint += ReplicaIndex.fingerprint(relativeDir, entry.blockId,
+            entry.generationStamp);
+      }
+      if (fingerprint != dataDir.getReplicaFingerprintInTree()) {
+        DataNode.LOG.warn("Replica index of " + this + " does not match the"
+            + " block ids, generation stamps or directories of the files on disk");
+        return false;
+      }
+      ReplicaIndex.Entry[] all = entries.values().toArray(new ReplicaIndex.Entry[entries.size()]);
+      Random random = new Random();
+      for (int i = 0; i < Math.min(replicaIndexVerifySamples, all.length); i++) {
+        ReplicaIndex.Entry entry = all[random.nextInt(all.length)];
+        File blockFile = new File(currentDir, entry.path);
+        Block b = new Block(entry.blockId, entry.numBytes, entry.generationStamp);
+        if (blockFile.length() != entry.numBytes || !blockFile.exists()
+            || !getMetaFile(blockFile, b).exists()) {
+          DataNode.LOG.warn("Replica index of " + this + " does not match the files of " + b);
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void shutdownReplicaIndex() {
+      if (replicaIndex != null) {
+        replicaIndex.close();
+      }
     }
       
     void clearPath(File f) {
@@ -648,15 +851,17 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   private static class VolumeScanner implements Callable<Void> {
     private FSVolume vol;
     private Map<Block, File> blocks;
+    private boolean useIndex;
 
-    public VolumeScanner(FSVolume vol, Map<Block, File> blocks) {
+    public VolumeScanner(FSVolume vol, Map<Block, File> blocks, boolean useIndex) {
       this.vol = vol;
       this.blocks = blocks;
+      this.useIndex = useIndex;
     }
 
     @Override
     public Void call() throws Exception {
-      vol.scanBlockFilesInconsistent(blocks);
+      vol.scanBlockFilesInconsistent(blocks, useIndex);
       return null;
     }
   }
@@ -735,8 +940,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       return remaining;
     }
 
-    private void scanBlockFilesInconsistent(Map<Block, File> seenOnDisk)
-        throws InterruptedException {
+    private void scanBlockFilesInconsistent(Map<Block, File> seenOnDisk,
+        boolean useIndex) throws InterruptedException {
       // Make a local consistent copy of the volume list, since
       // it might change due to a disk failure
       FSVolume volumesCopy[];
@@ -748,7 +953,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         new ArrayList<Future<Void>>(volumes.length);
 
       for (FSVolume vol : volumesCopy) {
-        results.add(pool.submit(new VolumeScanner(vol, seenOnDisk)));
+        results.add(pool.submit(new VolumeScanner(vol, seenOnDisk, useIndex)));
       }
       for (Future<Void> result : results) {
         try {
@@ -759,7 +964,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       }
     }
     
-    synchronized void getVolumeMap(HashMap<Block, DatanodeBlockInfo> volumeMap) {
+    synchronized void getVolumeMap(Map<Block, DatanodeBlockInfo> volumeMap) {
       for (int idx = 0; idx < volumes.length; idx++) {
         volumes[idx].getVolumeMap(volumeMap);
       }
@@ -836,6 +1041,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
       for (FSVolume volume : volumes) {
         if (volume != null) {
           volume.dfsUsage.shutdown();
+          volume.shutdownReplicaIndex();
         }
       }
     }
@@ -950,7 +1156,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   /** Return the block file for the given ID */ 
-  public synchronized File findBlockFile(long blockId) {
+  public File findBlockFile(long blockId) {
     final Block b = new Block(blockId);
     File blockfile = null;
     ActiveFile activefile = ongoingCreates.get(b);
@@ -970,7 +1176,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   /** {@inheritDoc} */
-  public synchronized Block getStoredBlock(long blkid) throws IOException {
+  public Block getStoredBlock(long blkid) throws IOException {
     File blockfile = findBlockFile(blkid);
     if (blockfile == null) {
       return null;
@@ -998,20 +1204,34 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   FSVolumeSet volumes;
-  private HashMap<Block,ActiveFile> ongoingCreates = new HashMap<Block,ActiveFile>();
+  // replica maps are concurrent, so lookups do not take the dataset lock;
+  // updates which touch both maps still hold it to keep them consistent
+  private final ReplicaMap<ActiveFile> ongoingCreates;
   private int maxBlocksPerDir = 0;
-  HashMap<Block,DatanodeBlockInfo> volumeMap = new HashMap<Block, DatanodeBlockInfo>();;
+  final ReplicaMap<DatanodeBlockInfo> volumeMap;
   static  Random random = new Random();
   private int validVolsRequired;
 
   FSDatasetAsyncDiskService asyncDiskService;
   private final AsyncBlockReport asyncBlockReport;
+  // replicas updated or deleted since the last incremental block report,
+  // finalized replicas are reported right away by blockReceived
+  private final BlockReportDelta blockReportDelta = new BlockReportDelta();
+
+  private final int replicaIndexRescanReports;
+  private int roughBlockScans = 0;
 
   /**
    * An FSDataset has a directory where it loads its data files.
    */
   public FSDataset(DataStorage storage, Configuration conf) throws IOException {
+    int replicaMapStripes = conf.getInt("dfs.datanode.replica.map.stripes",
+        ReplicaMap.DEFAULT_STRIPES);
+    this.volumeMap = new ReplicaMap<DatanodeBlockInfo>(replicaMapStripes);
+    this.ongoingCreates = new ReplicaMap<ActiveFile>(replicaMapStripes);
     this.maxBlocksPerDir = conf.getInt("dfs.datanode.numblocks", 64);
+    this.replicaIndexRescanReports =
+        conf.getInt("dfs.datanode.replica.index.rescan.reports", 4);
     
     // The number of volumes required for operation is the total number 
     // of volumes minus the number of failed volumes we can tolerate.
@@ -1094,7 +1314,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override
-  public synchronized long getVisibleLength(Block b) throws IOException {
+  public long getVisibleLength(Block b) throws IOException {
     ActiveFile activeFile = ongoingCreates.get(b);
 
     if (activeFile != null) {
@@ -1105,7 +1325,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   @Override
-  public synchronized void setVisibleLength(Block b, long length) 
+  public void setVisibleLength(Block b, long length) 
     throws IOException {
     ActiveFile activeFile = ongoingCreates.get(b);
 
@@ -1121,7 +1341,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Get File name for a given block.
    */
-  public synchronized File getBlockFile(Block b) throws IOException {
+  public File getBlockFile(Block b) throws IOException {
     File f = validateBlockFile(b);
     if(f == null) {
       if (InterDatanodeProtocol.LOG.isDebugEnabled()) {
@@ -1142,11 +1362,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     return info;
   }
   
-  public synchronized InputStream getBlockInputStream(Block b) throws IOException {
+  public InputStream getBlockInputStream(Block b) throws IOException {
     return new FileInputStream(getBlockFile(b));
   }
 
-  public synchronized InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
+  public InputStream getBlockInputStream(Block b, long seekOffset) throws IOException {
 
     File blockFile = getBlockFile(b);
     RandomAccessFile blockInFile = new RandomAccessFile(blockFile, "r");
@@ -1159,7 +1379,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Returns handles to the block file and its metadata file
    */
-  public synchronized BlockInputStreams getTmpInputStreams(Block b, 
+  public BlockInputStreams getTmpInputStreams(Block b, 
                           long blkOffset, long ckoff) throws IOException {
 
     DatanodeBlockInfo info = volumeMap.get(b);
@@ -1200,11 +1420,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * @return - true if the specified block was detached
    */
   public boolean detachBlock(Block block, int numLinks) throws IOException {
-    DatanodeBlockInfo info = null;
-
-    synchronized (this) {
-      info = volumeMap.get(block);
-    }
+    DatanodeBlockInfo info = volumeMap.get(block);
     return info.detachBlock(block, numLinks);
   }
 
@@ -1365,6 +1581,9 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     if (updateBlockMap(volumeMap, oldblockWildcardGS, newblock) == null) {
       DataNode.LOG.error("Unexpected state updating block " + oldblockWildcardGS +
         " -- this block is not in the volume map");
+    } else if (newActive == null) {
+      blockReportDelta.added(newblock);
+      volumeMap.get(newblock).getVolume().replicaAdded(newblock, blockFile);
     }
 
     // paranoia! verify that the contents of the stored block 
@@ -1547,6 +1766,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                                   " to tmp dir " + f);
           }
         }
+        v.replicaRemoved(b);
       }
       if (f == null) {
         DataNode.LOG.warn("Block " + b + " reopen failed " +
@@ -1682,7 +1902,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * is this block finalized? Returns true if the block is already
    * finalized, otherwise returns false.
    */
-  private synchronized boolean isFinalized(Block b) {
+  private boolean isFinalized(Block b) {
     FSVolume v = volumeMap.get(b).getVolume();
     if (v == null) {
       DataNode.LOG.warn("No volume for block " + b);
@@ -1772,6 +1992,11 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
     Map<Block, File> seenOnDisk = asyncBlockReport.getAndReset();
     return reconcileRoughBlockScan(seenOnDisk);
   }
+
+  @Override
+  public BlockReportDelta getBlockReportDelta() {
+    return blockReportDelta;
+  }
   
   /**
    * Return a table of block data. This method is synchronous, and is used
@@ -1788,19 +2013,19 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   private Block[] reconcileRoughBlockScan(Map<Block, File> seenOnDisk) {
-    Set<Block> blockReport;
-    synchronized (this) {
-      long st = System.currentTimeMillis();
-      // broken out to a static method to simplify testing
-      reconcileRoughBlockScan(seenOnDisk, volumeMap, ongoingCreates);
-      DataNode.LOG.info(
-          "Reconciled asynchronous block report against current state in " +
-          (System.currentTimeMillis() - st) + " ms");
-      
-      blockReport = seenOnDisk.keySet();
-    }
+    long st = System.currentTimeMillis();
+    // reconcile against snapshots instead of holding the dataset lock.
+    // ongoingCreates is copied first, so a block finalized in between is
+    // still ignored, and a block created in between has no file yet.
+    Map<Block, ActiveFile> ongoingSnapshot = ongoingCreates.snapshot();
+    Map<Block, DatanodeBlockInfo> volumeSnapshot = volumeMap.snapshot();
+    // broken out to a static method to simplify testing
+    reconcileRoughBlockScan(seenOnDisk, volumeSnapshot, ongoingSnapshot);
+    DataNode.LOG.info(
+        "Reconciled asynchronous block report against current state in " +
+        (System.currentTimeMillis() - st) + " ms");
 
-    return blockReport.toArray(new Block[0]);
+    return seenOnDisk.keySet().toArray(new Block[0]);
   }
 
   /**
@@ -1809,13 +2034,14 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
    * may be concurrent modifications to the disk structure.
    */
   Map<Block, File> roughBlockScan() throws InterruptedException {
-    int expectedNumBlocks;
-    synchronized (this) {
-      expectedNumBlocks = volumeMap.size();
-    }
+    int expectedNumBlocks = volumeMap.size();
     Map<Block, File> seenOnDisk = Collections.synchronizedMap(
         new HashMap<Block,File>(expectedNumBlocks, 1.1f));
-    volumes.scanBlockFilesInconsistent(seenOnDisk);
+    // every replicaIndexRescanReports-th report scans the directories, in
+    // case block files were removed behind the back of the datanode
+    boolean useIndex = replicaIndexRescanReports <= 0
+        || ++roughBlockScans % replicaIndexRescanReports != 0;
+    volumes.scanBlockFilesInconsistent(seenOnDisk, useIndex);
     return seenOnDisk;
   }
 
@@ -1858,7 +2084,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         continue;
       }
       DatanodeBlockInfo info = entry.getValue();
-      if (!seenOnDisk.containsKey(b) && info.getFile().exists()) {
+      if (!seenOnDisk.containsKey(b) && info.getFile() != null
+          && info.getFile().exists()) {
         // add a copy, and use the length from disk instead of from memory
         Block toAdd =  new Block(
             b.getBlockId(), info.getFile().length(), b.getGenerationStamp());
@@ -1915,7 +2142,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   }
 
   /** {@inheritDoc} */
-  public synchronized void validateBlockMetadata(Block b) throws IOException {
+  public void validateBlockMetadata(Block b) throws IOException {
     DatanodeBlockInfo info = volumeMap.get(b);
     if (info == null) {
       throw new IOException("Block " + b + " does not exist in volumeMap.");
@@ -2033,6 +2260,8 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
         }
         v.clearPath(parent);
         volumeMap.remove(invalidBlks[i]);
+        blockReportDelta.deleted(invalidBlks[i]);
+        v.replicaRemoved(invalidBlks[i]);
       }
       File metaFile = getMetaFile( f, invalidBlks[i] );
       long dfsBytes = f.length() + metaFile.length();
@@ -2048,7 +2277,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
   /**
    * Turn the block identifier into a filename.
    */
-  public synchronized File getFile(Block b) {
+  public File getFile(Block b) {
     DatanodeBlockInfo info = volumeMap.get(b);
     if (info != null) {
       return info.getFile();
@@ -2086,6 +2315,7 @@ public class FSDataset implements FSConstants, FSDatasetInterface {
                 b.getBlockId() + " on failed volume " +
                 vol.dataDir.dir.getAbsolutePath());
             ib.remove();
+            blockReportDelta.deleted(b);
             removed_blocks++;
             break;
           }
@@ -260,6 +260,12 @@ public interface FSDatasetInterface extends FSDatasetMBean {
    */
   public Block[] retrieveAsyncBlockReport();
 
+  /**
+   * @return the replicas updated or deleted since the last acknowledged
+   *         incremental block report
+   */
+  public BlockReportDelta getBlockReportDelta();
+
   
   /**
    * Returns the blocks being written report 
@@ -0,0 +1,455 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.Daemon;
+
+/**
+ * Persistent index of the finalized replicas of one volume, so that the
+ * datanode neither walks the data directories at startup nor for every
+ * block report.
+ *
+ * The index is a snapshot plus an append-only log of replica additions and
+ * removals, both kept in the current directory of the volume. The entry of
+ * a block is its id, generation stamp, length and the path of its block file
+ * relative to the current directory. When the log grows large it is renamed
+ * aside and folded with the old snapshot into a new one in the background,
+ * while new changes go to a fresh log:
+ * <pre>
+ *   load = snapshot + log.compacting (if any) + log
+ * </pre>
+ * Each record is synced to disk before the change is acknowledged. A torn
+ * record at the end of the log, left by a crash, is dropped at load.
+ */
+class ReplicaIndex {
+  static final String SNAPSHOT_FILE = "replica_index.snapshot";
+  static final String LOG_FILE = "replica_index.log";
+  static final String COMPACTING_FILE = "replica_index.log.compacting";
+  static final String SNAPSHOT_TMP_FILE = "replica_index.snapshot.tmp";
+
+  private static final int SNAPSHOT_MAGIC = 0x52494458; // "RIDX"
+  private static final int SNAPSHOT_VERSION = 1;
+  private static final byte OP_ADD = 1;
+  private static final byte OP_REMOVE = 2;
+
+  /** A finalized replica as recorded in the index. */
+  static class Entry {
+    final long blockId;
+    final long generationStamp;
+    final long numBytes;
+    final String path;
+
+    Entry(long blockId, long generationStamp, long numBytes, String path) {
+      this.blockId = blockId;
+      this.generationStamp = generationStamp;
+      this.numBytes = numBytes;
+      this.path = path;
+    }
+  }
+
+  private final File dir;
+  private final String dirPrefix;
+  private final long compactThreshold;
+  // loads take the read lock, replacing the index files takes the write lock
+  private final ReadWriteLock filesLock = new ReentrantReadWriteLock();
+
+  private FileOutputStream logFileOut = null;
+  private DataOutputStream logOut = null;
+  private long logRecords = 0;
+  private boolean compacting = false;
+  private boolean failed = false;
+
+  ReplicaIndex(File dir, long compactThreshold) {
+    this.dir = dir;
+    this.dirPrefix = dir.getAbsolutePath() + File.separator;
+    this.compactThreshold = compactThreshold;
+  }
+
+  /**
+   * @return whether a snapshot or a log exists for the volume
+   */
+  boolean exists() {
+    return new File(dir, SNAPSHOT_FILE).exists()
+        || new File(dir, LOG_FILE).exists()
+        || new File(dir, COMPACTING_FILE).exists();
+  }
+
+  /**
+   * Load the index at startup, truncating a torn tail of the log, and open
+   * the log for appending.
+   * @return the replicas by block id
+   */
+  synchronized Map<Long, Entry> open() throws IOException {
+    Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    readSnapshot(new File(dir, SNAPSHOT_FILE), entries);
+    readLog(new File(dir, COMPACTING_FILE), entries, false);
+    logRecords = readLog(new File(dir, LOG_FILE), entries, true);
+    openLog();
+    return entries;
+  }
+
+  /**
+   * Load the current content of the index without changing it, e.g. to
+   * generate a block report while replicas keep changing.
+   * @return the replicas by block id
+   */
+  Map<Long, Entry> load() throws IOException {
+    Map<Long, Entry> entries = new HashMap<Long, Entry>();
+    filesLock.readLock().lock();
+    try {
+      readSnapshot(new File(dir, SNAPSHOT_FILE), entries);
+      readLog(new File(dir, COMPACTING_FILE), entries, false);
+      readLog(new File(dir, LOG_FILE), entries, false);
+    } finally {
+      filesLock.readLock().unlock();
+    }
+    return entries;
+  }
+
+  /**
+   * Replace the whole index by the given replicas, e.g. after the volume
+   * was scanned because the index was missing or inconsistent.
+   */
+  void rewrite(Collection<Entry> entries) throws IOException {
+    filesLock.writeLock().lock();
+    try {
+      synchronized (this) {
+        closeLog();
+        writeSnapshot(entries);
+        new File(dir, COMPACTING_FILE).delete();
+        File log = new File(dir, LOG_FILE);
+        if (log.exists() && !log.delete()) {
+          throw new IOException("Failed to delete " + log);
+        }
+        logRecords = 0;
+        failed = false;
+        openLog();
+      }
+    } finally {
+      filesLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Record a replica finalized in, or moved into, the given block file.
+   */
+  void added(long blockId, long generationStamp, long numBytes, File blockFile) {
+    String path = blockFile.getAbsolutePath();
+    if (!path.startsWith(dirPrefix)) {
+      return;
+    }
+    append(OP_ADD, blockId, generationStamp, numBytes,
+        path.substring(dirPrefix.length()));
+  }
+
+  /**
+   * Record a replica deleted, or moved out of the finalized directories.
+   */
+  void removed(long blockId) {
+    append(OP_REMOVE, blockId, 0, 0, null);
+  }
+
+  private synchronized void append(byte op, long blockId, long generationStamp,
+      long numBytes, String path) {
+    if (failed || logOut == null) {
+      return;
+    }
+    try {
+      logOut.writeByte(op);
+      logOut.writeLong(blockId);
+      if (op == OP_ADD) {
+        logOut.writeLong(generationStamp);
+        logOut.writeLong(numBytes);
+        logOut.writeUTF(path);
+      }
+      logOut.flush();
+      logFileOut.getChannel().force(false);
+    } catch (IOException e) {
+      fail(e);
+      return;
+    }
+    if (++logRecords >= compactThreshold && !compacting) {
+      compacting = true;
+      Daemon compactor = new Daemon(new Runnable() {
+        public void run() {
+          compact();
+        }
+
+        public String toString() {
+          return "ReplicaIndexCompactor for " + dir;
+        }
+      });
+      compactor.start();
+    }
+  }
+
+  /**
+   * Fold the log into a new snapshot. The log is renamed aside first, so
+   * replicas keep changing while the snapshot is written.
+   */
+  void compact() {
+    try {
+      filesLock.writeLock().lock();
+      try {
+        synchronized (this) {
+          File compactingFile = new File(dir, COMPACTING_FILE);
+          // if a previous compaction did not complete, its log is folded now
+          // and the current log is left for the next compaction
+          if (!failed && !compactingFile.exists()) {
+            closeLog();
+            if (!new File(dir, LOG_FILE).renameTo(compactingFile)) {
+              throw new IOException("Failed to rename log of " + dir);
+            }
+            logRecords = 0;
+            openLog();
+          }
+        }
+      } finally {
+        filesLock.writeLock().unlock();
+      }
+      if (isFailed()) {
+        return;
+      }
+
+      // the snapshot and the renamed log do not change any more
+      Map<Long, Entry> entries = new HashMap<Long, Entry>();
+      readSnapshot(new File(dir, SNAPSHOT_FILE), entries);
+      readLog(new File(dir, COMPACTING_FILE), entries, false);
+
+      filesLock.writeLock().lock();
+      try {
+        writeSnapshot(entries.values());
+        new File(dir, COMPACTING_FILE).delete();
+      } finally {
+        filesLock.writeLock().unlock();
+      }
+      DataNode.LOG.info("Compacted replica index of " + dir + " to "
+          + entries.size() + " replicas");
+    } catch (IOException e) {
+      fail(e);
+    } finally {
+      synchronized (this) {
+        compacting = false;
+      }
+    }
+  }
+
+  synchronized boolean isFailed() {
+    return failed;
+  }
+
+  synchronized void close() {
+    closeLog();
+  }
+
+  /**
+   * Stop recording and delete the index, so it is not trusted at the next
+   * startup. The volume is scanned and the index rebuilt then.
+   */
+  private synchronized void fail(IOException e) {
+    if (failed) {
+      return;
+    }
+    DataNode.LOG.warn("Replica index of " + dir + " is disabled until restart", e);
+    failed = true;
+    closeLog();
+    new File(dir, SNAPSHOT_FILE).delete();
+    new File(dir, LOG_FILE).delete();
+    new File(dir, COMPACTING_FILE).delete();
+  }
+
+  private void openLog() throws IOException {
+    logFileOut = new FileOutputStream(new File(dir, LOG_FILE), true);
+    logOut = new DataOutputStream(new BufferedOutputStream(logFileOut));
+  }
+
+  private void closeLog() {
+    IOUtils.closeStream(logOut);
+    logOut = null;
+    logFileOut = null;
+  }
+
+  /**
+   * A fingerprint of a replica. The sum over the replicas of a volume is
+   * compared between the index and the meta files listed at startup, so a
+   * stale generation stamp or directory of any entry is found.
+   * @param relativeDir the directory of the block file relative to the
+   *        current directory, ending with a separator unless empty
+   */
+  static long fingerprint(String relativeDir, long blockId, long generationStamp) {
+    long h = relativeDir.hashCode();
+    h = h * 0x9E3779B97F4A7C15L + blockId;
+    h = h * 0x9E3779B97F4A7C15L + generationStamp;
+    // the finalizer of MurmurHash3, so that the sum does not cancel out
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private void writeSnapshot(Collection<Entry> entries) throws IOException {
+    File tmp = new File(dir, SNAPSHOT_TMP_FILE);
+    FileOutputStream fos = new FileOutputStream(tmp);
+    CheckedOutputStream cos = new CheckedOutputStream(
+        new BufferedOutputStream(fos), new CRC32());
+    DataOutputStream out = new DataOutputStream(cos);
+    try {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeInt(SNAPSHOT_VERSION);
+      out.writeInt(entries.size());
+      for (Entry entry : entries) {
+        out.writeLong(entry.blockId);
+        out.writeLong(entry.generationStamp);
+        out.writeLong(entry.numBytes);
+        out.writeUTF(entry.path);
+      }
+      out.flush();
+      long checksum = cos.getChecksum().getValue();
+      out.writeLong(checksum);
+      out.flush();
+      fos.getChannel().force(true);
+    } finally {
+      out.close();
+    }
+    File snapshot = new File(dir, SNAPSHOT_FILE);
+    if (snapshot.exists() && !snapshot.delete() || !tmp.renameTo(snapshot)) {
+      throw new IOException("Failed to replace " + snapshot);
+    }
+  }
+
+  private static void readSnapshot(File file, Map<Long, Entry> entries)
+      throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    CheckedInputStream cis = new CheckedInputStream(
+        new BufferedInputStream(new FileInputStream(file)), new CRC32());
+    DataInputStream in = new DataInputStream(cis);
+    try {
+      if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+        throw new IOException("Unknown format of " + file);
+      }
+      int size = in.readInt();
+      for (int i = 0; i < size; i++) {
+        Entry entry = new Entry(in.readLong(), in.readLong(), in.readLong(),
+            in.readUTF());
+        entries.put(entry.blockId, entry);
+      }
+      long checksum = cis.getChecksum().getValue();
+      if (in.readLong() != checksum) {
+        throw new IOException("Checksum mismatch in " + file);
+      }
+    } catch (EOFException e) {
+      throw new IOException("Truncated " + file);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Replay a log on the entries.
+   * @param truncate whether a torn record at the end is cut off the file
+   * @return the number of complete records
+   */
+  private static long readLog(File file, Map<Long, Entry> entries,
+      boolean truncate) throws IOException {
+    if (!file.exists()) {
+      return 0;
+    }
+    long records = 0;
+    long validLength = 0;
+    DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new FileInputStream(file)));
+    try {
+      long consumed = 0;
+      while (true) {
+        byte op;
+        try {
+          op = in.readByte();
+          long blockId = in.readLong();
+          if (op == OP_ADD) {
+            long generationStamp = in.readLong();
+            long numBytes = in.readLong();
+            String path = in.readUTF();
+            entries.put(blockId, new Entry(blockId, generationStamp, numBytes, path));
+            consumed += 1 + 8 * 3 + 2 + utfLength(path);
+          } else if (op == OP_REMOVE) {
+            entries.remove(blockId);
+            consumed += 1 + 8;
+          } else {
+            throw new IOException("Unknown record " + op + " at " + consumed + " of " + file);
+          }
+        } catch (EOFException e) {
+          break;
+        }
+        validLength = consumed;
+        records++;
+      }
+    } finally {
+      in.close();
+    }
+    if (truncate && validLength < file.length()) {
+      DataNode.LOG.warn("Truncate torn tail of " + file + " at " + validLength);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+        raf.setLength(validLength);
+      } finally {
+        raf.close();
+      }
+    }
+    return records;
+  }
+
+  /** The length of a string written by writeUTF, excluding the length prefix. */
+  private static int utfLength(String s) {
+    int length = 0;
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      if (c >= 0x0001 && c <= 0x007F) {
+        length++;
+      } else if (c > 0x07FF) {
+        length += 3;
+      } else {
+        length += 2;
+      }
+    }
+    return length;
+  }
+}
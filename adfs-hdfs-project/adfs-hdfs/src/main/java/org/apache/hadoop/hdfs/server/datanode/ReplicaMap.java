@@ -0,0 +1,266 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * A concurrent map from a block to its replica information, used by
+ * {@link FSDataset} instead of a HashMap guarded by the dataset lock.
+ * 
+ * Replicas are keyed by block id and partitioned into stripes by block id,
+ * each stripe being a concurrent map, so lookups never block and updates
+ * only contend within one stripe. A datanode holds at most one replica of
+ * a block id, so a lookup matches the stored block if the generation
+ * stamps are equal or either one is the wildcard stamp, the same as
+ * {@link Block#equals(Object)}.
+ * 
+ * Iteration is weakly consistent and never throws
+ * ConcurrentModificationException; use {@link #snapshot()} to get a copy
+ * which does not change during a long scan such as a block report.
+ */
+class ReplicaMap<V> extends AbstractMap<Block, V> {
+  static final int DEFAULT_STRIPES = 64;
+
+  private final ConcurrentHashMap<Long, Replica<V>>[] stripes;
+  private final int mask;
+  private final EntrySet entrySet = new EntrySet();
+
+  ReplicaMap() {
+    this(DEFAULT_STRIPES);
+  }
+
+  /**
+   * @param stripes number of stripes, rounded up to a power of two
+   */
+  @SuppressWarnings("unchecked")
+  ReplicaMap(int stripes) {
+    int n = 1;
+    while (n < stripes) {
+      n <<= 1;
+    }
+    this.stripes = new ConcurrentHashMap[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new ConcurrentHashMap<Long, Replica<V>>();
+    }
+    this.mask = n - 1;
+  }
+
+  private ConcurrentHashMap<Long, Replica<V>> stripe(long blockId) {
+    int h = (int) (blockId ^ (blockId >>> 32));
+    h ^= (h >>> 16);
+    return stripes[h & mask];
+  }
+
+  private Replica<V> find(Object key) {
+    if (!(key instanceof Block)) {
+      return null;
+    }
+    Block b = (Block) key;
+    Replica<V> replica = stripe(b.getBlockId()).get(b.getBlockId());
+    return replica != null && replica.block.equals(b) ? replica : null;
+  }
+
+  /**
+   * @return the value stored under the given block id, whatever its
+   *         generation stamp is
+   */
+  V get(long blockId) {
+    Replica<V> replica = stripe(blockId).get(blockId);
+    return replica == null ? null : replica.value;
+  }
+
+  @Override
+  public V get(Object key) {
+    Replica<V> replica = find(key);
+    return replica == null ? null : replica.value;
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    return find(key) != null;
+  }
+
+  /**
+   * Store a replica. If a matching block is already stored, its key is
+   * kept and only the value is replaced, like {@link HashMap}; a replica
+   * of the same id with another generation stamp is replaced entirely.
+   */
+  @Override
+  public V put(Block key, V value) {
+    ConcurrentHashMap<Long, Replica<V>> map = stripe(key.getBlockId());
+    Long id = key.getBlockId();
+    while (true) {
+      Replica<V> old = map.get(id);
+      if (old == null) {
+        if (map.putIfAbsent(id, new Replica<V>(key, value)) == null) {
+          return null;
+        }
+      } else {
+        Block k = old.block.equals(key) ? old.block : key;
+        if (map.replace(id, old, new Replica<V>(k, value))) {
+          return k == old.block ? old.value : null;
+        }
+      }
+    }
+  }
+
+  @Override
+  public V remove(Object key) {
+    if (!(key instanceof Block)) {
+      return null;
+    }
+    ConcurrentHashMap<Long, Replica<V>> map =
+        stripe(((Block) key).getBlockId());
+    while (true) {
+      Replica<V> old = find(key);
+      if (old == null) {
+        return null;
+      }
+      if (map.remove(old.block.getBlockId(), old)) {
+        return old.value;
+      }
+    }
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+    for (ConcurrentHashMap<Long, Replica<V>> map : stripes) {
+      size += map.size();
+    }
+    return size;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    for (ConcurrentHashMap<Long, Replica<V>> map : stripes) {
+      if (!map.isEmpty()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    for (ConcurrentHashMap<Long, Replica<V>> map : stripes) {
+      map.clear();
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<Block, V>> entrySet() {
+    return entrySet;
+  }
+
+  /**
+   * Copy the map stripe by stripe without locking it. A replica updated
+   * during the copy is seen either before or after the update.
+   */
+  Map<Block, V> snapshot() {
+    Map<Block, V> copy = new HashMap<Block, V>(size() * 4 / 3 + 1);
+    for (ConcurrentHashMap<Long, Replica<V>> map : stripes) {
+      for (Replica<V> replica : map.values()) {
+        copy.put(replica.block, replica.value);
+      }
+    }
+    return copy;
+  }
+
+  /** An immutable entry, replaced as a whole on update. */
+  private static class Replica<V> implements Map.Entry<Block, V> {
+    final Block block;
+    final V value;
+
+    Replica(Block block, V value) {
+      this.block = block;
+      this.value = value;
+    }
+
+    public Block getKey() {
+      return block;
+    }
+
+    public V getValue() {
+      return value;
+    }
+
+    public V setValue(V value) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  private class EntrySet extends AbstractSet<Map.Entry<Block, V>> {
+    @Override
+    public Iterator<Map.Entry<Block, V>> iterator() {
+      return new ReplicaIterator();
+    }
+
+    @Override
+    public int size() {
+      return ReplicaMap.this.size();
+    }
+
+    @Override
+    public void clear() {
+      ReplicaMap.this.clear();
+    }
+  }
+
+  private class ReplicaIterator implements Iterator<Map.Entry<Block, V>> {
+    private int stripe = 0;
+    private Iterator<Replica<V>> current = stripes[0].values().iterator();
+    private Replica<V> last = null;
+
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (++stripe >= stripes.length) {
+          return false;
+        }
+        current = stripes[stripe].values().iterator();
+      }
+      return true;
+    }
+
+    public Map.Entry<Block, V> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = current.next();
+      return last;
+    }
+
+    public void remove() {
+      if (last == null) {
+        throw new IllegalStateException();
+      }
+      stripe(last.block.getBlockId()).remove(last.block.getBlockId(), last);
+      last = null;
+    }
+  }
+}
@@ -91,6 +91,10 @@ public class DataNodeMetrics implements Updater {
                     new MetricsTimeVaryingRate("heartBeats", registry);
   public MetricsTimeVaryingRate blockReports = 
                     new MetricsTimeVaryingRate("blockReports", registry);
+  public MetricsTimeVaryingRate blockReportDeltas = 
+                    new MetricsTimeVaryingRate("blockReportDeltas", registry);
+  public MetricsTimeVaryingRate blockReceivedBatches = 
+                    new MetricsTimeVaryingRate("blockReceivedBatches", registry);
 
     
   public DataNodeMetrics(Configuration conf, String datanodeName) {
@@ -134,5 +138,7 @@ public class DataNodeMetrics implements Updater {
     replaceBlockOp.resetMinMax();
     heartbeats.resetMinMax();
     blockReports.resetMinMax();
+    blockReportDeltas.resetMinMax();
+    blockReceivedBatches.resetMinMax();
   }
 }
@@ -0,0 +1,200 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.util.Daemon;
+
+import com.taobao.adfs.file.File;
+import com.taobao.adfs.state.StateManager;
+
+/***************************************************
+ * AccessTimeBuffer coalesces access time updates of files.
+ *
+ * It does the following:
+ * 1) keep the latest access time of each file id in memory,
+ * an update within precision of the known access time is dropped.
+ * 2) a thread that periodically writes buffered access
+ * times to state manager in one call, a write that fails
+ * is kept for next round unless the file is deleted.
+ * Several opens of a file between two rounds cost one write.
+ * 3) an access time set explicitly is never overwritten by
+ * a buffered one, writing an entry and discarding it are
+ * serialized by the buffer lock.
+ * 4) file status and listings show the buffered access time
+ * if it is newer than the stored one.
+ *
+ ***************************************************/
+class AccessTimeBuffer {
+  private final ConcurrentMap<Long, Long> accessTimes = new ConcurrentHashMap<Long, Long>();
+  private final StateManager stateManager;
+  private final long precision;
+  private final long flushInterval;
+  Daemon flushThread = null;
+  private volatile boolean fsRunning = true;
+
+  // metrics
+  private final AtomicLong recordedNumber = new AtomicLong(0);
+  private final AtomicLong flushedNumber = new AtomicLong(0);
+
+  AccessTimeBuffer(StateManager stateManager, long precision, long flushInterval) {
+    this.stateManager = stateManager;
+    this.precision = precision;
+    this.flushInterval = flushInterval > 0 ? flushInterval : 30 * 1000;
+  }
+
+  /**
+   * record access time of a file, return false if it is within precision
+   */
+  boolean record(File file, long atime) {
+    if (file == null) return false;
+    if (atime < file.atime + precision) return false;
+    // retry until the buffered access time is set or found newer
+    while (true) {
+      Long bufferedAtime = accessTimes.get(file.id);
+      if (bufferedAtime == null) {
+        if (accessTimes.putIfAbsent(file.id, atime) == null) break;
+      } else {
+        if (atime < bufferedAtime + precision) return false;
+        if (accessTimes.replace(file.id, bufferedAtime, atime)) break;
+      }
+    }
+    file.atime = atime;
+    recordedNumber.incrementAndGet();
+    return true;
+  }
+
+  /**
+   * @return buffered access time of the file if it is newer than the stored one
+   */
+  long getAccessTime(File file) {
+    Long atime = accessTimes.get(file.id);
+    return atime == null || atime < file.atime ? file.atime : atime;
+  }
+
+  /**
+   * drop buffered access time of a file whose access time is set explicitly,
+   * waits for a write of the file in progress so that the caller writes last
+   */
+  void discard(long fileId) {
+    synchronized (this) {
+      accessTimes.remove(fileId);
+    }
+  }
+
+  int size() {
+    return accessTimes.size();
+  }
+
+  long getRecordedNumber() {
+    return recordedNumber.get();
+  }
+
+  long getFlushedNumber() {
+    return flushedNumber.get();
+  }
+
+  /**
+   * write buffered access times to state manager in one call, an access time
+   * recorded or re-queued during flushing is left for next round
+   */
+  synchronized int flush() {
+    List<File> files = new ArrayList<File>(accessTimes.size());
+    for (Map.Entry<Long, Long> entry : accessTimes.entrySet()) {
+      // a newer access time recorded during flushing is kept for next round
+      if (!accessTimes.remove(entry.getKey(), entry.getValue())) continue;
+      File file = new File();
+      file.id = entry.getKey();
+      file.atime = entry.getValue();
+      files.add(file);
+    }
+    if (files.isEmpty()) return 0;
+    List<File> failedFiles;
+    try {
+      failedFiles = stateManager.updateFileAtimes(files);
+    } catch (Throwable t) {
+      FSNamesystem.LOG.warn("fail to update access times for " + files.size() + " files, retry later", t);
+      failedFiles = files;
+    }
+    int requeued = 0;
+    for (File file : failedFiles) {
+      try {
+        // file may be deleted after it was read
+        if (stateManager.findFileById(file.id) == null) continue;
+      } catch (Throwable ignored) {
+      }
+      accessTimes.putIfAbsent(file.id, file.atime);
+      ++requeued;
+    }
+    if (requeued > 0) FSNamesystem.LOG.warn("fail to update access times for " + requeued + " files, retry later");
+    int flushed = files.size() - failedFiles.size();
+    flushedNumber.addAndGet(flushed);
+    return flushed;
+  }
+
+  /*
+   * A periodic thread that writes buffered access times.
+   */
+  class AccessTimeMonitor implements Runnable {
+    public void run() {
+      while (fsRunning) {
+        try {
+          Thread.sleep(flushInterval);
+        } catch (InterruptedException ie) {
+          FSNamesystem.LOG.debug("AccessTimeMonitor thread received exception. " + ie);
+          break;
+        }
+        try {
+          int flushed = flush();
+          if (flushed > 0) FSNamesystem.LOG.debug("AccessTimeMonitor flushed " + flushed + " access times");
+        } catch (Throwable t) {
+          FSNamesystem.LOG.warn("AccessTimeMonitor thread received exception. " + t);
+        }
+      }
+      flush();
+    }
+  }
+
+  void startMonitor() {
+    stopMonitor();
+    fsRunning = true;
+    this.flushThread = new Daemon(new AccessTimeMonitor());
+    flushThread.start();
+  }
+
+  /*
+   * Shuts down the flush thread, buffered access times are written before it exits.
+   */
+  void stopMonitor() {
+    fsRunning = false;
+    if (flushThread != null) {
+      flushThread.interrupt();
+      try {
+        flushThread.join(3000);
+      } catch (InterruptedException ie) {
+      }
+      flushThread = null;
+    }
+  }
+}
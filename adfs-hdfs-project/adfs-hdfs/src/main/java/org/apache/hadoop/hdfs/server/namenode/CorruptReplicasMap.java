@@ -18,6 +18,7 @@
 package org.apache.hadoop.hdfs.server.namenode;
 
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.util.BlockMap;
 import org.apache.hadoop.ipc.Server;
 
 import java.util.*;
@@ -36,8 +37,8 @@ public class CorruptReplicasMap {
 
   private ReentrantReadWriteLock readWriteLock = new ReentrantReadWriteLock();
 
-  private Map<Block, Collection<DatanodeDescriptor>> corruptReplicasMap =
-      new TreeMap<Block, Collection<DatanodeDescriptor>>();
+  private BlockMap<Collection<DatanodeDescriptor>> corruptReplicasMap =
+      new BlockMap<Collection<DatanodeDescriptor>>();
 
   /**
    * Mark the block belonging to datanode as corrupt.
@@ -141,6 +142,30 @@ public class CorruptReplicasMap {
     return (nodes == null) ? 0 : nodes.size();
   }
 
+  /**
+   * Get a copy of the map
+   * 
+   * @return the storage IDs of the nodes with corrupt replicas, by block
+   */
+  Map<Block, List<String>> getCorruptReplicas() {
+    try {
+      readWriteLock.readLock().lock();
+      Map<Block, List<String>> copy = new TreeMap<Block, List<String>>();
+      for (Map.Entry<Block, Collection<DatanodeDescriptor>> entry : corruptReplicasMap) {
+        List<String> storageIDs = new ArrayList<String>();
+        synchronized (entry.getValue()) {
+          for (DatanodeDescriptor node : entry.getValue()) {
+            storageIDs.add(node.getStorageID());
+          }
+        }
+        copy.put(entry.getKey(), storageIDs);
+      }
+      return copy;
+    } finally {
+      readWriteLock.readLock().unlock();
+    }
+  }
+
   public int size() {
     try {
       readWriteLock.readLock().lock();
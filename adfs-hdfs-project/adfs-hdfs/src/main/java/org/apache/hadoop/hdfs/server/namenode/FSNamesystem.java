@@ -42,11 +42,8 @@ import java.util.Map.Entry;
 import java.util.Random;
 import java.util.Set;
 import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import javax.management.NotCompliantMBeanException;
@@ -93,6 +90,7 @@ import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
 import org.apache.hadoop.hdfs.server.protocol.DisallowedDatanodeException;
 import org.apache.hadoop.hdfs.server.protocol.NamespaceInfo;
 import org.apache.hadoop.hdfs.server.protocol.UpgradeCommand;
+import org.apache.hadoop.hdfs.util.BlockSet;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.ipc.Server;
 import org.apache.hadoop.metrics.util.MBeanUtil;
@@ -120,7 +118,6 @@ import com.taobao.adfs.distributed.DistributedException;
 import com.taobao.adfs.file.File;
 import com.taobao.adfs.lease.Lease;
 import com.taobao.adfs.state.StateManager;
-import com.taobao.adfs.util.HashedBytes;
 import com.taobao.adfs.util.IpAddress;
 
 /***************************************************
@@ -188,15 +185,15 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
   /**
    * Keeps a Collection for every named machine containing
    * blocks that have recently been invalidated and are thought to live on the machine in question.
-   * Mapping: StorageID -> ArrayList<Block>
+   * Mapping: StorageID -> BlockSet
    */
-  private Map<String, Collection<Block>> recentInvalidateSets;
+  Map<String, Collection<Block>> recentInvalidateSets;
 
   /**
-   * Keeps a TreeSet for every named node. Each treeset contains
+   * Keeps a BlockSet for every named node. Each set contains
    * a list of the blocks that are "extra" at that location. We'll
    * eventually remove these extras.
-   * Mapping: StorageID -> TreeSet<Block>
+   * Mapping: StorageID -> BlockSet
    */
   Map<String, Collection<Block>> excessReplicateMap;
 
@@ -214,20 +211,12 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
   // file lock ////
   Map<String, Integer> filelocks = new ConcurrentHashMap<String, Integer>();
 
-  private final ConcurrentHashMap<HashedBytes, CountDownLatch> lockedFiles =
-      new ConcurrentHashMap<HashedBytes, CountDownLatch>();
-
-  private final ConcurrentHashMap<Integer, HashedBytes> lockIds = new ConcurrentHashMap<Integer, HashedBytes>();
-
-  private final AtomicInteger lockIdGenerator = new AtomicInteger(1);
+  // hierarchical locks on paths, see PathLockManager
+  private PathLockManager pathLockManager = new PathLockManager(DEFAULT_FILELOCK_WAIT_DURATION);
 
   int fileLockWaitDuration;
 
-  static private Random rand = new Random();
-
   static final int DEFAULT_FILELOCK_WAIT_DURATION = 30000;
-
-  final ThreadLocal<Map<byte[], Integer>> threadLocal = new ThreadLocal<Map<byte[], Integer>>();
   // file lock ////
 
   private ReentrantReadWriteLock safeModeLock;
@@ -292,6 +281,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
 
   private HostsFileReader hostsReader;
   private Daemon dnthread = null;
+  // checkpoints and restores the replication state
+  private ReplicationStateCheckpoint replicationCheckpoint = null;
+  private Daemon rcthread = null;
 
   private long maxFsObjects = 0; // maximum number of fs objects
 
@@ -300,6 +292,12 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
 
   // precision of access times.
   private long accessTimePrecision = 0;
+  // access times waiting to be written to state manager
+  AccessTimeBuffer accessTimeBuffer;
+  // replicas of a dead datanode removed in one batch
+  private int deadNodeBlockRemovalBatchSize = 1000;
+  // blocks of a datanode scanned in one page by getBlocks
+  private int getBlocksPageSize = 100;
   private String nameNodeHostName;
   private Thread emptier;
 
@@ -339,6 +337,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     setConfigurationParameters(conf);
 
     this.fileLockWaitDuration = conf.getInt("hdfs.file.lock.wait.duration", DEFAULT_FILELOCK_WAIT_DURATION);
+    this.pathLockManager = new PathLockManager(fileLockWaitDuration);
     this.nameNodeAddress = nn.getNameNodeAddress();
     this.registerMBean(conf); // register the MBean for the FSNamesystemStutus
 
@@ -362,7 +361,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     this.nameNodeHostName = socAddr.getHostName();
 
     stateManager =
-        new StateManager(namenode.fileRepository, namenode.blockRepository, namenode.datanodeRepository,
+        new StateManager(this.conf, namenode.fileRepository, namenode.blockRepository, namenode.datanodeRepository,
             namenode.leaseRepository);
     corruptReplicas = new CorruptReplicasMap();
     excessReplicateMap = Collections.synchronizedSortedMap(new TreeMap<String, Collection<Block>>());
@@ -370,6 +369,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     pendingReplications =
         new PendingReplicationBlocks(namenode.conf.getInt("dfs.replication.pending.timeout.sec", -1) * 1000L);
     recentInvalidateSets = Collections.synchronizedSortedMap(new TreeMap<String, Collection<Block>>());
+    accessTimeBuffer =
+        new AccessTimeBuffer(stateManager, accessTimePrecision, this.conf.getLong("dfs.access.time.flush.interval",
+            30 * 1000L));
   }
 
   public static Collection<java.io.File> getNamespaceDirs(Configuration conf) {
@@ -413,6 +415,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     LOG.info(DFSConfigKeys.DFS_BLOCK_INVALIDATE_LIMIT_KEY + "=" + this.blockInvalidateLimit);
 
     this.accessTimePrecision = conf.getLong("dfs.access.time.precision", 0);
+    this.deadNodeBlockRemovalBatchSize = Math.max(1, conf.getInt("dfs.namenode.dead.node.block.removal.batch.size",
+        this.deadNodeBlockRemovalBatchSize));
+    this.getBlocksPageSize = Math.max(1, conf.getInt("dfs.namenode.getblocks.page.size", this.getBlocksPageSize));
     this.supportAppends = conf.getBoolean("dfs.support.append", false);
     this.isAccessTokenEnabled = conf.getBoolean(DFSConfigKeys.DFS_BLOCK_ACCESS_TOKEN_ENABLE_KEY, false);
     if (isAccessTokenEnabled) {
@@ -499,6 +504,14 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
    *          total size of blocks
    */
   BlocksWithLocations getBlocks(DatanodeID nodeID, long size) throws IOException {
+    return getBlocks(nodeID, size, r.nextLong());
+  }
+
+  /**
+   * Get blocks of the datanode from startBlockId on, wrapping around to the
+   * smallest block id after the largest.
+   */
+  BlocksWithLocations getBlocks(DatanodeID nodeID, long size, long startBlockId) throws IOException {
     DatanodeDescriptor node = nodeID == null ? null : stateManager.getDatanodeDescriptorByDatanodeId(nodeID.getId());
     if (node == null) {
       NameNode.stateChangeLog.warn("BLOCK* NameSystem.getBlocks: Asking for blocks from an unrecorded node " + nodeID);
@@ -508,28 +521,64 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
 
     int numBlocks = node.numBlocks();
     if (numBlocks == 0) { return new BlocksWithLocations(new BlockWithLocations[0]); }
-    List<com.taobao.adfs.block.Block> blockList = stateManager.findBlockByDatanodeId(node.getId(), false);
-    Iterator<com.taobao.adfs.block.Block> iter = blockList.iterator();
-    int startBlock = r.nextInt(numBlocks); // starting from a random block
-    // skip blocks
-    for (int i = 0; i < startBlock; i++) {
-      iter.next();
-    }
+    // scan DATANODE_ID index from the start block id to the end, then from the beginning to the start block id
     List<BlockWithLocations> results = new ArrayList<BlockWithLocations>();
-    long totalSize = 0;
-    while (totalSize < size && iter.hasNext()) {
-      totalSize += addBlock(iter.next(), results);
-    }
-    if (totalSize < size) {
-      iter = blockList.iterator(); // start from the beginning
-      for (int i = 0; i < startBlock && totalSize < size; i++) {
-        totalSize += addBlock(iter.next(), results);
-      }
+    long totalSize = addBlocks(node, startBlockId, Long.MAX_VALUE, size, results);
+    if (totalSize < size && startBlockId > Long.MIN_VALUE) {
+      totalSize += addBlocks(node, Long.MIN_VALUE, startBlockId - 1, size - totalSize, results);
     }
 
     return new BlocksWithLocations(results.toArray(new BlockWithLocations[results.size()]));
   }
 
+  /**
+   * Add blocks with id in [fromBlockId, toBlockId] on the datanode to results page by page, until the total size
+   * of added blocks reaches size. Locations are fetched only for blocks to be added, in one call for each page.
+   * 
+   * @return total size of added blocks
+   */
+  private long addBlocks(DatanodeDescriptor node, long fromBlockId, long toBlockId, long size,
+      List<BlockWithLocations> results) throws IOException {
+    long totalSize = 0;
+    long cursor = fromBlockId;
+    while (totalSize < size) {
+      List<com.taobao.adfs.block.Block> page =
+          stateManager.findBlockByDatanodeIdFrom(node.getId(), cursor, getBlocksPageSize);
+      // pick blocks which could fill the remaining size, some of them may be dropped for lack of locations
+      List<com.taobao.adfs.block.Block> pickedBlocks = new ArrayList<com.taobao.adfs.block.Block>(page.size());
+      long pickedSize = 0;
+      boolean reachEnd = page.size() < getBlocksPageSize;
+      for (com.taobao.adfs.block.Block block : page) {
+        if (block.id > toBlockId) {
+          reachEnd = true;
+          break;
+        }
+        if (totalSize + pickedSize >= size) {
+          reachEnd = false;
+          break;
+        }
+        pickedBlocks.add(block);
+        pickedSize += Math.max(block.length, 0);
+      }
+      if (pickedBlocks.isEmpty()) break;
+
+      long[] blockIds = new long[pickedBlocks.size()];
+      for (int i = 0; i < blockIds.length; ++i) {
+        blockIds[i] = pickedBlocks.get(i).id;
+      }
+      Map<Long, BlockEntry> blockEntryMap = stateManager.getBlockEntryMapByBlockIds(blockIds);
+      for (com.taobao.adfs.block.Block block : pickedBlocks) {
+        totalSize += addBlock(block, blockEntryMap.get(block.id), results);
+        if (totalSize >= size) break;
+      }
+
+      long lastBlockId = pickedBlocks.get(pickedBlocks.size() - 1).id;
+      if (reachEnd || lastBlockId >= toBlockId) break;
+      cursor = lastBlockId + 1;
+    }
+    return totalSize;
+  }
+
   /**
    * Get access keys
    * 
@@ -545,8 +594,9 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
    * 
    * @throws IOException
    */
-  private long addBlock(com.taobao.adfs.block.Block block, List<BlockWithLocations> results) throws IOException {
-    BlockEntry blockEntry = stateManager.getBlockEntryByBlockId(block.id);
+  private long addBlock(com.taobao.adfs.block.Block block, BlockEntry blockEntry, List<BlockWithLocations> results)
+      throws IOException {
+    if (blockEntry == null) return 0;
     ArrayList<String> machineSet = new ArrayList<String>(blockEntry.getBlockList(true).size());
     for (com.taobao.adfs.block.Block tempBlock : blockEntry.getBlockList(true)) {
       DatanodeDescriptor datanodeDescriptor = stateManager.getDatanodeDescriptorByDatanodeId(tempBlock.datanodeId);
@@ -636,8 +686,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     File file = stateManager.findFileByPath(src);
     if (file == null || file.isDir()) { return null; }
     if (doAccessTime && isAccessTimeSupported()) {
-      file.atime = now();
-      stateManager.updateFileByFile(file, File.ATIME);
+      accessTimeBuffer.record(file, now());
     }
 
     List<BlockEntry> blockEntryList = stateManager.getBlockEntryListByFileId(file.id);
@@ -727,10 +776,11 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     if (isInSafeMode()) { throw new SafeModeException("Cannot set accesstimes  for " + src, safeMode); }
     File file = stateManager.findFileByPath(src);
     if (file == null) throw new FileNotFoundException("File " + src + " does not exist.");
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       file.mtime = mtime;
       file.atime = atime;
+      accessTimeBuffer.discard(file.id);
       stateManager.updateFileByFile(file, File.MTIME | File.ATIME);
     } finally {
       if (lockid != null) {
@@ -773,7 +823,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     if (file.replication == replication) return true;
     int oldRepl = file.replication;
     file.replication = (byte) replication;
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       stateManager.updateFileByFile(file, File.REPLICATION);
       List<BlockEntry> blockEntryList = stateManager.getBlockEntryListOfFile(src);
@@ -863,7 +913,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
       throw new FileNotFoundException(src + ": non-existent file for append on " + clientMachine);
     verifyReplication(src, replication, clientMachine);
 
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       try {
         recoverLeaseInternal(file, holder, clientMachine, false);
@@ -917,7 +967,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     if (file == null) throw new FileNotFoundException("file not found " + src);
     if (!file.isUnderConstruction()) return true;
     if (file.isIdentifierMatched()) return false;
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       recoverLeaseInternal(file, holder, clientMachine, true);
     } finally {
@@ -971,7 +1021,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     // Create a LocatedBlock object for the last block of the file to be returned to the client.
     // Return null if the file does not have a partial block at the end.
     LocatedBlock lb = null;
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       BlockEntry lastBlockEntry = stateManager.getLastBlockEntryByFileId(file.id);
       if (lastBlockEntry != null) {
@@ -1042,7 +1092,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
         + targets.length + " nodes, instead of " + minReplication); }
 
     // allocate new block
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       com.taobao.adfs.block.Block newBlock = allocateBlock(file, blockEntryList.size(), targets);
       newBlock.length = 0;// Hadoop Block readFields will throw a IOException if length<0
@@ -1066,7 +1116,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     // Remove the block from the pending creates list
     NameNode.stateChangeLog.debug("BLOCK* NameSystem.abandonBlock: " + b + "of file " + src);
     if (isInSafeMode()) { throw new SafeModeException("Cannot abandon block " + b + " for fle" + src, safeMode); }
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       File file = stateManager.findFileByPath(src);
       checkLease(holder, file);
@@ -1119,7 +1169,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     }
     if (!checkFileProgress(blockEntryList, true)) return CompleteFileStatus.STILL_WAITING;
 
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       finalizeINodeFileUnderConstruction(file, blockEntryList);
       NameNode.stateChangeLog.info("DIR* NameSystem.completeFile: file " + src + " is closed by " + holder);
@@ -1236,7 +1286,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
   void addToInvalidates(Block block, DatanodeInfo node, boolean writeLog) {
     if (block == null || node == null) return;
     Collection<Block> invalidateSet = recentInvalidateSets.get(node.getStorageID());
-    if (invalidateSet == null) recentInvalidateSets.put(node.getStorageID(), invalidateSet = new HashSet<Block>());
+    if (invalidateSet == null) recentInvalidateSets.put(node.getStorageID(), invalidateSet = new BlockSet());
     if (invalidateSet.add(block)) pendingDeletionBlocksCount++;
     if (writeLog) NameNode.stateChangeLog.info("BLOCK* NameSystem.addToInvalidates:" + block + "=>" + node.getName());
   }
@@ -1270,7 +1320,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
         addToInvalidates(blk, dn, true);
         return;
       }
-      Integer lockid = getLock(file.path.getBytes(), true);
+      Integer lockid = getLock(file.path, true);
       try {
         // Add this replica to corruptReplicas Map
         corruptReplicas.addToCorruptReplicasMap(blk, node);
@@ -1352,7 +1402,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     if (file == null) throw new IOException("not existed path: " + src);
     if (src.equals(dst)) return file;
 
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, dst, true);
     try {
       if (targetFile == null) {
         // create parent directory for dst
@@ -1401,7 +1451,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     }
     if (isInSafeMode()) throw new SafeModeException("Cannot delete " + src, safeMode);
     // delete file; block will be deleted for no file is found on next block report
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       return !stateManager.deleteFileByPath(src, recursive).isEmpty();
     } finally {
@@ -1426,7 +1476,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
    *         or null if file not found
    */
   HdfsFileStatus getFileInfo(String src) throws IOException {
-    return stateManager.getFileInfo(src);
+    File file = stateManager.findFileInfoByPath(src);
+    return file == null ? null : StateManager.adfsFileToHdfsFileStatus(file, accessTimeBuffer.getAccessTime(file));
   }
 
   /**
@@ -1449,7 +1500,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     if (!DFSUtil.isValidName(src)) { throw new IOException("Invalid directory name: " + src); }
     if (isInSafeMode()) throw new SafeModeException("Cannot create directory " + src, safeMode);
     checkFsObjectLimit();
-    Integer lockid = getLock(src.getBytes(), true);
+    Integer lockid = getLock(src, true);
     try {
       return stateManager.insertFileByPath(src, 0, -1, (byte) 0, false, null);
     } finally {
@@ -1556,7 +1607,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     }
     file.leaseHolder = HdfsConstants.NN_RECOVERY_LEASEHOLDER;
     stateManager.updateFileByFile(file, File.LEASEHOLDER);
-    stateManager.renewLease(file.leaseHolder);
+    stateManager.insertLeaseByHolder(file.leaseHolder);
   }
 
   private void finalizeINodeFileUnderConstruction(File file, List<BlockEntry> blockEntryList) throws IOException {
@@ -1582,7 +1633,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     if (!file.isUnderConstruction()) { throw new IOException("Unexpected block (=" + lastblock + ") since the file (="
         + file + ") is not under construction"); }
 
-    Integer lockid = getLock(file.path.getBytes(), true);
+    Integer lockid = getLock(file.path, true);
     try {
       if (deleteblock) {
         stateManager.deleteBlockById(lastblock.getBlockId());
@@ -1656,8 +1707,15 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
    * @return a partial listing starting after startAfter
    */
   public DirectoryListing getListing(String src, byte[] startAfter) throws IOException {
-    HdfsFileStatus[] fileStatusList = stateManager.getListing(src);
-    return fileStatusList == null ? null : new DirectoryListing(fileStatusList, 0);
+    List<File> fileList = stateManager.findFileChildrenByPath(src);
+    if (fileList == null) return null;
+    HdfsFileStatus[] fileStatusList = new HdfsFileStatus[fileList.size()];
+    for (int i = 0; i < fileList.size(); ++i) {
+      File file = fileList.get(i);
+      if (file == null) continue;
+      fileStatusList[i] = StateManager.adfsFileToHdfsFileStatus(file, accessTimeBuffer.getAccessTime(file));
+    }
+    return new DirectoryListing(fileStatusList, 0);
   }
 
   // ///////////////////////////////////////////////////////
@@ -2350,15 +2408,8 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
       if (adminStates != null) node.setAdminState(adminStates);
       if (node.isAlive) node.isAlive = false;
       // process block info
-      List<com.taobao.adfs.block.Block> blockListOnThisDatanode =
-          stateManager.findBlockByDatanodeId(node.getId(), false);
-      if (blockListOnThisDatanode.isEmpty()) {
+      if (removeStoredBlocksOfDatanode(node)) {
         if (AdminStates.DEAD_INPROGRESS.equals(node.getAdminState())) node.setAdminState(AdminStates.DEAD);
-      } else {
-        for (Iterator<com.taobao.adfs.block.Block> it = blockListOnThisDatanode.iterator(); it.hasNext();) {
-          com.taobao.adfs.block.Block block = it.next();
-          removeStoredBlock(new Block(block), node);
-        }
       }
       stateManager.updateDatanodeByDatanodeDescriptor(node);
       unprotectedRemoveDatanode(node);
@@ -2369,6 +2420,127 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     }
   }
 
+  /**
+   * Remove all replicas on a datanode, a chunk of dead.node.block.removal.batch.size rows of the DATANODE_ID index
+   * each round. The block entries of a chunk are read in one call, and replicas are grouped by file, so each file is
+   * looked up and locked once. The replication queue is updated once per chunk.
+   * 
+   * @return true if no replica is left on the datanode
+   */
+  boolean removeStoredBlocksOfDatanode(DatanodeDescriptor node) throws IOException {
+    long startTime = now();
+    long removedNumber = 0;
+    try {
+      while (true) {
+        long batchStartTime = now();
+        List<com.taobao.adfs.block.Block> blockList =
+            stateManager.findBlockByDatanodeId(node.getId(), deadNodeBlockRemovalBatchSize);
+        if (blockList.isEmpty()) return true;
+        int removedNumberInBatch = removeStoredBlocks(blockList, node);
+        removedNumber += removedNumberInBatch;
+        if (NameNode.getNameNodeMetrics() != null) {
+          NameNode.getNameNodeMetrics().numDeadNodeBlocksRemoved.inc(removedNumberInBatch);
+          NameNode.getNameNodeMetrics().deadNodeBlockRemoval.inc((int) (now() - batchStartTime));
+        }
+        NameNode.stateChangeLog.info("BLOCK* NameSystem.removeStoredBlocksOfDatanode: removed " + removedNumber
+            + " replicas from " + node.getName() + " in " + (now() - startTime) + " msecs");
+        // rows which could not be removed are returned again, give up until next call
+        if (removedNumberInBatch == 0) return false;
+      }
+    } finally {
+      stateManager.removeBlockCacheOfDatanode(node.getId());
+    }
+  }
+
+  /**
+   * Remove the given replicas of a datanode, like {@link #removeStoredBlock(Block, DatanodeDescriptor)} for each.
+   * 
+   * @return number of replicas removed
+   */
+  private int removeStoredBlocks(List<com.taobao.adfs.block.Block> blockList, DatanodeDescriptor node)
+      throws IOException {
+    Map<Long, List<com.taobao.adfs.block.Block>> blocksByFileId =
+        new HashMap<Long, List<com.taobao.adfs.block.Block>>();
+    long[] blockIds = new long[blockList.size()];
+    int blockIndex = 0;
+    for (com.taobao.adfs.block.Block adfsBlock : blockList) {
+      blockIds[blockIndex++] = adfsBlock.id;
+      List<com.taobao.adfs.block.Block> blocksOfFile = blocksByFileId.get(adfsBlock.fileId);
+      if (blocksOfFile == null) {
+        blocksOfFile = new ArrayList<com.taobao.adfs.block.Block>();
+        blocksByFileId.put(adfsBlock.fileId, blocksOfFile);
+      }
+      blocksOfFile.add(adfsBlock);
+    }
+    Map<Long, BlockEntry> blockEntryMap = stateManager.getBlockEntryMapByBlockIds(blockIds);
+
+    int removedNumber = 0;
+    List<Block> removedBlocks = new ArrayList<Block>(blockList.size());
+    List<Block> neededBlocks = new ArrayList<Block>(blockList.size());
+    List<NumberReplicas> neededNumbers = new ArrayList<NumberReplicas>(blockList.size());
+    List<Integer> neededExpectedReplicas = new ArrayList<Integer>(blockList.size());
+    for (Map.Entry<Long, List<com.taobao.adfs.block.Block>> entry : blocksByFileId.entrySet()) {
+      File file = stateManager.findFileById(entry.getKey());
+      Integer lockid = file == null ? null : getLock(file.path, true);
+      try {
+        for (com.taobao.adfs.block.Block adfsBlock : entry.getValue()) {
+          BlockEntry blockEntry = blockEntryMap.get(adfsBlock.id);
+          if (blockEntry == null || blockEntry.getBlock(node.getId()) == null) {
+            // removed by others, but a stale row must not stop the batch from making progress
+            if (stateManager.deleteBlockByBlock(adfsBlock) != null) ++removedNumber;
+            continue;
+          }
+          List<com.taobao.adfs.block.Block> replicas = blockEntry.getBlockList(false);
+          if (file != null && replicas.size() == 1 && !blockEntry.onNullDatanode()) {
+            // if this is the last block in the table, insert a block on NULL_DATANODE_ID
+            com.taobao.adfs.block.Block nullBlock = new com.taobao.adfs.block.Block();
+            nullBlock.id = blockEntry.getBlockId();
+            nullBlock.datanodeId = Datanode.NULL_DATANODE_ID;
+            nullBlock.fileId = blockEntry.getFileId();
+            nullBlock.fileIndex = blockEntry.getFileIndex();
+            nullBlock.length = blockEntry.getLength();
+            nullBlock.generationStamp = blockEntry.getGenerationStamp();
+            stateManager.insertBlockByBlock(nullBlock);
+          }
+          stateManager.deleteBlockByBlock(blockEntry.getBlock(node.getId()));
+          ++removedNumber;
+
+          Block block = new Block(adfsBlock);
+          block.setDatanodeId(node.getId());
+          removedBlocks.add(block);
+          if (file != null) {
+            // count the remaining replicas from the entry already read
+            List<com.taobao.adfs.block.Block> remainingReplicas =
+                new ArrayList<com.taobao.adfs.block.Block>(replicas.size());
+            for (com.taobao.adfs.block.Block replica : replicas) {
+              if (replica.datanodeId != node.getId()) remainingReplicas.add(replica);
+            }
+            neededBlocks.add(block);
+            neededNumbers.add(countNodes(blockEntry.getHdfsBlock(), remainingReplicas));
+            neededExpectedReplicas.add((int) file.replication);
+          }
+        }
+      } finally {
+        if (lockid != null) {
+          releaseFileLock(lockid);
+        }
+      }
+    }
+
+    // feed the replication queue once for the whole batch
+    synchronized (neededReplications) {
+      for (int i = 0; i < neededBlocks.size(); ++i) {
+        NumberReplicas num = neededNumbers.get(i);
+        neededReplications.update(neededBlocks.get(i), num.liveReplicas(), num.decommissionedReplicas(),
+            neededExpectedReplicas.get(i), -1, 0);
+      }
+    }
+    for (Block block : removedBlocks) {
+      removeStoredBlockFromNode(block, node);
+    }
+    return removedNumber;
+  }
+
   void unprotectedRemoveDatanode(DatanodeDescriptor nodeDescr) {
     nodeDescr.resetBlocks();
     removeFromInvalidates(nodeDescr.getStorageID());
@@ -2492,71 +2664,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
       reportedBlock.set(newReport.getBlockId(i), newReport.getBlockLen(i), newReport.getBlockGenStamp(i));
       blockMapOnThisDatanode.remove(reportedBlock.getBlockId());
       BlockEntry storedBlockEntry = stateManager.getBlockEntryByBlockId(reportedBlock.getBlockId());
-      if (storedBlockEntry == null) {
-        // invalidate the reported block if no block is found, it means we cannot find the file by block.fileId
-        toInvalidate.add(new Block(reportedBlock, node.getId()));
-      } else {
-        File file = stateManager.findFileById(storedBlockEntry.getFileId());
-        if (file == null) {
-          for (com.taobao.adfs.block.Block storedBlock : storedBlockEntry.getBlockList(false)) {
-            toRemove.add(new Block(storedBlock));
-            if (storedBlock.id != reportedBlock.getBlockId()) toInvalidate.add(new Block(storedBlock));
-            else toInvalidate.add(new Block(reportedBlock, storedBlock.datanodeId));
-          }
-        } else {
-          Integer lockid = getLock(file.path.getBytes(), true);
-          try {
-            int countOfValidBlock = 0;
-            // add into toRemove if block on other data node is null or dead
-            for (com.taobao.adfs.block.Block storedBlock : storedBlockEntry.getBlockList(false)) {
-              if (storedBlock == null || storedBlock.datanodeId == node.getId()) continue;
-              DatanodeDescriptor otherNode = stateManager.getDatanodeDescriptorByDatanodeId(storedBlock.datanodeId);
-              if (otherNode == null || !otherNode.isAlive) toRemove.add(new Block(storedBlock));
-              else if (storedBlock.length >= 0) ++countOfValidBlock;
-            }
-            // validate the reported block and its replication
-            com.taobao.adfs.block.Block storedBlock = storedBlockEntry.getBlock(node.getId());
-            if (reportedBlock.getGenerationStamp() < storedBlockEntry.getGenerationStamp()) {
-              if (NameNode.stateChangeLog.isDebugEnabled()) {
-                NameNode.stateChangeLog
-                    .debug("BLOCK* NameSystem.processReport: reportedBlock.getGenerationStamp < storedBlockEntry.getGenerationStamp");
-              }
-              toInvalidate.add(new Block(reportedBlock, node.getId()));
-              if (storedBlock != null) toRemove.add(new Block(storedBlock));
-            } else if (reportedBlock.getGenerationStamp() > storedBlockEntry.getGenerationStamp()) {
-              // block on name node needs to be updated for smaller generation stamp
-              toAdd.add(new Block(reportedBlock, node.getId()));
-            } else if (reportedBlock.getGenerationStamp() == storedBlockEntry.getGenerationStamp()) {
-              if (reportedBlock.getNumBytes() < storedBlockEntry.getLength()) {
-                if (NameNode.stateChangeLog.isDebugEnabled()) {
-                  NameNode.stateChangeLog
-                      .debug("BLOCK* NameSystem.processReport: reportedBlock.getNumBytes < storedBlockEntry.getLength");
-                }
-                toInvalidate.add(new Block(reportedBlock, node.getId()));
-                if (storedBlock != null) toRemove.add(new Block(storedBlock));
-              } else if (reportedBlock.getNumBytes() > storedBlockEntry.getLength()) {
-                // block on name node needs to be updated for smaller length
-                toAdd.add(new Block(reportedBlock, node.getId()));
-              } else if (reportedBlock.getNumBytes() == storedBlockEntry.getLength()) {
-                if (storedBlock == null || storedBlock.generationStamp != reportedBlock.getGenerationStamp()
-                    || storedBlock.length != reportedBlock.getNumBytes()) {
-                  // add or update the block on this data node
-                  toAdd.add(new Block(reportedBlock, node.getId()));
-                }
-                // block on name node is same to the block on data node
-                if (++countOfValidBlock != file.replication) {
-                  // insert into toAdd to trigger a replication checking if block is over-replicated
-                  toAdd.add(new Block(reportedBlock, node.getId()));
-                }
-              }
-            }
-          } finally {
-            if (lockid != null) {
-              releaseFileLock(lockid);
-            }
-          }
-        }
-      }
+      reconcileReportedBlock(node, reportedBlock, storedBlockEntry, toAdd, toRemove, toInvalidate);
     }
     // collect blocks that have not been reported, so fsck could find corrupted blocks
     Iterator<com.taobao.adfs.block.Block> it = blockMapOnThisDatanode.values().iterator();
@@ -2567,7 +2675,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
         File file = stateManager.findFileByBlockId(storedBlockEntry.getFileId());
         Integer lockid = null;
         if (file != null) {
-          lockid = getLock(file.path.getBytes(), true);
+          lockid = getLock(file.path, true);
         }
         try {
           for (com.taobao.adfs.block.Block storedBlock : storedBlockEntry.getBlockList(false)) {
@@ -2593,28 +2701,165 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
       }
     }
 
-    // process report result
+    applyReportResult(node, toAdd, toRemove, toInvalidate);
+    NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
+  }
+
+  /**
+   * The given node is reporting the replicas added, updated or deleted since its last acknowledged delta. Added
+   * replicas are looked up in one batch and reconciled like {@link #processReport}, deleted replicas are removed in
+   * one batch. Unreported replicas are left to the next full report.
+   */
+  public void processReportDelta(DatanodeID nodeID, BlockListAsLongs addedBlocks, BlockListAsLongs deletedBlocks)
+      throws IOException {
+    long startTime = now();
+    if (addedBlocks == null) addedBlocks = new BlockListAsLongs(new long[0]);
+    if (deletedBlocks == null) deletedBlocks = new BlockListAsLongs(new long[0]);
+    if (NameNode.stateChangeLog.isDebugEnabled()) {
+      NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReportDelta: " + "from " + nodeID.getName() + " "
+          + addedBlocks.getNumberOfBlocks() + " added blocks, " + deletedBlocks.getNumberOfBlocks()
+          + " deleted blocks");
+    }
+    DatanodeDescriptor node = nodeID == null ? null : stateManager.getDatanodeDescriptorByDatanodeId(nodeID.getId());
+    if (node == null || !node.isAlive) throw new IOException("ProcessReportDelta from dead or unknown node: " + nodeID);
+
+    // Check if this datanode should actually be shutdown instead.
+    if (shouldNodeShutdown(node)) {
+      setDatanodeDead(node);
+      throw new DisallowedDatanodeException(node);
+    }
+
+    // remove deleted replicas, a replica re-added with a newer generation stamp is kept
+    List<com.taobao.adfs.block.Block> toRemoveOfDelta = new ArrayList<com.taobao.adfs.block.Block>();
+    for (int i = 0; i < deletedBlocks.getNumberOfBlocks(); ++i) {
+      com.taobao.adfs.block.Block storedBlock =
+          stateManager.findBlockByIdAndDatanodeId(deletedBlocks.getBlockId(i), node.getId());
+      if (storedBlock != null && storedBlock.generationStamp <= deletedBlocks.getBlockGenStamp(i)) {
+        toRemoveOfDelta.add(storedBlock);
+      }
+    }
+    if (!toRemoveOfDelta.isEmpty()) removeStoredBlocks(toRemoveOfDelta, node);
+
+    // reconcile added replicas
+    Collection<Block> toAdd = new LinkedList<Block>();
+    Collection<Block> toRemove = new LinkedList<Block>();
+    Collection<Block> toInvalidate = new LinkedList<Block>();
+    long[] addedBlockIds = new long[addedBlocks.getNumberOfBlocks()];
+    for (int i = 0; i < addedBlockIds.length; ++i) {
+      addedBlockIds[i] = addedBlocks.getBlockId(i);
+    }
+    Map<Long, BlockEntry> storedBlockEntries = stateManager.getBlockEntryMapByBlockIds(addedBlockIds);
+    Block reportedBlock = new Block(); // a fixed new'ed block to be reused with index i
+    for (int i = 0; i < addedBlockIds.length; ++i) {
+      reportedBlock.set(addedBlocks.getBlockId(i), addedBlocks.getBlockLen(i), addedBlocks.getBlockGenStamp(i));
+      BlockEntry storedBlockEntry = storedBlockEntries.get(reportedBlock.getBlockId());
+      reconcileReportedBlock(node, reportedBlock, storedBlockEntry, toAdd, toRemove, toInvalidate);
+    }
+    applyReportResult(node, toAdd, toRemove, toInvalidate);
+    if (NameNode.getNameNodeMetrics() != null) {
+      NameNode.getNameNodeMetrics().numBlockReportDeltaBlocks.inc(addedBlockIds.length
+          + deletedBlocks.getNumberOfBlocks());
+      NameNode.getNameNodeMetrics().blockReportDelta.inc((int) (now() - startTime));
+    }
+  }
+
+  /**
+   * Validate one reported replica against the stored block entry and collect the result of the comparison.
+   */
+  private void reconcileReportedBlock(DatanodeDescriptor node, Block reportedBlock, BlockEntry storedBlockEntry,
+      Collection<Block> toAdd, Collection<Block> toRemove, Collection<Block> toInvalidate) throws IOException {
+    if (storedBlockEntry == null) {
+      // invalidate the reported block if no block is found, it means we cannot find the file by block.fileId
+      toInvalidate.add(new Block(reportedBlock, node.getId()));
+    } else {
+      File file = stateManager.findFileById(storedBlockEntry.getFileId());
+      if (file == null) {
+        for (com.taobao.adfs.block.Block storedBlock : storedBlockEntry.getBlockList(false)) {
+          toRemove.add(new Block(storedBlock));
+          if (storedBlock.id != reportedBlock.getBlockId()) toInvalidate.add(new Block(storedBlock));
+          else toInvalidate.add(new Block(reportedBlock, storedBlock.datanodeId));
+        }
+      } else {
+        Integer lockid = getLock(file.path, true);
+        try {
+          int countOfValidBlock = 0;
+          // add into toRemove if block on other data node is null or dead
+          for (com.taobao.adfs.block.Block storedBlock : storedBlockEntry.getBlockList(false)) {
+            if (storedBlock == null || storedBlock.datanodeId == node.getId()) continue;
+            DatanodeDescriptor otherNode = stateManager.getDatanodeDescriptorByDatanodeId(storedBlock.datanodeId);
+            if (otherNode == null || !otherNode.isAlive) toRemove.add(new Block(storedBlock));
+            else if (storedBlock.length >= 0) ++countOfValidBlock;
+          }
+          // validate the reported block and its replication
+          com.taobao.adfs.block.Block storedBlock = storedBlockEntry.getBlock(node.getId());
+          if (reportedBlock.getGenerationStamp() < storedBlockEntry.getGenerationStamp()) {
+            if (NameNode.stateChangeLog.isDebugEnabled()) {
+              NameNode.stateChangeLog
+                  .debug("BLOCK* NameSystem.reconcileReportedBlock: reportedBlock.getGenerationStamp < storedBlockEntry.getGenerationStamp");
+            }
+            toInvalidate.add(new Block(reportedBlock, node.getId()));
+            if (storedBlock != null) toRemove.add(new Block(storedBlock));
+          } else if (reportedBlock.getGenerationStamp() > storedBlockEntry.getGenerationStamp()) {
+            // block on name node needs to be updated for smaller generation stamp
+            toAdd.add(new Block(reportedBlock, node.getId()));
+          } else if (reportedBlock.getGenerationStamp() == storedBlockEntry.getGenerationStamp()) {
+            if (reportedBlock.getNumBytes() < storedBlockEntry.getLength()) {
+              if (NameNode.stateChangeLog.isDebugEnabled()) {
+                NameNode.stateChangeLog
+                    .debug("BLOCK* NameSystem.reconcileReportedBlock: reportedBlock.getNumBytes < storedBlockEntry.getLength");
+              }
+              toInvalidate.add(new Block(reportedBlock, node.getId()));
+              if (storedBlock != null) toRemove.add(new Block(storedBlock));
+            } else if (reportedBlock.getNumBytes() > storedBlockEntry.getLength()) {
+              // block on name node needs to be updated for smaller length
+              toAdd.add(new Block(reportedBlock, node.getId()));
+            } else if (reportedBlock.getNumBytes() == storedBlockEntry.getLength()) {
+              if (storedBlock == null || storedBlock.generationStamp != reportedBlock.getGenerationStamp()
+                  || storedBlock.length != reportedBlock.getNumBytes()) {
+                // add or update the block on this data node
+                toAdd.add(new Block(reportedBlock, node.getId()));
+              }
+              // block on name node is same to the block on data node
+              if (++countOfValidBlock != file.replication) {
+                // insert into toAdd to trigger a replication checking if block is over-replicated
+                toAdd.add(new Block(reportedBlock, node.getId()));
+              }
+            }
+          }
+        } finally {
+          if (lockid != null) {
+            releaseFileLock(lockid);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Apply the result collected by {@link #reconcileReportedBlock}.
+   */
+  private void applyReportResult(DatanodeDescriptor node, Collection<Block> toAdd, Collection<Block> toRemove,
+      Collection<Block> toInvalidate) throws IOException {
     for (Block b : toRemove) {
       DatanodeDescriptor targetNode =
           b.getDatanodeId() == node.getId() ? node : stateManager.getDatanodeDescriptorByDatanodeId(b.getDatanodeId());
       if (NameNode.stateChangeLog.isDebugEnabled())
-        NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReport: to remove " + b + " on " + targetNode);
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.applyReportResult: to remove " + b + " on " + targetNode);
       removeStoredBlock(b, targetNode);
     }
     for (Block b : toAdd) {
       DatanodeDescriptor targetNode =
           b.getDatanodeId() == node.getId() ? node : stateManager.getDatanodeDescriptorByDatanodeId(b.getDatanodeId());
       if (NameNode.stateChangeLog.isDebugEnabled())
-        NameNode.stateChangeLog.debug("BLOCK* NameSystem.processReport: to add " + b + " on " + targetNode);
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.applyReportResult: to add " + b + " on " + targetNode);
       addStoredBlock(b, targetNode, null, true);
     }
     for (Block b : toInvalidate) {
       DatanodeDescriptor targetNode =
           b.getDatanodeId() == node.getId() ? node : stateManager.getDatanodeDescriptorByDatanodeId(b.getDatanodeId());
-      NameNode.stateChangeLog.info("BLOCK* NameSystem.processReport: to invalidate " + b + " on " + targetNode);
+      NameNode.stateChangeLog.info("BLOCK* NameSystem.applyReportResult: to invalidate " + b + " on " + targetNode);
       addToInvalidates(b, targetNode, true);
     }
-    NameNode.getNameNodeMetrics().blockReport.inc((int) (now() - startTime));
   }
 
   /**
@@ -2626,14 +2871,23 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
    */
   Block addStoredBlock(Block block, DatanodeDescriptor node, DatanodeDescriptor delNodeHint,
       boolean isInvokedByBlockReport) throws IOException {
-    // check block could be added
     BlockEntry storedBlockEntry = stateManager.getBlockEntryByBlockId(block.getBlockId());
+    return addStoredBlock(block, storedBlockEntry, node, delNodeHint, isInvokedByBlockReport);
+  }
+
+  /**
+   * Same as {@link #addStoredBlock(Block, DatanodeDescriptor, DatanodeDescriptor, boolean)} with the stored block
+   * entry looked up by the caller, e.g. for a batch of blocks at once.
+   */
+  private Block addStoredBlock(Block block, BlockEntry storedBlockEntry, DatanodeDescriptor node,
+      DatanodeDescriptor delNodeHint, boolean isInvokedByBlockReport) throws IOException {
+    // check block could be added
     if (storedBlockEntry == null) { return rejectAddStoredBlock(block, node,
         "Block not in blockMap with any generation stamp"); }
     File file = stateManager.findFileById(storedBlockEntry.getFileId());
     if (file == null) return rejectAddStoredBlock(block, node, "Block does not correspond to any file");
 
-    Integer lockid = getLock(file.path.getBytes(), true);
+    Integer lockid = getLock(file.path, true);
     try {
       // check block is under construction
       boolean blockIsUnderConstruction = false;
@@ -2900,7 +3154,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
 
       Collection<Block> excessBlocks = excessReplicateMap.get(cur.getStorageID());
       if (excessBlocks == null) {
-        excessBlocks = new TreeSet<Block>();
+        excessBlocks = new BlockSet();
         excessReplicateMap.put(cur.getStorageID(), excessBlocks);
       }
       if (excessBlocks.add(b)) {
@@ -2939,7 +3193,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     File file = stateManager.findFileById(blockEntry.getFileId());
     Integer lockid = null;
     if (file != null) {
-      lockid = getLock(file.path.getBytes(), true);
+      lockid = getLock(file.path, true);
     }
     try {
       if (file != null) {
@@ -2974,35 +3228,47 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     }
 
     if (node != null) {
-      // We've removed a block from a node, so it's definitely no longer in "excess" there.
-      Collection<Block> excessBlocks = excessReplicateMap.get(node.getStorageID());
-      if (excessBlocks != null) {
-        if (excessBlocks.remove(block)) {
-          excessBlocksCount--;
-          NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: " + block
-              + " is removed from excessBlocks");
-          if (excessBlocks.size() == 0) excessReplicateMap.remove(node.getStorageID());
-        }
+      removeStoredBlockFromNode(block, node);
+    }
+  }
+
+  /**
+   * Drop in-memory state of a replica removed from the node.
+   */
+  private void removeStoredBlockFromNode(Block block, DatanodeDescriptor node) {
+    // We've removed a block from a node, so it's definitely no longer in "excess" there.
+    Collection<Block> excessBlocks = excessReplicateMap.get(node.getStorageID());
+    if (excessBlocks != null) {
+      if (excessBlocks.remove(block)) {
+        excessBlocksCount--;
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.removeStoredBlock: " + block
+            + " is removed from excessBlocks");
+        if (excessBlocks.size() == 0) excessReplicateMap.remove(node.getStorageID());
       }
-      // Remove the replica from corruptReplicas
-      corruptReplicas.removeFromCorruptReplicasMap(block, node);
     }
+    // Remove the replica from corruptReplicas
+    corruptReplicas.removeFromCorruptReplicasMap(block, node);
   }
 
   /**
    * The given node is reporting that it received a certain block.
    */
   public void blockReceived(DatanodeID nodeID, Block block, String delHint) throws IOException {
+    blockReceived(nodeID, new Block[] { block }, new String[] { delHint });
+  }
+
+  /**
+   * The given node is reporting that it received a batch of blocks. The node is checked once, and the stored entries
+   * of all blocks are looked up in one request to the state server. Blocks that are unknown or stale are rejected
+   * without failing the batch. Any other failure fails the whole batch, so the node sends it again.
+   */
+  public void blockReceived(DatanodeID nodeID, Block[] blocks, String[] delHints) throws IOException {
     DatanodeDescriptor node = nodeID == null ? null : stateManager.getDatanodeDescriptorByDatanodeId(nodeID.getId());
     if (node == null || !node.isAlive) {
-      NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: " + block
-          + " is received from dead or unregistered node " + nodeID.getName());
-      throw new IOException("Got blockReceived message from unregistered or dead node " + nodeID.getName());
-    }
-
-    if (NameNode.stateChangeLog.isDebugEnabled()) {
-      NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceived: " + block + " is received from "
-          + nodeID.getName());
+      NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: " + blocks.length
+          + " blocks are received from dead or unregistered node " + (nodeID == null ? null : nodeID.getName()));
+      throw new IOException("Got blockReceived message from unregistered or dead node "
+          + (nodeID == null ? null : nodeID.getName()));
     }
 
     // Check if this datanode should actually be shutdown instead.
@@ -3011,22 +3277,47 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
       throw new DisallowedDatanodeException(node);
     }
 
-    // decrement number of blocks scheduled to this datanode.
-    node.decBlocksScheduled();
+    long[] blockIds = new long[blocks.length];
+    for (int i = 0; i < blocks.length; ++i) {
+      blockIds[i] = blocks[i].getBlockId();
+    }
+    Map<Long, BlockEntry> storedBlockEntries = stateManager.getBlockEntryMapByBlockIds(blockIds);
+    Map<String, DatanodeDescriptor> delHintNodes = new HashMap<String, DatanodeDescriptor>();
+    Set<Long> processedBlockIds = new HashSet<Long>(blocks.length);
+    for (int i = 0; i < blocks.length; ++i) {
+      Block block = blocks[i];
+      if (NameNode.stateChangeLog.isDebugEnabled()) {
+        NameNode.stateChangeLog.debug("BLOCK* NameSystem.blockReceived: " + block + " is received from "
+            + nodeID.getName());
+      }
+
+      // decrement number of blocks scheduled to this datanode.
+      node.decBlocksScheduled();
 
-    // get the deletion hint node
-    DatanodeDescriptor delHintNode = null;
-    if (delHint != null && delHint.length() != 0) {
-      delHintNode = stateManager.getDatanodeDescriptorByStorageId(delHint);
-      if (delHintNode == null) {
-        NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: " + block
-            + " is expected to be removed from an unrecorded node " + delHint);
+      // get the deletion hint node
+      DatanodeDescriptor delHintNode = null;
+      String delHint = delHints[i];
+      if (delHint != null && delHint.length() != 0) {
+        if (delHintNodes.containsKey(delHint)) {
+          delHintNode = delHintNodes.get(delHint);
+        } else {
+          delHintNode = stateManager.getDatanodeDescriptorByStorageId(delHint);
+          delHintNodes.put(delHint, delHintNode);
+        }
+        if (delHintNode == null) {
+          NameNode.stateChangeLog.warn("BLOCK* NameSystem.blockReceived: " + block
+              + " is expected to be removed from an unrecorded node " + delHint);
+        }
       }
-    }
 
-    // Modify the blocks->datanode map and node's map.
-    pendingReplications.remove(block);
-    addStoredBlock(block, node, delHintNode, false);
+      // an entry looked up before the block was added once in this batch is stale
+      BlockEntry storedBlockEntry = processedBlockIds.add(block.getBlockId()) ? storedBlockEntries.get(block
+          .getBlockId()) : stateManager.getBlockEntryByBlockId(block.getBlockId());
+
+      // Modify the blocks->datanode map and node's map.
+      pendingReplications.remove(block);
+      addStoredBlock(block, storedBlockEntry, node, delHintNode, false);
+    }
   }
 
   public long getMissingBlocksCount() {
@@ -3289,12 +3580,18 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
    */
   public NumberReplicas countNodes(BlockEntry blockEntry) throws IOException {
     // TODO: adfs
+    return countNodes(blockEntry.getHdfsBlock(), blockEntry.getBlockList(false));
+  }
+
+  /**
+   * Count the given replicas of a block.
+   */
+  NumberReplicas countNodes(Block block, List<com.taobao.adfs.block.Block> blockList) throws IOException {
     int decommissioned = 0;
     int live = 0;
     int corrupt = 0;
     int excess = 0;
-    Collection<DatanodeDescriptor> nodesCorrupt = corruptReplicas.getNodes(blockEntry.getHdfsBlock());
-    List<com.taobao.adfs.block.Block> blockList = blockEntry.getBlockList(false);
+    Collection<DatanodeDescriptor> nodesCorrupt = corruptReplicas.getNodes(block);
     for (com.taobao.adfs.block.Block tempBlock : blockList) {
       DatanodeDescriptor node = stateManager.getDatanodeDescriptorByDatanodeId(tempBlock.datanodeId);
       if (node == null) continue;
@@ -3304,7 +3601,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
         decommissioned++;
       } else {
         Collection<Block> blocksExcess = excessReplicateMap.get(node.getStorageID());
-        if (blocksExcess != null && blocksExcess.contains(blockEntry.getHdfsBlock())) {
+        if (blocksExcess != null && blocksExcess.contains(block)) {
           excess++;
         } else {
           live++;
@@ -4237,7 +4534,7 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
       throw new IOException(msg);
     }
 
-    Integer lockid = getLock(file.path.getBytes(), true);
+    Integer lockid = getLock(file.path, true);
     try {
       // update file version and return it as next block generation stamp
       file.leaseRecoveryTime = now();
@@ -4666,8 +4963,14 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     replthread = new Daemon(new ReplicationMonitor());
     replthread.start();
 
+    replicationCheckpoint = new ReplicationStateCheckpoint(this, conf);
+    rcthread = new Daemon(replicationCheckpoint);
+    rcthread.start();
+
     pendingReplications.startMonitor();
 
+    accessTimeBuffer.startMonitor();
+
     dnthread =
         new Daemon(new DecommissionManager(this).new Monitor(conf.getInt("dfs.namenode.decommission.interval", 30),
             conf.getInt("dfs.namenode.decommission.nodes.per.interval", 5)));
@@ -4682,8 +4985,11 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
     fsRunning = false;
     try {
       if (pendingReplications != null) pendingReplications.stopMonitor();
+      if (accessTimeBuffer != null) accessTimeBuffer.stopMonitor();
       if (hbthread != null) hbthread.interrupt();
       if (replthread != null) replthread.interrupt();
+      if (replicationCheckpoint != null) replicationCheckpoint.stop();
+      if (rcthread != null) rcthread.interrupt();
       if (dnthread != null) dnthread.interrupt();
       if (emptier != null) emptier.interrupt();
     } catch (Throwable t) {
@@ -4715,84 +5021,39 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
   }
 
   /**
-   * Returns existing file lock if found, otherwise obtains a new file lock and
-   * returns it.
+   * Lock a path for write. Its ancestors are locked with intention locks, so
+   * operations on other paths go on in parallel unless they are on an
+   * ancestor or a descendant of the path.
    * 
-   * @param lockid
-   *          requested by the user, or null if the user didn't already hold
-   *          lock
-   * @param file
-   *          the file to lock
+   * @param path
+   *          the path to lock
    * @param waitForLock
    *          if true, will block until the lock is available, otherwise will
    *          simply return null if it could not acquire the lock.
-   * @return lockid or null if waitForLock is false and the lock was
-   *         unavailable.
+   * @return lockid or null if the lock is held by this thread already, or
+   *         the lock was unavailable.
    */
-  private Integer getLock(byte[] file, boolean waitForLock) throws IOException {
-    return internalObtainRowLock(file, waitForLock);
+  private Integer getLock(String path, boolean waitForLock) throws IOException {
+    return pathLockManager.lock(path, PathLockManager.Mode.WRITE, waitForLock);
   }
 
   /**
-   * Obtains or tries to obtain the given file lock.
+   * Lock the source and the destination of a rename for write.
    * 
-   * @param waitForLock
-   *          if true, will block until the lock is available. Otherwise, just
-   *          tries to obtain the lock and returns null if unavailable.
+   * @see #getLock(String, boolean)
    */
-  private Integer internalObtainRowLock(final byte[] file, boolean waitForLock) throws IOException {
-    HashedBytes fileKey = new HashedBytes(file);
-    CountDownLatch fileLatch = new CountDownLatch(1);
-    Map<byte[], Integer> currentThreadLatch = threadLocal.get();
-    if (currentThreadLatch == null) {
-      currentThreadLatch = new HashMap<byte[], Integer>();
-      threadLocal.set(currentThreadLatch);
-    }
-
-    Integer reference = currentThreadLatch.get(file);
-    if (reference != null) { return null; }
-
-    // loop until we acquire the file lock (unless !waitForLock)
-    while (true) {
-      CountDownLatch existingLatch = lockedFiles.putIfAbsent(fileKey, fileLatch);
-      if (existingLatch == null) {
-        break;
-      } else {
-        // file already locked
-        if (!waitForLock) { return null; }
-        try {
-          if (!existingLatch.await(this.fileLockWaitDuration, TimeUnit.MILLISECONDS)) { return null; }
-        } catch (InterruptedException ie) {
-          // Empty
-        }
-      }
-    }
-
-    reference = new Integer(1);
-    currentThreadLatch.put(file, reference);
-
-    // loop until we generate an unused lock id
-    while (true) {
-      Integer lockId = lockIdGenerator.incrementAndGet();
-      HashedBytes existingFileKey = lockIds.putIfAbsent(lockId, fileKey);
-      if (existingFileKey == null) {
-        return lockId;
-      } else {
-        // lockId already in use, jump generator to a new spot
-        lockIdGenerator.set(rand.nextInt());
-      }
-    }
+  private Integer getLock(String src, String dst, boolean waitForLock) throws IOException {
+    return pathLockManager.lockForWrite(new String[] { src, dst }, waitForLock);
   }
 
   /**
    * Used by unit tests.
    * 
    * @param lockid
-   * @return file that goes with <code>lockid</code>
+   * @return paths that go with <code>lockid</code>, including ancestors
    */
-  byte[] getFileFromLock(final Integer lockid) {
-    HashedBytes fileKey = lockIds.get(lockid);
-    return fileKey == null ? null : fileKey.getBytes();
+  String[] getPathsFromLock(final Integer lockid) {
+    return pathLockManager.getPaths(lockid);
   }
 
   /**
@@ -4802,20 +5063,26 @@ public class FSNamesystem implements FSConstants, FSNamesystemMBean, NameNodeMXB
    *          The lock ID to release.
    */
   void releaseFileLock(final Integer lockId) {
-    HashedBytes fileKey = lockIds.remove(lockId);
-    if (fileKey == null) {
-      LOG.warn("Release unknown lockId: " + lockId);
-      return;
-    }
-    CountDownLatch fileLatch = lockedFiles.remove(fileKey);
-    if (fileLatch == null) {
-      LOG.error("Releases row not locked, lockId: " + lockId + " file: " + fileKey);
-      return;
-    }
-    fileLatch.countDown();
-    Map<byte[], Integer> currentThreadLatch = threadLocal.get();
-    if (currentThreadLatch != null) {
-      currentThreadLatch.remove(fileKey.getBytes());
-    }
+    pathLockManager.unlock(lockId);
+  }
+
+  public int getPathLocksHeld() {
+    return pathLockManager.getLockedPathNumber();
+  }
+
+  public long getPathLocksAcquired() {
+    return pathLockManager.getAcquiredNumber();
+  }
+
+  public long getPathLocksContended() {
+    return pathLockManager.getContendedNumber();
+  }
+
+  public long getPathLockWaitTime() {
+    return pathLockManager.getWaitTime();
+  }
+
+  public long getPathLockTimeouts() {
+    return pathLockManager.getTimeoutNumber();
   }
 }
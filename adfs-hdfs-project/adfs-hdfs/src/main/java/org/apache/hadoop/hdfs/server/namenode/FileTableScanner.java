@@ -0,0 +1,188 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.taobao.adfs.block.Block;
+import com.taobao.adfs.file.File;
+import com.taobao.adfs.state.StateManager;
+
+/**
+ * Scans the file table and the block table together without listing the
+ * namespace.
+ *
+ * The file id range is cut into equal key ranges which are scanned on a
+ * pool of threads. File ids are random over the whole range, so the ranges
+ * hold about as many files. In each range both tables are read in pages in
+ * order of file id, and the blocks are joined to their files in memory.
+ *
+ * @param <R> the result of one range, e.g. statistics to add up
+ */
+abstract class FileTableScanner<R> {
+  // key ranges per thread, so that threads finishing early take more
+  static final int RANGES_PER_THREAD = 16;
+
+  private final StateManager stateManager;
+  private final int batchSize;
+
+  /**
+   * @param batchSize the number of rows read from a table at a time
+   */
+  FileTableScanner(StateManager stateManager, int batchSize) {
+    this.stateManager = stateManager;
+    this.batchSize = Math.max(1, batchSize);
+  }
+
+  /** @return a new result for a range */
+  abstract R newResult();
+
+  /**
+   * Visit a file or a directory in a scanning thread.
+   * @param blocks the rows of the blocks of the file, empty for a directory
+   */
+  abstract void visit(File file, List<Block> blocks, R result) throws IOException;
+
+  /**
+   * Called by the thread of {@link #scan(int)} whenever a range finishes.
+   */
+  void rangeScanned(R result, int scannedRanges, int ranges) throws IOException {
+  }
+
+  /**
+   * Scan all files with the given number of threads.
+   */
+  void scan(int threads) throws IOException, InterruptedException {
+    int ranges = threads * RANGES_PER_THREAD;
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    CompletionService<R> completion = new ExecutorCompletionService<R>(executor);
+    try {
+      long step = Long.MAX_VALUE / ranges * 2;
+      for (int i = 0; i < ranges; i++) {
+        // wraps around to the right bound for all but the last range
+        final long from = Long.MIN_VALUE + i * step;
+        final long to = (i == ranges - 1) ? Long.MAX_VALUE : Long.MIN_VALUE + (i + 1) * step - 1;
+        completion.submit(new Callable<R>() {
+          public R call() throws IOException {
+            return scan(from, to);
+          }
+        });
+      }
+      for (int i = 0; i < ranges; i++) {
+        R result;
+        try {
+          result = completion.take().get();
+        } catch (ExecutionException e) {
+          throw (IOException) new IOException("Fail to scan: " + e.getCause()).initCause(e.getCause());
+        }
+        rangeScanned(result, i + 1, ranges);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Scan the files whose ids are in [from, to].
+   */
+  R scan(long from, long to) throws IOException {
+    R result = newResult();
+    long nextId = from;
+    while (true) {
+      List<File> files = stateManager.findFileByIdFrom(nextId, batchSize);
+      List<File> filesInRange = new ArrayList<File>(files.size());
+      boolean more = files.size() >= batchSize;
+      for (File file : files) {
+        if (file.id > to) {
+          more = false;
+          break;
+        }
+        if (file.getVersion() >= 0) filesInRange.add(file);
+      }
+      if (!filesInRange.isEmpty()) {
+        Map<Long, List<Block>> blocks = readBlocks(filesInRange.get(0).id, filesInRange.get(filesInRange.size() - 1).id);
+        for (File file : filesInRange) {
+          List<Block> blocksOfFile = blocks.get(file.id);
+          visit(file, blocksOfFile == null ? Collections.<Block> emptyList() : blocksOfFile, result);
+        }
+      }
+      long lastId = files.isEmpty() ? to : files.get(files.size() - 1).id;
+      if (!more || lastId >= to) {
+        return result;
+      }
+      nextId = lastId + 1;
+    }
+  }
+
+  /**
+   * @return the blocks of the files whose ids are in [fromFileId, toFileId], by file id
+   */
+  private Map<Long, List<Block>> readBlocks(long fromFileId, long toFileId) throws IOException {
+    Map<Long, List<Block>> blocks = new HashMap<Long, List<Block>>();
+    long nextFileId = fromFileId;
+    while (true) {
+      List<Block> page = stateManager.findBlockByFileIdFrom(nextFileId, batchSize);
+      boolean more = page.size() >= batchSize;
+      long lastFileId = page.isEmpty() ? toFileId : page.get(page.size() - 1).fileId;
+      for (Block block : page) {
+        if (block.fileId > toFileId) {
+          more = false;
+          break;
+        }
+        // the blocks of the last file may go on in the next page, read them with it
+        if (more && block.fileId == lastFileId) break;
+        addBlock(blocks, block);
+      }
+      if (!more) {
+        return blocks;
+      }
+      if (lastFileId == nextFileId) {
+        // a single file fills the page, read it as a whole
+        for (Block block : stateManager.findBlockByFileId(lastFileId)) {
+          addBlock(blocks, block);
+        }
+        if (lastFileId >= toFileId) {
+          return blocks;
+        }
+        nextFileId = lastFileId + 1;
+      } else {
+        nextFileId = lastFileId;
+      }
+    }
+  }
+
+  private static void addBlock(Map<Long, List<Block>> blocks, Block block) {
+    if (block.getVersion() < 0) return;
+    List<Block> blocksOfFile = blocks.get(block.fileId);
+    if (blocksOfFile == null) {
+      blocks.put(block.fileId, blocksOfFile = new ArrayList<Block>(4));
+    }
+    blocksOfFile.add(block);
+  }
+}
@@ -851,6 +851,20 @@ public class NameNode extends DistributedDataBaseOnDatabase implements NamenodeP
     return null;
   }
 
+  public DatanodeCommand blockReportDelta(DatanodeRegistration nodeReg, long[] addedBlocks, long[] deletedBlocks)
+      throws IOException {
+    verifyRequest(nodeReg);
+    BlockListAsLongs addedList = new BlockListAsLongs(addedBlocks);
+    BlockListAsLongs deletedList = new BlockListAsLongs(deletedBlocks);
+    if (stateChangeLog.isDebugEnabled()) {
+      stateChangeLog.debug("*BLOCK* NameNode.blockReportDelta: " + "from " + nodeReg.getName() + " "
+          + addedList.getNumberOfBlocks() + " added blocks, " + deletedList.getNumberOfBlocks() + " deleted blocks");
+    }
+
+    namesystem.processReportDelta(nodeReg, addedList, deletedList);
+    return null;
+  }
+
   /**
    * add new replica blocks to the Inode to target mapping
    * also add the Inode file to DataNodeDesc
@@ -869,9 +883,10 @@ public class NameNode extends DistributedDataBaseOnDatabase implements NamenodeP
     verifyRequest(nodeReg);
     stateChangeLog.debug("*BLOCK* NameNode.blockReceived: " + "from " + nodeReg.getName() + " " + blocks.length
         + " blocks.");
-    for (int i = 0; i < blocks.length; i++) {
-      namesystem.blockReceived(nodeReg, blocks[i], delHints[i]);
+    if (blocks.length != delHints.length) {
+      throw new IOException("blockReceived got " + blocks.length + " blocks but " + delHints.length + " delHints");
     }
+    namesystem.blockReceived(nodeReg, blocks, delHints);
   }
 
   /** {@inheritDoc} */
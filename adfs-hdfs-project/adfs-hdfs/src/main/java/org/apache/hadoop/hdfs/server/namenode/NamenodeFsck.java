@@ -24,6 +24,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
@@ -49,6 +50,9 @@ import org.apache.hadoop.net.NetworkTopology;
 import org.apache.hadoop.net.NodeBase;
 import org.apache.hadoop.security.UserGroupInformation;
 
+import com.taobao.adfs.block.BlockEntry;
+import com.taobao.adfs.file.File;
+
 /**
  * This class provides rudimentary checking of DFS volumes for errors and
  * sub-optimal conditions.
@@ -67,6 +71,8 @@ import org.apache.hadoop.security.UserGroupInformation;
  *  </li>
  *  <li>detect files with under-replicated or over-replicated blocks</li>
  *  </ul>
+ *  With the scan option the whole namespace is checked by scanning the file
+ *  and block tables in parallel key ranges instead of listing directories.
  *  Additionally, the tool collects a detailed overall DFS statistics, and
  *  optionally can print detailed statistics on block locations and replication
  *  factors of each file.
@@ -103,6 +109,9 @@ public class NamenodeFsck {
   private boolean showRacks = false;
   private int fixing = FIXING_NONE;
   private String path = "/";
+  private boolean scan = false;
+  private int scanThreads;
+  private final int scanBatchSize;
   
   private final Configuration conf;
   private final PrintWriter out;
@@ -129,6 +138,8 @@ public class NamenodeFsck {
     this.totalDatanodes = totalDatanodes;
     this.minReplication = minReplication;
     this.remoteAddress = remoteAddress;
+    this.scanThreads = conf.getInt("dfs.namenode.fsck.scan.threads", 4);
+    this.scanBatchSize = Math.max(1, conf.getInt("dfs.namenode.fsck.scan.batch.size", 1000));
 
     for (Iterator<String> it = pmap.keySet().iterator(); it.hasNext();) {
       String key = it.next();
@@ -140,7 +151,12 @@ public class NamenodeFsck {
       else if (key.equals("locations")) { this.showLocations = true; }
       else if (key.equals("racks")) { this.showRacks = true; }
       else if (key.equals("openforwrite")) {this.showOpenFiles = true; }
+      else if (key.equals("scan")) { this.scan = true; }
+      else if (key.equals("threads")) { this.scanThreads = Integer.parseInt(pmap.get("threads")[0]); }
     }
+    // the limit protects the master from a request asking for too many threads
+    int maxScanThreads = conf.getInt("dfs.namenode.fsck.scan.threads.max", 16);
+    this.scanThreads = Math.max(1, Math.min(scanThreads, maxScanThreads));
   }
   
   /**
@@ -157,7 +173,14 @@ public class NamenodeFsck {
       Result res = new Result(conf);
       final HdfsFileStatus file = namenode.getFileInfo(path);
       if (file != null) {
-        check(path, file, res);
+        if (scan && "/".equals(path)) {
+          scan(res);
+        } else {
+          if (scan) {
+            out.println("A scan covers the whole namespace only, checking " + path + " by listing");
+          }
+          check(path, file, res);
+        }
 
         out.println(res);
         out.println(" Number of data-nodes:\t\t" + totalDatanodes);
@@ -352,6 +375,159 @@ public class NamenodeFsck {
     }
   }
   
+  /**
+   * Check all files by scanning the file table and the block table directly
+   * instead of listing the namespace, on up to scanThreads threads. The
+   * statistics of each key range are added up as the ranges finish.
+   */
+  private void scan(final Result res) throws IOException, InterruptedException {
+    out.println("Scanning the file and block tables in " + scanThreads * FileTableScanner.RANGES_PER_THREAD
+        + " ranges on " + scanThreads + " threads");
+    new FileTableScanner<Result>(namenode.getNamesystem().stateManager, scanBatchSize) {
+      Result newResult() {
+        return new Result(conf);
+      }
+
+      void visit(File file, List<com.taobao.adfs.block.Block> blocks, Result rangeResult) throws IOException {
+        if (file.isDir()) {
+          rangeResult.totalDirs++;
+        } else {
+          checkFile(file, blocks, rangeResult);
+        }
+      }
+
+      void rangeScanned(Result rangeResult, int scannedRanges, int ranges) {
+        res.add(rangeResult);
+        synchronized (out) {
+          out.println("Scanned " + scannedRanges + "/" + ranges + " ranges, " + res.totalFiles + " files and "
+              + res.totalBlocks + " blocks checked");
+          out.flush();
+        }
+      }
+    }.scan(scanThreads);
+  }
+
+  /**
+   * Check the blocks of a scanned file as {@link #check} does, the path of
+   * the file is only looked up to report it. Called by scanning threads.
+   */
+  private void checkFile(File file, List<com.taobao.adfs.block.Block> blocksOfFile, Result res)
+      throws IOException {
+    FSNamesystem namesystem = namenode.getNamesystem();
+    List<BlockEntry> blockEntries = BlockEntry.getBlockEntryList(blocksOfFile);
+    Collections.sort(blockEntries);
+    boolean isOpen = file.isUnderConstruction();
+    long fileLen = BlockEntry.getTotalLength(blockEntries);
+    if (isOpen && !showOpenFiles) {
+      res.totalOpenFilesSize += fileLen;
+      res.totalOpenFilesBlocks += blockEntries.size();
+      res.totalOpenFiles++;
+      return;
+    }
+    res.totalFiles++;
+    res.totalSize += fileLen;
+    res.totalBlocks += blockEntries.size();
+    short targetFileReplication = file.replication;
+    String path = showFiles ? getPath(file) : null;
+    StringBuilder report = new StringBuilder();
+    int missing = 0;
+    int corrupt = 0;
+    long missize = 0;
+    for (int i = 0; i < blockEntries.size(); i++) {
+      BlockEntry blockEntry = blockEntries.get(i);
+      Block block = blockEntry.getHdfsBlock();
+      List<com.taobao.adfs.block.Block> replicas = blockEntry.getBlockList(true);
+      if (replicas.isEmpty() && isOpen && i == blockEntries.size() - 1) {
+        // the last block is being written
+        continue;
+      }
+      List<DatanodeInfo> nodes = new ArrayList<DatanodeInfo>(replicas.size());
+      List<DatanodeInfo> corruptNodes = new ArrayList<DatanodeInfo>(0);
+      for (com.taobao.adfs.block.Block replica : replicas) {
+        DatanodeDescriptor node = namesystem.stateManager.getDatanodeDescriptorByDatanodeId(replica.datanodeId);
+        if (node == null) continue;
+        if (namesystem.corruptReplicas.isReplicaCorrupt(block, node)) corruptNodes.add(node);
+        else nodes.add(node);
+      }
+      boolean isCorrupt = nodes.isEmpty() && !corruptNodes.isEmpty();
+      DatanodeInfo[] locs = (isCorrupt ? corruptNodes : nodes).toArray(new DatanodeInfo[0]);
+      res.totalReplicas += locs.length;
+      if (locs.length > targetFileReplication) {
+        res.excessiveReplicas += (locs.length - targetFileReplication);
+        res.numOverReplicatedBlocks += 1;
+      }
+      if (locs.length >= minReplication) res.numMinReplicatedBlocks++;
+      if (isCorrupt) {
+        corrupt++;
+        res.corruptBlocks++;
+        if (path == null) path = getPath(file);
+        report.append("\n" + path + ": CORRUPT block " + block.getBlockName() + "\n");
+      }
+      if (locs.length < targetFileReplication && locs.length > 0) {
+        res.missingReplicas += (targetFileReplication - locs.length);
+        res.numUnderReplicatedBlocks += 1;
+        if (path == null) path = getPath(file);
+        report.append(path + ": Under replicated " + block + ". Target Replicas is " + targetFileReplication
+            + " but found " + locs.length + " replica(s).\n");
+      }
+      int missingRacks = ReplicationTargetChooser.verifyBlockPlacement(new LocatedBlock(block, locs),
+          targetFileReplication, networktopology);
+      if (missingRacks > 0) {
+        res.numMisReplicatedBlocks++;
+        if (path == null) path = getPath(file);
+        report.append(path + ": Replica placement policy is violated for " + block
+            + ". Block should be additionally replicated on " + missingRacks + " more rack(s).\n");
+      }
+      if (locs.length == 0) {
+        res.addMissing(block.toString(), block.getNumBytes());
+        missing++;
+        missize += block.getNumBytes();
+      }
+    }
+    if (missing > 0 || corrupt > 0) {
+      res.corruptFiles++;
+      if (path == null) path = getPath(file);
+      if (missing > 0) {
+        report.append(path + ": MISSING " + missing + " blocks of total size " + missize + " B.\n");
+      }
+      if (fixing != FIXING_NONE && !isOpen) {
+        fix(path);
+      }
+    }
+    if (showFiles && report.length() == 0) {
+      report.append(path + " " + fileLen + " bytes, " + blockEntries.size() + " block(s): OK\n");
+    }
+    if (report.length() > 0) {
+      synchronized (out) {
+        out.print(report);
+      }
+    }
+  }
+
+  private String getPath(File file) throws IOException {
+    File fileWithPath = namenode.getNamesystem().stateManager.findFileById(file.id);
+    return fileWithPath == null ? "<file id " + file.id + ">" : fileWithPath.path;
+  }
+
+  /**
+   * Move or delete a corrupt file found by a scan.
+   */
+  private synchronized void fix(String path) throws IOException {
+    HdfsFileStatus file = namenode.getFileInfo(path);
+    if (file == null) {
+      return;
+    }
+    if (fixing == FIXING_MOVE) {
+      LocatedBlocks blocks = namenode.getNamesystem().getBlockLocations(path, 0, file.getLen(), false, false);
+      if (blocks != null) {
+        int index = path.lastIndexOf('/');
+        lostFoundMove(index <= 0 ? "/" : path.substring(0, index), file, blocks);
+      }
+    } else if (fixing == FIXING_DELETE) {
+      namenode.delete(path, true);
+    }
+  }
+  
   private void lostFoundMove(String parent, HdfsFileStatus file, LocatedBlocks blocks)
     throws IOException {
     final DFSClient dfs = new DFSClient(NameNode.getAddress(conf), conf);
@@ -586,6 +762,28 @@ public class NamenodeFsck {
       return ((missingIds.size() == 0) && (corruptBlocks == 0));
     }
     
+    /** Add up the statistics of another result. */
+    void add(Result other) {
+      missingIds.addAll(other.missingIds);
+      missingSize += other.missingSize;
+      corruptFiles += other.corruptFiles;
+      corruptBlocks += other.corruptBlocks;
+      excessiveReplicas += other.excessiveReplicas;
+      missingReplicas += other.missingReplicas;
+      numOverReplicatedBlocks += other.numOverReplicatedBlocks;
+      numUnderReplicatedBlocks += other.numUnderReplicatedBlocks;
+      numMisReplicatedBlocks += other.numMisReplicatedBlocks;
+      numMinReplicatedBlocks += other.numMinReplicatedBlocks;
+      totalBlocks += other.totalBlocks;
+      totalOpenFilesBlocks += other.totalOpenFilesBlocks;
+      totalFiles += other.totalFiles;
+      totalOpenFiles += other.totalOpenFiles;
+      totalDirs += other.totalDirs;
+      totalSize += other.totalSize;
+      totalOpenFilesSize += other.totalOpenFilesSize;
+      totalReplicas += other.totalReplicas;
+    }
+    
     /** Add a missing block name, plus its size. */
     void addMissing(String id, long size) {
       missingIds.add(id);
@@ -0,0 +1,401 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hierarchical locks on namespace paths.
+ *
+ * A lock request locks each of its target paths in write mode and every
+ * ancestor of a target in intention mode. Intention modes are compatible
+ * with each other, write mode with nothing. So operations on disjoint
+ * subtrees, and on different children of one directory, never wait for each
+ * other, while a write on a directory, e.g. a rename or a delete, waits for
+ * and excludes every operation below it.
+ *
+ * The paths of a request are locked in their natural order, where an
+ * ancestor sorts before its descendants, so requests cannot deadlock each
+ * other. The paths a calling thread holds already, in the same or a stronger
+ * mode or below a path it holds in write mode, are not locked again; a
+ * request whose paths are all held is granted without locking anything.
+ */
+class PathLockManager {
+  static final Log LOG = LogFactory.getLog(PathLockManager.class);
+
+  /** Lock modes, from the weakest to the strongest. */
+  enum Mode {
+    INTENTION, WRITE;
+
+    boolean isCompatible(Node node) {
+      if (node.writer) {
+        return false;
+      }
+      return this != WRITE || node.intentions == 0;
+    }
+  }
+
+  private static class Node {
+    final String path;
+    // guarded by this
+    int intentions = 0;
+    boolean writer = false;
+    // requests holding or waiting for this node
+    int references = 0;
+    boolean removed = false;
+
+    Node(String path) {
+      this.path = path;
+    }
+
+    void grant(Mode mode) {
+      switch (mode) {
+      case INTENTION: intentions++; break;
+      default: writer = true;
+      }
+    }
+
+    void revoke(Mode mode) {
+      switch (mode) {
+      case INTENTION: intentions--; break;
+      default: writer = false;
+      }
+    }
+  }
+
+  private static class Request {
+    final SortedMap<String, Mode> modes;
+    final List<Node> nodes;
+    final Thread owner = Thread.currentThread();
+    // set when released, possibly by another thread
+    volatile boolean released = false;
+
+    Request(SortedMap<String, Mode> modes) {
+      this.modes = modes;
+      this.nodes = new ArrayList<Node>(modes.size());
+    }
+  }
+
+  private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<String, Node>();
+  private final ConcurrentHashMap<Integer, Request> requests = new ConcurrentHashMap<Integer, Request>();
+  private final ThreadLocal<List<Request>> heldRequests = new ThreadLocal<List<Request>>() {
+    protected List<Request> initialValue() {
+      return new ArrayList<Request>(2);
+    }
+  };
+  private final AtomicInteger lockIdGenerator = new AtomicInteger(1);
+  private final Random random = new Random();
+  private final long waitDuration;
+
+  // contention statistics
+  private final AtomicLong acquiredNumber = new AtomicLong(0);
+  private final AtomicLong contendedNumber = new AtomicLong(0);
+  private final AtomicLong waitTime = new AtomicLong(0);
+  private final AtomicLong timeoutNumber = new AtomicLong(0);
+
+  /**
+   * @param waitDuration the longest time in milliseconds to wait for a lock
+   */
+  PathLockManager(long waitDuration) {
+    this.waitDuration = waitDuration;
+  }
+
+  /**
+   * Lock a path.
+   * @return the lock id, or null if the calling thread holds the lock
+   *         already, or if the path is held below a path the thread holds
+   *         in write mode, or the lock is not available within the wait duration
+   *         or at once if waitForLock is false
+   */
+  Integer lock(String path, Mode mode, boolean waitForLock) {
+    SortedMap<String, Mode> modes = new TreeMap<String, Mode>();
+    addPath(modes, path, mode);
+    return lock(modes, waitForLock);
+  }
+
+  /**
+   * Lock paths in write mode, e.g. the source and the destination of a
+   * rename.
+   * @see #lock(String, Mode, boolean)
+   */
+  Integer lockForWrite(String[] paths, boolean waitForLock) {
+    SortedMap<String, Mode> modes = new TreeMap<String, Mode>();
+    for (String path : paths) {
+      addPath(modes, path, Mode.WRITE);
+    }
+    return lock(modes, waitForLock);
+  }
+
+  private Integer lock(SortedMap<String, Mode> modes, boolean waitForLock) {
+    List<Request> held = heldRequests.get();
+    modes = removeHeld(held, modes);
+    if (modes.isEmpty()) {
+      return null;
+    }
+    Request request = new Request(modes);
+    long deadline = waitForLock ? now() + waitDuration : 0;
+    for (Map.Entry<String, Mode> entry : modes.entrySet()) {
+      Node node = acquire(entry.getKey(), entry.getValue(), waitForLock, deadline);
+      if (node == null) {
+        release(request);
+        if (waitForLock) {
+          LOG.warn("Timed out after " + waitDuration + " msec waiting for " + entry.getValue() + " lock on "
+              + entry.getKey() + " for " + modes);
+        }
+        return null;
+      }
+      request.nodes.add(node);
+    }
+    held.add(request);
+    acquiredNumber.incrementAndGet();
+
+    // loop until we generate an unused lock id
+    while (true) {
+      Integer lockId = lockIdGenerator.incrementAndGet();
+      if (requests.putIfAbsent(lockId, request) == null) {
+        return lockId;
+      }
+      // lockId already in use, jump generator to a new spot
+      lockIdGenerator.set(random.nextInt());
+    }
+  }
+
+  /**
+   * Release a lock.
+   * @param lockId the id returned by a lock method
+   */
+  void unlock(Integer lockId) {
+    Request request = requests.remove(lockId);
+    if (request == null) {
+      LOG.warn("Release unknown lockId: " + lockId);
+      return;
+    }
+    release(request);
+    request.released = true;
+    if (request.owner == Thread.currentThread()) {
+      heldRequests.get().remove(request);
+    } else {
+      LOG.warn("Lock " + lockId + " on " + request.modes + " of " + request.owner + " is released by "
+          + Thread.currentThread());
+    }
+  }
+
+  /**
+   * @return the paths locked by the given lock id, or null if not locked
+   */
+  String[] getPaths(Integer lockId) {
+    Request request = requests.get(lockId);
+    return request == null ? null : request.modes.keySet().toArray(new String[0]);
+  }
+
+  /** @return the number of paths locked or waited for */
+  int getLockedPathNumber() {
+    return nodes.size();
+  }
+
+  /** @return the number of granted lock requests */
+  long getAcquiredNumber() {
+    return acquiredNumber.get();
+  }
+
+  /** @return the number of paths which could not be locked at once */
+  long getContendedNumber() {
+    return contendedNumber.get();
+  }
+
+  /** @return the total time in milliseconds spent waiting for paths */
+  long getWaitTime() {
+    return waitTime.get();
+  }
+
+  /** @return the number of lock requests timed out */
+  long getTimeoutNumber() {
+    return timeoutNumber.get();
+  }
+
+  /**
+   * Add the path with the mode and its ancestors with intention mode, a path
+   * added twice keeps the stronger mode.
+   */
+  static void addPath(SortedMap<String, Mode> modes, String path, Mode mode) {
+    path = normalize(path);
+    if (path.startsWith("/") && path.length() > 1) {
+      addMode(modes, "/", Mode.INTENTION);
+    }
+    for (int i = path.indexOf('/', 1); i > 0; i = path.indexOf('/', i + 1)) {
+      addMode(modes, path.substring(0, i), Mode.INTENTION);
+    }
+    addMode(modes, path, mode);
+  }
+
+  private static void addMode(SortedMap<String, Mode> modes, String path, Mode mode) {
+    Mode old = modes.get(path);
+    if (old == null || old.compareTo(mode) < 0) {
+      modes.put(path, mode);
+    }
+  }
+
+  private static String normalize(String path) {
+    int end = path.length();
+    while (end > 1 && path.charAt(end - 1) == '/') {
+      end--;
+    }
+    return path.substring(0, end);
+  }
+
+  /**
+   * @return the paths which the calling thread does not hold already, in the
+   *         same or a stronger mode or below a path held in write mode
+   */
+  private static SortedMap<String, Mode> removeHeld(List<Request> held, SortedMap<String, Mode> modes) {
+    for (Iterator<Request> it = held.iterator(); it.hasNext();) {
+      if (it.next().released) {
+        it.remove();
+      }
+    }
+    if (held.isEmpty()) {
+      return modes;
+    }
+    SortedMap<String, Mode> notHeld = new TreeMap<String, Mode>();
+    for (Map.Entry<String, Mode> entry : modes.entrySet()) {
+      if (!isHeld(held, entry.getKey(), entry.getValue())) {
+        notHeld.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return notHeld;
+  }
+
+  private static boolean isHeld(List<Request> held, String path, Mode mode) {
+    for (Request request : held) {
+      Mode heldMode = request.modes.get(path);
+      if (heldMode != null && heldMode.compareTo(mode) >= 0) {
+        return true;
+      }
+      // a write lock on an ancestor excludes every other thread from below it
+      int start = path.length() > 1 ? path.lastIndexOf('/') : -1;
+      for (int i = start; i >= 0; i = path.lastIndexOf('/', i - 1)) {
+        String ancestor = i == 0 ? "/" : path.substring(0, i);
+        if (request.modes.get(ancestor) == Mode.WRITE) {
+          return true;
+        }
+        if (i == 0) {
+          break;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Lock one node.
+   * @return the node, or null if it is not available in time
+   */
+  private Node acquire(String path, Mode mode, boolean waitForLock, long deadline) {
+    Node node = reference(path);
+    synchronized (node) {
+      if (!mode.isCompatible(node)) {
+        contendedNumber.incrementAndGet();
+        if (!waitForLock) {
+          unreference(node);
+          return null;
+        }
+        long startTime = now();
+        boolean interrupted = false;
+        try {
+          while (!mode.isCompatible(node)) {
+            long remaining = deadline - now();
+            if (remaining <= 0) {
+              timeoutNumber.incrementAndGet();
+              unreference(node);
+              return null;
+            }
+            try {
+              node.wait(remaining);
+            } catch (InterruptedException e) {
+              interrupted = true;
+            }
+          }
+        } finally {
+          waitTime.addAndGet(now() - startTime);
+          if (interrupted) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+      node.grant(mode);
+    }
+    return node;
+  }
+
+  private void release(Request request) {
+    // release in reverse order, descendants first
+    for (int i = request.nodes.size() - 1; i >= 0; i--) {
+      Node node = request.nodes.get(i);
+      synchronized (node) {
+        node.revoke(request.modes.get(node.path));
+        node.notifyAll();
+        unreference(node);
+      }
+    }
+    request.nodes.clear();
+  }
+
+  private Node reference(String path) {
+    while (true) {
+      Node node = nodes.get(path);
+      if (node == null) {
+        Node newNode = new Node(path);
+        node = nodes.putIfAbsent(path, newNode);
+        if (node == null) {
+          node = newNode;
+        }
+      }
+      synchronized (node) {
+        // retry if the node was dropped after we got it
+        if (!node.removed) {
+          node.references++;
+          return node;
+        }
+      }
+    }
+  }
+
+  // must hold the lock of the node
+  private void unreference(Node node) {
+    if (--node.references == 0) {
+      node.removed = true;
+      nodes.remove(node.path, node);
+    }
+  }
+
+  private static long now() {
+    return System.currentTimeMillis();
+  }
+}
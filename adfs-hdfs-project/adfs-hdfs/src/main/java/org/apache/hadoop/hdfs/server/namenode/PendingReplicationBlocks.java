@@ -103,6 +103,15 @@ class PendingReplicationBlocks {
     return pendingReplications.size();
   }
 
+  /**
+   * The blocks that are undergoing replication
+   */
+  List<Block> getBlocks() {
+    synchronized (pendingReplications) {
+      return new ArrayList<Block>(pendingReplications.keySet());
+    }
+  }
+
   /**
    * How many copies of this block is pending replication?
    */
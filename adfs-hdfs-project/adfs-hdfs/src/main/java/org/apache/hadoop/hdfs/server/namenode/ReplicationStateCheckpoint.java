@@ -0,0 +1,504 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.namenode.FSNamesystem.NumberReplicas;
+import org.apache.hadoop.hdfs.util.BlockSet;
+import org.apache.hadoop.io.Text;
+
+import com.taobao.adfs.block.BlockEntry;
+import com.taobao.adfs.file.File;
+
+/**
+ * Checkpoints the replication state which only the master namenode keeps in
+ * memory, and restores it when a namenode becomes master, so that the new
+ * master resumes replication work at once instead of waiting for the block
+ * reports of all datanodes.
+ *
+ * The under replicated blocks, the blocks pending replication, the corrupt
+ * replicas, the excess replicas and the replicas to invalidate are written
+ * to dfs.namenode.replication.checkpoint.dir every
+ * dfs.namenode.replication.checkpoint.interval seconds and when the namenode
+ * leaves master. The directory must be shared by all namenodes, e.g. an NFS
+ * mount, since the new master runs on another server; it has no default and
+ * must exist, so that a missing mount fails the namenode at once instead of
+ * checkpointing to a local disk no other namenode reads. Without the
+ * directory there is no checkpoint and only the scan below runs.
+ *
+ * At promotion the checkpoint is restored unless it is older than
+ * dfs.namenode.replication.checkpoint.max.age seconds. The checkpoint may be
+ * stale, so a replica is only marked corrupt or excess again if it is still
+ * in the block table with the same generation stamp. The datanodes delete a
+ * replica to invalidate whatever its generation stamp, so a replica is only
+ * invalidated again if its block is gone from the block table or it is
+ * restored as corrupt or excess; a replica the table misses is left to the
+ * block reports, as it may be a newer copy. Blocks pending replication are
+ * queued as under replicated, as their replication may be lost with the old
+ * master. Then the file and block tables are scanned on
+ * dfs.namenode.replication.rebuild.threads threads to queue the under
+ * replicated blocks which the checkpoint misses.
+ */
+class ReplicationStateCheckpoint implements Runnable {
+  static final Log LOG = LogFactory.getLog(ReplicationStateCheckpoint.class);
+  static final String CHECKPOINT_FILE = "replication.checkpoint";
+  private static final int LAYOUT_VERSION = -1;
+  private static final int COPY_RETRIES = 3;
+
+  private final FSNamesystem namesystem;
+  // null if there is no checkpoint
+  private final java.io.File dir;
+  private final long interval;
+  private final long maxAge;
+  private final int rebuildThreads;
+  private final int rebuildBatchSize;
+  private volatile boolean running = true;
+  // set once the state is restored and rebuilt, so it is worth a checkpoint
+  private volatile boolean checkpointing = false;
+
+  /**
+   * @throws IOException if the checkpoint directory is configured but is not
+   *         a directory, e.g. the shared mount is missing
+   */
+  ReplicationStateCheckpoint(FSNamesystem namesystem, Configuration conf) throws IOException {
+    this.namesystem = namesystem;
+    String dirName = conf.get("dfs.namenode.replication.checkpoint.dir");
+    if (dirName == null || dirName.trim().isEmpty()) {
+      LOG.info("dfs.namenode.replication.checkpoint.dir is not set, replication state is not checkpointed");
+      this.dir = null;
+    } else {
+      this.dir = new java.io.File(dirName.trim());
+      if (!dir.isDirectory()) {
+        throw new IOException("Replication state checkpoint directory " + dir
+            + " does not exist, it must be shared by all namenodes");
+      }
+    }
+    this.interval = conf.getLong("dfs.namenode.replication.checkpoint.interval", 60) * 1000;
+    this.maxAge = conf.getLong("dfs.namenode.replication.checkpoint.max.age", 3600) * 1000;
+    this.rebuildThreads = conf.getInt("dfs.namenode.replication.rebuild.threads", 4);
+    this.rebuildBatchSize = conf.getInt("dfs.namenode.replication.rebuild.batch.size", 1000);
+  }
+
+  /** The replication state in a checkpoint */
+  static class State {
+    long time = 0;
+    List<Block> neededBlocks = new ArrayList<Block>();
+    Map<Block, List<String>> corruptReplicas = new TreeMap<Block, List<String>>();
+    Map<String, List<Block>> excessReplicas = new TreeMap<String, List<Block>>();
+    Map<String, List<Block>> invalidates = new TreeMap<String, List<Block>>();
+
+    void write(DataOutput out) throws IOException {
+      out.writeInt(LAYOUT_VERSION);
+      out.writeLong(time);
+      out.writeInt(neededBlocks.size());
+      for (Block block : neededBlocks) {
+        block.write(out);
+      }
+      out.writeInt(corruptReplicas.size());
+      for (Map.Entry<Block, List<String>> entry : corruptReplicas.entrySet()) {
+        entry.getKey().write(out);
+        out.writeInt(entry.getValue().size());
+        for (String storageID : entry.getValue()) {
+          Text.writeString(out, storageID);
+        }
+      }
+      writeReplicas(out, excessReplicas);
+      writeReplicas(out, invalidates);
+    }
+
+    void readFields(DataInput in) throws IOException {
+      int version = in.readInt();
+      if (version != LAYOUT_VERSION) {
+        throw new IOException("Unexpected layout version " + version + ", expected " + LAYOUT_VERSION);
+      }
+      time = in.readLong();
+      neededBlocks = readBlocks(in);
+      corruptReplicas = new TreeMap<Block, List<String>>();
+      for (int i = in.readInt(); i > 0; i--) {
+        Block block = new Block();
+        block.readFields(in);
+        int size = in.readInt();
+        List<String> storageIDs = new ArrayList<String>(size);
+        for (int j = 0; j < size; j++) {
+          storageIDs.add(Text.readString(in));
+        }
+        corruptReplicas.put(block, storageIDs);
+      }
+      excessReplicas = readReplicas(in);
+      invalidates = readReplicas(in);
+    }
+
+    private static void writeReplicas(DataOutput out, Map<String, List<Block>> replicas) throws IOException {
+      out.writeInt(replicas.size());
+      for (Map.Entry<String, List<Block>> entry : replicas.entrySet()) {
+        Text.writeString(out, entry.getKey());
+        out.writeInt(entry.getValue().size());
+        for (Block block : entry.getValue()) {
+          block.write(out);
+        }
+      }
+    }
+
+    private static Map<String, List<Block>> readReplicas(DataInput in) throws IOException {
+      Map<String, List<Block>> replicas = new TreeMap<String, List<Block>>();
+      for (int i = in.readInt(); i > 0; i--) {
+        String storageID = Text.readString(in);
+        replicas.put(storageID, readBlocks(in));
+      }
+      return replicas;
+    }
+
+    private static List<Block> readBlocks(DataInput in) throws IOException {
+      int size = in.readInt();
+      List<Block> blocks = new ArrayList<Block>(size);
+      for (int i = 0; i < size; i++) {
+        Block block = new Block();
+        block.readFields(in);
+        blocks.add(block);
+      }
+      return blocks;
+    }
+
+    @Override
+    public String toString() {
+      return neededBlocks.size() + " needed blocks, " + corruptReplicas.size() + " corrupt blocks, "
+          + excessReplicas.size() + " nodes with excess replicas and " + invalidates.size()
+          + " nodes with replicas to invalidate";
+    }
+  }
+
+  /**
+   * Write a state to the checkpoint file in a directory, through a
+   * temporary file so that a crash leaves the last checkpoint in place.
+   */
+  static void save(java.io.File dir, State state) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Cannot create directory " + dir);
+    }
+    java.io.File tmp = new java.io.File(dir, CHECKPOINT_FILE + ".tmp");
+    FileOutputStream fos = new FileOutputStream(tmp);
+    try {
+      CheckedOutputStream checked = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+      DataOutputStream out = new DataOutputStream(checked);
+      state.write(out);
+      out.writeLong(checked.getChecksum().getValue());
+      out.flush();
+      fos.getChannel().force(true);
+    } finally {
+      fos.close();
+    }
+    java.io.File file = new java.io.File(dir, CHECKPOINT_FILE);
+    if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+      throw new IOException("Cannot rename " + tmp + " to " + file);
+    }
+  }
+
+  /**
+   * Read the checkpoint file in a directory.
+   * @return the state, or null if there is no checkpoint
+   * @throws IOException if the checkpoint cannot be read or is corrupt
+   */
+  static State load(java.io.File dir) throws IOException {
+    FileInputStream fis;
+    try {
+      fis = new FileInputStream(new java.io.File(dir, CHECKPOINT_FILE));
+    } catch (FileNotFoundException e) {
+      return null;
+    }
+    try {
+      CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(fis), new CRC32());
+      DataInputStream in = new DataInputStream(checked);
+      State state = new State();
+      state.readFields(in);
+      long checksum = checked.getChecksum().getValue();
+      if (in.readLong() != checksum) {
+        throw new IOException("Checksum mismatch in " + new java.io.File(dir, CHECKPOINT_FILE));
+      }
+      return state;
+    } finally {
+      fis.close();
+    }
+  }
+
+  public void run() {
+    try {
+      restore();
+      rebuild();
+      checkpointing = true;
+    } catch (InterruptedException e) {
+      return;
+    } catch (InterruptedIOException e) {
+      return;
+    } catch (Throwable t) {
+      if (!running) return;
+      LOG.warn("Fail to restore replication state, exception=", t);
+      checkpointing = true;
+    }
+    while (running && dir != null && interval > 0) {
+      try {
+        Thread.sleep(interval);
+        checkpoint();
+      } catch (InterruptedException e) {
+        break;
+      } catch (IOException e) {
+        LOG.warn("Fail to checkpoint replication state to " + dir + ", exception=", e);
+      }
+    }
+  }
+
+  /**
+   * Stop checkpointing, with a last checkpoint if the state was restored.
+   * The caller interrupts the thread.
+   */
+  void stop() {
+    running = false;
+    if (!checkpointing || dir == null || interval <= 0) {
+      return;
+    }
+    try {
+      checkpoint();
+    } catch (Throwable t) {
+      LOG.warn("Fail to checkpoint replication state to " + dir + ", exception=", t);
+    }
+  }
+
+  /**
+   * Write the current replication state.
+   */
+  synchronized void checkpoint() throws IOException {
+    long startTime = FSNamesystem.now();
+    State state = null;
+    for (int i = 0; state == null; i++) {
+      try {
+        state = getState();
+      } catch (ConcurrentModificationException e) {
+        // the replicas of a node changed while copied
+        if (i >= COPY_RETRIES) {
+          throw new IOException("Replication state keeps changing: " + e);
+        }
+      }
+    }
+    save(dir, state);
+    LOG.info("Checkpointed replication state of " + state + " in " + (FSNamesystem.now() - startTime) + " msec");
+  }
+
+  private State getState() {
+    State state = new State();
+    state.time = FSNamesystem.now();
+    state.neededBlocks.addAll(namesystem.neededReplications.getBlocks());
+    state.neededBlocks.addAll(namesystem.pendingReplications.getBlocks());
+    state.corruptReplicas = namesystem.corruptReplicas.getCorruptReplicas();
+    state.excessReplicas = copy(namesystem.excessReplicateMap);
+    state.invalidates = copy(namesystem.recentInvalidateSets);
+    return state;
+  }
+
+  private static Map<String, List<Block>> copy(Map<String, Collection<Block>> replicas) {
+    Map<String, List<Block>> copy = new TreeMap<String, List<Block>>();
+    synchronized (replicas) {
+      for (Map.Entry<String, Collection<Block>> entry : replicas.entrySet()) {
+        copy.put(entry.getKey(), new ArrayList<Block>(entry.getValue()));
+      }
+    }
+    return copy;
+  }
+
+  /**
+   * Restore the replication state from the checkpoint, entries which do not
+   * match the tables any more are dropped.
+   */
+  void restore() throws IOException {
+    if (dir == null) {
+      return;
+    }
+    State state;
+    try {
+      state = load(dir);
+    } catch (IOException e) {
+      LOG.warn("Ignore replication state checkpoint in " + dir + ": " + e);
+      return;
+    }
+    if (state == null) {
+      LOG.info("No replication state checkpoint in " + dir);
+      return;
+    }
+    long age = FSNamesystem.now() - state.time;
+    if (age > maxAge) {
+      LOG.info("Ignore replication state checkpoint in " + dir + " of " + age + " msec old");
+      return;
+    }
+    long startTime = FSNamesystem.now();
+    int corrupt = 0, excess = 0, invalidate = 0, needed = 0;
+    // replicas restored as corrupt or excess, by storage ID
+    Map<String, Set<Block>> restored = new HashMap<String, Set<Block>>();
+    for (Map.Entry<Block, List<String>> entry : state.corruptReplicas.entrySet()) {
+      Block block = entry.getKey();
+      for (String storageID : entry.getValue()) {
+        DatanodeDescriptor node = namesystem.stateManager.getDatanodeDescriptorByStorageId(storageID);
+        if (node != null && hasReplica(block, node)) {
+          namesystem.corruptReplicas.addToCorruptReplicasMap(block, node);
+          addRestored(restored, storageID, block);
+          corrupt++;
+        }
+      }
+    }
+    for (Map.Entry<String, List<Block>> entry : state.excessReplicas.entrySet()) {
+      DatanodeDescriptor node = namesystem.stateManager.getDatanodeDescriptorByStorageId(entry.getKey());
+      if (node == null) continue;
+      for (Block block : entry.getValue()) {
+        if (!hasReplica(block, node)) continue;
+        Collection<Block> excessBlocks = namesystem.excessReplicateMap.get(entry.getKey());
+        if (excessBlocks == null) {
+          excessBlocks = new BlockSet();
+          namesystem.excessReplicateMap.put(entry.getKey(), excessBlocks);
+        }
+        if (excessBlocks.add(block)) {
+          namesystem.excessBlocksCount++;
+          excess++;
+        }
+        addRestored(restored, entry.getKey(), block);
+      }
+    }
+    for (Map.Entry<String, List<Block>> entry : state.invalidates.entrySet()) {
+      DatanodeDescriptor node = namesystem.stateManager.getDatanodeDescriptorByStorageId(entry.getKey());
+      if (node == null) continue;
+      Set<Block> restoredBlocks = restored.get(entry.getKey());
+      for (Block block : entry.getValue()) {
+        // the set holds the replicas with the generation stamp in the table
+        if ((restoredBlocks != null && restoredBlocks.contains(block))
+            || namesystem.stateManager.getBlockEntryByBlockId(block.getBlockId()) == null) {
+          namesystem.addToInvalidates(block, node, false);
+          invalidate++;
+        }
+      }
+    }
+    for (Block block : state.neededBlocks) {
+      BlockEntry blockEntry = namesystem.stateManager.getBlockEntryByBlockId(block.getBlockId());
+      if (blockEntry == null) continue;
+      File file = namesystem.stateManager.findFileByBlockId(block.getBlockId());
+      if (file != null && !file.isUnderConstruction() && queueIfUnderReplicated(file, blockEntry)) {
+        needed++;
+      }
+    }
+    LOG.info("Restored replication state checkpointed " + age + " msec ago in " + (FSNamesystem.now() - startTime)
+        + " msec: " + needed + " needed blocks, " + corrupt + " corrupt replicas, " + excess + " excess replicas, "
+        + invalidate + " replicas to invalidate");
+  }
+
+  /**
+   * @return whether the replica of the block on the node with the same
+   *         generation stamp is in the block table
+   */
+  private boolean hasReplica(Block block, DatanodeDescriptor node) throws IOException {
+    com.taobao.adfs.block.Block replica =
+        namesystem.stateManager.findBlockByIdAndDatanodeId(block.getBlockId(), node.getId());
+    return replica != null && replica.generationStamp == block.getGenerationStamp();
+  }
+
+  private static void addRestored(Map<String, Set<Block>> restored, String storageID, Block block) {
+    Set<Block> blocks = restored.get(storageID);
+    if (blocks == null) {
+      restored.put(storageID, blocks = new HashSet<Block>());
+    }
+    blocks.add(block);
+  }
+
+  /**
+   * Queue the block of a closed file if it is under replicated and not
+   * pending replication.
+   * @return whether the block is queued
+   */
+  private boolean queueIfUnderReplicated(File file, BlockEntry blockEntry) throws IOException {
+    Block block = blockEntry.getHdfsBlock();
+    if (namesystem.pendingReplications.getNumReplicas(block) > 0) {
+      return false;
+    }
+    NumberReplicas num = namesystem.countNodes(blockEntry);
+    return namesystem.neededReplications.add(block, num.liveReplicas(), num.decommissionedReplicas(),
+        file.replication);
+  }
+
+  /**
+   * Queue all under replicated blocks found by a scan of the file and block
+   * tables.
+   */
+  void rebuild() throws IOException, InterruptedException {
+    if (rebuildThreads <= 0) {
+      return;
+    }
+    long startTime = FSNamesystem.now();
+    // the scanned files and the queued blocks
+    final long[] total = new long[2];
+    new FileTableScanner<long[]>(namesystem.stateManager, rebuildBatchSize) {
+      long[] newResult() {
+        return new long[2];
+      }
+
+      void visit(File file, List<com.taobao.adfs.block.Block> blocks, long[] result) throws IOException {
+        if (!running) {
+          throw new InterruptedIOException("Replication state rebuild is stopped");
+        }
+        if (file.isDir() || file.isUnderConstruction()) return;
+        result[0]++;
+        for (BlockEntry blockEntry : BlockEntry.getBlockEntryList(blocks)) {
+          if (queueIfUnderReplicated(file, blockEntry)) {
+            result[1]++;
+          }
+        }
+      }
+
+      void rangeScanned(long[] result, int scannedRanges, int ranges) {
+        total[0] += result[0];
+        total[1] += result[1];
+        if (LOG.isDebugEnabled()) {
+          LOG.debug("Scanned " + scannedRanges + "/" + ranges + " ranges, " + total[0] + " files checked and "
+              + total[1] + " blocks queued");
+        }
+      }
+    }.scan(rebuildThreads);
+    LOG.info("Rebuilt replication state in " + (FSNamesystem.now() - startTime) + " msec: " + total[0]
+        + " files checked and " + total[1] + " under replicated blocks queued");
+  }
+}
@@ -315,7 +315,11 @@ class ReplicationTargetChooser {
     int numOfAvailableNodes = fs.stateManager.clusterMap.countNumOfAvailableNodes(nodes, excludedNodes);
     numOfReplicas = (numOfAvailableNodes < numOfReplicas) ? numOfAvailableNodes : numOfReplicas;
     while (numOfReplicas > 0) {
-      DatanodeDescriptor choosenNode = (DatanodeDescriptor) (fs.stateManager.clusterMap.chooseRandom(nodes));
+      DatanodeDescriptor choosenNode =
+          (DatanodeDescriptor) (fs.stateManager.clusterMap.chooseRandom(nodes, excludedNodes));
+      if (choosenNode == null) {
+        break;
+      }
       if (!excludedNodes.contains(choosenNode)) {
         results.add(choosenNode);
         excludedNodes.add(choosenNode);
@@ -389,31 +393,29 @@ class ReplicationTargetChooser {
   private DatanodeDescriptor[] getPipeline(DatanodeDescriptor writer, DatanodeDescriptor[] nodes) {
     if (nodes.length == 0) return nodes;
 
-    synchronized (fs.stateManager.clusterMap) {
-      int index = 0;
-      if (writer == null || !fs.stateManager.clusterMap.contains(writer)) {
-        writer = nodes[0];
-      }
-      for (; index < nodes.length; index++) {
-        DatanodeDescriptor shortestNode = nodes[index];
-        int shortestDistance = fs.stateManager.clusterMap.getDistance(writer, shortestNode);
-        int shortestIndex = index;
-        for (int i = index + 1; i < nodes.length; i++) {
-          DatanodeDescriptor currentNode = nodes[i];
-          int currentDistance = fs.stateManager.clusterMap.getDistance(writer, currentNode);
-          if (shortestDistance > currentDistance) {
-            shortestDistance = currentDistance;
-            shortestNode = currentNode;
-            shortestIndex = i;
-          }
-        }
-        // switch position index & shortestIndex
-        if (index != shortestIndex) {
-          nodes[shortestIndex] = nodes[index];
-          nodes[index] = shortestNode;
+    int index = 0;
+    if (writer == null || !fs.stateManager.clusterMap.contains(writer)) {
+      writer = nodes[0];
+    }
+    for (; index < nodes.length; index++) {
+      DatanodeDescriptor shortestNode = nodes[index];
+      int shortestDistance = fs.stateManager.clusterMap.getDistance(writer, shortestNode);
+      int shortestIndex = index;
+      for (int i = index + 1; i < nodes.length; i++) {
+        DatanodeDescriptor currentNode = nodes[i];
+        int currentDistance = fs.stateManager.clusterMap.getDistance(writer, currentNode);
+        if (shortestDistance > currentDistance) {
+          shortestDistance = currentDistance;
+          shortestNode = currentNode;
+          shortestIndex = i;
         }
-        writer = shortestNode;
       }
+      // switch position index & shortestIndex
+      if (index != shortestIndex) {
+        nodes[shortestIndex] = nodes[index];
+        nodes[index] = shortestNode;
+      }
+      writer = shortestNode;
     }
     return nodes;
   }
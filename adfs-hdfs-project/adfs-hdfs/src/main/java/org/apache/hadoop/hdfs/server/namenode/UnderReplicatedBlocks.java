@@ -20,19 +20,21 @@ package org.apache.hadoop.hdfs.server.namenode;
 import java.util.*;
 
 import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.util.BlockSet;
 
 /* Class for keeping track of under replication blocks
  * Blocks have replication priority, with priority 0 indicating the highest
  * Blocks have only one replicas has the highest
+ * Blocks of a priority are kept in a BlockSet and come out first in first out
  */
 class UnderReplicatedBlocks implements Iterable<Block> {
   static final int LEVEL = 3;
-  private List<TreeSet<Block>> priorityQueues = new ArrayList<TreeSet<Block>>();
+  private List<BlockSet> priorityQueues = new ArrayList<BlockSet>();
       
   /* constructor */
   UnderReplicatedBlocks() {
     for(int i=0; i<LEVEL; i++) {
-      priorityQueues.add(new TreeSet<Block>());
+      priorityQueues.add(new BlockSet());
     }
   }
 
@@ -54,9 +56,18 @@ class UnderReplicatedBlocks implements Iterable<Block> {
     return size;
   }
         
+  /* Return all the under replication blocks, the highest priority first */
+  synchronized List<Block> getBlocks() {
+    List<Block> blocks = new ArrayList<Block>(size());
+    for (BlockSet set : priorityQueues) {
+      blocks.addAll(set);
+    }
+    return blocks;
+  }
+
   /* Check if a block is in the neededReplication queue */
   synchronized boolean contains(Block block) {
-    for(TreeSet<Block> set:priorityQueues) {
+    for(BlockSet set:priorityQueues) {
       if(set.contains(block)) { return true; }
     }
     return false;
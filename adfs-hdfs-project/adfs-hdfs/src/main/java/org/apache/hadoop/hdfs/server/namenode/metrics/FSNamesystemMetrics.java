@@ -59,6 +59,11 @@ public class FSNamesystemMetrics implements Updater {
   final MetricsIntValue scheduledReplicationBlocks = new MetricsIntValue("ScheduledReplicationBlocks", registry);
   final MetricsIntValue missingBlocks = new MetricsIntValue("MissingBlocks", registry);    
   final MetricsIntValue blockCapacity = new MetricsIntValue("BlockCapacity", registry);
+  final MetricsIntValue pathLocksHeld = new MetricsIntValue("PathLocksHeld", registry);
+  final MetricsLongValue pathLocksAcquired = new MetricsLongValue("PathLocksAcquired", registry);
+  final MetricsLongValue pathLocksContended = new MetricsLongValue("PathLocksContended", registry);
+  final MetricsLongValue pathLockWaitTime = new MetricsLongValue("PathLockWaitTime", registry);
+  final MetricsLongValue pathLockTimeouts = new MetricsLongValue("PathLockTimeouts", registry);
    
   public FSNamesystemMetrics(Configuration conf) {
     String sessionId = conf.get("session.id");
@@ -114,6 +119,11 @@ public class FSNamesystemMetrics implements Updater {
                                       getScheduledReplicationBlocks());
       missingBlocks.set((int)fsNameSystem.getMissingBlocksCount());
       blockCapacity.set(fsNameSystem.getBlockCapacity());
+      pathLocksHeld.set(fsNameSystem.getPathLocksHeld());
+      pathLocksAcquired.set(fsNameSystem.getPathLocksAcquired());
+      pathLocksContended.set(fsNameSystem.getPathLocksContended());
+      pathLockWaitTime.set(fsNameSystem.getPathLockWaitTime());
+      pathLockTimeouts.set(fsNameSystem.getPathLockTimeouts());
 
       for (MetricsBase m : registry.getMetricsList()) {
         m.pushMetric(metricsRecord);
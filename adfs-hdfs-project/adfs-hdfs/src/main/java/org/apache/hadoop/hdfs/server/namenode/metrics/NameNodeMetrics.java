@@ -75,6 +75,10 @@ public class NameNodeMetrics implements Updater {
                     new MetricsTimeVaryingInt("JournalTransactionsBatchedInSync", registry, "Journal Transactions Batched In Sync");
     public MetricsTimeVaryingRate blockReport =
                     new MetricsTimeVaryingRate("blockReport", registry, "Block Report");
+    public MetricsTimeVaryingRate blockReportDelta =
+                    new MetricsTimeVaryingRate("blockReportDelta", registry, "Incremental Block Report");
+    public MetricsTimeVaryingInt numBlockReportDeltaBlocks =
+                    new MetricsTimeVaryingInt("BlockReportDeltaBlocks", registry);
     public MetricsIntValue safeModeTime =
                     new MetricsIntValue("SafemodeTime", registry, "Duration in SafeMode at Startup");
     public MetricsIntValue fsImageLoadTime = 
@@ -83,6 +87,10 @@ public class NameNodeMetrics implements Updater {
                     new MetricsIntValue("BlocksCorrupted", registry);
     public MetricsTimeVaryingInt numFilesInGetListingOps = 
                     new MetricsTimeVaryingInt("FilesInGetListingOps", registry);
+    public MetricsTimeVaryingInt numDeadNodeBlocksRemoved =
+                    new MetricsTimeVaryingInt("DeadNodeBlocksRemoved", registry);
+    public MetricsTimeVaryingRate deadNodeBlockRemoval =
+                    new MetricsTimeVaryingRate("DeadNodeBlockRemoval", registry, "Dead Node Block Removal Batch");
 
       
     public NameNodeMetrics(Configuration conf, NameNode nameNode) {
@@ -127,5 +135,6 @@ public class NameNodeMetrics implements Updater {
       transactions.resetMinMax();
       syncs.resetMinMax();
       blockReport.resetMinMax();
+      blockReportDelta.resetMinMax();
     }
 }
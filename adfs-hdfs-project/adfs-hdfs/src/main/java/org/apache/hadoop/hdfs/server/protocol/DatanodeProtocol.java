@@ -43,8 +43,9 @@ public interface DatanodeProtocol extends VersionedProtocol {
   /**
    * 27: nextGenerationStamp has a new parameter indicating if it is for
    * NameNode initiated lease recovery or not
+   * 28: blockReportDelta is added
    */
-  public static final long versionID = 27L;
+  public static final long versionID = 28L;
 
   // error code
   final static int NOTIFY = 0;
@@ -108,6 +109,20 @@ public interface DatanodeProtocol extends VersionedProtocol {
    */
   public DatanodeCommand blockReport(DatanodeRegistration registration,
                                      long[] blocks) throws IOException;
+
+  /**
+   * blockReportDelta() tells the NameNode about the replicas added, updated
+   * or deleted since the last acknowledged delta.  It lets full block
+   * reports be sent rarely, as a consistency check only.
+   * @param registration
+   * @param addedBlocks - replicas added or updated, as a block list of longs
+   * @param deletedBlocks - replicas deleted, as a block list of longs
+   * @return - the next command for DN to process.
+   * @throws IOException
+   */
+  public DatanodeCommand blockReportDelta(DatanodeRegistration registration,
+                                          long[] addedBlocks,
+                                          long[] deletedBlocks) throws IOException;
   
   /**
    * blocksBeingWrittenReport() tells the NameNode about the blocks-being-
@@ -82,7 +82,8 @@ public class DFSck extends Configured implements Tool {
    * Print fsck usage information
    */
   static void printUsage() {
-    System.err.println("Usage: DFSck <path> [-move | -delete | -openforwrite] [-files [-blocks [-locations | -racks]]]");
+    System.err.println("Usage: DFSck <path> [-move | -delete | -openforwrite] [-files [-blocks [-locations | -racks]]] "
+        + "[-scan [-threads <n>]]");
     System.err.println("\t<path>\tstart checking from this path");
     System.err.println("\t-move\tmove corrupted files to /lost+found");
     System.err.println("\t-delete\tdelete corrupted files");
@@ -91,6 +92,8 @@ public class DFSck extends Configured implements Tool {
     System.err.println("\t-blocks\tprint out block report");
     System.err.println("\t-locations\tprint out locations for every block");
     System.err.println("\t-racks\tprint out network topology for data-node locations");
+    System.err.println("\t-scan\tcheck the whole namespace by scanning the file and block tables in parallel");
+    System.err.println("\t-threads <n>\tscan with n threads, limited by the namenode");
     System.err.println("\t\tBy default fsck ignores files opened for write, " +
                        "use -openforwrite to report such files. They are usually " +
                        " tagged CORRUPT or HEALTHY depending on their block " +
@@ -123,6 +126,7 @@ public class DFSck extends Configured implements Tool {
           String dir = "/";
           // find top-level dir first
           for (int idx = 0; idx < args.length; idx++) {
+            if (args[idx].equals("-threads")) { idx++; continue; }
             if (!args[idx].startsWith("-")) { dir = args[idx]; break; }
           }
           url.append(URLEncoder.encode(dir, "UTF-8"));
@@ -134,6 +138,10 @@ public class DFSck extends Configured implements Tool {
             else if (args[idx].equals("-blocks")) { url.append("&blocks=1"); }
             else if (args[idx].equals("-locations")) { url.append("&locations=1"); }
             else if (args[idx].equals("-racks")) { url.append("&racks=1"); }
+            else if (args[idx].equals("-scan")) { url.append("&scan=1"); }
+            else if (args[idx].equals("-threads") && idx + 1 < args.length) {
+              url.append("&threads=").append(URLEncoder.encode(args[++idx], "UTF-8"));
+            }
           }
           URL path = new URL(url.toString());
           SecurityUtil.fetchServiceTicket(path);
@@ -0,0 +1,129 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * A low memory footprint map from blocks, keyed by block id, to values. The
+ * keys are kept in primitive arrays as in {@link BlockSet}, and so is the
+ * iteration order and the behavior of the iterators.
+ *
+ * Putting a block whose id is present updates the length and the generation
+ * stamp of the key as well as the value.
+ *
+ * This class does not support null key or value.
+ *
+ * This class is not thread safe.
+ *
+ * @param <V> Value type
+ */
+public class BlockMap<V> implements Iterable<Map.Entry<Block, V>> {
+  private final BlockTable table;
+
+  public BlockMap() {
+    this(BlockTable.MIN_CAPACITY);
+  }
+
+  /**
+   * @param capacity the number of blocks to hold before growing
+   */
+  public BlockMap(int capacity) {
+    table = new BlockTable(true, capacity);
+  }
+
+  public int size() {
+    return table.size();
+  }
+
+  public boolean isEmpty() {
+    return table.size() == 0;
+  }
+
+  /**
+   * @return the value of the block, or null if not present
+   */
+  @SuppressWarnings("unchecked")
+  public V get(Block block) {
+    int index = table.indexOf(block.getBlockId());
+    return index < 0 ? null : (V) table.getValue(index);
+  }
+
+  /**
+   * @return the previous value of the block, or null if not present
+   */
+  @SuppressWarnings("unchecked")
+  public V put(Block block, V value) {
+    if (value == null) {
+      throw new NullPointerException("Null value is not supported.");
+    }
+    int index = table.put(block);
+    V previous = null;
+    if (index >= 0) {
+      previous = (V) table.getValue(index);
+    } else {
+      index = -index - 1;
+    }
+    table.setValue(index, value);
+    return previous;
+  }
+
+  /**
+   * @return the value of the removed block, or null if not present
+   */
+  @SuppressWarnings("unchecked")
+  public V remove(Block block) {
+    int index = table.indexOf(block.getBlockId());
+    if (index < 0) {
+      return null;
+    }
+    V value = (V) table.getValue(index);
+    table.removeAt(index);
+    return value;
+  }
+
+  public void clear() {
+    table.clear();
+  }
+
+  /**
+   * @return an iterator of new entries, in insertion order
+   */
+  public Iterator<Map.Entry<Block, V>> iterator() {
+    final BlockTable.Cursor cursor = table.new Cursor();
+    return new Iterator<Map.Entry<Block, V>>() {
+      public boolean hasNext() {
+        return cursor.hasNext();
+      }
+
+      @SuppressWarnings("unchecked")
+      public Map.Entry<Block, V> next() {
+        int index = cursor.next();
+        return new AbstractMap.SimpleImmutableEntry<Block, V>(table.getBlock(index), (V) table.getValue(index));
+      }
+
+      public void remove() {
+        cursor.remove();
+      }
+    };
+  }
+}
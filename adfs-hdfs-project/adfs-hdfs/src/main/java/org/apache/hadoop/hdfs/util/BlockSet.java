@@ -0,0 +1,108 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * A low memory footprint set of blocks, keyed by block id, which keeps the
+ * blocks in primitive arrays instead of block objects.
+ *
+ * The set holds one block per id. Adding a block whose id is present
+ * updates the length and the generation stamp and returns false, and
+ * {@link #contains(Object)} and {@link #remove(Object)} match the block id
+ * only.
+ *
+ * The iteration is in insertion order, and creates a new block for each
+ * element. An iterator is not fail-fast: a block added during an iteration
+ * may or may not be returned, and the iterator throws
+ * {@link java.util.ConcurrentModificationException} only when an addition
+ * has compacted the set.
+ *
+ * This class does not support null element.
+ *
+ * This class is not thread safe.
+ */
+public class BlockSet extends AbstractSet<Block> {
+  private final BlockTable table;
+
+  public BlockSet() {
+    this(BlockTable.MIN_CAPACITY);
+  }
+
+  /**
+   * @param capacity the number of blocks to hold before growing
+   */
+  public BlockSet(int capacity) {
+    table = new BlockTable(false, capacity);
+  }
+
+  @Override
+  public int size() {
+    return table.size();
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return (o instanceof Block) && table.indexOf(((Block) o).getBlockId()) >= 0;
+  }
+
+  @Override
+  public boolean add(Block block) {
+    return table.put(block) < 0;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    if (!(o instanceof Block)) {
+      return false;
+    }
+    int index = table.indexOf(((Block) o).getBlockId());
+    if (index < 0) {
+      return false;
+    }
+    table.removeAt(index);
+    return true;
+  }
+
+  @Override
+  public void clear() {
+    table.clear();
+  }
+
+  @Override
+  public Iterator<Block> iterator() {
+    final BlockTable.Cursor cursor = table.new Cursor();
+    return new Iterator<Block>() {
+      public boolean hasNext() {
+        return cursor.hasNext();
+      }
+
+      public Block next() {
+        return table.getBlock(cursor.next());
+      }
+
+      public void remove() {
+        cursor.remove();
+      }
+    };
+  }
+}
@@ -0,0 +1,257 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * The storage of {@link BlockSet} and {@link BlockMap}.
+ *
+ * The id, the length and the generation stamp of the blocks, and the values
+ * of a map, are kept in dense arrays in insertion order. An open addressing
+ * table with linear probing maps a block id to its index in the arrays.
+ * Removing a block deletes it from the table at once, by shifting back the
+ * entries after it, but only marks a hole in the arrays. The holes are
+ * squeezed out when the arrays are full, into arrays twice as large unless a
+ * quarter of the indexes are holes.
+ *
+ * Per block this takes 24 bytes in the arrays and 8 bytes or less in the
+ * table, plus a reference for a value, instead of a block object and a tree
+ * or hash node.
+ */
+final class BlockTable {
+  static final int MIN_CAPACITY = 16;
+  static final int MAX_CAPACITY = 1 << 29;
+  private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+  private final boolean hasValues;
+  private long[] ids;
+  private long[] lengths;
+  private long[] stamps;
+  private Object[] values;
+  // indexes in the arrays which are removed
+  private final BitSet holes = new BitSet();
+  // the number of used indexes, including holes
+  private int end = 0;
+  private int size = 0;
+
+  // index + 1 by slot, 0 for a free slot
+  private int[] table;
+  private int shift;
+  // incremented when the indexes change, which fails the cursors
+  private int compactions = 0;
+
+  BlockTable(boolean hasValues, int capacity) {
+    this.hasValues = hasValues;
+    allocate(Math.max(MIN_CAPACITY, Math.min(MAX_CAPACITY, capacity)));
+  }
+
+  private void allocate(int capacity) {
+    ids = new long[capacity];
+    lengths = new long[capacity];
+    stamps = new long[capacity];
+    values = hasValues ? new Object[capacity] : null;
+    // at most half full
+    int tableLength = Integer.highestOneBit(capacity - 1) << 2;
+    table = new int[tableLength];
+    shift = 64 - Integer.numberOfTrailingZeros(tableLength);
+  }
+
+  int size() {
+    return size;
+  }
+
+  void clear() {
+    allocate(MIN_CAPACITY);
+    holes.clear();
+    end = 0;
+    size = 0;
+    compactions++;
+  }
+
+  private int slot(long id) {
+    return (int) ((id * GOLDEN_RATIO) >>> shift);
+  }
+
+  /**
+   * @return the slot of the id, or -(the free slot to insert it) - 1
+   */
+  private int findSlot(long id) {
+    int mask = table.length - 1;
+    for (int slot = slot(id);; slot = (slot + 1) & mask) {
+      int index = table[slot] - 1;
+      if (index < 0) {
+        return -slot - 1;
+      }
+      if (ids[index] == id) {
+        return slot;
+      }
+    }
+  }
+
+  /**
+   * @return the index of the id, or -1 if not present
+   */
+  int indexOf(long id) {
+    int slot = findSlot(id);
+    return slot < 0 ? -1 : table[slot] - 1;
+  }
+
+  /**
+   * Add a block, or update the length and the generation stamp of the block
+   * with the same id.
+   * @return the index of the block if it is present, or -(its new index) - 1
+   */
+  int put(Block block) {
+    long id = block.getBlockId();
+    int slot = findSlot(id);
+    if (slot >= 0) {
+      int index = table[slot] - 1;
+      lengths[index] = block.getNumBytes();
+      stamps[index] = block.getGenerationStamp();
+      return index;
+    }
+    if (end == ids.length) {
+      compact();
+      slot = findSlot(id);
+    }
+    int index = end++;
+    table[-slot - 1] = index + 1;
+    ids[index] = id;
+    lengths[index] = block.getNumBytes();
+    stamps[index] = block.getGenerationStamp();
+    size++;
+    return -index - 1;
+  }
+
+  /**
+   * Squeeze out the holes, into larger arrays unless a quarter are holes.
+   */
+  private void compact() {
+    int capacity = ids.length;
+    if (end - size < capacity / 4) {
+      if (capacity >= MAX_CAPACITY) {
+        throw new IllegalStateException("Cannot hold more than " + MAX_CAPACITY + " blocks");
+      }
+      capacity *= 2;
+    }
+    long[] oldIds = ids;
+    long[] oldLengths = lengths;
+    long[] oldStamps = stamps;
+    Object[] oldValues = values;
+    allocate(capacity);
+    int mask = table.length - 1;
+    int index = 0;
+    for (int i = holes.nextClearBit(0); i < end; i = holes.nextClearBit(i + 1)) {
+      ids[index] = oldIds[i];
+      lengths[index] = oldLengths[i];
+      stamps[index] = oldStamps[i];
+      if (hasValues) values[index] = oldValues[i];
+      int slot = slot(ids[index]);
+      while (table[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      table[slot] = ++index;
+    }
+    holes.clear();
+    end = index;
+    compactions++;
+  }
+
+  /**
+   * Remove the block at an index.
+   */
+  void removeAt(int index) {
+    int mask = table.length - 1;
+    int hole = findSlot(ids[index]);
+    // shift back the entries which cannot be found past the freed slot
+    for (int next = (hole + 1) & mask; table[next] != 0; next = (next + 1) & mask) {
+      int ideal = slot(ids[table[next] - 1]);
+      if (((next - ideal) & mask) >= ((next - hole) & mask)) {
+        table[hole] = table[next];
+        hole = next;
+      }
+    }
+    table[hole] = 0;
+    if (hasValues) values[index] = null;
+    holes.set(index);
+    size--;
+    if (size == 0) {
+      holes.clear();
+      end = 0;
+    }
+  }
+
+  Block getBlock(int index) {
+    return new Block(ids[index], lengths[index], stamps[index]);
+  }
+
+  Object getValue(int index) {
+    return values[index];
+  }
+
+  void setValue(int index, Object value) {
+    values[index] = value;
+  }
+
+  /**
+   * A position in the table, in insertion order. Blocks added while a cursor
+   * is in use may or may not be visited, and a cursor fails with
+   * {@link ConcurrentModificationException} if adding a block has moved the
+   * others.
+   */
+  class Cursor {
+    private int next = 0;
+    private int last = -1;
+    private final int expectedCompactions = compactions;
+
+    boolean hasNext() {
+      if (compactions != expectedCompactions) {
+        throw new ConcurrentModificationException();
+      }
+      next = holes.nextClearBit(next);
+      return next < end;
+    }
+
+    /** @return the index of the next block */
+    int next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      last = next++;
+      return last;
+    }
+
+    void remove() {
+      if (last < 0 || last >= end || holes.get(last)) {
+        throw new IllegalStateException();
+      }
+      removeAt(last);
+      last = -1;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return getClass().getSimpleName() + "(size=" + size + ", end=" + end + ", capacity=" + ids.length + ")";
+  }
+}
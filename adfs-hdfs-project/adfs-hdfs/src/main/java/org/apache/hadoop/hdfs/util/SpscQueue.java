@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+/**
+ * An unbounded lock-free FIFO queue for exactly one producer thread and one
+ * consumer thread at a time.
+ *
+ * The producer owns the tail and the consumer owns the head, so neither
+ * {@link #offer(Object)} nor {@link #poll()} needs a lock or a CAS; an
+ * element is published by the volatile write of the link to its node.
+ * Producers, or consumers, may change over time as long as one
+ * happens-before the next, e.g. by holding the same monitor or by
+ * joining the previous thread.
+ *
+ * This class does not support null element.
+ *
+ * @param <E> Element type
+ */
+public class SpscQueue<E> {
+  private static final class Node<E> {
+    E value;
+    volatile Node<E> next;
+
+    Node(E value) {
+      this.value = value;
+    }
+  }
+
+  // the consumer side, head is a dummy node whose value was taken
+  private Node<E> head;
+  // the producer side
+  private Node<E> tail;
+
+  public SpscQueue() {
+    head = tail = new Node<E>(null);
+  }
+
+  /**
+   * Add an element at the tail. Only called by the producer.
+   */
+  public void offer(E e) {
+    if (e == null) {
+      throw new NullPointerException("Null element is not supported.");
+    }
+    Node<E> node = new Node<E>(e);
+    tail.next = node;
+    tail = node;
+  }
+
+  /**
+   * @return the element at the head, or null if empty. Only called by the
+   *         consumer.
+   */
+  public E peek() {
+    Node<E> next = head.next;
+    return next == null ? null : next.value;
+  }
+
+  /**
+   * Remove the element at the head.
+   * @return the element, or null if empty. Only called by the consumer.
+   */
+  public E poll() {
+    Node<E> next = head.next;
+    if (next == null) {
+      return null;
+    }
+    E e = next.value;
+    next.value = null;
+    head = next;
+    return e;
+  }
+
+  /**
+   * @return whether the queue is empty as seen by the consumer.
+   */
+  public boolean isEmpty() {
+    return head.next == null;
+  }
+}
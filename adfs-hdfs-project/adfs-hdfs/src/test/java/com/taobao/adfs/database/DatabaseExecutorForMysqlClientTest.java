@@ -0,0 +1,75 @@
+package com.taobao.adfs.database;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.taobao.adfs.block.Block;
+import com.taobao.adfs.database.DatabaseExecutor.Comparator;
+import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.DistributedDataRepositoryRow;
+import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.TableDescription;
+
+public class DatabaseExecutorForMysqlClientTest {
+  static TableDescription block = null;
+
+  @BeforeClass
+  public static void setupBeforeClass() throws Exception {
+    block = DistributedDataRepositoryRow.parseTableDescription(Block.class, "InnoDB");
+  }
+
+  @Test
+  public void testFindSql() throws Exception {
+    assertEquals("SELECT * FROM block WHERE id='1' AND datanodeId='2' LIMIT 0,1;", DatabaseExecutorForMysqlClient
+        .getFindSql(block, "PRIMARY", new String[] { "1", "2" }, Comparator.EQ, 1, 0));
+    assertEquals("SELECT * FROM block WHERE datanodeId='2' LIMIT 0,10;", DatabaseExecutorForMysqlClient.getFindSql(
+        block, "DATANODE_ID", new String[] { "2" }, Comparator.EQ, 10, 0));
+    assertEquals("SELECT * FROM block WHERE fileId>='3' ORDER BY fileId LIMIT 0,10;", DatabaseExecutorForMysqlClient
+        .getFindSql(block, "FILE_ID", new String[] { "3" }, Comparator.GE, 10, 0));
+  }
+
+  @Test
+  public void testRangeOfMultipleColumnIndex() throws Exception {
+    // keys are compared as a row in order of index columns, not in order of fields
+    assertEquals("SELECT * FROM block WHERE (datanodeId,id)>=('2','-5') ORDER BY datanodeId,id LIMIT 0,100;",
+        DatabaseExecutorForMysqlClient.getFindSql(block, "DATANODE_ID", new String[] { "2", "-5" }, Comparator.GE,
+            100, 0));
+    assertEquals(
+        "SELECT * FROM block WHERE (datanodeId,id)<('2','-5') ORDER BY datanodeId DESC,id DESC LIMIT 0,100;",
+        DatabaseExecutorForMysqlClient.getFindSql(block, "DATANODE_ID", new String[] { "2", "-5" }, Comparator.LT,
+            100, 0));
+    // a prefix of the index compares the first column only
+    assertEquals("SELECT * FROM block WHERE datanodeId>'2' ORDER BY datanodeId LIMIT 0,100;",
+        DatabaseExecutorForMysqlClient.getFindSql(block, "DATANODE_ID", new String[] { "2" }, Comparator.GT, 100, 0));
+  }
+
+  @Test
+  public void testFindInSql() throws Exception {
+    assertEquals("SELECT * FROM block WHERE id IN ('1','-2','3');", DatabaseExecutorForMysqlClient.getFindInSql(
+        block, "PRIMARY", new String[] { "1", "-2", "3" }));
+  }
+
+  @Test
+  public void testIndexUpgradeSql() throws Exception {
+    Map<String, String> currentIndexes = new HashMap<String, String>();
+    currentIndexes.put("PRIMARY", "id,datanodeId");
+    currentIndexes.put("FILE_ID", "fileId");
+    currentIndexes.put("VERSION", "version");
+    // DATANODE_ID before it got the id column
+    currentIndexes.put("DATANODE_ID", "datanodeId");
+    assertEquals("ALTER TABLE nn_state.block DROP INDEX DATANODE_ID,ADD INDEX DATANODE_ID (datanodeId,id);",
+        MysqlServerController.getIndexUpgradeSql(block, currentIndexes));
+
+    currentIndexes.put("DATANODE_ID", "datanodeId,id");
+    assertNull(MysqlServerController.getIndexUpgradeSql(block, currentIndexes));
+
+    // a missing index is added
+    currentIndexes.remove("FILE_ID");
+    assertEquals("ALTER TABLE nn_state.block ADD INDEX FILE_ID (fileId);", MysqlServerController.getIndexUpgradeSql(
+        block, currentIndexes));
+  }
+}
@@ -0,0 +1,108 @@
+package com.taobao.adfs.database.handlersocket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.code.hs4j.FindOperator;
+
+public class HSClientSimulatorTest {
+  static final String[] COLUMNS = { "id", "datanodeId", "length" };
+  static final int PRIMARY = 1;
+  static final int DATANODE_ID = 2;
+  HSClientSimulator simulator = null;
+
+  @Before
+  public void setUp() throws Exception {
+    Configuration conf = new Configuration(false);
+    conf.set("database.executor.handlersocket.simulator.description",
+        "test.block:id=integer|datanodeId=integer|length=integer:PRIMARY=0,1|DATANODE_ID=1,0");
+    simulator = new HSClientSimulator(conf);
+    simulator.openIndex(PRIMARY, "test", "block", "PRIMARY", COLUMNS);
+    simulator.openIndex(DATANODE_ID, "test", "block", "DATANODE_ID", COLUMNS);
+    // ids are compared as integers, not as strings
+    long[][] blocks = { { -5, 1 }, { 30, 1 }, { 4, 1 }, { 200, 1 }, { 4, 2 }, { -100, 2 }, { 7, 3 } };
+    for (long[] block : blocks) {
+      simulator.insert(PRIMARY, new String[] { String.valueOf(block[0]), String.valueOf(block[1]), "0" });
+    }
+  }
+
+  /**
+   * @return datanodeId * 1000 + id of the found rows
+   */
+  List<Long> find(String[] keys, FindOperator operator, int limit) throws Exception {
+    List<Long> ids = new ArrayList<Long>();
+    for (String[] row : simulator.findInternal(simulator.openedIndexes.get(DATANODE_ID), keys, operator, limit, 0)) {
+      ids.add(Long.valueOf(row[1]) * 1000 + Long.valueOf(row[0]));
+    }
+    return ids;
+  }
+
+  @Test
+  public void testRangeOfMultipleColumnIndex() throws Exception {
+    // keys are compared as a tuple in order of index columns: (datanodeId, id)
+    assertEquals(list(1030, 1200, 1900, 2004, 3007), find(new String[] { "1", "30" }, FindOperator.GE, 10));
+    assertEquals(list(1200, 1900, 2004), find(new String[] { "1", "30" }, FindOperator.GT, 3));
+    // backward for LT and LE
+    assertEquals(list(1030, 1004, 995), find(new String[] { "1", "30" }, FindOperator.LE, 10));
+    assertEquals(list(1004, 995), find(new String[] { "1", "30" }, FindOperator.LT, 10));
+    // a prefix of the index compares the first column only
+    assertEquals(list(1900, 2004, 3007), find(new String[] { "2" }, FindOperator.GE, 10));
+    List<Long> ids = find(new String[] { "2" }, FindOperator.EQ, 10);
+    assertEquals(2, ids.size());
+    assertTrue(ids.containsAll(list(1900, 2004)));
+  }
+
+  @Test
+  public void testPaging() throws Exception {
+    // page through blocks of datanode 1 from id 0 on, then wrap around to the start, as getBlocks does
+    List<Long> ids = new ArrayList<Long>();
+    for (long fromId : new long[] { 0, Long.MIN_VALUE }) {
+      String cursor = String.valueOf(fromId);
+      while (true) {
+        List<String[]> page =
+            simulator.findInternal(simulator.openedIndexes.get(DATANODE_ID), new String[] { "1", cursor },
+                FindOperator.GE, 2, 0);
+        boolean reachEnd = page.size() < 2;
+        for (String[] row : page) {
+          if (!row[1].equals("1") || (fromId == Long.MIN_VALUE && Long.valueOf(row[0]) >= 0)) {
+            reachEnd = true;
+            break;
+          }
+          ids.add(Long.valueOf(row[0]));
+          cursor = String.valueOf(Long.valueOf(row[0]) + 1);
+        }
+        if (reachEnd) break;
+      }
+    }
+    assertEquals(list(4, 30, 200, -5), ids);
+  }
+
+  @Test
+  public void testLimitAndResultCopy() throws Exception {
+    List<String[]> rows =
+        simulator.findInternal(simulator.openedIndexes.get(DATANODE_ID), new String[] { "1", "-5" }, FindOperator.GE,
+            1, 0);
+    assertEquals(1, rows.size());
+    assertEquals("-5", rows.get(0)[0]);
+    // returned rows are copies
+    rows.get(0)[2] = "100";
+    assertTrue(find(new String[] { "1", "-5" }, FindOperator.EQ, 1).contains(995L));
+    assertEquals("0", simulator.findInternal(simulator.openedIndexes.get(PRIMARY), new String[] { "-5", "1" },
+        FindOperator.EQ, 1, 0).get(0)[2]);
+  }
+
+  static List<Long> list(long... values) {
+    List<Long> list = new ArrayList<Long>();
+    for (long value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+}
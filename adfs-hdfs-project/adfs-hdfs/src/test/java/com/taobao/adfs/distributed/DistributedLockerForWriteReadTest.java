@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.distributed;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+/**
+ * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
+ */
+public class DistributedLockerForWriteReadTest {
+  @Test
+  public void sameRowKeyInDifferentForms() throws Exception {
+    DistributedLockerForWriteRead locker = new DistributedLockerForWriteRead("test");
+    locker.read(1L);
+    locker.read(new Object[] { 1L });
+    assertThat(locker.getSize(), is(1));
+    locker.unread(1L);
+    locker.unread(1L);
+    assertThat(locker.getSize(), is(0));
+    locker.write(1L, "a");
+    locker.unwrite(1L, "a");
+    assertThat(locker.getSize(), is(0));
+    assertThat(locker.getLockNumber(), is(3L));
+    assertThat(locker.getContendedNumber(), is(0L));
+  }
+
+  @Test
+  public void writerOnHotRowDoesNotBlockOtherRows() throws Exception {
+    final DistributedLockerForWriteRead locker = new DistributedLockerForWriteRead("test");
+    locker.read(1L);
+    final CountDownLatch writerStarted = new CountDownLatch(1);
+    final CountDownLatch writerLocked = new CountDownLatch(1);
+    Thread writer = new Thread() {
+      public void run() {
+        writerStarted.countDown();
+        locker.write(1L);
+        writerLocked.countDown();
+        locker.unwrite(1L);
+      }
+    };
+    writer.start();
+    writerStarted.await();
+    while (locker.locks.get(1L).lock.getQueueLength() == 0) {
+      Thread.sleep(1);
+    }
+    // other rows are still available while the writer waits
+    locker.write(2L);
+    locker.unwrite(2L);
+    locker.read(3L);
+    locker.unread(3L);
+    assertThat(writerLocked.getCount(), is(1L));
+    locker.unread(1L);
+    writer.join();
+    assertThat(writerLocked.getCount(), is(0L));
+    assertThat(locker.getSize(), is(0));
+    assertThat(locker.getContendedNumber(), is(1L));
+  }
+}
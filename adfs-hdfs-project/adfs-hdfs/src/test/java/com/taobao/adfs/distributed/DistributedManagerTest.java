@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.distributed;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.Watcher.Event.EventType;
+import org.apache.zookeeper.Watcher.Event.KeeperState;
+import org.apache.zookeeper.data.ACL;
+import org.apache.zookeeper.data.Stat;
+import org.junit.Test;
+
+import com.taobao.adfs.distributed.DistributedServer.ServerStatus;
+import com.taobao.adfs.distributed.DistributedManager.ServerStatuses;
+import com.taobao.adfs.distributed.DistributedServer.ServerType;
+import com.taobao.adfs.zookeeper.ZookeeperClientRetry;
+
+public class DistributedManagerTest {
+  /**
+   * keeps the nodes in memory instead of zookeeper and records the watchers
+   */
+  static class MemoryZookeeperClientRetry extends ZookeeperClientRetry {
+    final Map<String, byte[]> nodes = new ConcurrentHashMap<String, byte[]>();
+    final List<Watcher> watchers = new CopyOnWriteArrayList<Watcher>();
+    volatile int readNumber = 0;
+    volatile Runnable onRead = null;
+
+    MemoryZookeeperClientRetry() throws IOException {
+      super("localhost:2181", 30000, 1, 0);
+    }
+
+    void fireWatchers(EventType type, String path) {
+      List<Watcher> watchersToFire = new ArrayList<Watcher>(watchers);
+      watchers.clear();
+      for (Watcher watcher : watchersToFire) {
+        watcher.process(new WatchedEvent(type, KeeperState.SyncConnected, path));
+      }
+    }
+
+    @Override
+    public Stat exists(String path) throws IOException {
+      return nodes.containsKey(path) ? new Stat() : null;
+    }
+
+    @Override
+    public void create(String path, byte[] data, List<ACL> acl, CreateMode createMode) throws IOException {
+      nodes.put(path, data == null ? new byte[0] : data);
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+      nodes.remove(path);
+    }
+
+    @Override
+    public List<String> getChildren(String path) throws IOException {
+      ++readNumber;
+      if (onRead != null) onRead.run();
+      List<String> children = new ArrayList<String>();
+      for (String nodePath : nodes.keySet()) {
+        if (nodePath.startsWith(path + "/") && nodePath.indexOf('/', path.length() + 1) < 0)
+          children.add(nodePath.substring(path.length() + 1));
+      }
+      return children;
+    }
+
+    @Override
+    public List<String> getChildren(String path, Watcher watcher) throws IOException {
+      watchers.add(watcher);
+      return getChildren(path);
+    }
+
+    @Override
+    public byte[] getData(String path, Stat stat) throws IOException {
+      byte[] data = nodes.get(path);
+      if (data == null) throw new IOException("no node for " + path);
+      return data;
+    }
+
+    @Override
+    public byte[] getData(String path, Watcher watcher, Stat stat) throws IOException {
+      watchers.add(watcher);
+      return getData(path, stat);
+    }
+
+    @Override
+    public Stat setData(String path, byte[] data) throws IOException {
+      nodes.put(path, data);
+      return new Stat();
+    }
+  }
+
+  private DistributedManager createManager(MemoryZookeeperClientRetry zookeeper) throws IOException {
+    Configuration conf = new Configuration(false);
+    conf.set("distributed.manager.name", "test");
+    conf.setLong("distributed.manager.cache.expire.time", Long.MAX_VALUE);
+    DistributedManager manager = new DistributedManager(conf);
+    manager.zookeeperClientRetry = zookeeper;
+    return manager;
+  }
+
+  @Test
+  public void cacheIsInvalidatedByWatchEvents() throws Exception {
+    MemoryZookeeperClientRetry zookeeper = new MemoryZookeeperClientRetry();
+    DistributedManager manager = createManager(zookeeper);
+    manager.register("A", 1, ServerType.MASTER, "A");
+
+    assertThat(manager.getServerStatuses().get("A").type, is(ServerType.MASTER));
+    assertThat(zookeeper.readNumber, is(1));
+    assertThat(manager.getServerStatuses().get("A").type, is(ServerType.MASTER));
+    assertThat(zookeeper.readNumber, is(1));
+
+    // another process changes a server, the cache is used until zookeeper notifies it
+    zookeeper.setData(manager.getPath() + "/A", "1,STOP,A".getBytes());
+    assertThat(manager.getServerStatuses().get("A").type, is(ServerType.MASTER));
+    long version = manager.getServersVersion();
+    zookeeper.fireWatchers(EventType.NodeDataChanged, manager.getPath() + "/A");
+    assertThat(manager.getServersVersion() > version, is(true));
+    assertThat(manager.getServerStatuses().get("A").type, is(ServerType.STOP));
+    assertThat(zookeeper.readNumber, is(2));
+
+    // a new server is found after the children watch fires
+    zookeeper.create(manager.getPath() + "/B", "1,ONLINE,B".getBytes(), null, CreateMode.EPHEMERAL);
+    assertThat(manager.getServerStatuses().get("B") == null, is(true));
+    zookeeper.fireWatchers(EventType.NodeChildrenChanged, manager.getPath());
+    assertThat(manager.getServerStatuses().get("B").type, is(ServerType.ONLINE));
+    assertThat(zookeeper.readNumber, is(3));
+
+    // unregister invalidates the cache without waiting for the watch
+    manager.unregister("B");
+    assertThat(manager.getServerStatuses().get("B") == null, is(true));
+    assertThat(zookeeper.readNumber, is(4));
+  }
+
+  @Test
+  public void changeDuringReadIsNotCached() throws Exception {
+    MemoryZookeeperClientRetry zookeeper = new MemoryZookeeperClientRetry();
+    final DistributedManager manager = createManager(zookeeper);
+    manager.register("A", 1, ServerType.MASTER, "A");
+    zookeeper.onRead = new Runnable() {
+      public void run() {
+        manager.serversChanged();
+      }
+    };
+    manager.getServerStatuses();
+    zookeeper.onRead = null;
+    manager.getServerStatuses();
+    assertThat(zookeeper.readNumber, is(2));
+    manager.getServerStatuses();
+    assertThat(zookeeper.readNumber, is(2));
+  }
+
+  @Test
+  public void incompleteServersAreNotCached() throws Exception {
+    MemoryZookeeperClientRetry zookeeper = new MemoryZookeeperClientRetry();
+    DistributedManager manager = createManager(zookeeper);
+    manager.register("A", 1, ServerType.MASTER, "A");
+    zookeeper.setData(manager.getPath() + "/A", "broken".getBytes());
+    ServerStatuses serverStatuses = manager.getServerStatuses();
+    assertThat(serverStatuses.get("A") == null, is(true));
+    manager.getServerStatuses();
+    assertThat(zookeeper.readNumber, is(2));
+  }
+
+  @Test
+  public void callersGetCopies() throws Exception {
+    MemoryZookeeperClientRetry zookeeper = new MemoryZookeeperClientRetry();
+    DistributedManager manager = createManager(zookeeper);
+    manager.register("A", 1, ServerType.MASTER, "A");
+    ServerStatus serverStatus = manager.getServerStatuses().get("A");
+    serverStatus.type = ServerType.STOP;
+    assertThat(manager.getServerStatuses().get("A").type, is(ServerType.MASTER));
+    assertThat(zookeeper.readNumber, is(1));
+  }
+
+  @Test
+  public void waitServersChanged() throws Exception {
+    MemoryZookeeperClientRetry zookeeper = new MemoryZookeeperClientRetry();
+    final DistributedManager manager = createManager(zookeeper);
+    long version = manager.getServersVersion();
+    assertThat(manager.waitServersChanged(version, 10), is(false));
+
+    manager.getServerStatuses();
+    new Thread() {
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+        }
+        ((MemoryZookeeperClientRetry) manager.zookeeperClientRetry).fireWatchers(EventType.NodeChildrenChanged,
+            manager.getPath());
+      }
+    }.start();
+    long startTime = System.currentTimeMillis();
+    assertThat(manager.waitServersChanged(version, 10000), is(true));
+    assertThat(System.currentTimeMillis() - startTime < 10000, is(true));
+  }
+}
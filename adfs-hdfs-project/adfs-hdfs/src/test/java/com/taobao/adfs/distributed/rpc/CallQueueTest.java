@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.distributed.rpc;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+/**
+ * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
+ */
+public class CallQueueTest {
+  @Test
+  public void levelByMethodAndClientShare() throws Exception {
+    Configuration conf = new Configuration(false);
+    conf.setInt("ipc.server.callqueue.number", 3);
+    conf.set("ipc.server.callqueue.method.levels", "sendHeartbeat=0, getListing=9");
+    CallQueue<Integer> callQueue = new CallQueue<Integer>(conf, 300);
+    assertThat(callQueue.getLevel("sendHeartbeat", "flooder"), is(0));
+    assertThat(callQueue.getLevel("getListing", "quiet"), is(2));
+    for (int i = 0; i < 100; ++i) {
+      callQueue.getLevel("create", "flooder");
+    }
+    assertThat(callQueue.getLevel("create", "flooder"), is(2));
+    assertThat(callQueue.getLevel("create", "quiet"), is(0));
+    assertThat(callQueue.getLevel("sendHeartbeat", "flooder"), is(0));
+  }
+
+  @Test
+  public void weightedRoundRobin() throws Exception {
+    Configuration conf = new Configuration(false);
+    conf.setInt("ipc.server.callqueue.number", 2);
+    CallQueue<Integer> callQueue = new CallQueue<Integer>(conf, 200);
+    for (int i = 0; i < 10; ++i) {
+      callQueue.put(1, 1);
+      callQueue.put(0, 0);
+    }
+    assertThat(callQueue.size(), is(20));
+    assertThat(callQueue.size(0), is(10));
+    // level 0 has weight 2 and level 1 has weight 1
+    int[] expectedLevels = { 0, 0, 1, 0, 0, 1, 0, 0, 1 };
+    for (int expectedLevel : expectedLevels) {
+      assertThat(callQueue.take(), is(expectedLevel));
+    }
+    // the low level is drained when the high level is empty
+    int taken = 0;
+    while (callQueue.size() > 0) {
+      callQueue.take();
+      ++taken;
+    }
+    assertThat(taken, is(11));
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.taobao.adfs.distributed.rpc;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author <a href=mailto:zhangwei.yangjie@gmail.com/jiwan@taobao.com>zhangwei/jiwan</a>
+ */
+public class ResponseBufferPoolTest {
+  @Test
+  public void directBuffersAreCapped() throws Exception {
+    ResponseBufferPool pool = new ResponseBufferPool(16, 2);
+    ByteBuffer buffer0 = pool.get();
+    ByteBuffer buffer1 = pool.get();
+    assertThat(buffer0.isDirect(), is(true));
+    assertThat(buffer1.isDirect(), is(true));
+    // a miss beyond the capacity gets a heap buffer which is not pooled
+    ByteBuffer buffer2 = pool.get();
+    assertThat(buffer2.isDirect(), is(false));
+    assertThat(buffer2.capacity(), is(16));
+    assertThat(pool.getAllocatedNumber(), is(2));
+
+    pool.release(buffer2);
+    assertThat(pool.size(), is(0));
+    pool.release(buffer0);
+    pool.release(buffer1);
+    assertThat(pool.size(), is(2));
+
+    // pooled buffers are reused and cleared
+    buffer0 = pool.get();
+    buffer0.put((byte) 1);
+    pool.release(buffer0);
+    ByteBuffer buffer = pool.get();
+    assertThat(buffer.isDirect(), is(true));
+    assertThat(buffer.position(), is(0));
+    assertThat(pool.getAllocatedNumber(), is(2));
+  }
+
+  @Test
+  public void largeResponseMovesToHeap() throws Exception {
+    ResponseBufferPool pool = new ResponseBufferPool(16, 2);
+    ResponseBufferPool.BufferOutputStream out = new ResponseBufferPool.BufferOutputStream(pool);
+    out.write(new byte[10], 0, 10);
+    assertThat(out.buffer.isDirect(), is(true));
+    out.write(new byte[20], 0, 20);
+    assertThat(out.buffer.isDirect(), is(false));
+    assertThat(out.size(), is(30));
+    // the direct buffer went back to pool
+    assertThat(pool.size(), is(1));
+    assertThat(out.getBuffer().remaining(), is(30));
+  }
+}
@@ -0,0 +1,148 @@
+package com.taobao.adfs.lease;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+import com.taobao.adfs.distributed.DistributedDataRepositoryBaseOnTable.DistributedDataRepositoryRow;
+
+public class LeaseTableTest {
+  static final long SOFT_LIMIT = 60000L;
+  static final long HARD_LIMIT = 3600000L;
+
+  /**
+   * keeps the rows in memory instead of the state server
+   */
+  static class MemoryLeaseRepository extends LeaseRepository {
+    final Map<String, Lease> rows = new ConcurrentHashMap<String, Lease>();
+    int insertNumber = 0;
+
+    MemoryLeaseRepository() throws IOException {
+      super(new Configuration(false));
+    }
+
+    @Override
+    public synchronized Lease insert(DistributedDataRepositoryRow row, boolean overwrite) throws IOException {
+      Lease lease = (Lease) row;
+      rows.put(lease.holder, lease);
+      ++insertNumber;
+      return lease;
+    }
+
+    @Override
+    public Lease delete(DistributedDataRepositoryRow row) throws IOException {
+      return rows.remove(((Lease) row).holder);
+    }
+
+    @Override
+    public List<Lease> findByTimeLessThan(long time) throws IOException {
+      List<Lease> leaseList = new ArrayList<Lease>();
+      for (Lease lease : rows.values()) {
+        if (lease.time < time) leaseList.add(lease);
+      }
+      return leaseList;
+    }
+  }
+
+  @Test
+  public void testInsertWritesNewHolderAtOnce() throws IOException {
+    MemoryLeaseRepository repository = new MemoryLeaseRepository();
+    LeaseTable table = new LeaseTable(new Configuration(false), repository, SOFT_LIMIT, HARD_LIMIT);
+    Lease lease = table.insert("a");
+    assertEquals(lease.time, repository.rows.get("a").time);
+    assertEquals(1, repository.insertNumber);
+    assertTrue(table.dirtyLeases.isEmpty());
+
+    // an existing holder is only renewed in memory
+    table.insert("a");
+    assertEquals(1, repository.insertNumber);
+    assertEquals(1, table.dirtyLeases.size());
+    assertEquals(1, table.flush());
+    assertEquals(2, repository.insertNumber);
+  }
+
+  @Test
+  public void testFlushAndDelete() throws IOException {
+    MemoryLeaseRepository repository = new MemoryLeaseRepository();
+    LeaseTable table = new LeaseTable(new Configuration(false), repository, SOFT_LIMIT, HARD_LIMIT);
+    table.load();
+    Lease lease = table.renew("b");
+    table.renew("c");
+    assertTrue(repository.rows.isEmpty());
+    assertEquals(2, table.flush());
+    assertEquals(lease.time, repository.rows.get("b").time);
+    assertTrue(repository.rows.containsKey("c"));
+    assertEquals(0, table.flush());
+
+    // a deleted lease is removed from memory and repository, and a pending renewal is dropped
+    table.renew("b");
+    assertNotNull(table.delete("b"));
+    assertNull(table.find("b"));
+    assertFalse(repository.rows.containsKey("b"));
+    assertEquals(0, table.flush());
+    assertFalse(repository.rows.containsKey("b"));
+    assertEquals(1, table.size());
+  }
+
+  @Test
+  public void testRetryExpired() throws Exception {
+    MemoryLeaseRepository repository = new MemoryLeaseRepository();
+    Configuration conf = new Configuration(false);
+    conf.setLong("lease.table.timer.wheel.tick", 10L);
+    conf.setLong("lease.table.expire.retry.interval", 0L);
+    LeaseTable table = new LeaseTable(conf, repository, 0L, 0L);
+    table.load();
+    table.renew("a");
+    table.renew("b");
+    Thread.sleep(100);
+    List<Lease> expired = table.pollExpired();
+    assertEquals(2, expired.size());
+    assertTrue(table.pollExpired().isEmpty());
+
+    // a lease whose release failed is polled again, unless it was deleted
+    table.delete("b");
+    table.retryExpired(expired);
+    Thread.sleep(100);
+    expired = table.pollExpired();
+    assertEquals(1, expired.size());
+    assertEquals("a", expired.get(0).holder);
+  }
+
+  @Test
+  public void testLoad() throws IOException {
+    MemoryLeaseRepository repository = new MemoryLeaseRepository();
+    long now = System.currentTimeMillis();
+    repository.insert(new Lease("old", now - HARD_LIMIT), true);
+    repository.insert(new Lease("renewed", now - 1000), true);
+
+    // a new master renews one lease before loading the persisted ones
+    LeaseTable table = new LeaseTable(new Configuration(false), repository, SOFT_LIMIT, HARD_LIMIT);
+    Lease renewed = table.renew("renewed");
+    assertFalse(table.isLoaded());
+
+    // find loads the persisted leases first
+    Lease old = table.find("old");
+    assertTrue(table.isLoaded());
+    assertNotNull(old);
+    // an old lease gets a grace period instead of expiring at once
+    assertTrue(old.time >= now);
+    assertTrue(table.pollExpired().isEmpty());
+    assertEquals(renewed.time, table.find("renewed").time);
+    assertEquals(2, table.size());
+
+    table.clear();
+    assertFalse(table.isLoaded());
+    assertEquals(2, table.findByTimeLessThan(Long.MAX_VALUE).size());
+  }
+}
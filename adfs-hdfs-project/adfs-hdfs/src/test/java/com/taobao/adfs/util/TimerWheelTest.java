@@ -0,0 +1,67 @@
+package com.taobao.adfs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+  @Test
+  public void testExpireInOrderOfDeadline() {
+    TimerWheel<Integer> wheel = new TimerWheel<Integer>(10, 2, 2, 0);
+    wheel.schedule(1, 15);
+    wheel.schedule(2, 95);
+    wheel.schedule(3, 1000);
+    assertEquals(3, wheel.size());
+    assertTrue(wheel.advance(9, 100).isEmpty());
+    assertEquals(1, (int) wheel.advance(19, 100).get(0));
+    assertTrue(wheel.advance(80, 100).isEmpty());
+    assertEquals(2, (int) wheel.advance(99, 100).get(0));
+    assertTrue(wheel.advance(999, 100).isEmpty());
+    assertEquals(3, (int) wheel.advance(1009, 100).get(0));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testRescheduleAndCancel() {
+    TimerWheel<String> wheel = new TimerWheel<String>(10, 3, 3, 0);
+    wheel.schedule("a", 100);
+    wheel.schedule("b", 100);
+    wheel.schedule("a", 5000);
+    assertTrue(wheel.cancel("b"));
+    assertFalse(wheel.cancel("b"));
+    assertTrue(wheel.advance(4990, 100).isEmpty());
+    assertEquals("a", wheel.advance(5000, 100).get(0));
+    assertFalse(wheel.contains("a"));
+  }
+
+  @Test
+  public void testBatchLimitAndRandomDeadlines() {
+    TimerWheel<Integer> wheel = new TimerWheel<Integer>(1, 4, 2, 0);
+    Random random = new Random(0);
+    long[] deadlines = new long[10000];
+    for (int i = 0; i < deadlines.length; ++i) {
+      deadlines[i] = random.nextInt(100000);
+      wheel.schedule(i, deadlines[i]);
+    }
+    Set<Integer> expired = new HashSet<Integer>();
+    for (long now = 0; now < 100000 + 997; now += 997) {
+      List<Integer> batch;
+      do {
+        batch = wheel.advance(now, 7);
+        assertTrue(batch.size() <= 7);
+        for (Integer i : batch) {
+          assertTrue(deadlines[i] <= now);
+          assertTrue(expired.add(i));
+        }
+      } while (batch.size() == 7);
+    }
+    assertEquals(deadlines.length, expired.size());
+  }
+}
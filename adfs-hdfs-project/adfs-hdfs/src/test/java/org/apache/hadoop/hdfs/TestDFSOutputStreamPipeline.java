@@ -0,0 +1,153 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSClient.DFSOutputStream;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test the packet window of DFSOutputStream, acking after the first
+ * datanodes of the pipeline and resending packets after a datanode dies.
+ */
+public class TestDFSOutputStreamPipeline {
+  private static final int PACKET_SIZE = 4096;
+  private static final int BLOCK_SIZE = 64 * PACKET_SIZE;
+  private MiniDFSCluster cluster;
+
+  private static Configuration conf(int maxPackets, int pipelineReplicas) {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.client.write.packet.size", PACKET_SIZE);
+    conf.setInt("dfs.client.write.max.packets", maxPackets);
+    conf.setInt("dfs.client.write.pipeline.replicas", pipelineReplicas);
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    return conf;
+  }
+
+  @After
+  public void tearDown() {
+    if (cluster != null) {
+      cluster.shutdown();
+      cluster = null;
+    }
+  }
+
+  @Test
+  public void testWindow() throws Exception {
+    final int maxPackets = 4;
+    cluster = new MiniDFSCluster(conf(maxPackets, 0), 1, true, null);
+    cluster.waitActive();
+    DistributedFileSystem fs = (DistributedFileSystem) cluster.getFileSystem();
+    Path path = new Path("/testWindow");
+    int length = 3 * BLOCK_SIZE / 2;
+
+    FSDataOutputStream out = fs.create(path, (short) 1);
+    DFSOutputStream dfso = (DFSOutputStream) out.getWrappedStream();
+    // a slow streamer lets the writer fill the window
+    dfso.setArtificialSlowdown(10);
+    for (int offset = 0; offset < length; offset += PACKET_SIZE) {
+      AppendTestUtil.write(out, offset, PACKET_SIZE);
+      // the writer may enqueue one packet after it waited for the window
+      assertTrue(dfso.getPacketsInFlight() <= maxPackets + 1);
+    }
+    out.close();
+    assertEquals(0, dfso.getPacketsInFlight());
+    AppendTestUtil.check(fs, path, length);
+
+    // the acked packets gave their buffers back to the pool
+    int pooled = fs.getClient().packetBufferPool.size();
+    assertTrue(pooled > 0);
+    assertTrue(pooled <= maxPackets);
+  }
+
+  @Test
+  public void testAckAfterFirstReplicas() throws Exception {
+    Configuration conf = conf(8, 1);
+    cluster = new MiniDFSCluster(conf, 3, true, null);
+    cluster.waitActive();
+    cluster.getNameNode().getNamesystem().stallReplicationWork();
+    FileSystem fs = cluster.getFileSystem();
+    Path path = new Path("/testAckAfterFirstReplicas");
+    int length = 5 * BLOCK_SIZE / 2;
+
+    FSDataOutputStream out = fs.create(path, (short) 3);
+    AppendTestUtil.write(out, 0, length);
+    out.close();
+    AppendTestUtil.check(fs, path, length);
+    // every datanode of the pipeline still gets the blocks, the namenode
+    // does not replicate them
+    DFSTestUtil.waitReplication(fs, path, (short) 3);
+  }
+
+  /**
+   * Kill a datanode of the pipeline in the middle of a block, then check
+   * that the unacked packets are sent again to the new pipeline.
+   */
+  private void testDatanodeDeath(int pipelineReplicas, int index)
+      throws Exception {
+    cluster = new MiniDFSCluster(conf(8, pipelineReplicas), 3, true, null);
+    cluster.waitActive();
+    FileSystem fs = cluster.getFileSystem();
+    Path path = new Path("/testDatanodeDeath");
+    int half = BLOCK_SIZE / 2;
+
+    FSDataOutputStream out = fs.create(path, (short) 3);
+    DFSOutputStream dfso = (DFSOutputStream) out.getWrappedStream();
+    AppendTestUtil.write(out, 0, half);
+    out.sync();
+    DatanodeInfo[] pipeline = dfso.getPipeline();
+    assertEquals(3, pipeline.length);
+
+    cluster.stopDataNode(pipeline[index].getName());
+    // the packets on the way when the datanode dies are sent again
+    for (int offset = half; offset < 2 * BLOCK_SIZE; offset += PACKET_SIZE) {
+      AppendTestUtil.write(out, offset, PACKET_SIZE);
+    }
+    out.close();
+    AppendTestUtil.check(fs, path, 2 * BLOCK_SIZE);
+  }
+
+  @Test
+  public void testResendAfterLastDatanodeDies() throws Exception {
+    testDatanodeDeath(0, 2);
+  }
+
+  @Test
+  public void testResendAfterFirstDatanodeDies() throws Exception {
+    testDatanodeDeath(0, 0);
+  }
+
+  @Test
+  public void testResendAfterDatanodeBehindAckReplicasDies()
+      throws Exception {
+    // the recovered pipeline keeps the first two datanodes only
+    testDatanodeDeath(2, 2);
+  }
+
+  @Test
+  public void testResendAfterAckingDatanodeDies() throws Exception {
+    testDatanodeDeath(2, 1);
+  }
+}
@@ -175,6 +175,7 @@ public class TestDataTransferProtocol extends TestCase {
     sendOut.writeLong(newBlockId); // block id
     sendOut.writeLong(0);          // generation stamp
     sendOut.writeInt(0);           // targets in pipeline 
+    sendOut.writeInt(0);           // datanodes to ack, 0 for all
     sendOut.writeBoolean(false);   // recoveryFlag
     Text.writeString(sendOut, "cl");// clientID
     sendOut.writeBoolean(false); // no src node info
@@ -195,6 +196,7 @@ public class TestDataTransferProtocol extends TestCase {
     sendOut.writeLong(newBlockId);
     sendOut.writeLong(0);          // generation stamp
     sendOut.writeInt(0);           // targets in pipeline 
+    sendOut.writeInt(0);           // datanodes to ack, 0 for all
     sendOut.writeBoolean(false);   // recoveryFlag
     Text.writeString(sendOut, "cl");// clientID
     sendOut.writeBoolean(false); // no src node info
@@ -211,6 +213,7 @@ public class TestDataTransferProtocol extends TestCase {
     sendOut.writeLong(++newBlockId);
     sendOut.writeLong(0);          // generation stamp
     sendOut.writeInt(0);           // targets in pipeline 
+    sendOut.writeInt(0);           // datanodes to ack, 0 for all
     sendOut.writeBoolean(false);   // recoveryFlag
     Text.writeString(sendOut, "cl");// clientID
     sendOut.writeBoolean(false); // no src node info
@@ -240,6 +243,7 @@ public class TestDataTransferProtocol extends TestCase {
     sendOut.writeLong(++newBlockId);
     sendOut.writeLong(0);          // generation stamp
     sendOut.writeInt(0);           // targets in pipeline 
+    sendOut.writeInt(0);           // datanodes to ack, 0 for all
     sendOut.writeBoolean(false);   // recoveryFlag
     Text.writeString(sendOut, "cl");// clientID
     sendOut.writeBoolean(false); // no src node info
@@ -146,6 +146,69 @@ public class TestDatanodeBlockScanner extends TestCase {
     cluster.shutdown();
   }
 
+  /**
+   * Test that the verification times in the text log of older versions are
+   * read once and converted to the binary log.
+   */
+  public void testLegacyVerificationLog() throws IOException {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path file1 = new Path("/tmp/testLegacyVerificationLog/file1");
+      DFSTestUtil.createFile(fs, file1, 10, (short)1, 0);
+      Block block = DFSTestUtil.getFirstBlock(fs, file1);
+      cluster.shutdown();
+
+      // replace the binary logs with a legacy log in the volume of the block
+      long verificationTime = System.currentTimeMillis() - 3600*1000L;
+      File baseDir = new File(System.getProperty("test.build.data"),
+                              "dfs/data");
+      File volumeDir = null;
+      for (int i=0; i<2; i++) {
+        File dir = new File(baseDir, "data" + (i+1) + "/current");
+        new File(dir, "dncp_block_verification.bin.curr").delete();
+        new File(dir, "dncp_block_verification.bin.prev").delete();
+        if (new File(dir, block.getBlockName()).exists()) {
+          volumeDir = dir;
+        }
+      }
+      assertNotNull(volumeDir);
+      File legacyLog = new File(volumeDir, "dncp_block_verification.log.curr");
+      PrintWriter writer = new PrintWriter(new FileWriter(legacyLog));
+      try {
+        writer.println("date=\"2011-01-01 00:00:00,000\"\t time=\"" +
+            verificationTime + "\"\t genstamp=\"" +
+            block.getGenerationStamp() + "\"\t id=\"" + block.getBlockId() +
+            "\"");
+      } finally {
+        writer.close();
+      }
+
+      cluster = new MiniDFSCluster(conf, 1, false, null);
+      cluster.waitActive();
+      fs = cluster.getFileSystem();
+      DFSClient dfsClient = new DFSClient(new InetSocketAddress("localhost",
+                                          cluster.getNameNodePort()), conf);
+      DatanodeInfo dn = dfsClient.datanodeReport(DatanodeReportType.LIVE)[0];
+
+      // the block is not scanned again within the scan period
+      assertEquals(verificationTime, waitForVerification(dn, fs, file1, -1));
+      // the legacy log is deleted once it is converted
+      while (legacyLog.exists()) {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException ignored) {}
+      }
+      // one binary entry of block id, generation stamp and time
+      assertEquals(3*8,
+          new File(volumeDir, "dncp_block_verification.bin.curr").length());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
   public static boolean corruptReplica(String blockName, int replica) throws IOException {
     Random random = new Random();
     File baseDir = new File(System.getProperty("test.build.data"), "dfs/data");
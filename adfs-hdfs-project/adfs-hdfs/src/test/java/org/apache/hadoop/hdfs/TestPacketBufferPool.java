@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestPacketBufferPool {
+  @Test
+  public void testReuse() {
+    PacketBufferPool pool = new PacketBufferPool(2);
+    assertEquals(0, pool.size());
+    byte[] buffer = pool.get(100);
+    assertEquals(100, buffer.length);
+
+    pool.release(buffer);
+    assertEquals(1, pool.size());
+    assertSame(buffer, pool.get(100));
+    assertEquals(0, pool.size());
+
+    // a pooled buffer which is large enough is reused for a smaller packet
+    pool.release(buffer);
+    assertSame(buffer, pool.get(50));
+    // one which is too small is dropped
+    pool.release(buffer);
+    byte[] larger = pool.get(200);
+    assertNotSame(buffer, larger);
+    assertEquals(200, larger.length);
+    assertEquals(0, pool.size());
+
+    pool.release(null);
+    assertEquals(0, pool.size());
+  }
+
+  @Test
+  public void testCapacity() {
+    PacketBufferPool pool = new PacketBufferPool(2);
+    byte[][] buffers = new byte[3][];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = pool.get(10);
+    }
+    for (int i = 0; i < buffers.length; i++) {
+      pool.release(buffers[i]);
+    }
+    // the buffer beyond the capacity is left to the garbage collector
+    assertEquals(2, pool.size());
+    assertSame(buffers[0], pool.get(10));
+    assertSame(buffers[1], pool.get(10));
+    assertNotSame(buffers[2], pool.get(10));
+    assertEquals(0, pool.size());
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentRelease() throws Exception {
+    final int capacity = 8;
+    final PacketBufferPool pool = new PacketBufferPool(capacity);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 100000; j++) {
+            pool.release(pool.get(16));
+            pool.release(new byte[16]);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertTrue(pool.size() <= capacity);
+    int size = pool.size();
+    for (int i = 0; i < size; i++) {
+      pool.get(16);
+    }
+    assertEquals(0, pool.size());
+  }
+}
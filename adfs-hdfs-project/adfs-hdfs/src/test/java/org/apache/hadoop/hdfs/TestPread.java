@@ -24,6 +24,8 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.protocol.DatanodeInfo;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
 import org.apache.hadoop.hdfs.server.datanode.SimulatedFSDataset;
 
 /**
@@ -198,9 +200,18 @@ public class TestPread extends TestCase {
   }
   
   private void dfsPreadTest(boolean disableTransferTo) throws IOException {
+    dfsPreadTest(disableTransferTo, false);
+  }
+
+  private void dfsPreadTest(boolean disableTransferTo, boolean hedged)
+      throws IOException {
     Configuration conf = new Configuration();
     conf.setLong("dfs.block.size", 4096);
     conf.setLong("dfs.read.prefetch.size", 4096);
+    if (hedged) {
+      conf.setInt(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY, 5);
+      conf.setLong(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY, 1);
+    }
     if (simulatedStorage) {
       conf.setBoolean("dfs.datanode.simulateddatastorage", true);
     }
@@ -213,6 +224,12 @@ public class TestPread extends TestCase {
       Path file1 = new Path("preadtest.dat");
       writeFile(fileSys, file1);
       pReadFile(fileSys, file1);
+      if (hedged) {
+        DFSHedgedReadMetrics metrics =
+            ((DistributedFileSystem) fileSys).getClient().getHedgedReadMetrics();
+        assertTrue("Multi-block reads should be parallel",
+            metrics.getParallelReadOps() > 0);
+      }
       datanodeRestartTest(cluster, fileSys, file1);
       cleanupFile(fileSys, file1);
     } finally {
@@ -221,6 +238,68 @@ public class TestPread extends TestCase {
     }
   }
   
+  /**
+   * Tests positional read in DFS with hedged and parallel block reads.
+   */
+  public void testHedgedPreadDFS() throws IOException {
+    dfsPreadTest(false, true);
+  }
+
+  /**
+   * Tests that a hedged request to another replica answers a positional
+   * read for which the first chosen datanode is slow.
+   */
+  public void testHedgedReadFromSlowDatanode() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", 4096);
+    conf.setInt(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THREADPOOL_SIZE_KEY, 5);
+    conf.setLong(DFSConfigKeys.DFS_CLIENT_HEDGED_READ_THRESHOLD_MILLIS_KEY, 100);
+    final long delay = 5000;
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 3, true, null);
+    FileSystem fileSys = cluster.getFileSystem();
+    DataNode slowNode = null;
+    try {
+      Path file1 = new Path("hedgedreadtest.dat");
+      DFSTestUtil.createFile(fileSys, file1, blockSize, (short) 3, seed);
+      DFSTestUtil.waitReplication(fileSys, file1, (short) 3);
+      byte[] expected = new byte[blockSize];
+      FSDataInputStream stm = fileSys.open(file1);
+      stm.readFully(0, expected);
+
+      // make the datanode the stream reads from first slow
+      DatanodeInfo first = ((DFSClient.DFSDataInputStream) stm)
+          .getAllBlocks().get(0).getLocations()[0];
+      for (DataNode dn : cluster.getDataNodes()) {
+        if (dn.dnRegistration.getName().equals(first.getName())) {
+          slowNode = dn;
+        }
+      }
+      assertNotNull(slowNode);
+      slowNode.setReadBlockDelay(delay);
+
+      DFSHedgedReadMetrics metrics =
+          ((DistributedFileSystem) fileSys).getClient().getHedgedReadMetrics();
+      long hedgedReadOps = metrics.getHedgedReadOps();
+      long hedgedReadWins = metrics.getHedgedReadWins();
+      byte[] actual = new byte[blockSize];
+      long start = System.currentTimeMillis();
+      stm.readFully(0, actual);
+      long elapsed = System.currentTimeMillis() - start;
+      checkAndEraseData(actual, 0, expected, "Hedged Read Test");
+      assertTrue("Read waited for the slow datanode: " + elapsed + "ms",
+          elapsed < delay);
+      assertEquals(hedgedReadOps + 1, metrics.getHedgedReadOps());
+      assertEquals(hedgedReadWins + 1, metrics.getHedgedReadWins());
+      stm.close();
+    } finally {
+      if (slowNode != null) {
+        slowNode.setReadBlockDelay(0);
+      }
+      fileSys.close();
+      cluster.shutdown();
+    }
+  }
+
   public void testPreadDFSSimulated() throws IOException {
     simulatedStorage = true;
     testPreadDFS();
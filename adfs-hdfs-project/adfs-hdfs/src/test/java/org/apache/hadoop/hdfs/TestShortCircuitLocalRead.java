@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.PrivilegedExceptionAction;
 
 import org.apache.commons.logging.impl.Log4JLogger;
@@ -116,14 +117,52 @@ public class TestShortCircuitLocalRead {
     stm.close();
   }
 
+  /**
+   * Read the file without copying, a buffer is returned at every position
+   * only if the blocks are memory-mapped.
+   */
+  static void checkMappedContent(FileSystem fs, Path name, byte[] expected,
+      int readOffset, boolean mmap) throws IOException {
+    DFSClient.DFSDataInputStream stm =
+        (DFSClient.DFSDataInputStream) fs.open(name);
+    stm.seek(readOffset);
+    byte[] actual = new byte[expected.length - readOffset];
+    int nread = 0;
+    while (nread < actual.length) {
+      // read across chunk boundaries, a buffer never crosses a block
+      ByteBuffer buf = stm.readMapped(517);
+      if (!mmap) {
+        Assert.assertNull("Zero copy read without mmap", buf);
+        stm.close();
+        return;
+      }
+      Assert.assertNotNull("Block is not mapped at " + stm.getPos(), buf);
+      Assert.assertTrue(buf.isReadOnly());
+      Assert.assertTrue(buf.remaining() > 0 && buf.remaining() <= 517);
+      int nbytes = buf.remaining();
+      buf.get(actual, nread, nbytes);
+      nread += nbytes;
+      Assert.assertEquals(readOffset + nread, stm.getPos());
+    }
+    Assert.assertNull(stm.readMapped(517));
+    checkData(actual, readOffset, expected, "Mapped read");
+    stm.close();
+  }
+
   /**
    * Test that file data can be read by reading the block file
    * directly from the local store.
    */
   public void doTestShortCircuitRead(boolean ignoreChecksum, int size,
       int readOffset) throws IOException {
+    doTestShortCircuitRead(ignoreChecksum, size, readOffset, false);
+  }
+
+  public void doTestShortCircuitRead(boolean ignoreChecksum, int size,
+      int readOffset, boolean mmap) throws IOException {
     Configuration conf = new Configuration();
     conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_KEY, true);
+    conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_MMAP_KEY, mmap);
     conf.setBoolean(DFSConfigKeys.DFS_CLIENT_READ_SHORTCIRCUIT_SKIP_CHECKSUM_KEY,
         ignoreChecksum);
     conf.set(DFSConfigKeys.DFS_BLOCK_LOCAL_PATH_ACCESS_USER_KEY,
@@ -148,6 +187,7 @@ public class TestShortCircuitLocalRead {
       stm.write(fileData);
       stm.close();
       checkFileContent(fs, file1, fileData, readOffset);
+      checkMappedContent(fs, file1, fileData, readOffset, mmap);
     } finally {
       fs.close();
       cluster.shutdown();
@@ -184,6 +224,13 @@ public class TestShortCircuitLocalRead {
     doTestShortCircuitRead(true, 10*blockSize+100, 777);
   }
   
+  @Test
+  public void testMmapRead() throws IOException {
+    doTestShortCircuitRead(false, 3*blockSize+100, 0, true);
+    doTestShortCircuitRead(true, 3*blockSize+100, 777, true);
+    doTestShortCircuitRead(false, 13, 5, true);
+  }
+  
   @Test
   public void testGetBlockLocalPathInfo() throws IOException, InterruptedException {
     final Configuration conf = new Configuration();
@@ -224,6 +224,7 @@ public class SimulatedFSDataset  implements FSConstants, FSDatasetInterface, Con
   }
   
   private HashMap<Block, BInfo> blockMap = null;
+  private final BlockReportDelta blockReportDelta = new BlockReportDelta();
   private SimulatedStorage storage = null;
   private String storageId;
   
@@ -327,6 +328,11 @@ public class SimulatedFSDataset  implements FSConstants, FSDatasetInterface, Con
     return getBlockReport();
   }
 
+  @Override
+  public BlockReportDelta getBlockReportDelta() {
+    return blockReportDelta;
+  }
+
 
   public long getCapacity() throws IOException {
     return storage.getCapacity();
@@ -382,6 +388,7 @@ public class SimulatedFSDataset  implements FSConstants, FSDatasetInterface, Con
       throw new IOException("BInfo not found, b=" + newblock);
     }
     binfo.updateBlock(newblock);
+    blockReportDelta.added(newblock);
   }
 
   public synchronized void invalidate(Block[] invalidBlks) throws IOException {
@@ -401,6 +408,7 @@ public class SimulatedFSDataset  implements FSConstants, FSDatasetInterface, Con
       }
       storage.free(binfo.getlength());
       blockMap.remove(b);
+      blockReportDelta.deleted(b);
     }
       if (error) {
           throw new IOException("Invalidate: Missing blocks.");
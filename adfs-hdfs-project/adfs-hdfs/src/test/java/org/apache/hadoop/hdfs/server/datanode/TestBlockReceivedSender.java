@@ -0,0 +1,221 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.protocol.DisallowedDatanodeException;
+import org.apache.hadoop.ipc.RemoteException;
+import org.junit.After;
+import org.junit.Test;
+
+public class TestBlockReceivedSender {
+  private Thread thread;
+
+  /**
+   * A sender that records the batches instead of calling a namenode.
+   */
+  static class RecordingSender extends BlockReceivedSender {
+    final List<Block[]> batches = new ArrayList<Block[]>();
+    int failures = 0;
+    IOException failure = null;
+    volatile boolean shutdown = false;
+
+    RecordingSender(Configuration conf) {
+      super(null, conf);
+    }
+
+    @Override
+    void send(Block[] blocks, String[] delHints) throws IOException {
+      synchronized (batches) {
+        if (failures > 0) {
+          failures--;
+          throw failure;
+        }
+        batches.add(blocks);
+        batches.notifyAll();
+      }
+    }
+
+    @Override
+    boolean isDatanodeRunning() {
+      return !shutdown;
+    }
+
+    @Override
+    void shutdownDatanode() {
+      stop();
+      shutdown = true;
+    }
+
+    List<Block[]> waitForBatches(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      synchronized (batches) {
+        while (batches.size() < count && System.currentTimeMillis() < deadline) {
+          batches.wait(100);
+        }
+        return new ArrayList<Block[]>(batches);
+      }
+    }
+
+    // a sent batch is acknowledged after send() returns
+    int waitForSize(int size) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (size() != size && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      return size();
+    }
+  }
+
+  private static Configuration conf(int batchSize, long batchDelay, int queueSize) {
+    Configuration conf = new Configuration();
+    conf.setInt("dfs.datanode.blockreceived.batch.size", batchSize);
+    conf.setLong("dfs.datanode.blockreceived.batch.delay.msec", batchDelay);
+    conf.setInt("dfs.datanode.blockreceived.queue.size", queueSize);
+    return conf;
+  }
+
+  private void start(BlockReceivedSender sender) {
+    thread = new Thread(sender);
+    thread.start();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    if (thread != null) {
+      thread.interrupt();
+      thread.join(10000);
+    }
+  }
+
+  @Test
+  public void testBlockReceivedAgainIsSentOnce() throws Exception {
+    RecordingSender sender = new RecordingSender(conf(10, 0, 100));
+    sender.add(new Block(1L, 100L, 1000L), "");
+    sender.add(new Block(2L, 100L, 1000L), "");
+    sender.add(new Block(1L, 200L, 1001L), "");
+    assertEquals(2, sender.size());
+    start(sender);
+
+    List<Block[]> batches = sender.waitForBatches(1);
+    assertEquals(1, batches.size());
+    Block[] blocks = batches.get(0);
+    assertEquals(2, blocks.length);
+    // the block received again moved to the end with its latest state
+    assertEquals(2L, blocks[0].getBlockId());
+    assertEquals(1L, blocks[1].getBlockId());
+    assertEquals(1001L, blocks[1].getGenerationStamp());
+    sender.stop();
+  }
+
+  @Test
+  public void testBatching() throws Exception {
+    RecordingSender sender = new RecordingSender(conf(3, 100, 100));
+    for (long id = 0; id < 7; id++) {
+      sender.add(new Block(id, 100L, 1000L), "");
+    }
+    start(sender);
+
+    List<Block[]> batches = sender.waitForBatches(3);
+    assertEquals(3, batches.size());
+    assertEquals(3, batches.get(0).length);
+    assertEquals(3, batches.get(1).length);
+    assertEquals(1, batches.get(2).length);
+    long id = 0;
+    for (Block[] blocks : batches) {
+      for (Block block : blocks) {
+        assertEquals(id++, block.getBlockId());
+      }
+    }
+    assertEquals(0, sender.waitForSize(0));
+    sender.stop();
+  }
+
+  @Test
+  public void testBackPressure() throws Exception {
+    final RecordingSender sender = new RecordingSender(conf(1, 0, 2));
+    sender.add(new Block(1L, 100L, 1000L), "");
+    sender.add(new Block(2L, 100L, 1000L), "");
+    // a block already queued is replaced without waiting
+    sender.add(new Block(2L, 200L, 1000L), "");
+
+    Thread writer = new Thread() {
+      public void run() {
+        sender.add(new Block(3L, 100L, 1000L), "");
+      }
+    };
+    writer.start();
+    writer.join(500);
+    assertTrue("writer should wait for the full queue", writer.isAlive());
+    assertEquals(2, sender.size());
+
+    start(sender);
+    writer.join(10000);
+    assertFalse(writer.isAlive());
+    assertEquals(3, sender.waitForBatches(3).size());
+    sender.stop();
+  }
+
+  @Test
+  public void testFailedBatchIsRetried() throws Exception {
+    RecordingSender sender = new RecordingSender(conf(10, 0, 100));
+    sender.failures = 2;
+    sender.failure = new IOException("state server is down");
+    sender.add(new Block(1L, 100L, 1000L), "");
+    start(sender);
+
+    List<Block[]> batches = sender.waitForBatches(1);
+    assertEquals(1, batches.size());
+    assertEquals(1L, batches.get(0)[0].getBlockId());
+    assertEquals(0, sender.waitForSize(0));
+    assertFalse(sender.shutdown);
+    sender.stop();
+  }
+
+  @Test
+  public void testRefusedDatanodeShutsDown() throws Exception {
+    RecordingSender sender = new RecordingSender(conf(10, 0, 100));
+    sender.failures = Integer.MAX_VALUE;
+    sender.failure = new RemoteException(DisallowedDatanodeException.class.getName(), "disallowed");
+    sender.add(new Block(1L, 100L, 1000L), "");
+    start(sender);
+
+    thread.join(10000);
+    assertFalse(thread.isAlive());
+    assertTrue(sender.shutdown);
+    assertEquals(1, sender.size());
+    assertTrue(sender.waitForBatches(0).isEmpty());
+  }
+
+  @Test
+  public void testIsRefused() {
+    assertTrue(BlockReceivedSender.isRefused(new RemoteException(
+        DisallowedDatanodeException.class.getName(), "")));
+    assertTrue(BlockReceivedSender.isRefused(new RemoteException(
+        org.apache.hadoop.hdfs.protocol.UnregisteredDatanodeException.class.getName(), "")));
+    assertFalse(BlockReceivedSender.isRefused(new RemoteException(IOException.class.getName(), "")));
+    assertFalse(BlockReceivedSender.isRefused(new IOException("timeout")));
+  }
+}
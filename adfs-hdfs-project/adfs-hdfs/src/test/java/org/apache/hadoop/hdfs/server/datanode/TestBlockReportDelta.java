@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.junit.Test;
+
+public class TestBlockReportDelta {
+  @Test
+  public void testLatestChangeWins() {
+    BlockReportDelta delta = new BlockReportDelta();
+    assertTrue(delta.isEmpty());
+    delta.added(new Block(1L, 100L, 1000L));
+    delta.deleted(new Block(1L, 100L, 1000L));
+    delta.added(new Block(2L, 200L, 1000L));
+    assertEquals(2, delta.size());
+
+    List<BlockReportDelta.Change> changes = delta.getChanges();
+    BlockListAsLongs added =
+        new BlockListAsLongs(BlockReportDelta.toArrayLongs(changes, false));
+    BlockListAsLongs deleted =
+        new BlockListAsLongs(BlockReportDelta.toArrayLongs(changes, true));
+    assertEquals(1, added.getNumberOfBlocks());
+    assertEquals(2L, added.getBlockId(0));
+    assertEquals(200L, added.getBlockLen(0));
+    assertEquals(1, deleted.getNumberOfBlocks());
+    assertEquals(1L, deleted.getBlockId(0));
+
+    delta.acknowledge(changes);
+    assertTrue(delta.isEmpty());
+  }
+
+  @Test
+  public void testChangeDuringReportIsKept() {
+    BlockReportDelta delta = new BlockReportDelta();
+    delta.added(new Block(1L, 100L, 1000L));
+    List<BlockReportDelta.Change> changes = delta.getChanges();
+    // the replica is deleted while the report is in flight
+    delta.deleted(new Block(1L, 100L, 1000L));
+    delta.acknowledge(changes);
+    assertEquals(1, delta.size());
+    assertTrue(delta.getChanges().get(0).deleted);
+  }
+}
@@ -0,0 +1,198 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.DataBlockScanner.LogEntry;
+import org.apache.hadoop.hdfs.server.datanode.DataBlockScanner.LogFileHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the binary verification log and the scan rate of DataBlockScanner
+ * without a cluster.
+ */
+public class TestDataBlockScannerLog {
+  private static final String PREFIX = DataBlockScanner.verificationLogFile;
+  private static final int ENTRY_SIZE = LogFileHandler.ENTRY_SIZE;
+  private File dir;
+
+  @Before
+  public void setUp() throws IOException {
+    dir = new File(System.getProperty("test.build.data", "/tmp"),
+        "TestDataBlockScannerLog");
+    FileUtil.fullyDelete(dir);
+    assertTrue(dir.mkdirs());
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    FileUtil.fullyDelete(dir);
+  }
+
+  private static List<LogEntry> readAll(LogFileHandler log)
+      throws IOException {
+    List<LogEntry> entries = new ArrayList<LogEntry>();
+    LogFileHandler.Reader reader = log.new Reader(false);
+    try {
+      while (reader.hasNext()) {
+        entries.add(reader.next());
+      }
+    } finally {
+      reader.close();
+    }
+    return entries;
+  }
+
+  private static void assertEntry(LogEntry entry, long id, long genStamp,
+                                  long time) {
+    assertEquals(id, entry.blockId);
+    assertEquals(genStamp, entry.genStamp);
+    assertEquals(time, entry.verificationTime);
+  }
+
+  @Test
+  public void testAppendAndRead() throws IOException {
+    LogFileHandler log = new LogFileHandler(dir, PREFIX, 100);
+    try {
+      assertTrue(log.append(new Block(1L, 0L, 1001L), 5000L));
+      assertTrue(log.append(new Block(2L, 0L, 1002L), 6000L));
+      File curFile = new File(dir, PREFIX + ".curr");
+      assertEquals(2 * ENTRY_SIZE, curFile.length());
+
+      List<LogEntry> entries = readAll(log);
+      assertEquals(2, entries.size());
+      assertEntry(entries.get(0), 1L, 1001L, 5000L);
+      assertEntry(entries.get(1), 2L, 1002L, 6000L);
+    } finally {
+      log.close();
+    }
+  }
+
+  @Test
+  public void testTornEntryIsTruncated() throws IOException {
+    LogFileHandler log = new LogFileHandler(dir, PREFIX, 100);
+    assertTrue(log.append(new Block(1L, 0L, 1001L), 5000L));
+    log.close();
+
+    // a crash while appending leaves a part of an entry behind
+    File curFile = new File(dir, PREFIX + ".curr");
+    FileOutputStream out = new FileOutputStream(curFile, true);
+    try {
+      out.write(new byte[ENTRY_SIZE / 2]);
+    } finally {
+      out.close();
+    }
+    assertEquals(ENTRY_SIZE + ENTRY_SIZE / 2, curFile.length());
+
+    // the partial entry is not read and is dropped when the log is reopened,
+    // so new entries stay aligned
+    log = new LogFileHandler(dir, PREFIX, 100);
+    try {
+      assertEquals(ENTRY_SIZE, curFile.length());
+      assertTrue(log.append(new Block(2L, 0L, 1002L), 6000L));
+      assertEquals(2 * ENTRY_SIZE, curFile.length());
+
+      List<LogEntry> entries = readAll(log);
+      assertEquals(2, entries.size());
+      assertEntry(entries.get(0), 1L, 1001L, 5000L);
+      assertEntry(entries.get(1), 2L, 1002L, 6000L);
+    } finally {
+      log.close();
+    }
+  }
+
+  @Test
+  public void testRollAndReadPrevFileFirst() throws IOException {
+    // the limit is raised to the minimum of 1000 entries
+    LogFileHandler log = new LogFileHandler(dir, PREFIX, 1);
+    try {
+      log.updateCurNumEntries();
+      for (long i = 0; i < 1000; i++) {
+        assertTrue(log.append(new Block(i, 0L, 1000L), i));
+      }
+      File prevFile = new File(dir, PREFIX + ".prev");
+      File curFile = new File(dir, PREFIX + ".curr");
+      assertEquals(1000 * ENTRY_SIZE, prevFile.length());
+      assertEquals(0, curFile.length());
+
+      assertTrue(log.append(new Block(1000L, 0L, 1000L), 1000L));
+      List<LogEntry> entries = readAll(log);
+      assertEquals(1001, entries.size());
+      for (int i = 0; i < entries.size(); i++) {
+        assertEntry(entries.get(i), i, 1000L, i);
+      }
+
+      // a reader holds off rolling
+      LogFileHandler.Reader reader = log.new Reader(true);
+      try {
+        for (long i = 1001; i < 2001; i++) {
+          assertTrue(log.append(new Block(i, 0L, 1000L), i));
+        }
+        assertEquals(1001 * ENTRY_SIZE, curFile.length());
+        assertEntry(reader.next(), 1000L, 1000L, 1000L);
+      } finally {
+        reader.close();
+      }
+    } finally {
+      log.close();
+    }
+  }
+
+  @Test
+  public void testParseLegacyEntry() {
+    LogEntry entry = LogEntry.parseEntry("date=\"2011-01-01 00:00:00,000\"\t" +
+        " time=\"1293811200000\"\t genstamp=\"1005\"\t id=\"-42\"");
+    assertEntry(entry, -42L, 1005L, 1293811200000L);
+    assertNull(LogEntry.parseEntry("time=\"abc\"\t id=\"1\""));
+  }
+
+  @Test
+  public void testScanRate() {
+    final long min = 1000;
+    final long max = 32000;
+    final long threshold = 16000;
+
+    // an idle volume is scanned at the max rate
+    assertEquals(max, DataBlockScanner.getScanRate(0, 10000, 0,
+        min, max, threshold));
+    // the rate goes down as the foreground I/O of the volume goes up
+    assertEquals(max / 2, DataBlockScanner.getScanRate(0, 10000,
+        threshold / 2, min, max, threshold));
+    // a busy volume is scanned at the min rate
+    assertEquals(min, DataBlockScanner.getScanRate(0, 10000, threshold,
+        min, max, threshold));
+    assertEquals(min, DataBlockScanner.getScanRate(0, 10000, 2 * threshold,
+        min, max, threshold));
+    // but not slower than needed to finish the period
+    assertEquals(5000, DataBlockScanner.getScanRate(50000, 10000,
+        threshold, min, max, threshold));
+    assertEquals(max, DataBlockScanner.getScanRate(50000, 0,
+        threshold, min, max, threshold));
+  }
+}
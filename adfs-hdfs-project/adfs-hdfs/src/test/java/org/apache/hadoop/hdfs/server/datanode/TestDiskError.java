@@ -146,6 +146,7 @@ public class TestDiskError {
     out.writeLong( block.getBlock().getBlockId());
     out.writeLong( block.getBlock().getGenerationStamp() );
     out.writeInt(1);
+    out.writeInt(0);                 // datanodes to ack, 0 for all
     out.writeBoolean( false );       // recovery flag
     Text.writeString( out, "" );
     out.writeBoolean(false); // Not sending src node information
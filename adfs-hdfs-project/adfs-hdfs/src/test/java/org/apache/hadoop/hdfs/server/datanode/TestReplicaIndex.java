@@ -0,0 +1,172 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FileUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestReplicaIndex {
+  private File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "TestReplicaIndex");
+    FileUtil.fullyDelete(dir);
+    assertTrue(dir.mkdirs());
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtil.fullyDelete(dir);
+  }
+
+  @Test
+  public void testLogReplay() throws Exception {
+    ReplicaIndex index = new ReplicaIndex(dir, 1000);
+    assertFalse(index.exists());
+    assertTrue(index.open().isEmpty());
+    index.added(1L, 1000L, 10L, new File(dir, "blk_1"));
+    index.added(2L, 1000L, 20L, new File(dir, "subdir0/blk_2"));
+    index.added(1L, 1001L, 5L, new File(dir, "blk_1"));
+    index.removed(2L);
+    index.added(3L, 1000L, 30L, new File(dir, "blk_3"));
+    // a file outside the current directory is not finalized
+    index.added(4L, 1000L, 40L, new File(dir.getParentFile(), "blk_4"));
+
+    Map<Long, ReplicaIndex.Entry> entries = index.load();
+    assertEquals(2, entries.size());
+    assertEquals(1001L, entries.get(1L).generationStamp);
+    assertEquals(5L, entries.get(1L).numBytes);
+    assertEquals("blk_1", entries.get(1L).path);
+    assertNull(entries.get(2L));
+    index.close();
+
+    index = new ReplicaIndex(dir, 1000);
+    assertTrue(index.exists());
+    assertEquals(2, index.open().size());
+    index.close();
+  }
+
+  @Test
+  public void testTornLogTail() throws Exception {
+    ReplicaIndex index = new ReplicaIndex(dir, 1000);
+    index.open();
+    index.added(1L, 1000L, 10L, new File(dir, "blk_1"));
+    index.added(2L, 1000L, 20L, new File(dir, "blk_2"));
+    index.close();
+
+    // cut the last record in the middle, as a crash would
+    File log = new File(dir, ReplicaIndex.LOG_FILE);
+    RandomAccessFile raf = new RandomAccessFile(log, "rw");
+    raf.setLength(log.length() - 3);
+    raf.close();
+
+    index = new ReplicaIndex(dir, 1000);
+    Map<Long, ReplicaIndex.Entry> entries = index.open();
+    assertEquals(1, entries.size());
+    assertNotNull(entries.get(1L));
+    // the log can be appended to again after the tail is truncated
+    index.added(3L, 1000L, 30L, new File(dir, "blk_3"));
+    assertEquals(2, index.load().size());
+    index.close();
+  }
+
+  @Test
+  public void testCompactionAndRewrite() throws Exception {
+    ReplicaIndex index = new ReplicaIndex(dir, 1000);
+    index.open();
+    for (long id = 0; id < 100; id++) {
+      index.added(id, 1000L, id, new File(dir, "blk_" + id));
+    }
+    for (long id = 0; id < 100; id += 2) {
+      index.removed(id);
+    }
+    index.compact();
+    assertTrue(new File(dir, ReplicaIndex.SNAPSHOT_FILE).exists());
+    assertFalse(new File(dir, ReplicaIndex.COMPACTING_FILE).exists());
+    assertEquals(0, new File(dir, ReplicaIndex.LOG_FILE).length());
+    index.added(100L, 1000L, 100L, new File(dir, "blk_100"));
+    index.close();
+
+    index = new ReplicaIndex(dir, 1000);
+    Map<Long, ReplicaIndex.Entry> entries = index.open();
+    assertEquals(51, entries.size());
+    assertEquals(99L, entries.get(99L).numBytes);
+    assertNotNull(entries.get(100L));
+
+    List<ReplicaIndex.Entry> scanned = new ArrayList<ReplicaIndex.Entry>();
+    scanned.add(new ReplicaIndex.Entry(7L, 1000L, 70L, "subdir1/blk_7"));
+    index.rewrite(scanned);
+    entries = index.load();
+    assertEquals(1, entries.size());
+    assertEquals("subdir1/blk_7", entries.get(7L).path);
+    index.close();
+  }
+
+  @Test
+  public void testFingerprint() {
+    String subdir = "subdir0" + File.separator;
+    long sum = ReplicaIndex.fingerprint("", 1L, 1000L)
+        + ReplicaIndex.fingerprint(subdir, 2L, 1000L);
+    // the sum does not depend on the order the replicas are listed in
+    assertEquals(sum, ReplicaIndex.fingerprint(subdir, 2L, 1000L)
+        + ReplicaIndex.fingerprint("", 1L, 1000L));
+    // a stale generation stamp or directory of one replica changes the sum
+    assertTrue(sum != ReplicaIndex.fingerprint("", 1L, 1001L)
+        + ReplicaIndex.fingerprint(subdir, 2L, 1000L));
+    assertTrue(sum != ReplicaIndex.fingerprint(subdir, 1L, 1000L)
+        + ReplicaIndex.fingerprint(subdir, 2L, 1000L));
+    // generation stamps swapped between two replicas do not cancel out
+    long onDisk = ReplicaIndex.fingerprint("", 3L, 1001L)
+        + ReplicaIndex.fingerprint("", 4L, 1002L);
+    assertTrue(onDisk != ReplicaIndex.fingerprint("", 3L, 1002L)
+        + ReplicaIndex.fingerprint("", 4L, 1001L));
+  }
+
+  @Test
+  public void testCorruptSnapshot() throws Exception {
+    ReplicaIndex index = new ReplicaIndex(dir, 1000);
+    index.open();
+    index.added(1L, 1000L, 10L, new File(dir, "blk_1"));
+    index.compact();
+    index.close();
+
+    File snapshot = new File(dir, ReplicaIndex.SNAPSHOT_FILE);
+    RandomAccessFile raf = new RandomAccessFile(snapshot, "rw");
+    raf.seek(20);
+    raf.write(0xff);
+    raf.close();
+    try {
+      new ReplicaIndex(dir, 1000).open();
+      fail("A corrupt snapshot must not be loaded");
+    } catch (IOException e) {
+      // expected, the datanode scans the volume instead
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.datanode;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.common.GenerationStamp;
+import org.junit.Test;
+
+public class TestReplicaMap {
+  private static final Block BLK = new Block(12345L, 65536L, 1000L);
+
+  @Test
+  public void testGenerationStampMatching() {
+    ReplicaMap<String> map = new ReplicaMap<String>(4);
+    assertNull(map.put(BLK, "a"));
+    assertEquals("a", map.get(BLK));
+    assertEquals("a", map.get(new Block(BLK.getBlockId())));
+    assertEquals("a", map.get(BLK.getBlockId()));
+    assertNull(map.get(new Block(BLK.getBlockId(), 0, 999L)));
+    assertFalse(map.containsKey(new Block(BLK.getBlockId(), 0, 999L)));
+    assertNull(map.remove(new Block(BLK.getBlockId(), 0, 999L)));
+    assertEquals(1, map.size());
+
+    // a matching put keeps the stored key, like HashMap
+    Block sameBlock = new Block(BLK.getBlockId(), 0, GenerationStamp.WILDCARD_STAMP);
+    assertEquals("a", map.put(sameBlock, "b"));
+    assertSame(BLK, map.keySet().iterator().next());
+
+    // a new generation stamp replaces the replica
+    Block newBlock = new Block(BLK.getBlockId(), 0, 1001L);
+    assertNull(map.put(newBlock, "c"));
+    assertEquals(1, map.size());
+    assertNull(map.get(BLK));
+    assertEquals("c", map.remove(newBlock));
+    assertTrue(map.isEmpty());
+  }
+
+  @Test
+  public void testIterationAndSnapshot() {
+    ReplicaMap<Long> map = new ReplicaMap<Long>(8);
+    for (long id = 0; id < 1000; id++) {
+      map.put(new Block(id, 0, 1L), id);
+    }
+    Map<Block, Long> snapshot = map.snapshot();
+    assertEquals(1000, snapshot.size());
+    for (Iterator<Block> it = map.keySet().iterator(); it.hasNext();) {
+      if (it.next().getBlockId() % 2 == 0) {
+        it.remove();
+      }
+    }
+    assertEquals(500, map.size());
+    assertEquals(1000, snapshot.size());
+    for (Map.Entry<Block, Long> entry : map.entrySet()) {
+      assertEquals(entry.getKey().getBlockId(), (long) entry.getValue());
+      assertEquals(1, entry.getKey().getBlockId() % 2);
+    }
+    map.clear();
+    assertTrue(map.isEmpty());
+  }
+}
@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.taobao.adfs.file.File;
+import com.taobao.adfs.state.StateManager;
+
+public class TestAccessTimeBuffer {
+  static final long PRECISION = 1000L;
+
+  /**
+   * A state manager that keeps the written access times in memory.
+   */
+  static class MemoryStateManager extends StateManager {
+    final Map<Long, Long> atimes = new HashMap<Long, Long>();
+    int failures = 0;
+    int calls = 0;
+
+    MemoryStateManager() {
+      super(null, null, null, null);
+    }
+
+    @Override
+    public synchronized File updateFileAtime(File file) throws IOException {
+      if (failures > 0) {
+        failures--;
+        throw new IOException("state server is down");
+      }
+      atimes.put(file.id, file.atime);
+      return file;
+    }
+
+    @Override
+    public synchronized List<File> updateFileAtimes(List<File> files) throws IOException {
+      calls++;
+      return super.updateFileAtimes(files);
+    }
+
+    @Override
+    public File findFileById(long id) throws IOException {
+      return new File(id, File.rootId, "f" + id);
+    }
+  }
+
+  private static File file(long id, long atime) {
+    File file = new File(id, File.rootId, "f" + id);
+    file.atime = atime;
+    return file;
+  }
+
+  @Test
+  public void testRecordWithinPrecision() {
+    AccessTimeBuffer buffer = new AccessTimeBuffer(null, PRECISION, 0);
+    assertFalse(buffer.record(null, 5000L));
+    assertFalse(buffer.record(file(1, 5000L), 5500L));
+    assertTrue(buffer.record(file(1, 5000L), 6000L));
+    // another copy of the file read before the record is compared with the buffered time
+    assertFalse(buffer.record(file(1, 5000L), 6500L));
+    assertTrue(buffer.record(file(1, 5000L), 7000L));
+    assertEquals(1, buffer.size());
+    assertEquals(2, buffer.getRecordedNumber());
+  }
+
+  @Test
+  public void testOverlay() {
+    AccessTimeBuffer buffer = new AccessTimeBuffer(null, PRECISION, 0);
+    buffer.record(file(1, 5000L), 9000L);
+    // a stale copy of the file shows the buffered access time
+    assertEquals(9000L, buffer.getAccessTime(file(1, 5000L)));
+    // a stored access time newer than the buffered one wins
+    assertEquals(10000L, buffer.getAccessTime(file(1, 10000L)));
+    assertEquals(5000L, buffer.getAccessTime(file(2, 5000L)));
+
+    buffer.discard(1);
+    assertEquals(5000L, buffer.getAccessTime(file(1, 5000L)));
+  }
+
+  @Test
+  public void testConcurrentRecord() throws Exception {
+    final AccessTimeBuffer buffer = new AccessTimeBuffer(null, PRECISION, 0);
+    final int threadNumber = 8;
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicInteger recorded = new AtomicInteger(0);
+    Thread[] threads = new Thread[threadNumber];
+    for (int i = 0; i < threadNumber; ++i) {
+      final long atime = 10000L + i * PRECISION;
+      threads[i] = new Thread() {
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          if (buffer.record(file(1, 0L), atime)) recorded.incrementAndGet();
+        }
+      };
+      threads[i].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    // the newest access time is never overwritten by an older one
+    assertEquals(10000L + (threadNumber - 1) * PRECISION, buffer.getAccessTime(file(1, 0L)));
+    assertEquals(recorded.get(), buffer.getRecordedNumber());
+  }
+
+  @Test
+  public void testFlush() throws Exception {
+    MemoryStateManager stateManager = new MemoryStateManager();
+    AccessTimeBuffer buffer = new AccessTimeBuffer(stateManager, PRECISION, 0);
+    buffer.record(file(1, 0L), 5000L);
+    buffer.record(file(1, 0L), 7000L);
+    buffer.record(file(2, 0L), 5000L);
+    assertEquals(2, buffer.flush());
+    // the files of a round are written in one call
+    assertEquals(1, stateManager.calls);
+    assertEquals(7000L, (long) stateManager.atimes.get(1L));
+    assertEquals(5000L, (long) stateManager.atimes.get(2L));
+    assertEquals(0, buffer.size());
+    assertEquals(2, buffer.getFlushedNumber());
+
+    // a failed write is kept for next round
+    buffer.record(file(3, 0L), 5000L);
+    stateManager.failures = 1;
+    assertEquals(0, buffer.flush());
+    assertEquals(1, buffer.size());
+    assertEquals(1, buffer.flush());
+    assertEquals(5000L, (long) stateManager.atimes.get(3L));
+  }
+}
@@ -0,0 +1,65 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
+import org.junit.Test;
+
+/**
+ * Test that the namenode handles a batch of blockReceived notifications.
+ */
+public class TestBlockReceivedBatch {
+  @Test
+  public void testBatchWithRejectedBlock() throws Exception {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/testBatchWithRejectedBlock");
+      DFSTestUtil.createFile(fs, path, 1024L, (short) 2, 0L);
+      Block block = DFSTestUtil.getFirstBlock(fs, path);
+
+      NameNode nn = cluster.getNameNode();
+      FSNamesystem namesystem = nn.getNamesystem();
+      namesystem.stallReplicationWork();
+      assertEquals(1, namesystem.countNodes(block).liveReplicas());
+
+      cluster.startDataNodes(conf, 1, true, null, null);
+      cluster.waitActive();
+      DatanodeRegistration reg = cluster.getDataNodes().get(1).dnRegistration;
+
+      // an unknown block is rejected without failing the others, and a block
+      // listed twice in a batch is added once
+      Block unknown = new Block(Long.MAX_VALUE - 1, 1024L, block.getGenerationStamp());
+      nn.blockReceived(reg, new Block[] { block, unknown, block }, new String[] { "", "", "" });
+      assertEquals(2, namesystem.countNodes(block).liveReplicas());
+      assertNull(namesystem.stateManager.getBlockEntryByBlockId(unknown.getBlockId()));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.server.datanode.DataNode;
+import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
+import org.junit.Test;
+
+/**
+ * Test that the replicas of a dead datanode are removed chunk by chunk.
+ */
+public class TestDeadNodeBlockRemoval {
+  static final int BATCH_SIZE = 2;
+  static final int BLOCK_SIZE = 1024;
+
+  @Test
+  public void testRemoveMoreBlocksThanOneChunk() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    conf.setInt("dfs.namenode.dead.node.block.removal.batch.size", BATCH_SIZE);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 3, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/testRemoveMoreBlocksThanOneChunk");
+      DFSTestUtil.createFile(fs, path, 8 * BLOCK_SIZE, (short) 2, 0L);
+      DFSTestUtil.waitReplication(fs, path, (short) 2);
+
+      FSNamesystem namesystem = cluster.getNameNode().getNamesystem();
+      namesystem.stallReplicationWork();
+
+      // 16 replicas on 3 datanodes, one of them holds more than a chunk
+      int deadIndex = -1;
+      List<com.taobao.adfs.block.Block> deadBlocks = null;
+      for (int i = 0; i < cluster.getDataNodes().size(); ++i) {
+        DatanodeRegistration reg = cluster.getDataNodes().get(i).dnRegistration;
+        List<com.taobao.adfs.block.Block> blocks = namesystem.stateManager.findBlockByDatanodeId(reg.getId(), false);
+        if (deadBlocks == null || blocks.size() > deadBlocks.size()) {
+          deadIndex = i;
+          deadBlocks = blocks;
+        }
+      }
+      assertTrue(deadBlocks.size() > BATCH_SIZE);
+
+      DataNode deadNode = cluster.getDataNodes().get(deadIndex);
+      DatanodeRegistration deadReg = deadNode.dnRegistration;
+      cluster.stopDataNode(deadIndex);
+      namesystem.removeDatanode(deadReg, null);
+
+      assertTrue(namesystem.stateManager.findBlockByDatanodeId(deadReg.getId(), BATCH_SIZE).isEmpty());
+      for (com.taobao.adfs.block.Block adfsBlock : deadBlocks) {
+        Block block = new Block(adfsBlock);
+        assertNull(namesystem.stateManager.findBlockByIdAndDatanodeId(block.getBlockId(), deadReg.getId()));
+        assertEquals(1, namesystem.countNodes(block).liveReplicas());
+        assertTrue("block " + block + " is not queued for replication",
+            namesystem.neededReplications.contains(block));
+      }
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -159,6 +159,43 @@ public class TestFsck extends TestCase {
     assertNull("Unexpected event in audit log", reader.readLine());
   }
   
+  /** do fsck by scanning the tables, it must agree with the listing fsck */
+  public void testFsckScan() throws Exception {
+    DFSTestUtil util = new DFSTestUtil("TestFsck", 20, 3, 8*1024);
+    MiniDFSCluster cluster = null;
+    FileSystem fs = null;
+    try {
+      Configuration conf = new Configuration();
+      conf.setLong("dfs.blockreport.intervalMsec", 10000L);
+      // small pages so that the scan pages through both tables
+      conf.setInt("dfs.namenode.fsck.scan.batch.size", 3);
+      cluster = new MiniDFSCluster(conf, 4, true, null);
+      fs = cluster.getFileSystem();
+      util.createFiles(fs, "/srcdat");
+      util.waitReplication(fs, "/srcdat", (short)3);
+      String listed = runFsck(conf, 0, true, "/");
+      String scanned = runFsck(conf, 0, true, "/", "-scan", "-threads", "2");
+      assertTrue(scanned.contains(NamenodeFsck.HEALTHY_STATUS));
+      assertTrue(scanned.contains("on 2 threads"));
+      for (String line : new String[] {" Total files:", " Total blocks (validated):", " Total size:"}) {
+        assertEquals(getLine(listed, line), getLine(scanned, line));
+      }
+      util.cleanup(fs, "/srcdat");
+    } finally {
+      if (fs != null) {try{fs.close();} catch(Exception e){}}
+      if (cluster != null) { cluster.shutdown(); }
+    }
+  }
+
+  private static String getLine(String output, String prefix) {
+    for (String line : output.split("\n")) {
+      if (line.startsWith(prefix)) {
+        return line;
+      }
+    }
+    return null;
+  }
+  
   public void testFsckNonExistent() throws Exception {
     DFSTestUtil util = new DFSTestUtil("TestFsck", 20, 3, 8*1024);
     MiniDFSCluster cluster = null;
@@ -0,0 +1,102 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.DatanodeID;
+import org.apache.hadoop.hdfs.protocol.LocatedBlock;
+import org.apache.hadoop.hdfs.server.protocol.BlocksWithLocations.BlockWithLocations;
+import org.junit.Test;
+
+/**
+ * Test that getBlocks pages through the blocks of a datanode and wraps
+ * around after the largest block id.
+ */
+public class TestGetBlocksPaging {
+  static final int BLOCK_SIZE = 1024;
+  static final int NUM_BLOCKS = 7;
+
+  @Test
+  public void testPagingWithWrapAround() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setLong("dfs.block.size", BLOCK_SIZE);
+    // pages smaller than the blocks of the datanode
+    conf.setInt("dfs.namenode.getblocks.page.size", 2);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/testPagingWithWrapAround");
+      DFSTestUtil.createFile(fs, path, NUM_BLOCKS * BLOCK_SIZE, (short) 1, 0L);
+      NameNode nn = cluster.getNameNode();
+      List<LocatedBlock> locatedBlocks =
+          nn.getBlockLocations(path.toString(), 0, NUM_BLOCKS * BLOCK_SIZE).getLocatedBlocks();
+      assertEquals(NUM_BLOCKS, locatedBlocks.size());
+      // blocks in order of the DATANODE_ID index
+      long[] ids = new long[NUM_BLOCKS];
+      for (int i = 0; i < NUM_BLOCKS; i++) {
+        ids[i] = locatedBlocks.get(i).getBlock().getBlockId();
+      }
+      Arrays.sort(ids);
+      FSNamesystem namesystem = nn.getNamesystem();
+      DatanodeID datanode = cluster.getDataNodes().get(0).dnRegistration;
+
+      // all blocks from any start, each once
+      long[] starts = { Long.MIN_VALUE, ids[0], ids[3], ids[3] + 1, ids[NUM_BLOCKS - 1], Long.MAX_VALUE };
+      for (long start : starts) {
+        List<Long> expected = new ArrayList<Long>();
+        for (long id : ids) {
+          if (id >= start) expected.add(id);
+        }
+        for (long id : ids) {
+          if (id < start) expected.add(id);
+        }
+        assertEquals("start=" + start, expected, getBlocks(namesystem, datanode, NUM_BLOCKS * BLOCK_SIZE, start));
+      }
+
+      // the size limits the blocks, also across the wrap around
+      assertEquals(Arrays.asList(ids[5], ids[6], ids[0]),
+          getBlocks(namesystem, datanode, 3 * BLOCK_SIZE, ids[5]));
+      assertEquals(Arrays.asList(ids[2]), getBlocks(namesystem, datanode, 1, ids[2]));
+      assertEquals(Arrays.asList(ids[0], ids[1], ids[2], ids[3]),
+          getBlocks(namesystem, datanode, 3 * BLOCK_SIZE + 1, ids[NUM_BLOCKS - 1] + 1));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+
+  private static List<Long> getBlocks(FSNamesystem namesystem, DatanodeID datanode, long size, long start)
+      throws Exception {
+    List<Long> ids = new ArrayList<Long>();
+    for (BlockWithLocations block : namesystem.getBlocks(datanode, size, start).getBlocks()) {
+      assertEquals(1, block.getDatanodes().length);
+      ids.add(block.getBlock().getBlockId());
+    }
+    return ids;
+  }
+}
@@ -54,15 +54,17 @@ public class TestOverReplicatedBlocks extends TestCase {
       Block block = DFSTestUtil.getFirstBlock(fs, fileName);
       TestDatanodeBlockScanner.corruptReplica(block.getBlockName(), 0);
       DataNodeProperties dnProps = cluster.stopDataNode(0);
-      // remove block scanner log to trigger block scanning
-      File scanLog = new File(System.getProperty("test.build.data"),
-          "dfs/data/data1/current/dncp_block_verification.log.curr");
-      //wait for one minute for deletion to succeed;
-      for(int i=0; !scanLog.delete(); i++) {
-        assertTrue("Could not delete log file in one minute", i < 60);
-        try {
-          Thread.sleep(1000);
-        } catch (InterruptedException ignored) {}
+      // remove block scanner logs of both volumes to trigger block scanning
+      for (String dataDir : new String[] {"data1", "data2"}) {
+        File scanLog = new File(System.getProperty("test.build.data"),
+            "dfs/data/" + dataDir + "/current/dncp_block_verification.bin.curr");
+        //wait for one minute for deletion to succeed;
+        for(int i=0; !scanLog.delete(); i++) {
+          assertTrue("Could not delete log file in one minute", i < 60);
+          try {
+            Thread.sleep(1000);
+          } catch (InterruptedException ignored) {}
+        }
       }
       
       // restart the datanode so the corrupt replica will be detected
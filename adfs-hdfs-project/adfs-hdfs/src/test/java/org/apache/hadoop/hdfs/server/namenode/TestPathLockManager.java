@@ -0,0 +1,135 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.hdfs.server.namenode.PathLockManager.Mode;
+import org.junit.Test;
+
+public class TestPathLockManager {
+  @Test
+  public void testAncestors() {
+    SortedMap<String, Mode> modes = new TreeMap<String, Mode>();
+    PathLockManager.addPath(modes, "/a/b/c/", Mode.WRITE);
+    PathLockManager.addPath(modes, "/a/d", Mode.WRITE);
+    PathLockManager.addPath(modes, "/a/b", Mode.WRITE);
+    assertArrayEquals(new String[] { "/", "/a", "/a/b", "/a/b/c", "/a/d" },
+        modes.keySet().toArray(new String[0]));
+    assertEquals(Mode.INTENTION, modes.get("/a"));
+    assertEquals(Mode.WRITE, modes.get("/a/b"));
+    assertEquals(Mode.WRITE, modes.get("/a/b/c"));
+    assertEquals(Mode.WRITE, modes.get("/a/d"));
+  }
+
+  @Test
+  public void testCompatibility() throws Exception {
+    final PathLockManager manager = new PathLockManager(100);
+    Integer lockId = manager.lock("/a/b/f1", Mode.WRITE, true);
+    assertNotNull(lockId);
+    // held by this thread already
+    assertNull(manager.lock("/a/b/f1", Mode.WRITE, true));
+
+    // siblings and other subtrees go on, the locked path and its ancestors
+    // can not be written
+    assertTrue(lockInOtherThread(manager, "/a/b/f2", true));
+    assertTrue(lockInOtherThread(manager, "/c", false));
+    assertFalse(lockInOtherThread(manager, "/a/b/f1", true));
+    assertFalse(lockInOtherThread(manager, "/a/b", false));
+    assertFalse(lockInOtherThread(manager, "/", false));
+    assertEquals(3, manager.getContendedNumber());
+    assertEquals(1, manager.getTimeoutNumber());
+
+    manager.unlock(lockId);
+    assertTrue(lockInOtherThread(manager, "/a/b", false));
+    assertEquals(0, manager.getLockedPathNumber());
+  }
+
+  @Test
+  public void testNestedLockBelowHeldWrite() throws Exception {
+    PathLockManager manager = new PathLockManager(100);
+    Integer lockId = manager.lock("/a", Mode.WRITE, true);
+    assertNotNull(lockId);
+    // e.g. a delete of a subtree locks the files below it again
+    assertNull(manager.lock("/a/b/f1", Mode.WRITE, true));
+    assertNull(manager.lockForWrite(new String[] { "/a/b", "/a/c" }, true));
+    assertEquals(0, manager.getContendedNumber());
+
+    // only the paths not held are locked
+    Integer renameLock = manager.lockForWrite(new String[] { "/a/b", "/d" }, true);
+    assertNotNull(renameLock);
+    assertArrayEquals(new String[] { "/d" }, manager.getPaths(renameLock));
+    assertEquals(0, manager.getContendedNumber());
+    assertFalse(lockInOtherThread(manager, "/d/e", false));
+    manager.unlock(renameLock);
+    assertTrue(lockInOtherThread(manager, "/d/e", false));
+
+    assertFalse(lockInOtherThread(manager, "/a/b/f1", false));
+    manager.unlock(lockId);
+    assertTrue(lockInOtherThread(manager, "/a/b/f1", false));
+    assertEquals(0, manager.getLockedPathNumber());
+  }
+
+  @Test
+  public void testRenameWaitsForChildren() throws Exception {
+    final PathLockManager manager = new PathLockManager(10000);
+    Integer child = manager.lock("/src/dir/file", Mode.WRITE, true);
+    final CountDownLatch renamed = new CountDownLatch(1);
+    final AtomicReference<Integer> renameLock = new AtomicReference<Integer>();
+    Thread rename = new Thread() {
+      public void run() {
+        renameLock.set(manager.lockForWrite(new String[] { "/src/dir", "/dst/dir" }, true));
+        renamed.countDown();
+        manager.unlock(renameLock.get());
+      }
+    };
+    rename.start();
+    Thread.sleep(200);
+    assertEquals(1, renamed.getCount());
+    manager.unlock(child);
+    rename.join();
+    assertNotNull(renameLock.get());
+    assertEquals(1, manager.getContendedNumber());
+    assertEquals(0, manager.getTimeoutNumber());
+    assertEquals(0, manager.getLockedPathNumber());
+  }
+
+  /**
+   * @return whether the path could be locked by another thread
+   */
+  private static boolean lockInOtherThread(final PathLockManager manager, final String path,
+      final boolean waitForLock) throws InterruptedException {
+    final AtomicReference<Integer> lockId = new AtomicReference<Integer>();
+    Thread thread = new Thread() {
+      public void run() {
+        lockId.set(manager.lock(path, Mode.WRITE, waitForLock));
+        if (lockId.get() != null) {
+          manager.unlock(lockId.get());
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    return lockId.get() != null;
+  }
+}
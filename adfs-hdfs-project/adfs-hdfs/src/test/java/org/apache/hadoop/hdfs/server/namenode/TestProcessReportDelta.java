@@ -0,0 +1,81 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.apache.hadoop.hdfs.protocol.BlockListAsLongs;
+import org.apache.hadoop.hdfs.server.protocol.DatanodeRegistration;
+import org.junit.Test;
+
+/**
+ * Test that the namenode applies the incremental block reports of a datanode.
+ */
+public class TestProcessReportDelta {
+  private static long[] toLongs(Block... blocks) {
+    return BlockListAsLongs.convertToArrayLongs(blocks);
+  }
+
+  @Test
+  public void testAddAndDeleteReplicas() throws Exception {
+    Configuration conf = new Configuration();
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 1, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path path = new Path("/testAddAndDeleteReplicas");
+      DFSTestUtil.createFile(fs, path, 1024L, (short) 2, 0L);
+      Block block = DFSTestUtil.getFirstBlock(fs, path);
+
+      NameNode nn = cluster.getNameNode();
+      FSNamesystem namesystem = nn.getNamesystem();
+      namesystem.stallReplicationWork();
+      assertEquals(1, namesystem.countNodes(block).liveReplicas());
+
+      cluster.startDataNodes(conf, 1, true, null, null);
+      cluster.waitActive();
+      DatanodeRegistration reg = cluster.getDataNodes().get(1).dnRegistration;
+
+      // an added replica of a known block is stored, the replica of an
+      // unknown block is invalidated
+      Block unknown = new Block(Long.MAX_VALUE - 1, 1024L, block.getGenerationStamp());
+      nn.blockReportDelta(reg, toLongs(block, unknown), toLongs());
+      assertEquals(2, namesystem.countNodes(block).liveReplicas());
+      assertTrue(namesystem.recentInvalidateSets.get(reg.getStorageID()).contains(unknown));
+
+      // a deletion older than the stored replica does not remove it
+      Block older = new Block(block.getBlockId(), block.getNumBytes(), block.getGenerationStamp() - 1);
+      nn.blockReportDelta(reg, toLongs(), toLongs(older));
+      assertEquals(2, namesystem.countNodes(block).liveReplicas());
+
+      nn.blockReportDelta(reg, toLongs(), toLongs(block));
+      assertEquals(1, namesystem.countNodes(block).liveReplicas());
+      // deleting a replica the namenode does not know is ignored
+      nn.blockReportDelta(reg, null, toLongs(block, unknown));
+      assertEquals(1, namesystem.countNodes(block).liveReplicas());
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.server.namenode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.hdfs.DFSTestUtil;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * This class tests the checkpoint file of ReplicationStateCheckpoint, and
+ * the restore and rebuild of the replication state by a new master.
+ */
+public class TestReplicationStateCheckpoint extends TestCase {
+  private File dir;
+
+  protected void setUp() throws Exception {
+    dir = new File(System.getProperty("test.build.data", "/tmp"), "TestReplicationStateCheckpoint");
+    FileUtil.fullyDelete(dir);
+  }
+
+  protected void tearDown() throws Exception {
+    FileUtil.fullyDelete(dir);
+  }
+
+  public void testRoundTrip() throws Exception {
+    assertNull(ReplicationStateCheckpoint.load(dir));
+
+    ReplicationStateCheckpoint.State state = new ReplicationStateCheckpoint.State();
+    state.time = 12345L;
+    for (int i = 0; i < 10; i++) {
+      state.neededBlocks.add(new Block(i, i * 10, 1000 + i));
+    }
+    state.corruptReplicas.put(new Block(20, 200, 1020), Arrays.asList("DS-1", "DS-2"));
+    List<Block> excess = new ArrayList<Block>();
+    excess.add(new Block(30, 300, 1030));
+    state.excessReplicas.put("DS-3", excess);
+    List<Block> invalidates = new ArrayList<Block>(excess);
+    invalidates.add(new Block(31, 310, 1031));
+    state.invalidates.put("DS-3", invalidates);
+    state.invalidates.put("DS-4", new ArrayList<Block>());
+    ReplicationStateCheckpoint.save(dir, state);
+    assertFalse(new File(dir, ReplicationStateCheckpoint.CHECKPOINT_FILE + ".tmp").exists());
+
+    ReplicationStateCheckpoint.State loaded = ReplicationStateCheckpoint.load(dir);
+    assertEquals(12345L, loaded.time);
+    assertEquals(state.neededBlocks, loaded.neededBlocks);
+    assertEquals(1030L, loaded.excessReplicas.get("DS-3").get(0).getGenerationStamp());
+    assertEquals(state.corruptReplicas, loaded.corruptReplicas);
+    assertEquals(state.excessReplicas, loaded.excessReplicas);
+    assertEquals(state.invalidates, loaded.invalidates);
+
+    // a new checkpoint replaces the old one
+    state.neededBlocks.clear();
+    ReplicationStateCheckpoint.save(dir, state);
+    assertTrue(ReplicationStateCheckpoint.load(dir).neededBlocks.isEmpty());
+  }
+
+  public void testCorruptCheckpoint() throws Exception {
+    ReplicationStateCheckpoint.State state = new ReplicationStateCheckpoint.State();
+    state.neededBlocks.add(new Block(1, 10, 1001));
+    ReplicationStateCheckpoint.save(dir, state);
+
+    RandomAccessFile raf = new RandomAccessFile(new File(dir, ReplicationStateCheckpoint.CHECKPOINT_FILE), "rw");
+    raf.seek(20);
+    raf.write(0xff);
+    raf.close();
+    try {
+      ReplicationStateCheckpoint.load(dir);
+      fail("A corrupt checkpoint must not be loaded");
+    } catch (IOException e) {
+      // expected, the new master rebuilds the state by a scan instead
+    }
+  }
+
+  public void testMissingDirectoryFailsFast() throws Exception {
+    Configuration conf = new Configuration();
+    conf.set("dfs.namenode.replication.checkpoint.dir", dir.getPath());
+    try {
+      new ReplicationStateCheckpoint(null, conf);
+      fail("A missing checkpoint directory must fail the namenode");
+    } catch (IOException e) {
+      // expected, the shared directory is not mounted
+    }
+    assertTrue(dir.mkdirs());
+    new ReplicationStateCheckpoint(null, conf);
+    // without a directory only the rebuild runs
+    new ReplicationStateCheckpoint(null, new Configuration());
+  }
+
+  public void testRestoreAndRebuild() throws Exception {
+    Configuration conf = new Configuration();
+    // keep the replication monitor from draining the restored state
+    conf.setInt("dfs.replication.interval", 1000);
+    MiniDFSCluster cluster = new MiniDFSCluster(conf, 2, true, null);
+    try {
+      cluster.waitActive();
+      FileSystem fs = cluster.getFileSystem();
+      Path healthy = new Path("/testRestore/healthy");
+      Path corrupt = new Path("/testRestore/corrupt");
+      Path under = new Path("/testRestore/under");
+      DFSTestUtil.createFile(fs, healthy, 1024L, (short) 2, 0L);
+      DFSTestUtil.createFile(fs, corrupt, 1024L, (short) 2, 0L);
+      // 3 replicas on 2 datanodes stay under replicated
+      DFSTestUtil.createFile(fs, under, 1024L, (short) 3, 0L);
+      DFSTestUtil.waitReplication(fs, healthy, (short) 2);
+      DFSTestUtil.waitReplication(fs, corrupt, (short) 2);
+      Block healthyBlock = DFSTestUtil.getFirstBlock(fs, healthy);
+      Block block = DFSTestUtil.getFirstBlock(fs, corrupt);
+      Block underBlock = DFSTestUtil.getFirstBlock(fs, under);
+      Block stale = new Block(block.getBlockId(), block.getNumBytes(), block.getGenerationStamp() - 1);
+      Block deleted = new Block(Long.MAX_VALUE - 1, 1024L, block.getGenerationStamp());
+      String storage0 = cluster.getDataNodes().get(0).dnRegistration.getStorageID();
+      String storage1 = cluster.getDataNodes().get(1).dnRegistration.getStorageID();
+
+      FSNamesystem namesystem = cluster.getNameNode().getNamesystem();
+      namesystem.neededReplications.clear();
+      assertEquals(0, namesystem.neededReplications.size());
+
+      ReplicationStateCheckpoint.State state = new ReplicationStateCheckpoint.State();
+      state.time = FSNamesystem.now();
+      state.neededBlocks.add(healthyBlock);
+      state.neededBlocks.add(underBlock);
+      state.corruptReplicas.put(block, Arrays.asList(storage0));
+      state.excessReplicas.put(storage1, new ArrayList<Block>(Arrays.asList(stale)));
+      // the corrupt replica and the replica of a deleted block are
+      // invalidated, the replica of a live block the checkpoint does not
+      // mark corrupt or excess is kept
+      state.invalidates.put(storage0, new ArrayList<Block>(Arrays.asList(block, deleted)));
+      state.invalidates.put(storage1, new ArrayList<Block>(Arrays.asList(stale, underBlock)));
+      ReplicationStateCheckpoint.save(dir, state);
+
+      conf.set("dfs.namenode.replication.checkpoint.dir", dir.getPath());
+      ReplicationStateCheckpoint checkpoint = new ReplicationStateCheckpoint(namesystem, conf);
+      checkpoint.restore();
+
+      assertEquals(1, namesystem.corruptReplicas.numCorruptReplicas(block));
+      // the excess replica has a stale generation stamp
+      assertNull(namesystem.excessReplicateMap.get(storage1));
+      assertTrue(namesystem.recentInvalidateSets.get(storage0).contains(block));
+      assertTrue(namesystem.recentInvalidateSets.get(storage0).contains(deleted));
+      assertNull(namesystem.recentInvalidateSets.get(storage1));
+      // only the block which is still under replicated is queued
+      assertEquals(1, namesystem.neededReplications.size());
+      assertTrue(namesystem.neededReplications.contains(underBlock));
+
+      // the scan also finds the block whose corrupt replica is not live
+      namesystem.neededReplications.clear();
+      checkpoint.rebuild();
+      assertEquals(2, namesystem.neededReplications.size());
+      assertTrue(namesystem.neededReplications.contains(underBlock));
+      assertTrue(namesystem.neededReplications.contains(block));
+      assertFalse(namesystem.neededReplications.contains(healthyBlock));
+    } finally {
+      cluster.shutdown();
+    }
+  }
+}
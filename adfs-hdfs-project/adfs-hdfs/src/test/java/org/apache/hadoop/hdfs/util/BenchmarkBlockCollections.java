@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+
+/**
+ * This class benchmarks the heap footprint and the speed of the block
+ * collections of the namenode replication bookkeeping: the TreeSet and
+ * HashSet of blocks against {@link BlockSet}, and the TreeMap of blocks
+ * against {@link BlockMap}. Each collection is filled with random blocks,
+ * probed, and drained from the head as the replication monitor does.
+ *
+ * Usage: BenchmarkBlockCollections [number of blocks, default 1000000]
+ *
+ * Run it with a heap large enough for the largest collection, e.g. -Xmx2g,
+ * the heap is measured after full collections.
+ */
+public class BenchmarkBlockCollections {
+  private final int n;
+  private final long[] ids;
+
+  BenchmarkBlockCollections(int n) {
+    this.n = n;
+    this.ids = new long[n];
+    Random random = new Random(0);
+    for (int i = 0; i < n; i++) {
+      ids[i] = random.nextLong();
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = Long.MAX_VALUE;
+    // collect until the used heap stops shrinking
+    for (int i = 0; i < 10; i++) {
+      System.gc();
+      long current = runtime.totalMemory() - runtime.freeMemory();
+      if (current >= used) {
+        break;
+      }
+      used = current;
+    }
+    return used;
+  }
+
+  private void run(String name, Collection<Block> set) {
+    long before = usedHeap();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      set.add(new Block(ids[i], i, 1000));
+    }
+    long addTime = System.nanoTime() - start;
+    long bytes = usedHeap() - before;
+
+    start = System.nanoTime();
+    int found = 0;
+    Block key = new Block();
+    for (int i = 0; i < n; i++) {
+      key.set(ids[(int) ((i * 7919L) % n)], 0, 1000);
+      if (set.contains(key)) found++;
+    }
+    long containsTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (Iterator<Block> it = set.iterator(); it.hasNext();) {
+      it.next();
+      it.remove();
+    }
+    long drainTime = System.nanoTime() - start;
+    report(name, bytes, addTime, containsTime, drainTime, found);
+  }
+
+  private void runMap(String name, Map<Block, Object> map) {
+    Object value = new Object();
+    long before = usedHeap();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      map.put(new Block(ids[i], i, 1000), value);
+    }
+    long addTime = System.nanoTime() - start;
+    long bytes = usedHeap() - before;
+
+    start = System.nanoTime();
+    int found = 0;
+    Block key = new Block();
+    for (int i = 0; i < n; i++) {
+      key.set(ids[(int) ((i * 7919L) % n)], 0, 1000);
+      if (map.get(key) != null) found++;
+    }
+    long containsTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (Iterator<Map.Entry<Block, Object>> it = map.entrySet().iterator(); it.hasNext();) {
+      it.next();
+      it.remove();
+    }
+    long drainTime = System.nanoTime() - start;
+    report(name, bytes, addTime, containsTime, drainTime, found);
+  }
+
+  private void runBlockMap() {
+    BlockMap<Object> map = new BlockMap<Object>();
+    Object value = new Object();
+    long before = usedHeap();
+    long start = System.nanoTime();
+    for (int i = 0; i < n; i++) {
+      map.put(new Block(ids[i], i, 1000), value);
+    }
+    long addTime = System.nanoTime() - start;
+    long bytes = usedHeap() - before;
+
+    start = System.nanoTime();
+    int found = 0;
+    Block key = new Block();
+    for (int i = 0; i < n; i++) {
+      key.set(ids[(int) ((i * 7919L) % n)], 0, 1000);
+      if (map.get(key) != null) found++;
+    }
+    long containsTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    for (Iterator<Map.Entry<Block, Object>> it = map.iterator(); it.hasNext();) {
+      it.next();
+      it.remove();
+    }
+    long drainTime = System.nanoTime() - start;
+    report("BlockMap", bytes, addTime, containsTime, drainTime, found);
+  }
+
+  private void report(String name, long bytes, long addTime, long containsTime, long drainTime, int found) {
+    if (found != n) {
+      throw new IllegalStateException(name + " found " + found + " of " + n + " blocks");
+    }
+    System.out.println(String.format("%-10s %8.1f bytes/block %8.1f ns/add %8.1f ns/contains %8.1f ns/drain",
+        name, (double) bytes / n, (double) addTime / n, (double) containsTime / n, (double) drainTime / n));
+  }
+
+  public static void main(String[] args) {
+    int n = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    BenchmarkBlockCollections benchmark = new BenchmarkBlockCollections(n);
+    System.out.println(n + " blocks");
+    // the first rounds warm up the JIT
+    for (int round = 0; round < 2; round++) {
+      benchmark.run("TreeSet", new TreeSet<Block>());
+      benchmark.run("HashSet", new HashSet<Block>());
+      benchmark.run("BlockSet", new BlockSet());
+      benchmark.runMap("TreeMap", new TreeMap<Block, Object>());
+      benchmark.runBlockMap();
+    }
+  }
+}
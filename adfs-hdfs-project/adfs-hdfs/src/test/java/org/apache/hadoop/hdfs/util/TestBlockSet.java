@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.apache.hadoop.hdfs.protocol.Block;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestBlockSet {
+  @Test
+  public void testInsertionOrder() {
+    BlockSet set = new BlockSet();
+    Assert.assertTrue(set.isEmpty());
+    for (long id = 100; id > 0; id--) {
+      Assert.assertTrue(set.add(new Block(id, id * 10, 1000 + id)));
+    }
+    Assert.assertEquals(100, set.size());
+    // same id with a new generation stamp updates the block
+    Assert.assertFalse(set.add(new Block(50, 1, 2000)));
+    Assert.assertEquals(100, set.size());
+    Assert.assertTrue(set.contains(new Block(50)));
+    Assert.assertFalse(set.contains(new Block(101)));
+    Assert.assertFalse(set.contains("blk_50"));
+
+    long expected = 100;
+    for (Block block : set) {
+      Assert.assertEquals(expected, block.getBlockId());
+      if (expected == 50) {
+        Assert.assertEquals(1, block.getNumBytes());
+        Assert.assertEquals(2000, block.getGenerationStamp());
+      } else {
+        Assert.assertEquals(expected * 10, block.getNumBytes());
+        Assert.assertEquals(1000 + expected, block.getGenerationStamp());
+      }
+      expected--;
+    }
+    Assert.assertEquals(0, expected);
+  }
+
+  @Test
+  public void testFifoDrain() {
+    BlockSet set = new BlockSet();
+    long added = 0;
+    long removed = 0;
+    // a queue which never holds more than 100 blocks is compacted in place
+    for (int round = 0; round < 1000; round++) {
+      for (int i = 0; i < 10; i++) {
+        set.add(new Block(added++));
+      }
+      Iterator<Block> it = set.iterator();
+      for (int i = 0; i < (round % 2 == 0 ? 5 : 15) && it.hasNext(); i++) {
+        Assert.assertEquals(removed++, it.next().getBlockId());
+        it.remove();
+      }
+      Assert.assertEquals(added - removed, set.size());
+    }
+    for (Iterator<Block> it = set.iterator(); it.hasNext();) {
+      Assert.assertEquals(removed++, it.next().getBlockId());
+      it.remove();
+    }
+    Assert.assertTrue(set.isEmpty());
+    Assert.assertEquals(added, removed);
+  }
+
+  @Test
+  public void testRandomOperations() {
+    Random random = new Random(0);
+    BlockSet set = new BlockSet();
+    Map<Long, Block> expected = new LinkedHashMap<Long, Block>();
+    for (int i = 0; i < 200000; i++) {
+      // ids collide in the table on purpose
+      long id = ((long) random.nextInt(5000) << 20) * (random.nextBoolean() ? 1L : -1L);
+      Block block = new Block(id, i, i);
+      switch (random.nextInt(3)) {
+      case 0:
+        Assert.assertEquals(!expected.containsKey(id), set.add(block));
+        if (!expected.containsKey(id)) expected.put(id, block);
+        else expected.get(id).set(id, i, i);
+        break;
+      case 1:
+        Assert.assertEquals(expected.remove(id) != null, set.remove(block));
+        break;
+      default:
+        Assert.assertEquals(expected.containsKey(id), set.contains(block));
+      }
+      Assert.assertEquals(expected.size(), set.size());
+    }
+    Iterator<Block> it = set.iterator();
+    for (Block block : expected.values()) {
+      Block next = it.next();
+      Assert.assertEquals(block.getBlockId(), next.getBlockId());
+      Assert.assertEquals(block.getGenerationStamp(), next.getGenerationStamp());
+    }
+    Assert.assertFalse(it.hasNext());
+    set.clear();
+    Assert.assertTrue(set.isEmpty());
+    Assert.assertFalse(set.iterator().hasNext());
+  }
+
+  @Test
+  public void testIteratorFailsOnCompaction() {
+    BlockSet set = new BlockSet();
+    set.add(new Block(1));
+    Iterator<Block> it = set.iterator();
+    it.next();
+    try {
+      it.remove();
+      it.remove();
+      Assert.fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    for (long id = 2; id < 100; id++) {
+      set.add(new Block(id));
+    }
+    try {
+      it.hasNext();
+      Assert.fail();
+    } catch (ConcurrentModificationException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testBlockMap() {
+    BlockMap<String> map = new BlockMap<String>();
+    Map<Long, String> expected = new HashMap<Long, String>();
+    for (long id = 0; id < 1000; id++) {
+      Assert.assertNull(map.put(new Block(id, 0, 1), "v" + id));
+      expected.put(id, "v" + id);
+    }
+    Assert.assertEquals("v7", map.put(new Block(7, 0, 2), "w7"));
+    expected.put(7L, "w7");
+    for (long id = 0; id < 1000; id += 3) {
+      Assert.assertEquals(expected.remove(id), map.remove(new Block(id)));
+    }
+    Assert.assertNull(map.remove(new Block(0)));
+    Assert.assertEquals(expected.size(), map.size());
+    Assert.assertEquals("w7", map.get(new Block(7)));
+    Assert.assertNull(map.get(new Block(3)));
+    long last = -1;
+    int size = 0;
+    for (Map.Entry<Block, String> entry : map) {
+      Assert.assertTrue(entry.getKey().getBlockId() > last);
+      last = entry.getKey().getBlockId();
+      Assert.assertEquals(expected.get(last), entry.getValue());
+      size++;
+    }
+    Assert.assertEquals(expected.size(), size);
+  }
+}
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.hdfs.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TestSpscQueue {
+  @Test
+  public void testOrder() {
+    SpscQueue<Integer> q = new SpscQueue<Integer>();
+    Assert.assertTrue(q.isEmpty());
+    Assert.assertNull(q.peek());
+    Assert.assertNull(q.poll());
+    for (int i = 0; i < 10; i++) {
+      q.offer(i);
+    }
+    Assert.assertFalse(q.isEmpty());
+    for (int i = 0; i < 10; i++) {
+      Assert.assertEquals(Integer.valueOf(i), q.peek());
+      Assert.assertEquals(Integer.valueOf(i), q.poll());
+    }
+    Assert.assertTrue(q.isEmpty());
+    try {
+      q.offer(null);
+      Assert.fail();
+    } catch (NullPointerException e) {
+      // expected
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void testConcurrentHandoff() throws Exception {
+    final int n = 1000000;
+    final SpscQueue<Integer> q = new SpscQueue<Integer>();
+    Thread producer = new Thread() {
+      public void run() {
+        for (int i = 0; i < n; i++) {
+          q.offer(i);
+        }
+      }
+    };
+    producer.start();
+    for (int i = 0; i < n;) {
+      Integer e = q.poll();
+      if (e == null) {
+        Thread.yield();
+        continue;
+      }
+      Assert.assertEquals(i, e.intValue());
+      i++;
+    }
+    producer.join();
+    Assert.assertTrue(q.isEmpty());
+  }
+}
@@ -0,0 +1,233 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.io;
+
+import java.io.*;
+import java.util.*;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.fs.*;
+import org.apache.hadoop.conf.*;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+
+/** The parallel sorter gives the same records as the serial one. */
+public class TestSequenceFileSorter extends TestCase {
+  private static final Path DIR = new Path(
+      System.getProperty("test.build.data", "."), "TestSequenceFileSorter");
+  private static final int FILES = 3;
+  private static final int RECORDS = 2000;
+
+  private Configuration conf;
+  private FileSystem fs;
+
+  public void setUp() throws IOException {
+    Path localDir = new Path(DIR, "local");
+    conf = new Configuration();
+    conf.set("mapred.local.dir", localDir.toString());
+    fs = FileSystem.getLocal(conf);
+    fs.delete(DIR, true);
+    fs.mkdirs(localDir);
+  }
+
+  public void tearDown() throws IOException {
+    fs.delete(DIR, true);
+  }
+
+  public void testSortNone() throws IOException {
+    checkSort(CompressionType.NONE);
+  }
+
+  public void testSortRecord() throws IOException {
+    checkSort(CompressionType.RECORD);
+  }
+
+  public void testSortBlock() throws IOException {
+    checkSort(CompressionType.BLOCK);
+  }
+
+  public void testMerge() throws IOException {
+    Path[] inFiles = writeInputs(CompressionType.NONE);
+    Path[] sorted = new Path[inFiles.length];
+    for (int i = 0; i < inFiles.length; i++) {
+      sorted[i] = new Path(DIR, "sorted" + i);
+      createSorter(1).sort(new Path[] { inFiles[i] }, sorted[i], false);
+    }
+    Path serial = new Path(DIR, "merged.serial");
+    createSorter(1).merge(sorted, serial);
+    Path parallel = new Path(DIR, "merged.parallel");
+    createSorter(4).merge(sorted, parallel);
+    assertSameRecords(serial, parallel);
+  }
+
+  /**
+   * RandomDatum has no registered comparator, so the generic one
+   * deserializing into fields of its own is used.
+   */
+  public void testSortGenericComparator() throws IOException {
+    checkSortDatum(null);
+  }
+
+  /** A comparator deserializing the keys, as the generic one does. */
+  static class DeserializingComparator extends WritableComparator {
+    DeserializingComparator() {
+      super(RandomDatum.class, true);
+    }
+  }
+
+  public void testSortUserComparator() throws IOException {
+    checkSortDatum(new DeserializingComparator());
+  }
+
+  public void testEmpty() throws IOException {
+    Path empty = new Path(DIR, "empty");
+    SequenceFile.createWriter(fs, conf, empty, Text.class,
+                              RandomDatum.class).close();
+    Path out = new Path(DIR, "empty.sorted");
+    createSorter(4).sort(new Path[] { empty }, out, false);
+    assertEquals(0, readRecords(out).size());
+  }
+
+  private void checkSort(CompressionType compress) throws IOException {
+    Path[] inFiles = writeInputs(compress);
+    Path serial = new Path(DIR, "sorted.serial");
+    createSorter(1).sort(inFiles, serial, false);
+    Path parallel = new Path(DIR, "sorted.parallel");
+    createSorter(4).sort(inFiles, parallel, false);
+
+    List<byte[]> records = readRecords(serial);
+    assertEquals(FILES * RECORDS, records.size());
+    assertSameRecords(serial, parallel);
+
+    // the keys are sorted, the values of a key are in no particular order
+    SequenceFile.Reader reader = new SequenceFile.Reader(fs, parallel, conf);
+    Text last = new Text();
+    Text key = new Text();
+    RandomDatum value = new RandomDatum();
+    while (reader.next(key, value)) {
+      assertTrue(last.compareTo(key) <= 0);
+      last.set(key);
+    }
+    reader.close();
+  }
+
+  private void checkSortDatum(RawComparator comparator) throws IOException {
+    Random random = new Random(1);
+    Path[] inFiles = new Path[FILES];
+    for (int i = 0; i < FILES; i++) {
+      inFiles[i] = new Path(DIR, "datum" + i);
+      SequenceFile.Writer writer =
+        SequenceFile.createWriter(fs, conf, inFiles[i], RandomDatum.class,
+                                  Text.class, CompressionType.NONE);
+      for (int j = 0; j < RECORDS; j++) {
+        writer.append(new RandomDatum(random), new Text("value" + j));
+      }
+      writer.close();
+    }
+    Path serial = new Path(DIR, "datum.serial");
+    configure(createDatumSorter(comparator), 1).sort(inFiles, serial, false);
+    Path parallel = new Path(DIR, "datum.parallel");
+    configure(createDatumSorter(comparator), 4).sort(inFiles, parallel, false);
+    assertSameRecords(serial, parallel);
+
+    SequenceFile.Reader reader = new SequenceFile.Reader(fs, parallel, conf);
+    RandomDatum last = new RandomDatum();
+    RandomDatum key = new RandomDatum();
+    Text value = new Text();
+    int count = 0;
+    while (reader.next(key, value)) {
+      if (count > 0) {
+        assertTrue("record " + count, last.compareTo(key) <= 0);
+      }
+      RandomDatum swap = last;
+      last = key;
+      key = swap;
+      count++;
+    }
+    reader.close();
+    assertEquals(FILES * RECORDS, count);
+  }
+
+  private SequenceFile.Sorter createDatumSorter(RawComparator comparator) {
+    return comparator == null ?
+      new SequenceFile.Sorter(fs, RandomDatum.class, Text.class, conf) :
+      new SequenceFile.Sorter(fs, comparator, RandomDatum.class, Text.class,
+                              conf);
+  }
+
+  private SequenceFile.Sorter createSorter(int threads) {
+    return configure(
+        new SequenceFile.Sorter(fs, Text.class, RandomDatum.class, conf),
+        threads);
+  }
+
+  private SequenceFile.Sorter configure(SequenceFile.Sorter sorter,
+                                        int threads) {
+    // many segments and several merge passes
+    sorter.setMemory(64 * 1024);
+    sorter.setFactor(5);
+    sorter.setThreads(threads);
+    return sorter;
+  }
+
+  // few distinct keys, so that the order of equal keys is checked too
+  private Path[] writeInputs(CompressionType compress) throws IOException {
+    Random random = new Random(1);
+    Path[] inFiles = new Path[FILES];
+    for (int i = 0; i < FILES; i++) {
+      inFiles[i] = new Path(DIR, "input" + i);
+      SequenceFile.Writer writer =
+        SequenceFile.createWriter(fs, conf, inFiles[i], Text.class,
+                                  RandomDatum.class, compress);
+      for (int j = 0; j < RECORDS; j++) {
+        writer.append(new Text("key" + random.nextInt(100)),
+                      new RandomDatum(random));
+      }
+      writer.close();
+    }
+    return inFiles;
+  }
+
+  private List<byte[]> readRecords(Path file) throws IOException {
+    List<byte[]> records = new ArrayList<byte[]>();
+    SequenceFile.Reader reader = new SequenceFile.Reader(fs, file, conf);
+    DataOutputBuffer key = new DataOutputBuffer();
+    SequenceFile.ValueBytes value = reader.createValueBytes();
+    DataOutputBuffer record = new DataOutputBuffer();
+    while (reader.nextRaw(key, value) != -1) {
+      record.reset();
+      record.write(key.getData(), 0, key.getLength());
+      value.writeUncompressedBytes(record);
+      records.add(Arrays.copyOf(record.getData(), record.getLength()));
+      key.reset();
+    }
+    reader.close();
+    return records;
+  }
+
+  private void assertSameRecords(Path expected, Path actual)
+    throws IOException {
+    List<byte[]> expectedRecords = readRecords(expected);
+    List<byte[]> actualRecords = readRecords(actual);
+    assertEquals(expectedRecords.size(), actualRecords.size());
+    for (int i = 0; i < expectedRecords.size(); i++) {
+      assertTrue("record " + i,
+                 Arrays.equals(expectedRecords.get(i), actualRecords.get(i)));
+    }
+  }
+}
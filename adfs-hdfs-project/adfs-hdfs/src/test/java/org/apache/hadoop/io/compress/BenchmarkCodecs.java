@@ -0,0 +1,134 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * This class benchmarks the throughput of the LZ4 and snappy codecs
+ * written in Java against zlib, native if loaded, through the codec
+ * streams. The data is read from a file, or made of words drawn from a
+ * small vocabulary.
+ *
+ * Usage: BenchmarkCodecs [file] [rounds, default 10]
+ */
+public class BenchmarkCodecs {
+  private static final String[] CODECS = {
+      "org.apache.hadoop.io.compress.DefaultCodec",
+      "org.apache.hadoop.io.compress.SnappyCodec",
+      "org.apache.hadoop.io.compress.Lz4Codec" };
+
+  private static byte[] generate(int length) {
+    Random random = new Random(0);
+    String[] words = new String[1000];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = Long.toString(random.nextLong() & 0xFFFFFFFFFL, 36);
+    }
+    byte[] data = new byte[length];
+    for (int i = 0; i < length;) {
+      String word = words[(int) Math.abs(random.nextGaussian() * 100) % words.length];
+      for (int j = 0; j < word.length() && i < length; j++) {
+        data[i++] = (byte) word.charAt(j);
+      }
+      if (i < length) {
+        data[i++] = ' ';
+      }
+    }
+    return data;
+  }
+
+  private static byte[] read(String file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      DataOutputBuffer out = new DataOutputBuffer();
+      IOUtils.copyBytes(in, out, 64 * 1024, false);
+      byte[] data = new byte[out.getLength()];
+      System.arraycopy(out.getData(), 0, data, 0, data.length);
+      return data;
+    } finally {
+      in.close();
+    }
+  }
+
+  private static void run(CompressionCodec codec, byte[] data, int rounds)
+      throws IOException {
+    Compressor compressor = CodecPool.getCompressor(codec);
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    DataOutputBuffer compressed = new DataOutputBuffer();
+    byte[] buffer = new byte[64 * 1024];
+    long compressTime = 0;
+    long decompressTime = 0;
+    try {
+      // the first round warms up
+      for (int i = 0; i <= rounds; i++) {
+        compressed.reset();
+        compressor.reset();
+        long start = System.nanoTime();
+        OutputStream out = codec.createOutputStream(compressed, compressor);
+        out.write(data, 0, data.length);
+        ((CompressionOutputStream) out).finish();
+        long middle = System.nanoTime();
+
+        decompressor.reset();
+        InputStream in = codec.createInputStream(
+            new ByteArrayInputStream(compressed.getData(), 0, compressed.getLength()), decompressor);
+        long length = 0;
+        for (int n; (n = in.read(buffer, 0, buffer.length)) > 0;) {
+          length += n;
+        }
+        long end = System.nanoTime();
+        if (length != data.length) {
+          throw new IOException(codec + " decompressed " + length + " bytes instead of " + data.length);
+        }
+        if (i > 0) {
+          compressTime += middle - start;
+          decompressTime += end - middle;
+        }
+      }
+    } finally {
+      CodecPool.returnCompressor(compressor);
+      CodecPool.returnDecompressor(decompressor);
+    }
+    double mb = (double) data.length * rounds / (1 << 20);
+    System.out.printf("%-14s ratio %5.3f  compress %8.1f MB/s  decompress %8.1f MB/s  (%s)%n",
+        codec.getClass().getSimpleName(), (double) compressed.getLength() / data.length,
+        mb * 1e9 / compressTime, mb * 1e9 / decompressTime, compressor.getClass().getSimpleName());
+  }
+
+  public static void main(String[] args) throws Exception {
+    byte[] data = args.length > 0 ? read(args[0]) : generate(64 << 20);
+    int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    Configuration conf = new Configuration();
+    System.out.println("Compressing " + data.length + " bytes " + rounds + " times");
+    for (String name : CODECS) {
+      CompressionCodec codec = (CompressionCodec)
+          ReflectionUtils.newInstance(conf.getClassByName(name), conf);
+      run(codec, data, rounds);
+    }
+  }
+}
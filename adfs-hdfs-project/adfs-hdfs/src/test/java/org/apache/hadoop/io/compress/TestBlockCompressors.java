@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.hadoop.io.compress.lz4.Lz4Compressor;
+import org.apache.hadoop.io.compress.lz4.Lz4Decompressor;
+import org.apache.hadoop.io.compress.snappy.BuiltInSnappyCompressor;
+import org.apache.hadoop.io.compress.snappy.BuiltInSnappyDecompressor;
+import org.junit.Test;
+
+/**
+ * Tests the LZ4 and snappy block compressors written in Java.
+ */
+public class TestBlockCompressors {
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Random random = new Random(0);
+
+  private static byte[] bytes(String s) {
+    byte[] b = new byte[s.length()];
+    for (int i = 0; i < b.length; i++) {
+      b[i] = (byte) s.charAt(i);
+    }
+    return b;
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] b = new byte[length];
+    random.nextBytes(b);
+    return b;
+  }
+
+  private byte[] repeatedBytes(int length) {
+    byte[] b = new byte[length];
+    for (int i = 0; i < length; i++) {
+      b[i] = (byte) "The quick brown fox jumps over the lazy dog. ".charAt(i % 45);
+    }
+    return b;
+  }
+
+  // words from a small vocabulary, compressible but not trivially
+  private byte[] textBytes(int length) {
+    String[] words = new String[64];
+    for (int i = 0; i < words.length; i++) {
+      words[i] = Integer.toString(random.nextInt(), 36);
+    }
+    StringBuilder text = new StringBuilder();
+    while (text.length() < length) {
+      text.append(words[random.nextInt(words.length)]).append(' ');
+    }
+    return bytes(text.substring(0, length));
+  }
+
+  /**
+   * Compress and decompress the data through the block streams.
+   * @return the length of the compressed data
+   */
+  private static int roundTrip(Compressor compressor, Decompressor decompressor,
+      int bufferSize, byte[] data) throws IOException {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    OutputStream out = new BlockCompressorStream(compressed, compressor,
+        bufferSize, bufferSize / 6 + 32);
+    // in pieces of various sizes, some larger than the buffer
+    Random random = new Random(data.length);
+    for (int off = 0; off < data.length;) {
+      int len = Math.min(data.length - off, random.nextInt(bufferSize * 2) + 1);
+      out.write(data, off, len);
+      off += len;
+    }
+    out.close();
+
+    InputStream in = new BlockDecompressorStream(
+        new ByteArrayInputStream(compressed.toByteArray()), decompressor, bufferSize);
+    byte[] result = new byte[data.length];
+    int n = 0;
+    for (int count; n < result.length && (count = in.read(result, n, result.length - n)) > 0;) {
+      n += count;
+    }
+    assertEquals(data.length, n);
+    assertEquals(-1, in.read());
+    assertTrue(Arrays.equals(data, result));
+    return compressed.size();
+  }
+
+  private void testRoundTrips(Compressor compressor, Decompressor decompressor)
+      throws IOException {
+    byte[][] inputs = {
+        new byte[0], bytes("a"), bytes("abcdefghijkl"), bytes("aaaaaaaaaaaaaaaaaaaaaaaa"),
+        randomBytes(100), randomBytes(BUFFER_SIZE * 3),
+        repeatedBytes(BUFFER_SIZE * 3), textBytes(BUFFER_SIZE * 3), new byte[BUFFER_SIZE * 3] };
+    for (byte[] input : inputs) {
+      compressor.reset();
+      decompressor.reset();
+      int length = roundTrip(compressor, decompressor, BUFFER_SIZE, input);
+      if (input.length > BUFFER_SIZE && input[0] == 'T') {
+        assertTrue("repeated data compressed to " + length, length < input.length / 10);
+      }
+    }
+    // small buffers cut the data in many blocks
+    compressor.reset();
+    decompressor.reset();
+    roundTrip(compressor, decompressor, 1024, textBytes(100000));
+  }
+
+  @Test
+  public void testLz4RoundTrip() throws IOException {
+    testRoundTrips(new Lz4Compressor(BUFFER_SIZE), new Lz4Decompressor(BUFFER_SIZE));
+  }
+
+  @Test
+  public void testSnappyRoundTrip() throws IOException {
+    testRoundTrips(new BuiltInSnappyCompressor(BUFFER_SIZE),
+        new BuiltInSnappyDecompressor(BUFFER_SIZE));
+  }
+
+  @Test
+  public void testDecompressorGrowsBuffer() throws IOException {
+    byte[] data = repeatedBytes(BUFFER_SIZE * 3);
+    roundTrip(new Lz4Compressor(BUFFER_SIZE * 4), new Lz4Decompressor(1024), BUFFER_SIZE * 4, data);
+    roundTrip(new BuiltInSnappyCompressor(BUFFER_SIZE * 4), new BuiltInSnappyDecompressor(1024),
+        BUFFER_SIZE * 4, data);
+  }
+
+  private static byte[] decompress(Decompressor decompressor, byte[] block) throws IOException {
+    decompressor.setInput(block, 0, block.length);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[7];
+    for (int n; (n = decompressor.decompress(buffer, 0, buffer.length)) > 0;) {
+      out.write(buffer, 0, n);
+    }
+    assertTrue(decompressor.finished());
+    assertTrue(decompressor.needsInput());
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testLz4Format() throws IOException {
+    // 4 literals and a match of 8 at offset 4, then 5 literals
+    byte[] block = { 0x44, 'a', 'b', 'c', 'd', 4, 0, 0x50, 'e', 'f', 'g', 'h', 'i' };
+    assertEquals("abcdabcdabcdefghi", new String(decompress(new Lz4Decompressor(), block), "US-ASCII"));
+  }
+
+  @Test
+  public void testSnappyFormat() throws IOException {
+    // a length of 12, 4 literals and a copy of 8 at offset 4
+    byte[] block = { 12, 3 << 2, 'a', 'b', 'c', 'd', 1 | 4 << 2, 4 };
+    assertEquals("abcdabcdabcd", new String(decompress(new BuiltInSnappyDecompressor(), block), "US-ASCII"));
+  }
+
+  private static void assertMalformed(Decompressor decompressor, byte[] block) {
+    try {
+      decompress(decompressor, block);
+      fail("Malformed block is decompressed");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testMalformedBlocks() {
+    // truncated literals
+    assertMalformed(new Lz4Decompressor(), new byte[] { 0x40, 'a', 'b' });
+    // offset before the start
+    assertMalformed(new Lz4Decompressor(), new byte[] { 0x10, 'a', 2, 0, 0x10, 'b' });
+    // shorter than its length
+    assertMalformed(new BuiltInSnappyDecompressor(), new byte[] { 12, 3 << 2, 'a', 'b', 'c', 'd' });
+    // offset before the start
+    assertMalformed(new BuiltInSnappyDecompressor(), new byte[] { 12, 3 << 2, 'a', 'b', 'c', 'd', 1 | 4 << 2, 8 });
+    // bad length
+    assertMalformed(new BuiltInSnappyDecompressor(), new byte[] { (byte) 0xFF });
+  }
+}
@@ -39,6 +39,7 @@ import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.CommonConfigurationKeys;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -50,7 +51,6 @@ import org.apache.hadoop.io.SequenceFile;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 import org.apache.hadoop.io.SequenceFile.CompressionType;
-import org.apache.hadoop.io.compress.snappy.LoadSnappy;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
 import org.apache.hadoop.io.compress.CompressorStream;
 import org.apache.hadoop.io.compress.zlib.BuiltInZlibDeflater;
@@ -65,7 +65,6 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import org.junit.Assert;
 import org.junit.Test;
 import static org.junit.Assert.*;
 
@@ -95,18 +94,26 @@ public class TestCodec {
     codecTest(conf, seed, 0, "org.apache.hadoop.io.compress.BZip2Codec");
     codecTest(conf, seed, count, "org.apache.hadoop.io.compress.BZip2Codec");
   }
+
+  @Test
+  public void testParallelBZip2Codec() throws IOException {
+    Configuration conf = new Configuration(this.conf);
+    conf.setInt(CommonConfigurationKeys.IO_COMPRESSION_CODEC_BZIP2_THREADS_KEY, 4);
+    codecTest(conf, seed, 0, "org.apache.hadoop.io.compress.BZip2Codec");
+    codecTest(conf, seed, count, "org.apache.hadoop.io.compress.BZip2Codec");
+  }
   
   @Test
   public void testSnappyCodec() throws IOException {
-    if (LoadSnappy.isAvailable()) {
-      if (LoadSnappy.isLoaded()) {
-        codecTest(conf, seed, 0, "org.apache.hadoop.io.compress.SnappyCodec");
-        codecTest(conf, seed, count, "org.apache.hadoop.io.compress.SnappyCodec");
-      }
-      else {
-        Assert.fail("Snappy native available but Hadoop native not");
-      }
-    }
+    // the codec is written in Java if the native library is not loaded
+    codecTest(conf, seed, 0, "org.apache.hadoop.io.compress.SnappyCodec");
+    codecTest(conf, seed, count, "org.apache.hadoop.io.compress.SnappyCodec");
+  }
+
+  @Test
+  public void testLz4Codec() throws IOException {
+    codecTest(conf, seed, 0, "org.apache.hadoop.io.compress.Lz4Codec");
+    codecTest(conf, seed, count, "org.apache.hadoop.io.compress.Lz4Codec");
   }
 
   @Test
@@ -210,14 +217,53 @@ public class TestCodec {
 
   @Test
   public void testSplitableCodecs() throws Exception {
-    testSplitableCodec(BZip2Codec.class);
+    testSplitableCodec(BZip2Codec.class, new Configuration());
+    // compressed a block per stream, read a block per thread
+    Configuration conf = new Configuration();
+    conf.setInt(CommonConfigurationKeys.IO_COMPRESSION_CODEC_BZIP2_THREADS_KEY, 4);
+    testSplitableCodec(BZip2Codec.class, conf);
+  }
+
+  @Test
+  public void testSerialBZip2AfterParallelSplit() throws Exception {
+    Configuration conf = new Configuration();
+    conf.setInt(CommonConfigurationKeys.IO_COMPRESSION_CODEC_BZIP2_THREADS_KEY, 4);
+    BZip2Codec parallel = ReflectionUtils.newInstance(BZip2Codec.class, conf);
+    BZip2Codec serial = ReflectionUtils.newInstance(BZip2Codec.class,
+        new Configuration());
+    final FileSystem fs = FileSystem.getLocal(conf);
+    final Path file = writeSplitTestFile(fs, new Random(seed), serial,
+        2 * 1024 * 1024);
+    final long flen = fs.getFileStatus(file).getLen();
+    final byte[] expected = readBZip2(serial.createInputStream(fs.open(file)));
+
+    // a split read on several threads
+    SplitCompressionInputStream in = parallel.createInputStream(fs.open(file),
+        null, flen / 2, flen, SplittableCompressionCodec.READ_MODE.BYBLOCK);
+    final LineReader lreader = new LineReader(in);
+    assertTrue(lreader.readLine(new Text()) > 0);
+    lreader.close();
+
+    // must not leave its state to the next serial stream
+    assertArrayEquals(expected,
+        readBZip2(serial.createInputStream(fs.open(file))));
+    fs.delete(file.getParent(), true);
+  }
+
+  private static byte[] readBZip2(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      IOUtils.copyBytes(in, out, 4096, false);
+    } finally {
+      in.close();
+    }
+    return out.toByteArray();
   }
 
   private void testSplitableCodec(
-      Class<? extends SplittableCompressionCodec> codecClass)
-      throws IOException {
+      Class<? extends SplittableCompressionCodec> codecClass,
+      final Configuration conf) throws IOException {
     final long DEFLBYTES = 2 * 1024 * 1024;
-    final Configuration conf = new Configuration();
     final Random rand = new Random();
     final long seed = rand.nextLong();
     LOG.info("seed: " + seed);
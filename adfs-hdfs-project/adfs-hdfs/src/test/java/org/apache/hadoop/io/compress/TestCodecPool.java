@@ -0,0 +1,184 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestCodecPool {
+
+  // a compressor class per test, so the tests do not share pooled instances
+  static class ThreadCacheCompressor extends FakeCompressor {}
+  static class SharedPoolCompressor extends FakeCompressor {}
+  static class ExitedThreadCompressor extends FakeCompressor {}
+  static class LeakedCompressor extends FakeCompressor {}
+  static class PooledDecompressor extends FakeDecompressor {}
+
+  static class FakeCodec implements CompressionCodec {
+    private final Class<? extends Compressor> compressorType;
+
+    FakeCodec(Class<? extends Compressor> compressorType) {
+      this.compressorType = compressorType;
+    }
+
+    public CompressionOutputStream createOutputStream(OutputStream out) {
+      throw new UnsupportedOperationException();
+    }
+
+    public CompressionOutputStream createOutputStream(OutputStream out, Compressor compressor) {
+      throw new UnsupportedOperationException();
+    }
+
+    public Class<? extends Compressor> getCompressorType() {
+      return compressorType;
+    }
+
+    public Compressor createCompressor() {
+      try {
+        return compressorType.newInstance();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    public CompressionInputStream createInputStream(InputStream in) {
+      throw new UnsupportedOperationException();
+    }
+
+    public CompressionInputStream createInputStream(InputStream in, Decompressor decompressor) {
+      throw new UnsupportedOperationException();
+    }
+
+    public Class<? extends Decompressor> getDecompressorType() {
+      return PooledDecompressor.class;
+    }
+
+    public Decompressor createDecompressor() {
+      return new PooledDecompressor();
+    }
+
+    public String getDefaultExtension() {
+      return ".fake";
+    }
+  }
+
+  @Test
+  public void testThreadCache() {
+    CompressionCodec codec = new FakeCodec(ThreadCacheCompressor.class);
+    CodecPool.Statistics stats = CodecPool.getCompressorStatistics();
+    long created = stats.getCreated();
+    long threadHits = stats.getThreadHits();
+
+    Compressor compressor = CodecPool.getCompressor(codec);
+    assertTrue(compressor instanceof ThreadCacheCompressor);
+    assertEquals(created + 1, stats.getCreated());
+    CodecPool.returnCompressor(compressor);
+    assertSame(compressor, CodecPool.getCompressor(codec));
+    assertEquals(threadHits + 1, stats.getThreadHits());
+    assertEquals(created + 1, stats.getCreated());
+    CodecPool.returnCompressor(compressor);
+    assertTrue(stats.getHitRate() > 0);
+  }
+
+  @Test
+  public void testDecompressor() {
+    CompressionCodec codec = new FakeCodec(ThreadCacheCompressor.class);
+    CodecPool.Statistics stats = CodecPool.getDecompressorStatistics();
+    long returned = stats.getReturned();
+
+    Decompressor decompressor = CodecPool.getDecompressor(codec);
+    CodecPool.returnDecompressor(decompressor);
+    assertSame(decompressor, CodecPool.getDecompressor(codec));
+    CodecPool.returnDecompressor(decompressor);
+    assertEquals(returned + 2, stats.getReturned());
+  }
+
+  @Test
+  public void testSharedPool() throws Exception {
+    final CompressionCodec codec = new FakeCodec(SharedPoolCompressor.class);
+    CodecPool.Statistics stats = CodecPool.getCompressorStatistics();
+    long sharedHits = stats.getSharedHits();
+
+    // more than the thread cache holds, the last one goes to the shared pool
+    List<Compressor> compressors = new ArrayList<Compressor>();
+    for (int i = 0; i < 3; i++) {
+      compressors.add(CodecPool.getCompressor(codec));
+    }
+    for (Compressor compressor : compressors) {
+      CodecPool.returnCompressor(compressor);
+    }
+
+    final Compressor[] borrowed = new Compressor[1];
+    Thread thread = new Thread() {
+      public void run() {
+        borrowed[0] = CodecPool.getCompressor(codec);
+      }
+    };
+    thread.start();
+    thread.join();
+    assertSame(compressors.get(2), borrowed[0]);
+    assertEquals(sharedHits + 1, stats.getSharedHits());
+    CodecPool.returnCompressor(borrowed[0]);
+  }
+
+  @Test
+  public void testExitedThreadCache() throws Exception {
+    final CompressionCodec codec = new FakeCodec(ExitedThreadCompressor.class);
+    final Compressor[] returned = new Compressor[1];
+    Thread thread = new Thread() {
+      public void run() {
+        returned[0] = CodecPool.getCompressor(codec);
+        CodecPool.returnCompressor(returned[0]);
+      }
+    };
+    thread.start();
+    thread.join();
+
+    // a new compressor is created and the exited thread's cache is swept
+    Thread.sleep(1100);
+    Compressor created = CodecPool.getCompressor(codec);
+    assertNotSame(returned[0], created);
+    assertSame(returned[0], CodecPool.getCompressor(codec));
+    CodecPool.returnCompressor(created);
+    CodecPool.returnCompressor(returned[0]);
+  }
+
+  @Test
+  public void testLeak() throws Exception {
+    CompressionCodec codec = new FakeCodec(LeakedCompressor.class);
+    CodecPool.Statistics stats = CodecPool.getCompressorStatistics();
+    long leaked = stats.getLeaked();
+
+    Compressor compressor = CodecPool.getCompressor(codec);
+    CodecPool.returnCompressor(compressor);
+    compressor = CodecPool.getCompressor(codec);
+    compressor = null;
+    for (int i = 0; i < 50 && stats.getLeaked() == leaked; i++) {
+      System.gc();
+      Thread.sleep(100);
+      stats = CodecPool.getCompressorStatistics();
+    }
+    assertTrue(stats.getLeaked() > leaked);
+  }
+}
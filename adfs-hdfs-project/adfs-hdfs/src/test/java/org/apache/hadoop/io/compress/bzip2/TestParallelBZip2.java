@@ -0,0 +1,215 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.io.compress.bzip2;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.io.compress.SplittableCompressionCodec.READ_MODE;
+import org.junit.Test;
+
+public class TestParallelBZip2 {
+  private static final int THREADS = 4;
+
+  // several blocks of text, compressible as lines of a file are
+  private static byte[] generate(int length) {
+    Random random = new Random(42);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+    for (int line = 0; out.size() < length; line++) {
+      String s = line + " " + Long.toString(random.nextLong() & 0xFFFFFFFL, 36) + "\n";
+      out.write(s.getBytes(), 0, s.length());
+    }
+    return Arrays.copyOf(out.toByteArray(), length);
+  }
+
+  // without the "BZ" magic bytes of the first stream
+  private static byte[] compress(byte[] data, int threads) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    OutputStream out = threads > 1
+        ? new ParallelBZip2OutputStream(buffer, threads)
+        : new CBZip2OutputStream(buffer);
+    // odd sized writes across the chunks
+    for (int off = 0; off < data.length; off += 77777) {
+      out.write(data, off, Math.min(77777, data.length - off));
+    }
+    out.close();
+    return buffer.toByteArray();
+  }
+
+  private static byte[] decompress(byte[] compressed, int threads)
+      throws IOException {
+    CBZip2InputStream in = new CBZip2InputStream(
+        new ByteArrayInputStream(compressed), READ_MODE.CONTINUOUS, threads);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[10000];
+    for (int n; (n = in.read(buffer, 0, buffer.length)) >= 0;) {
+      out.write(buffer, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+
+  @Test
+  public void testParallelCompression() throws IOException {
+    byte[] data = generate(3 * 1000 * 1000);
+    byte[] compressed = compress(data, THREADS);
+    // one stream per block, read back by the serial and the parallel readers
+    assertArrayEquals(data, decompress(compressed, 1));
+    assertArrayEquals(data, decompress(compressed, THREADS));
+  }
+
+  @Test
+  public void testParallelDecompression() throws IOException {
+    byte[] data = generate(3 * 1000 * 1000);
+    byte[] compressed = compress(data, 1);
+    assertArrayEquals(data, decompress(compressed, THREADS));
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    byte[] compressed = compress(new byte[0], THREADS);
+    assertArrayEquals(compress(new byte[0], 1), compressed);
+    assertEquals(0, decompress(compressed, 1).length);
+    assertEquals(0, decompress(compressed, THREADS).length);
+  }
+
+  @Test
+  public void testConcatenatedStreams() throws IOException {
+    byte[] first = generate(1000);
+    byte[] second = generate(2000);
+    ByteArrayOutputStream concatenated = new ByteArrayOutputStream();
+    concatenated.write(compress(first, 1));
+    concatenated.write('B');
+    concatenated.write('Z');
+    concatenated.write(compress(second, 1));
+    byte[] expected = new byte[first.length + second.length];
+    System.arraycopy(first, 0, expected, 0, first.length);
+    System.arraycopy(second, 0, expected, first.length, second.length);
+    assertArrayEquals(expected, decompress(concatenated.toByteArray(), 1));
+    assertArrayEquals(expected, decompress(concatenated.toByteArray(), THREADS));
+  }
+
+  // the data read and the positions reported at the block ends
+  private static List<Long> readByBlock(byte[] compressed, int threads,
+      ByteArrayOutputStream out) throws IOException {
+    CBZip2InputStream in = new CBZip2InputStream(
+        new ByteArrayInputStream(compressed), READ_MODE.BYBLOCK, threads);
+    List<Long> positions = new ArrayList<Long>();
+    positions.add(in.getProcessedByteCount());
+    byte[] buffer = new byte[10000];
+    int n;
+    while ((n = in.read(buffer, 0, buffer.length)) != BZip2Constants.END_OF_STREAM) {
+      if (n == BZip2Constants.END_OF_BLOCK) {
+        positions.add(in.getProcessedByteCount());
+      } else {
+        out.write(buffer, 0, n);
+      }
+    }
+    in.close();
+    return positions;
+  }
+
+  @Test
+  public void testByBlockPositions() throws IOException {
+    byte[] data = generate(3 * 1000 * 1000);
+    for (int compressThreads : new int[] {1, THREADS}) {
+      byte[] compressed = compress(data, compressThreads);
+      ByteArrayOutputStream serial = new ByteArrayOutputStream();
+      ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+      List<Long> expected = readByBlock(compressed, 1, serial);
+      assertTrue(expected.size() > 3);
+      assertEquals(expected, readByBlock(compressed, THREADS, parallel));
+      assertArrayEquals(data, serial.toByteArray());
+      assertArrayEquals(data, parallel.toByteArray());
+    }
+  }
+
+  // the byte values in use after the block header form the symbol map, 16
+  // bits telling which groups of 16 values are used and 16 bits for each
+  // group used; these ones spell the block delimiter 0x314159265359
+  private static final byte[] DELIMITER_SYMBOLS = {
+    // groups 2, 3, 7, 9 and 15 are used: 0x3141
+    // group 2: 0x5926
+    33, 35, 36, 39, 42, 45, 46,
+    // group 3: 0x5359
+    49, 51, 54, 55, 57, 59, 60, 63,
+    // the other groups, not part of the match
+    112, (byte) 150, (byte) 250
+  };
+
+  // the number of delimiters in the bits of the compressed data
+  private static int countDelimiters(byte[] compressed) {
+    int count = 0;
+    long window = 0;
+    for (int i = 0; i < compressed.length; i++) {
+      window = (window << 8) | (compressed[i] & 0xff);
+      for (int shift = 7; shift >= 0; shift--) {
+        if ((i + 1) * 8 - shift >= 48
+            && ((window >>> shift) & ((1L << 48) - 1)) == CBZip2InputStream.BLOCK_DELIMITER) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Test
+  public void testChanceDelimiterMatch() throws IOException {
+    // no runs, which would add run lengths to the symbols
+    Random random = new Random(42);
+    byte[] data = new byte[2 * 1000 * 1000];
+    for (int i = 0; i < data.length; i++) {
+      do {
+        data[i] = DELIMITER_SYMBOLS[random.nextInt(DELIMITER_SYMBOLS.length)];
+      } while (i > 0 && data[i] == data[i - 1]);
+    }
+    byte[] compressed = compress(data, 1);
+    // each block is cut short once by the scan
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    int blocks = readByBlock(compressed, 1, serial).size() - 1;
+    assertTrue(blocks > 1);
+    assertEquals(2 * blocks, countDelimiters(compressed));
+
+    byte[] expected = decompress(compressed, 1);
+    assertArrayEquals(data, expected);
+    assertArrayEquals(expected, decompress(compressed, THREADS));
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    readByBlock(compressed, THREADS, parallel);
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+  }
+
+  @Test
+  public void testCorruptBlock() throws IOException {
+    byte[] compressed = compress(generate(2 * 1000 * 1000), 1);
+    compressed[compressed.length / 2] ^= 0x10;
+    try {
+      decompress(compressed, THREADS);
+      fail("Decompressed a corrupt block");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
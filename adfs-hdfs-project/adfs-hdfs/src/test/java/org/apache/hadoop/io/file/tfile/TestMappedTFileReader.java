@@ -0,0 +1,286 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements. See the NOTICE file distributed with this
+ * work for additional information regarding copyright ownership. The ASF
+ * licenses this file to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.apache.hadoop.io.file.tfile;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.file.tfile.TFile.Writer;
+
+public class TestMappedTFileReader extends TestCase {
+  private static String ROOT =
+      System.getProperty("test.build.data", "/tmp/tfile-test");
+
+  private final static int BLOCK_SIZE = 512;
+  private final static int NUM_RECORDS = 2000;
+
+  private FileSystem fs;
+  private Configuration conf;
+  private Path path;
+
+  @Override
+  public void setUp() throws IOException {
+    conf = new Configuration();
+    fs = FileSystem.getLocal(conf);
+    path = new Path(ROOT, "TestMappedTFileReader");
+  }
+
+  @Override
+  public void tearDown() throws IOException {
+    fs.delete(path, true);
+  }
+
+  private static String composeKey(int i) {
+    return String.format("key%08d", i * 2);
+  }
+
+  // random letters, so that a compressed file has several blocks too
+  private static String composeValue(int i) {
+    Random random = new Random(i);
+    StringBuilder sb = new StringBuilder("value" + i);
+    for (int j = 0; j < 100; j++) {
+      sb.append((char) ('a' + random.nextInt(26)));
+    }
+    return sb.toString();
+  }
+
+  private File writeRecords(String compression, int count) throws IOException {
+    FSDataOutputStream out = fs.create(path);
+    Writer writer = new Writer(out, BLOCK_SIZE, compression, "memcmp", conf);
+    try {
+      for (int i = 0; i < count; i++) {
+        writer.append(composeKey(i).getBytes(), composeValue(i).getBytes());
+      }
+    } finally {
+      writer.close();
+      out.close();
+    }
+    return new File(ROOT, path.getName());
+  }
+
+  private static String toString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return new String(bytes);
+  }
+
+  private void checkScan(String compression) throws IOException {
+    MappedTFileReader reader =
+        new MappedTFileReader(writeRecords(compression, NUM_RECORDS), conf);
+    try {
+      Assert.assertTrue(reader.isSorted());
+      Assert.assertEquals("memcmp", reader.getComparatorName());
+      Assert.assertEquals(NUM_RECORDS, reader.getEntryCount());
+      Assert.assertTrue(reader.getBlockCount() > 1);
+      Assert.assertEquals(composeKey(0), toString(reader.getFirstKey()));
+      Assert.assertEquals(composeKey(NUM_RECORDS - 1),
+          toString(reader.getLastKey()));
+
+      MappedTFileReader.Scanner scanner = reader.createScanner();
+      int i = 0;
+      for (; !scanner.atEnd(); scanner.advance(), i++) {
+        Assert.assertEquals(i, scanner.getRecordNum());
+        Assert.assertEquals(composeKey(i), toString(scanner.getKey()));
+        Assert.assertEquals(composeKey(i).length(), scanner.getKeyLength());
+        Assert.assertEquals(composeValue(i), toString(scanner.getValue()));
+      }
+      Assert.assertEquals(NUM_RECORDS, i);
+      Assert.assertFalse(scanner.advance());
+      scanner.close();
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testScanNone() throws IOException {
+    checkScan(Compression.Algorithm.NONE.getName());
+  }
+
+  public void testScanGz() throws IOException {
+    checkScan(Compression.Algorithm.GZ.getName());
+  }
+
+  public void testSeek() throws IOException {
+    MappedTFileReader reader =
+        new MappedTFileReader(writeRecords(
+            Compression.Algorithm.GZ.getName(), NUM_RECORDS), conf);
+    try {
+      MappedTFileReader.Scanner scanner = reader.createScanner();
+      for (int i = 0; i < NUM_RECORDS; i += 37) {
+        Assert.assertTrue(scanner.seekTo(composeKey(i).getBytes()));
+        Assert.assertEquals(i, scanner.getRecordNum());
+        Assert.assertEquals(composeValue(i), toString(scanner.getValue()));
+
+        // the keys are even numbers, an odd one falls between two entries
+        byte[] between = String.format("key%08d", i * 2 + 1).getBytes();
+        Assert.assertFalse(scanner.seekTo(between));
+        Assert.assertEquals(i + 1, scanner.getRecordNum());
+        scanner.lowerBound(composeKey(i).getBytes());
+        Assert.assertEquals(i, scanner.getRecordNum());
+        scanner.upperBound(composeKey(i).getBytes());
+        Assert.assertEquals(i + 1, scanner.getRecordNum());
+        Assert.assertEquals(0, scanner.compareTo(composeKey(i + 1).getBytes(),
+            0, composeKey(i + 1).length()));
+      }
+
+      Assert.assertFalse(scanner.seekTo("a".getBytes()));
+      Assert.assertEquals(0, scanner.getRecordNum());
+      Assert.assertFalse(scanner.seekTo("z".getBytes()));
+      Assert.assertTrue(scanner.atEnd());
+      scanner.upperBound(composeKey(NUM_RECORDS - 1).getBytes());
+      Assert.assertTrue(scanner.atEnd());
+      scanner.rewind();
+      Assert.assertEquals(composeKey(0), toString(scanner.getKey()));
+      scanner.seekToEnd();
+      Assert.assertTrue(scanner.atEnd());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testMultiChunkValue() throws IOException {
+    conf.setInt("tfile.io.chunk.size", 100);
+    byte[] value = new byte[1000];
+    for (int i = 0; i < value.length; i++) {
+      value[i] = (byte) i;
+    }
+    FSDataOutputStream out = fs.create(path);
+    Writer writer =
+        new Writer(out, BLOCK_SIZE, Compression.Algorithm.NONE.getName(),
+            "memcmp", conf);
+    for (int i = 0; i < 10; i++) {
+      DataOutputStream key = writer.prepareAppendKey(-1);
+      key.write(composeKey(i).getBytes());
+      key.close();
+      DataOutputStream dos = writer.prepareAppendValue(-1);
+      dos.write(value, 0, i * 100);
+      dos.close();
+    }
+    writer.close();
+    out.close();
+
+    MappedTFileReader reader =
+        new MappedTFileReader(new File(ROOT, path.getName()), conf);
+    try {
+      MappedTFileReader.Scanner scanner = reader.createScanner();
+      for (int i = 0; i < 10; i++, scanner.advance()) {
+        ByteBuffer buffer = scanner.getValue();
+        Assert.assertEquals(i * 100, buffer.remaining());
+        for (int j = 0; j < i * 100; j++) {
+          Assert.assertEquals(value[j], buffer.get());
+        }
+      }
+      Assert.assertTrue(scanner.atEnd());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testSharedBlockCache() throws IOException {
+    File file = writeRecords(Compression.Algorithm.GZ.getName(), NUM_RECORDS);
+    MappedTFileReader reader = new MappedTFileReader(file, conf);
+    long weight = reader.getBlock(0).weight();
+    reader.close();
+    // room for a couple of blocks only
+    TFileBlockCache cache = new TFileBlockCache(3 * weight);
+    MappedTFileReader reader1 = new MappedTFileReader(file, cache);
+    MappedTFileReader reader2 = new MappedTFileReader(file, cache);
+
+    MappedTFileReader.Scanner scanner = reader1.createScanner();
+    scanner.seekTo(composeKey(NUM_RECORDS / 2).getBytes());
+    long misses = cache.getMissCount();
+    scanner.rewind();
+    scanner.seekTo(composeKey(NUM_RECORDS / 2).getBytes());
+    Assert.assertEquals(misses, cache.getMissCount());
+    Assert.assertTrue(cache.getHitCount() > 0);
+
+    // the readers do not share blocks, a new scanner reads the first block
+    reader2.createScanner().seekTo(composeKey(NUM_RECORDS / 2).getBytes());
+    Assert.assertEquals(misses + 2, cache.getMissCount());
+
+    for (; !scanner.atEnd(); scanner.advance()) {
+      scanner.getValue();
+    }
+    Assert.assertTrue(cache.getEvictionCount() > 0);
+    Assert.assertTrue(cache.getSize() <= cache.getCapacity());
+
+    reader1.close();
+    reader2.close();
+    Assert.assertEquals(0, cache.getBlockCount());
+    Assert.assertEquals(0, cache.getSize());
+    try {
+      scanner.rewind();
+      Assert.fail("Failed to catch reading a closed reader.");
+    } catch (IOException e) {
+    }
+  }
+
+  public void testUnsorted() throws IOException {
+    FSDataOutputStream out = fs.create(path);
+    Writer writer =
+        new Writer(out, BLOCK_SIZE, Compression.Algorithm.GZ.getName(), null,
+            conf);
+    writer.append("keyZ".getBytes(), "valueZ".getBytes());
+    writer.append("keyA".getBytes(), "valueA".getBytes());
+    writer.close();
+    out.close();
+
+    MappedTFileReader reader =
+        new MappedTFileReader(new File(ROOT, path.getName()), conf);
+    try {
+      Assert.assertFalse(reader.isSorted());
+      MappedTFileReader.Scanner scanner = reader.createScanner();
+      Assert.assertEquals("keyZ", toString(scanner.getKey()));
+      scanner.advance();
+      Assert.assertEquals("valueA", toString(scanner.getValue()));
+      try {
+        scanner.seekTo("keyA".getBytes());
+        Assert.fail("Failed to catch seeking in an unsorted TFile.");
+      } catch (RuntimeException e) {
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  public void testEmpty() throws IOException {
+    MappedTFileReader reader =
+        new MappedTFileReader(writeRecords(
+            Compression.Algorithm.NONE.getName(), 0), conf);
+    try {
+      Assert.assertEquals(0, reader.getEntryCount());
+      Assert.assertEquals(0, reader.getBlockCount());
+      MappedTFileReader.Scanner scanner = reader.createScanner();
+      Assert.assertTrue(scanner.atEnd());
+      Assert.assertFalse(scanner.seekTo("key".getBytes()));
+      Assert.assertTrue(scanner.atEnd());
+    } finally {
+      reader.close();
+    }
+  }
+}
@@ -19,7 +19,9 @@
 package org.apache.hadoop.net;
 
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import junit.framework.TestCase;
@@ -168,4 +170,53 @@ public class TestNetworkTopology extends TestCase {
       }
     }
   }
+
+  /**
+   * This test checks that chooseRandom never returns an excluded node, also
+   * when most of the scope is excluded.
+   */
+  public void testChooseRandomExcludedNodes() {
+    List<Node> excludedNodes = new ArrayList<Node>();
+    excludedNodes.add(dataNodes[0]);
+    excludedNodes.add(dataNodes[3]);
+    excludedNodes.add(dataNodes[4]);
+    Map<Node, Integer> frequency = new HashMap<Node, Integer>();
+    for (int j = 0; j < 100; j++) {
+      Node random = cluster.chooseRandom("/d1", excludedNodes);
+      Integer count = frequency.get(random);
+      frequency.put(random, count == null ? 1 : count + 1);
+    }
+    assertEquals(2, frequency.size());
+    assertTrue(frequency.get(dataNodes[1]) > 0);
+    assertTrue(frequency.get(dataNodes[2]) > 0);
+
+    excludedNodes.add(dataNodes[1]);
+    for (int j = 0; j < 10; j++) {
+      assertSame(dataNodes[2], cluster.chooseRandom("~/d2", excludedNodes));
+    }
+    excludedNodes.add(dataNodes[2]);
+    assertNull(cluster.chooseRandom("/d1", excludedNodes));
+    assertEquals(0, cluster.countNumOfAvailableNodes("/d1", excludedNodes));
+    assertEquals(2, cluster.countNumOfAvailableNodes("~/d1", excludedNodes));
+  }
+
+  /**
+   * This test checks that readers see a node added or removed at once.
+   */
+  public void testSnapshotAfterChange() {
+    assertEquals(Integer.MAX_VALUE, cluster.getDistance(dataNodes[0], NODE));
+    cluster.add(NODE);
+    try {
+      assertTrue(cluster.contains(NODE));
+      assertEquals(4, cluster.getNumOfRacks());
+      assertEquals(dataNodes.length + 1, cluster.getNumOfLeaves());
+      assertEquals(4, cluster.getDistance(dataNodes[5], NODE));
+      assertSame(NODE, cluster.chooseRandom("/d2/r4"));
+    } finally {
+      cluster.remove(NODE);
+    }
+    assertFalse(cluster.contains(NODE));
+    assertEquals(3, cluster.getNumOfRacks());
+    assertNull(cluster.chooseRandom("/d2/r4"));
+  }
 }